@@ -0,0 +1,94 @@
+package it.unitn.TBDMX;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Memory taken by the nodes of a tree in one JVM. `createNodes` starts a tree of `nodes` idle nodes, in milliseconds per tree;
+ * after each iteration the heap still in use, compared with the one before the tree, is printed in bytes per node,
+ * and the benchmark fails if it is above `budget`. Akka takes about 600 bytes of them (cell, mailbox, props and path of every actor),
+ * the node itself about 250: the neighbors are read from the tree shared by all the nodes and the rest is allocated when needed.
+ *
+ * Run with `gradle jmh -PjmhArgs='FootprintBenchmark'`, e.g. `-p nodes=1000000` with a larger heap in `jvmArgsAppend`.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FootprintBenchmark {
+  @Param({"RANDOM"})
+  public TBDMXTopology.Shape shape;
+
+  @Param({"100000"})
+  public int nodes;
+
+  @Param({"1200"})
+  public int budget;
+
+  private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+  private TBDMXTopology topology;
+  private TBDMXOptions options;
+  private ActorSystem system;
+  private List<ActorRef> group;
+  private long before;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    topology = TBDMXTopology.generate(shape, nodes, 4, 42);
+    options = TBDMXOptions.parse(new String[]{"--bootstrap=bfs", "--holder=0"});
+  }
+
+  @Setup(Level.Iteration)
+  public void start() {
+    system = ActorSystem.create("TBDMXFootprint");
+    before = used();
+  }
+
+  @TearDown(Level.Iteration)
+  public void stop() throws Exception {
+    long perNode = (used() - before) / nodes;
+    System.out.println(perNode+" bytes per node");
+    group = null;
+    system.terminate();
+    Await.ready(system.whenTerminated(), Duration.create(60, TimeUnit.SECONDS));
+    if (perNode > budget) {
+      throw new IllegalStateException(perNode+" bytes per node, over the budget of "+budget);
+    }
+  }
+
+  private long used() {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  @Benchmark
+  public List<ActorRef> createNodes() {
+    group = TBDMXController.createNodes(system, topology, options);
+    return group;
+  }
+}
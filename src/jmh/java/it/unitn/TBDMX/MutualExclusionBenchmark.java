@@ -0,0 +1,351 @@
+package it.unitn.TBDMX;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.unitn.TBDMX.TBDMXNode.RequestCS;
+
+/**
+ * End-to-end benchmarks of the mutual exclusion: a tree of `TBDMXNode`s is started in-process, already knowing its holder, and
+ * critical sections are requested at random nodes. Each critical section is empty, so what is measured is the cost of the protocol,
+ * unless it lasts `hold` microseconds.
+ * - `grants` measures CS grants per second with `concurrency` requests in flight (closed loop): one operation sends a request as soon as
+ * one of those in flight is granted, so a lock that is slow to come holds up only the requests waiting for it. Each request is one
+ * grant, a `burst` is `burst` of them.
+ * The `grants` and `messages` counters are reported per second, their ratio is the number of messages per CS entry,
+ * also reported directly as `messagesPerEntry`.
+ * - `latency` samples the time from a `RequestCS` to the entry in the CS (use the percentiles of `SampleTime`),
+ * while other requests arrive in the background at `rate` per second (open loop).
+ * - `acquireRelease` goes through `TBDMXMutex`: `concurrency` tasks acquire the lock at random nodes and release it as soon as
+ * they get it, one operation being the whole round, e.g. `-p concurrency=1000` for a thousand tasks waiting at the same time.
+ * The background requests also run during `grants`, and their messages are counted as well.
+ * Requests are spread uniformly over `resources` independent locks, e.g. `-p resources=64` shows how the throughput grows with the number of keys.
+ * A `readFraction` of the requests ask shared access, e.g. `-p readFraction=0.9` for a read-mostly workload.
+ * With `hot` > 0, nine requests out of ten come from `hot` nodes chosen at random, a skewed workload for which
+ * `-p adaptive=4` shows how many messages per CS entry the adaptive restructuring of the tree saves.
+ * With `burst` > 1 every exclusive request is a burst of that many `RequestCS`s to the same node, which queues them:
+ * `-p burst=8 -p batch=0,4` compares serving them one per turn with batching, where the holder keeps the token for up to `batch` of them.
+ * With `tokens` = k up to k nodes are in the CS of a resource at the same time: with CSs that last, e.g.
+ * `-p hold=5000 -p concurrency=16 -p tokens=1,2,4`, the grants per second grow about k times.
+ * With `coalesce` the messages a node sends to the same neighbor while handling one message, or within `coalesceWindow` microseconds,
+ * travel in one `Envelope`: the `frames` counter and `framesPerEntry` count what is actually sent, e.g.
+ * `-p resources=64 -p concurrency=64 -p coalesce=false,true` compares them with the `messages`.
+ * `dispatcher` and `mailbox` choose the execution profile of the nodes (see `TBDMXNode.props`), e.g.
+ * `-p shape=STAR,KARY -p rate=0 -p dispatcher=default,throughput,affinity -p mailbox=default,single-consumer` compares them on each topology.
+ *
+ * Run with `gradle jmh`, JMH options can be given with `-PjmhArgs='...'`, e.g. `-PjmhArgs='-p shape=STAR -p nodes=1000'`.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MutualExclusionBenchmark {
+  private static final CompletionStage<Void> DONE = CompletableFuture.completedFuture(null);
+  private static final int PROBES = 64;                  // random pairs tried by `claim` before scanning them
+  private static final long MIN_BACKOFF = 10_000;        // ns a request waits the first time it finds every pair pending
+  private static final long MAX_BACKOFF = 1_000_000;
+
+  @Param({"LINE", "STAR", "KARY", "RANDOM"})
+  public TBDMXTopology.Shape shape;
+
+  @Param({"10", "1000", "100000"})
+  public int nodes;
+
+  @Param({"4"})
+  public int arity;
+
+  @Param({"4"})
+  public int concurrency;
+
+  @Param({"0", "1000"})
+  public int rate;
+
+  @Param({"1"})
+  public int resources;
+
+  @Param({"0"})
+  public double readFraction;
+
+  @Param({"0"})
+  public int hot;
+
+  @Param({"0"})
+  public int adaptive;
+
+  @Param({"1"})
+  public int burst;
+
+  @Param({"0"})
+  public int batch;
+
+  @Param({"1"})
+  public int tokens;
+
+  @Param({"0"})
+  public int hold;
+
+  @Param({"false"})
+  public boolean coalesce;
+
+  @Param({"0"})
+  public int coalesceWindow;
+
+  @Param({"default"})
+  public String dispatcher;
+
+  @Param({"default"})
+  public String mailbox;
+
+  private ActorSystem system;
+  private List<ActorRef> group;
+  private AtomicIntegerArray pending;   // at node*resources+resource, 1 if the node has a request for the resource not yet granted
+  private int[] hotNodes;
+  private ScheduledExecutorService load;
+  private ScheduledExecutorService holds;   // ends the CSs that last `hold` microseconds
+  private final LongAdder granted = new LongAdder();   // CS entries so far
+  private final LongAdder skipped = new LongAdder();   // background requests that found every pair pending
+  private TBDMXMutex mutex;
+  private Semaphore window;             // requests `grants` may still send before one in flight is granted
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Rates {
+    public long grants;
+    public long messages;
+    public long frames;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      grants = 0;
+      messages = 0;
+      frames = 0;
+    }
+  }
+
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class PerEntry {
+    public double messagesPerEntry;
+    public double framesPerEntry;
+    private long grants;
+    private long messages;
+    private long frames;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      grants = 0;
+      messages = 0;
+      frames = 0;
+      messagesPerEntry = 0;
+      framesPerEntry = 0;
+    }
+
+    void add(long grants, long messages, long frames) {
+      this.grants += grants;
+      this.messages += messages;
+      this.frames += frames;
+      this.messagesPerEntry = (double) this.messages / this.grants;
+      this.framesPerEntry = (double) this.frames / this.grants;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    if (concurrency * 2 > nodes * resources) {
+      throw new IllegalArgumentException("concurrency must be at most half the number of nodes times the number of resources");
+    }
+    TBDMXOptions options = TBDMXOptions.parse(new String[]{"--adaptive=" + adaptive, "--batch=" + batch, "--tokens=" + tokens,
+                                                           "--coalesce=" + coalesce, "--coalesce-window=" + coalesceWindow,
+                                                           "--dispatcher=" + dispatcher, "--mailbox=" + mailbox,
+                                                           "--bootstrap=bfs", "--holder=0"});
+    system = ActorSystem.create("TBDMXBench", TBDMXNode.config(options));
+    group = TBDMXController.createNodes(system, TBDMXTopology.generate(shape, nodes, arity, 42), options);
+    pending = new AtomicIntegerArray(nodes * resources);
+    hotNodes = new Random(7).ints(hot, 0, nodes).toArray();
+    if (hold > 0) {
+      holds = Executors.newSingleThreadScheduledExecutor();
+    }
+    mutex = new TBDMXMutex(system, group);
+    window = new Semaphore(concurrency);
+    if (rate > 0) {
+      load = Executors.newSingleThreadScheduledExecutor();
+      load.scheduleAtFixedRate(this::load, 0, 1_000_000_000L / rate, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    if (load != null) {
+      load.shutdownNow();
+      load.awaitTermination(10, TimeUnit.SECONDS);
+      if (skipped.sum() > 0) {
+        System.out.println(skipped.sum()+" background requests skipped, every pair being pending");
+      }
+    }
+    if (holds != null) {
+      holds.shutdownNow();
+    }
+    system.terminate();
+    Await.ready(system.whenTerminated(), Duration.create(30, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Sends a `RequestCS` for a random resource to a random node without pending requests for it, shared with probability `readFraction`,
+   * or a `burst` of exclusive ones. The pairs that already have pending requests are skipped; if all of them have, the thread
+   * parks for a while and tries again, so that it leaves its core to the nodes, which are the ones that can free a pair.
+   *
+   * @return     A future completed with `System.nanoTime()` when the node enters the CS, the last time for a burst.
+   */
+  private CompletableFuture<Long> request() {
+    long backoff = MIN_BACKOFF;
+    for (int slot = claim(); ; slot = claim()) {
+      if (slot >= 0) {
+        return request(slot);
+      }
+      LockSupport.parkNanos(backoff);
+      backoff = Math.min(backoff * 2, MAX_BACKOFF);
+    }
+  }
+
+  /**
+   * Sends the background requests at `rate` per second: a request that finds every pair pending is skipped, not delayed,
+   * so the loader never waits for the nodes.
+   */
+  private void load() {
+    int slot = claim();
+    if (slot >= 0) {
+      request(slot);
+    }
+    else {
+      skipped.increment();
+    }
+  }
+
+  /**
+   * Marks a random pair of node and resource without pending requests as pending, nine times out of ten a pair of a hot node if `hot` > 0.
+   * After `PROBES` random pairs that are pending the pairs are scanned once from a random one, so the call is bounded.
+   *
+   * @return     The pair, as node * `resources` + resource, or -1 if every pair is pending.
+   */
+  private int claim() {
+    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+    int slot = hot > 0 && rnd.nextInt(10) < 9 ? hotNodes[rnd.nextInt(hot)] * resources + rnd.nextInt(resources) : -1;
+    if (slot >= 0 && pending.compareAndSet(slot, 0, 1)) {   //Hot nodes that are all waiting leave the request to the others
+      return slot;
+    }
+    int slots = nodes * resources;
+    for (int i = 0; i < PROBES; i++) {
+      slot = rnd.nextInt(slots);
+      if (pending.compareAndSet(slot, 0, 1)) {
+        return slot;
+      }
+    }
+    int first = rnd.nextInt(slots);
+    for (int i = 0; i < slots; i++) {
+      slot = (first + i) % slots;
+      if (pending.get(slot) == 0 && pending.compareAndSet(slot, 0, 1)) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Sends the request of a pair marked as pending by `claim`.
+   *
+   * @param      slot  The pair, as node * `resources` + resource.
+   *
+   * @return     A future completed with `System.nanoTime()` when the node enters the CS, the last time for a burst.
+   */
+  private CompletableFuture<Long> request(int slot) {
+    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+    final int s = slot;
+    boolean shared = readFraction > 0 && rnd.nextDouble() < readFraction;
+    CompletableFuture<Long> entered = new CompletableFuture<>();
+    AtomicInteger left = new AtomicInteger(shared ? 1 : burst);
+    for (int i = left.get(); i > 0; i--) {
+      group.get(s / resources).tell(new RequestCS(s % resources, shared, () -> {
+        granted.increment();
+        if (left.decrementAndGet() == 0) {
+          pending.set(s, 0);
+          entered.complete(System.nanoTime());
+        }
+        if (hold == 0) {
+          return DONE;
+        }
+        CompletableFuture<Void> cs = new CompletableFuture<>();
+        holds.schedule(() -> cs.complete(null), hold, TimeUnit.MICROSECONDS);
+        return cs;
+      }), null);
+    }
+    return entered;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void grants(Rates rates, PerEntry perEntry) {
+    long before = TBDMXNode.messagesSent();
+    long framesBefore = TBDMXNode.framesSent();
+    long grantedBefore = granted.sum();
+    window.acquireUninterruptibly();
+    request().thenRun(window::release);
+    long messages = TBDMXNode.messagesSent() - before;
+    long frames = TBDMXNode.framesSent() - framesBefore;
+    long grants = granted.sum() - grantedBefore;
+    rates.grants += grants;
+    rates.messages += messages;
+    rates.frames += frames;
+    perEntry.add(grants, messages, frames);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void acquireRelease() {
+    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+    CompletableFuture<?>[] released = new CompletableFuture<?>[concurrency];
+    for (int i = 0; i < concurrency; i++) {
+      released[i] = mutex.acquire(rnd.nextInt(nodes), rnd.nextInt(resources), 0, TimeUnit.MILLISECONDS).thenAccept(TBDMXMutex.LockHandle::release);
+    }
+    CompletableFuture.allOf(released).join();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public long latency() {
+    return request().join();
+  }
+}
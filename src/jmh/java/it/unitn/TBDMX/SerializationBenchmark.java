@@ -0,0 +1,102 @@
+package it.unitn.TBDMX;
+
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.JavaSerializer;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.SerializerWithStringManifest;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.unitn.TBDMX.TBDMXNode.Advice;
+import it.unitn.TBDMX.TBDMXNode.Privilege;
+import it.unitn.TBDMX.TBDMXNode.Request;
+
+/**
+ * Serialization of the messages of the nodes, with `TBDMXSerializer` (`binary`) and with Akka's Java serialization (`java`).
+ * `roundTrip` serializes and deserializes a `message` and is reported in operations per second, and the size of its encoding is printed.
+ * That the messages come back intact is checked by `TBDMXSerializerTest`.
+ *
+ * Run with `gradle jmh -PjmhArgs='SerializationBenchmark'`.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SerializationBenchmark {
+  @Param({"REQUEST", "PRIVILEGE", "ADVICE"})
+  public String message;
+
+  @Param({"binary", "java"})
+  public String serializer;
+
+  private ActorSystem system;
+  private Serialization serialization;
+  private Serializer ser;
+  private Object msg;
+  private String manifest;
+
+  private static Advice advice() {
+    return new Advice(17, 3, true, new int[] {0, 5, -2, 1000, 7, 8, 9, 123456},
+                      new byte[] {Advice.HOLDER, Advice.ASKED | 2 << Advice.PRIORITY_SHIFT, 0, Advice.IN_REQUEST_QUEUE | Advice.ASKED_READ, 0, Advice.HOLDER, 0, Advice.IN_READ_QUEUE},
+                      new int[] {0, 0, 0, 2, 0, 0, 0, 1});
+  }
+
+  private byte[] toBinary(Serializer s, Object o) {
+    return s.toBinary(o);
+  }
+
+  private Object fromBinary(Serializer s, byte[] bytes, String manifest) {
+    return this.serialization.deserialize(bytes, s.identifier(), manifest).get();
+  }
+
+  @Setup
+  public void setup() {
+    this.system = ActorSystem.create("SerializationBenchmark");
+    this.serialization = this.system.registerExtension(SerializationExtension.lookup());
+    Serializer binary = this.serialization.findSerializerFor(new Request(0, 0, false));
+    if (!(binary instanceof TBDMXSerializer)) {
+      throw new IllegalStateException("TBDMXSerializer is not bound to the messages, but "+binary.getClass().getName());
+    }
+    Serializer java = new JavaSerializer((ExtendedActorSystem) this.system);
+    this.ser = this.serializer.equals("binary") ? binary : java;
+    switch (this.message) {
+      case "REQUEST": this.msg = new Request(1234, 0, false); break;
+      case "PRIVILEGE": this.msg = new Privilege(1234, 0); break;
+      case "ADVICE": this.msg = advice(); break;
+      default: throw new IllegalArgumentException("Unknown message "+this.message);
+    }
+    this.manifest = this.ser instanceof SerializerWithStringManifest ? ((SerializerWithStringManifest) this.ser).manifest(this.msg) : "";
+    System.out.println(this.message+": "+toBinary(this.ser, this.msg).length+" bytes with "+this.serializer+" serialization");
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    this.system.terminate();
+    Await.ready(this.system.whenTerminated(), Duration.create(10, TimeUnit.SECONDS));
+  }
+
+  @Benchmark
+  public Object roundTrip() {
+    return fromBinary(this.ser, toBinary(this.ser, this.msg), this.manifest);
+  }
+}
@@ -0,0 +1,120 @@
+package it.unitn.TBDMX;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.unitn.TBDMX.TBDMXLog.Event;
+
+/**
+ * Offline analysis of a binary trace. Before measuring, `threads` threads write a trace of about `records` events through `TBDMXLog.log`,
+ * each one passing the tokens of resources of its own among `nodes` random nodes (a request, `Request`s and `Privilege`s along a random path,
+ * the CS), and the time taken per event is printed. `analyze` reads, merges and checks the trace, in milliseconds, and fails if it finds an
+ * overlap or a request never granted. The trace takes 32 bytes per event in a temporary directory, and as much heap when analyzed:
+ * `-p records=33554432` is a gigabyte.
+ *
+ * Run with `gradle jmh -PjmhArgs='TraceBenchmark'`.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g"})
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TraceBenchmark {
+  @Param({"10000000"})
+  public int records;
+
+  @Param({"4"})
+  public int threads;
+
+  @Param({"1000"})
+  public int nodes;
+
+  private File dir;
+  private List<File> segments;
+  private ForkJoinPool pool;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    this.dir = new File(System.getProperty("java.io.tmpdir"), "tbdmx-trace-"+System.nanoTime());
+    Map<String, String> values = new HashMap<>();
+    values.put("trace-dir", this.dir.getPath());
+    TBDMXTrace.start(new TBDMXOptions(values));
+    Thread[] writers = new Thread[this.threads];
+    long start = System.nanoTime();
+    for (int t = 0; t < this.threads; t++) {
+      final int thread = t;
+      writers[t] = new Thread(() -> write(thread, this.records / this.threads));
+      writers[t].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    System.out.println(String.format("%.1f ns per event written, with %d threads", (double) (System.nanoTime() - start) / this.records, this.threads));
+    TBDMXTrace.close();
+    this.segments = Arrays.asList(this.dir.listFiles((d, name) -> name.endsWith(".trace")));
+    this.pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Writes the events of a thread, whose resources are the ones equal to `thread` modulo `threads`.
+   */
+  private void write(int thread, int events) {
+    Random rnd = new Random(thread);
+    int written = 0;
+    while (written < events) {
+      int resource = thread + this.threads * rnd.nextInt(4);
+      int node = rnd.nextInt(this.nodes);
+      int hops = rnd.nextInt(6);
+      long request = System.nanoTime();
+      TBDMXLog.log(Event.REQUEST_CS, node, resource, TBDMXLog.NONE, 0, request);
+      for (int h = 0; h < hops; h++) {
+        TBDMXLog.log(Event.REQUEST_SENT, node, resource, rnd.nextInt(this.nodes), h);
+      }
+      for (int h = 0; h < hops; h++) {
+        TBDMXLog.log(Event.PRIVILEGE_SENT, rnd.nextInt(this.nodes), resource, node, 0);
+      }
+      TBDMXLog.log(Event.CS_ENTER, node, resource, TBDMXLog.NONE, 0, request);
+      TBDMXLog.log(Event.CS_EXIT, node, resource, TBDMXLog.NONE, 0);
+      written += 3 + 2 * hops;
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    this.pool.shutdown();
+    for (File segment : this.segments) {
+      segment.delete();
+    }
+    this.dir.delete();
+  }
+
+  @Benchmark
+  public TBDMXTraceAnalyzer.Report analyze() throws Exception {
+    TBDMXTraceAnalyzer.Report report = TBDMXTraceAnalyzer.read(this.segments, this.pool).analyze(this.pool);
+    if (!report.ok()) {
+      throw new IllegalStateException(report.overlaps+" overlapping CSs and "+report.never+" requests never granted in a correct trace");
+    }
+    return report;
+  }
+}
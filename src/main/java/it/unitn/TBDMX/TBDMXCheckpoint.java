@@ -0,0 +1,332 @@
+package it.unitn.TBDMX;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Last image of the state of a node, a sequence of ints written with `begin`, `put` and `commit`, kept in memory-mapped files shared
+ * by all the nodes of the JVM that use the same directory: `index.ckpt` holds, at a fixed place for every node id, where the region
+ * of the node is in `data.ckpt`. A region has two slots and an image is written to the one not holding the last committed image, then
+ * committed by writing its header (sequence number, length and CRC32 of the ints), so a node dying in the middle of a write still finds
+ * the previous image. When an image does not fit, the node gets a region twice as large at the end of `data.ckpt`, and the index points
+ * to it only once the image is committed there; the old region is left unused.
+ * The pages of the mappings belong to the operating system, so what is committed survives the process, though not the machine
+ * unless `force` is called. The files are mapped in segments of `INDEX_SEGMENT` and `DATA_SEGMENT` bytes, whatever the number of nodes:
+ * a million nodes with small images take about 2 GB of `data.ckpt` in 33 mappings, far from `vm.max_map_count`, and no open file.
+ * A region must fit a data segment, so the image of a node is at most 4 million ints, otherwise `put` throws an `IllegalStateException`.
+ */
+final class TBDMXCheckpoint {
+  private static final int MAGIC = 0x7BD3C4E1;
+  private static final int FILE_HEADER = 8;                 // magic, unused; an offset 0 in the index means no region
+  private static final int REGION_HEADER = 8;               // ints per slot, unused
+  private static final int SLOT_HEADER = 16;                // sequence number, length, CRC32
+  private static final int INITIAL_CAPACITY = 256;          // ints per slot of a new region
+  static final long INDEX_SEGMENT = 8L << 20;               // bytes of each mapping of the index, a million nodes
+  static final long DATA_SEGMENT = 64L << 20;               // bytes of each mapping of the data, which a region never crosses
+  private static final Map<String, Store> STORES = new HashMap<>();
+  private static final ThreadLocal<CRC32> CRC = ThreadLocal.withInitial(CRC32::new);
+
+  /**
+   * A file mapped in segments of the same size, as they are needed. The file is only open while a segment is being mapped.
+   */
+  private static final class Segments {
+    private final String path;
+    private final long size;
+    private volatile MappedByteBuffer[] maps = new MappedByteBuffer[0];
+
+    Segments(String path, long size) {
+      this.path = path;
+      this.size = size;
+    }
+
+    /**
+     * Returns the segment holding a byte of the file, mapping it if needed.
+     */
+    ByteBuffer at(long offset) {
+      int s = (int) (offset / this.size);
+      MappedByteBuffer[] maps = this.maps;
+      return s < maps.length && maps[s] != null ? maps[s] : map(s);
+    }
+
+    /**
+     * Returns the position of a byte of the file in its segment.
+     */
+    int position(long offset) {
+      return (int) (offset % this.size);
+    }
+
+    private synchronized MappedByteBuffer map(int s) {
+      MappedByteBuffer[] maps = this.maps;
+      if (s < maps.length && maps[s] != null) {
+        return maps[s];
+      }
+      try (RandomAccessFile file = new RandomAccessFile(this.path, "rw")) {
+        MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, s * this.size, this.size);
+        maps = Arrays.copyOf(maps, Math.max(maps.length, s + 1));
+        maps[s] = map;
+        this.maps = maps;
+        return map;
+      }
+      catch (IOException e) {
+        throw new IllegalStateException("Cannot map "+this.path+": "+e.getMessage(), e);
+      }
+    }
+
+    long length() {
+      return new File(this.path).length();
+    }
+
+    void force() {
+      for (MappedByteBuffer map : this.maps) {
+        if (map != null) {
+          map.force();
+        }
+      }
+    }
+  }
+
+  /**
+   * The index and the data of the nodes using a directory.
+   */
+  private static final class Store {
+    final Segments index;
+    final Segments data;
+    private long end;                                       // where the next region is allocated
+
+    Store(File dir) throws IOException {
+      this.index = new Segments(new File(dir, "index.ckpt").getPath(), INDEX_SEGMENT);
+      this.data = new Segments(new File(dir, "data.ckpt").getPath(), DATA_SEGMENT);
+      this.end = Math.max(FILE_HEADER, this.data.length());  // The regions of a previous run stay where they are
+      for (Segments file : new Segments[] {this.index, this.data}) {
+        boolean created = file.length() == 0;
+        ByteBuffer header;
+        try {
+          header = file.at(0);
+        }
+        catch (IllegalStateException e) {
+          throw new IOException(e.getMessage(), e);
+        }
+        if (created) {
+          header.putInt(0, MAGIC);
+        }
+        else if (header.getInt(0) != MAGIC) {
+          throw new IOException(file.path+" is not a checkpoint file");
+        }
+      }
+    }
+
+    synchronized long allocate(long bytes) {
+      if (bytes > DATA_SEGMENT) {
+        throw new IllegalStateException("Checkpoint image too large for a segment of "+DATA_SEGMENT+" bytes");
+      }
+      if (this.end % DATA_SEGMENT + bytes > DATA_SEGMENT) {
+        this.end += DATA_SEGMENT - this.end % DATA_SEGMENT;
+      }
+      long region = this.end;
+      this.end += bytes;
+      return region;
+    }
+
+    long region(int id) {
+      long at = FILE_HEADER + 8L * id;
+      return this.index.at(at).getLong(this.index.position(at));
+    }
+
+    void region(int id, long region) {
+      long at = FILE_HEADER + 8L * id;
+      this.index.at(at).putLong(this.index.position(at), region);
+    }
+  }
+
+  private final Store store;
+  private final int id;
+  private long region;                        // offset of the region of the node in the data, 0 if it has none yet
+  private int capacity;                       // ints per slot of `region`
+  private long sequence;                      // of the last committed image
+  private long writing;                       // region being written: `region`, or a larger one until the image is committed
+  private int writingCapacity;
+  private ByteBuffer map;                     // the segment of `writing`
+  private int base;                           // position of `writing` in it
+  private int slot;                           // being written
+  private int length;                         // ints written so far to the image
+
+  /**
+   * Opens the checkpoint of a node in a directory, creating the directory and the files of the nodes if needed.
+   *
+   * @param      dir   The directory.
+   * @param      id    The id of the node.
+   *
+   * @throws     IOException  If the files cannot be opened or mapped, or are not checkpoint files.
+   */
+  TBDMXCheckpoint(File dir, int id) throws IOException {
+    this.store = store(dir);
+    this.id = id;
+    try {
+      long region = this.store.region(id);
+      if (region >= FILE_HEADER && region < this.store.data.length()) {
+        ByteBuffer map = this.store.data.at(region);
+        int capacity = map.getInt(this.store.data.position(region));
+        if (capacity > 0 && REGION_HEADER + 2 * slotBytes(capacity) <= DATA_SEGMENT - this.store.data.position(region)) {
+          this.region = region;
+          this.capacity = capacity;
+          this.sequence = Math.max(sequence(region, capacity, 0), sequence(region, capacity, 1));
+        }
+      }
+    }
+    catch (IllegalStateException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  private static Store store(File dir) throws IOException {
+    String key = dir.getCanonicalPath();
+    synchronized (STORES) {
+      Store store = STORES.get(key);
+      if (store == null) {
+        dir.mkdirs();
+        store = new Store(dir);
+        STORES.put(key, store);
+      }
+      return store;
+    }
+  }
+
+  private static long slotBytes(int capacity) {
+    return SLOT_HEADER + 4L * capacity;
+  }
+
+  private long sequence(long region, int capacity, int slot) {
+    long at = region + REGION_HEADER + slot * slotBytes(capacity);
+    return this.store.data.at(at).getLong(this.store.data.position(at));
+  }
+
+  /**
+   * Starts writing a region: the two slots are empty, and `begin` has to be called again.
+   */
+  private void write(int capacity) {
+    long bytes = REGION_HEADER + 2 * slotBytes(capacity);
+    this.writing = this.store.allocate(bytes);
+    this.writingCapacity = capacity;
+    this.map = this.store.data.at(this.writing);
+    this.base = this.store.data.position(this.writing);
+    this.map.putInt(this.base, capacity);
+    this.map.putLong(offset(0), 0);
+    this.map.putLong(offset(1), 0);
+  }
+
+  private int offset(int slot) {
+    return (int) (this.base + REGION_HEADER + slot * slotBytes(this.writingCapacity));
+  }
+
+  /**
+   * Starts a new image.
+   */
+  void begin() {
+    if (this.region != 0 && this.writing != this.region) {    // Restored, or the last image was never committed to a larger region
+      this.writing = this.region;
+      this.writingCapacity = this.capacity;
+      this.map = this.store.data.at(this.region);
+      this.base = this.store.data.position(this.region);
+    }
+    else if (this.writing == 0) {
+      write(INITIAL_CAPACITY);
+    }
+    this.slot = this.map.getLong(offset(0)) <= this.map.getLong(offset(1)) ? 0 : 1;
+    this.length = 0;
+  }
+
+  /**
+   * Appends an int to the image being written.
+   *
+   * @param      v     The int.
+   */
+  void put(int v) {
+    if (this.length == this.writingCapacity) {
+      grow();
+    }
+    this.map.putInt(offset(this.slot) + SLOT_HEADER + 4 * this.length++, v);
+  }
+
+  /**
+   * Moves the part of the image written so far to the first slot of a region twice as large. The region of the node, with the
+   * last committed image, stays the one in the index until the image is committed.
+   */
+  private void grow() {
+    int[] written = new int[this.length];
+    for (int i = 0; i < written.length; i++) {
+      written[i] = this.map.getInt(offset(this.slot) + SLOT_HEADER + 4 * i);
+    }
+    write(this.writingCapacity * 2);
+    this.slot = 0;
+    for (int i = 0; i < written.length; i++) {
+      this.map.putInt(offset(0) + SLOT_HEADER + 4 * i, written[i]);
+    }
+  }
+
+  /**
+   * Makes the image written since `begin` the one `load` returns.
+   */
+  void commit() {
+    int at = offset(this.slot);
+    this.map.putLong(at, 0);                                    // Invalid while the header is incomplete
+    this.map.putInt(at + 8, this.length);
+    this.map.putInt(at + 12, checksum(this.map, at, this.length));
+    this.map.putLong(at, ++this.sequence);
+    if (this.writing != this.region) {
+      this.store.region(this.id, this.writing);
+      this.region = this.writing;
+      this.capacity = this.writingCapacity;
+    }
+  }
+
+  private static int checksum(ByteBuffer map, int at, int length) {
+    ByteBuffer ints = map.duplicate();
+    ints.limit(at + SLOT_HEADER + 4 * length);
+    ints.position(at + SLOT_HEADER);
+    CRC32 crc = CRC.get();
+    crc.reset();
+    crc.update(ints);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Returns the last committed image.
+   *
+   * @return     The ints of the image, or `null` if there is none or it is damaged.
+   */
+  int[] load() {
+    if (this.region == 0) {
+      return null;
+    }
+    ByteBuffer map = this.store.data.at(this.region);
+    int base = this.store.data.position(this.region);
+    long first = sequence(this.region, this.capacity, 0);
+    long second = sequence(this.region, this.capacity, 1);
+    int at = (int) (base + REGION_HEADER + (first >= second ? 0 : slotBytes(this.capacity)));
+    int length = map.getInt(at + 8);
+    if (Math.max(first, second) == 0 || length < 0 || length > this.capacity || map.getInt(at + 12) != checksum(map, at, length)) {
+      return null;
+    }
+    int[] image = new int[length];
+    for (int i = 0; i < length; i++) {
+      image[i] = map.getInt(at + SLOT_HEADER + 4 * i);
+    }
+    return image;
+  }
+
+  /**
+   * Writes the mapped pages of the nodes using the same directory to the device.
+   */
+  void force() {
+    this.store.index.force();
+    this.store.data.force();
+  }
+}
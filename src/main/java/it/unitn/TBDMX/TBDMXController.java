@@ -1,22 +1,32 @@
 package it.unitn.TBDMX;
+import akka.actor.AbstractActor;
 import akka.actor.ActorRef;
+import akka.actor.ActorPath;
 import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.Terminated;
 import scala.Array;
+import scala.concurrent.Await;
 import scala.concurrent.duration.Duration;
 
 import java.io.*;
 import java.lang.Thread;
 import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.IntStream;
 
 import it.unitn.TBDMX.TBDMXNode.ImposeHolder;
+import it.unitn.TBDMX.TBDMXNode.Join;
 import it.unitn.TBDMX.TBDMXNode.RequestCS;
 import it.unitn.TBDMX.TBDMXNode.SetNeighbors;
+import it.unitn.TBDMX.TBDMXNode.Ready;
 import it.unitn.TBDMX.TBDMXNode.Advice;
 import it.unitn.TBDMX.TBDMXNode.Restart;
 import it.unitn.TBDMX.TBDMXNode.Privilege;
@@ -28,124 +38,288 @@ import it.unitn.TBDMX.TBDMXNode.Crash;
 
 public class TBDMXController {
   static int N_nodes;
+  private static int[] groups;                  // of the nodes created by `createNodes`, for the ones that join them
 
   /**
-   * Function that reads the structure of the tree from `tree.conf`. There are two possible configurations:
-   * 1. The n-th line contains the neighbors for the n-th node separated by a space.
-   * 2. An xml file that contains a list (`<nodes>`) of `<node>`s and a list (`<edges>`) of `<edge>`s that is connections between one node and another.
-   * No flag needs to be set since it checks at the beginning of the file the presence of an xml tag. If no tag is found, then it assumes that lists of neighbors will be used, otherwise the xml file.
-   * The only requirement is that in case of using the xml file, it need to be well formatted, that is one node per line and one edge per line.
+   * Function that reads the structure of the tree from the file given with `--tree` (by default `tree.conf`) in any of the formats read by `TBDMXTopology.load`, 
+   * and checks that it is actually a tree before any node is created. If `--save-tree` is given, the tree is also written there in the binary format,
+   * which is the fastest to load for very large trees.
    *
-   * @param      neighbors  The neighbors to then be passed to the `ActoRef`s.
+   * @param      options  The options given to the controller.
+   *
+   * @return     The structure of the tree.
    */
-  private static void readFromFile(List<ArrayList<Integer>> neighbors){
-    BufferedReader br=null;
-    String st;
+  static TBDMXTopology readFromFile(TBDMXOptions options){
+    String file = options.getString("tree", "tree.conf");
+    TBDMXTopology topology = null;
     try {
-      br = new BufferedReader(new FileReader(new File("tree.conf")));
+      topology = TBDMXTopology.load(file);
+      topology.validateTree();
+      if (options.has("save-tree")) {
+        topology.writeBinary(options.getString("save-tree", null));
+      }
     }
-    catch (Exception e) {System.err.println("Tree file not found!"); System.exit(-2);}
-    try {
-      st = br.readLine();
-      if (Pattern.compile(".*xml.*").matcher(st).find()) {
-        Pattern pattNode = Pattern.compile(".*node.*mainText=\"([0-9]+)\".*");
-        Pattern pattEdge = Pattern.compile(".*vertex1=\"([0-9]+)\".*vertex2=\"([0-9]+)\".*");
-        List<Integer> nodes = new ArrayList<>();
-        while ((st = br.readLine()) != null) {
-          Matcher m = pattNode.matcher(st);
-          if (m.find()) {
-            nodes.add(Integer.parseInt(m.group(1)));
-            neighbors.add(new ArrayList<>());
-          } else {
-            m = pattEdge.matcher(st);
-            if (m.find()) {
-              neighbors.get(Integer.parseInt(m.group(1))).add(Integer.parseInt(m.group(2)));
-              neighbors.get(Integer.parseInt(m.group(2))).add(Integer.parseInt(m.group(1)));
-            }
-          }
+    catch (FileNotFoundException e) {System.err.println("Tree file not found!"); System.exit(-2);}
+    catch (IOException e) {System.err.println("Error reading tree file! "+e.getMessage()); System.exit(-2);}
+    catch (IllegalArgumentException e) {System.err.println("Invalid tree: "+e.getMessage()); System.exit(-2);}
+    return topology;
+  }
+
+  /**
+   * Creates one `TBDMXNode` for each node of the tree and sends to each of them its `SetNeighbors` message.
+   *
+   * @param      system    The actor system in which the nodes are created.
+   * @param      topology  The structure of the tree.
+   *
+   * @return     The nodes, the i-th one being the node with id i.
+   */
+  static List<ActorRef> createNodes(ActorSystem system, TBDMXTopology topology) {
+    return createNodes(system, topology, new TBDMXOptions(Collections.emptyMap()));
+  }
+
+  /**
+   * Creates one `TBDMXNode` for each node of the tree, with the given options, and sends to each of them its `SetNeighbors` message.
+   * The nodes are created in parallel, and it returns once all of them are ready, see `bootstrap`.
+   *
+   * @param      system    The actor system in which the nodes are created.
+   * @param      topology  The structure of the tree.
+   * @param      options   The options read by the nodes.
+   *
+   * @return     The nodes, the i-th one being the node with id i.
+   */
+  public static List<ActorRef> createNodes(ActorSystem system, TBDMXTopology topology, TBDMXOptions options) {
+    long start = System.nanoTime();
+    int n = topology.size();
+    ActorRef[] nodes = new ActorRef[n];
+    int[] group = TBDMXDeployment.partition(topology, TBDMXNode.groups(options));
+    IntStream.range(0, n).parallel().forEach(i -> nodes[i] = system.actorOf(TBDMXNode.props(i, options, topology.degree(i), group[i]), "node" + i));
+    groups = group;
+    bootstrap(system, topology, options, nodes, IntStream.range(0, n).toArray(), start);
+    return new ArrayList<>(Arrays.asList(nodes));
+  }
+
+  /**
+   * Creates a node that joins the tree as a leaf next to an existing one, which then sends it its `SetNeighbors`, see `TBDMXNode.onJoin`.
+   * It returns at once: what is sent to the new node meanwhile waits for its neighbor. With `dispatcher=affinity` it shares the thread of its neighbor.
+   *
+   * @param      system   The actor system of the nodes.
+   * @param      nodes    The nodes, the i-th one being the node with id i; the new one is added at the end.
+   * @param      options  The options read by the nodes.
+   * @param      to       The id of the node it joins.
+   *
+   * @return     The id of the new node.
+   */
+  static int join(ActorSystem system, List<ActorRef> nodes, TBDMXOptions options, int to) {
+    int id = nodes.size();
+    int group = groups != null && to < groups.length ? groups[to] : to;
+    ActorRef node = system.actorOf(TBDMXNode.props(id, options, 1, group), "node" + id);
+    nodes.add(node);
+    nodes.get(to).tell(new Join(id, node), ActorRef.noSender());
+    return id;
+  }
+
+  /**
+   * Collects the `Ready`s of the nodes being bootstrapped.
+   */
+  static final class Barrier extends AbstractActor {
+    private final CountDownLatch ready;
+
+    Barrier(CountDownLatch ready) {
+      this.ready = ready;
+    }
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+        .match(Ready.class, msg -> this.ready.countDown())
+        .build();
+    }
+  }
+
+  /**
+   * Sends a `SaveLog` to some nodes and collects their `Ready`s, or their termination for the nodes that left the tree.
+   */
+  static final class LogBarrier extends AbstractActor {
+    private final CountDownLatch saved;
+    private final List<ActorRef> nodes;
+    private final Set<ActorPath> waiting = new HashSet<>();   // by path, as the uid of a remote node is not known to the controller
+
+    LogBarrier(CountDownLatch saved, List<ActorRef> nodes) {
+      this.saved = saved;
+      this.nodes = nodes;
+    }
+
+    @Override
+    public void preStart() {
+      for (ActorRef node : this.nodes) {
+        if (this.waiting.add(node.path())) {
+          getContext().watch(node);
+          node.tell(SaveLog.INSTANCE, getSelf());
+        }
+        else {
+          this.saved.countDown();
         }
-      } else {
-        do {
-          ArrayList<Integer> nodeNeighborsIds = new ArrayList<>();
-          for (String nId : st.split(" ", 0)) {
-            nodeNeighborsIds.add(Integer.parseInt(nId));
-          }
-          neighbors.add(nodeNeighborsIds);
-        } while ((st = br.readLine()) != null);
       }
     }
-    catch(IOException e) {System.err.println("Error reading tree file!"); System.exit(-2);}
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+        .match(Ready.class, msg -> saved(getSender()))
+        .match(Terminated.class, msg -> saved(msg.getActor()))
+        .build();
+    }
+
+    private void saved(ActorRef node) {
+      if (this.waiting.remove(node.path())) {
+        this.saved.countDown();
+      }
+    }
   }
 
-  public static void main(String[] args) {
-    // Create the actor system
-    final ActorSystem system = ActorSystem.create("TBDMX");
+  /**
+   * Flush barrier of the log: every node is sent a `SaveLog` and answers once the events it logged so far are in the buffer of `TBDMXLog`,
+   * then the log is flushed once, by the calling thread. The nodes never wait for the writer. It waits for the nodes at most `ready-timeout` seconds.
+   * The log of another partition is written by its own writer, which flushes it whenever it has nothing left to write, and at the end.
+   *
+   * @param      system   The actor system of the nodes.
+   * @param      nodes    The nodes, including those that left the tree.
+   * @param      options  The options given to the controller.
+   */
+  static void saveLog(ActorSystem system, List<ActorRef> nodes, TBDMXOptions options) {
+    CountDownLatch saved = new CountDownLatch(nodes.size());
+    List<ActorRef> all = new ArrayList<>(nodes);
+    ActorRef barrier = system.actorOf(Props.create(LogBarrier.class, () -> new LogBarrier(saved, all)));
+    try {
+      if (!saved.await(options.getLong("ready-timeout", 60), TimeUnit.SECONDS)) {
+        System.err.println(saved.getCount()+" nodes did not answer the SaveLog, flushing the log anyway");
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    system.stop(barrier);
+    TBDMXLog.flush();
+  }
 
-    // Parse tree structure
-    List<ArrayList<Integer>> neighborsIds = new ArrayList<>();
-    readFromFile(neighborsIds);
-    N_nodes = neighborsIds.size();
-
-    // Create all nodes of the system
-    List<ActorRef> group = new ArrayList<>();
-    for (int i=0; i<N_nodes; i++) {
-      group.add(system.actorOf(TBDMXNode.props(i), "node" + i));
-    }
-    List<ArrayList<ActorRef>> neighbors = new ArrayList<>();
-    for (int i=0; i<N_nodes; i++) {
-      ArrayList<ActorRef> nodeNeighbors = new ArrayList<>();
-      for (Integer neighborId : neighborsIds.get(i)){
-        nodeNeighbors.add(group.get(neighborId));
+  /**
+   * Sends their `SetNeighbors` messages to some nodes, in parallel, and waits for all of them to answer with a `Ready`,
+   * for at most `ready-timeout` seconds (default 60), then prints the time it took since `start`.
+   * The neighbors are not copied to each node: the nodes read them from `topology` and `nodes`, which are shared by all of them.
+   * With `bootstrap=bfs` each node is also told its neighbor towards the initial holder (`holder`, or the first line of the script),
+   * computed here with a breadth-first visit of the tree, so the tree is ready to serve requests at once;
+   * with `bootstrap=flood` (the default) the holder is left to the `ImposeHolder` and the `BroadcastHolder`s it spreads.
+   *
+   * @param      system    The actor system of the nodes.
+   * @param      topology  The structure of the tree.
+   * @param      options   The options given to the controller.
+   * @param      nodes     The nodes, the i-th one being the node with id i; the ones of `local` and their neighbors must be there, and stay.
+   * @param      local     The ids of the nodes to bootstrap.
+   * @param      start     When the creation of the nodes started, in ns.
+   */
+  static void bootstrap(ActorSystem system, TBDMXTopology topology, TBDMXOptions options, ActorRef[] nodes, int[] local, long start) {
+    String mode = options.getString("bootstrap", "flood");
+    if (!mode.equals("flood") && !mode.equals("bfs")) {
+      System.err.println("Unknown bootstrap `"+mode+"`");
+      System.exit(-2);
+    }
+    int[] parents = null;
+    if (mode.equals("bfs")) {
+      int holder = TBDMXWorkload.holder(options);
+      if (holder < 0 || holder >= topology.size()) {
+        System.err.println("Invalid holder "+holder);
+        System.exit(-2);
+      }
+      parents = topology.parents(holder);
+    }
+    final int[] holders = parents;
+    CountDownLatch ready = new CountDownLatch(local.length);
+    ActorRef barrier = system.actorOf(Props.create(Barrier.class, () -> new Barrier(ready)));
+    Arrays.stream(local).parallel().forEach(i -> nodes[i].tell(new SetNeighbors(topology, nodes, holders == null ? -1 : holders[i]), barrier));
+    try {
+      if (!ready.await(options.getLong("ready-timeout", 60), TimeUnit.SECONDS)) {
+        System.err.println(ready.getCount()+" nodes out of "+local.length+" are not ready");
+        System.exit(-2);
       }
-      neighbors.add(nodeNeighbors);
     }
- 
-    // Send neighbors message
-    for (int i=0; i<N_nodes; i++){
-      SetNeighbors neighMessage = new SetNeighbors(neighbors.get(i));
-      group.get(i).tell(neighMessage, null);
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
+    system.stop(barrier);
+    System.out.println("Tree of "+local.length+" nodes ready in "+TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)+" ms ("+mode+" bootstrap)");
+  }
 
-    //Read commands from file commands.conf
-    BufferedReader commandsbr = null;
-    String st;
-    try { commandsbr = new BufferedReader(new FileReader("commands.conf")); }
-    catch (FileNotFoundException e) {System.err.println("Command file not found!"); System.exit(-2);}
+  /**
+   * Sends an `ImposeHolder` to `holder` and waits for the `BroadcastHolder`s it spreads to reach every node, which the holder
+   * acknowledges with a `Ready`, for at most `ready-timeout` seconds (default 60), then prints the time it took.
+   *
+   * @param      system   The actor system of the nodes.
+   * @param      holder   The initial holder.
+   * @param      options  The options given to the controller.
+   */
+  static void impose(ActorSystem system, ActorRef holder, TBDMXOptions options) {
+    long start = System.nanoTime();
+    CountDownLatch ready = new CountDownLatch(1);
+    ActorRef barrier = system.actorOf(Props.create(Barrier.class, () -> new Barrier(ready)));
+    holder.tell(ImposeHolder.INSTANCE, barrier);
     try {
-      boolean firstline = true;
-      while ((st = commandsbr.readLine()) != null) {
-        if (firstline) {
-          group.get(Integer.parseInt(st)).tell(new ImposeHolder(),null);
-          firstline = false;
-          try { Thread.sleep(1000); } 
-          catch (InterruptedException e) { e.printStackTrace(); }
-        }
-        else {
-          ArrayList<String> command = new ArrayList<> (Arrays.asList(st.split(" ",0)));
-          if (command.get(0).equals("request")) {
-            group.get(Integer.parseInt(command.get(1))).tell(new RequestCS(Integer.parseInt(command.get(2))), null);
-          }
-          else if (command.get(0).equals("crash")) {
-            group.get(Integer.parseInt(command.get(1))).tell(new Crash(), null);
-          }
-          else if (command.get(0).equals("recovery")) {
-            group.get(Integer.parseInt(command.get(1))).tell(new Recovery(), null);
-          }
-          else if (command.get(0).equals("wait")) {
-            try { Thread.sleep(Integer.parseInt(command.get(1))); } 
-            catch (InterruptedException e) { e.printStackTrace(); }
-          }
-        }
+      if (!ready.await(options.getLong("ready-timeout", 60), TimeUnit.SECONDS)) {
+        System.err.println("The initial holder is not known to every node");
+        System.exit(-2);
       }
-    } catch(IOException e) {System.err.println("Error reading command file!"); System.exit(-2);}
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    system.stop(barrier);
+    System.out.println("Initial holder known to every node in "+TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)+" ms");
+  }
+
+  public static void main(String[] args) {
+    TBDMXOptions options = TBDMXOptions.parse(args);
+    TBDMXLog.start(options);
+    TBDMXTrace.start(options);
+    TBDMXMetrics.start(options);
+
+    // Parse tree structure
+    TBDMXTopology topology = readFromFile(options);
+    N_nodes = topology.size();
+    long heartbeat = options.getLong("heartbeat", 0);
+    if (heartbeat > 0) {                        //Each edge carries a heartbeat each way per interval
+      System.out.println("Failure detection: a heartbeat every "+heartbeat+" ms on each of the "+(N_nodes - 1)+" edges, both ways, "
+                         +(2 * (N_nodes - 1) * 1000 / heartbeat)+" messages/s in total");
+    }
+
+    // Create the actor system and all nodes of the system, and send them their neighbors;
+    // with more partitions, only the nodes of partition 0 are created here, the other ones being in their own JVMs
+    final boolean distributed = options.getInt("partitions", 1) > 1;
+    final ActorSystem system = distributed ? TBDMXDeployment.createSystem(options, 0) : ActorSystem.create("TBDMX", TBDMXNode.config(options));
+    List<ActorRef> group = distributed ? TBDMXDeployment.deploy(system, topology, options, 0) : createNodes(system, topology, options);
+
+    //Run the commands of commands.conf, or the workload chosen with --workload
+    TBDMXWorkload workload = new TBDMXWorkload(options, group, system);
+    if (distributed) {
+      workload.distribute(TBDMXDeployment.remote(system, topology, options, workload::done));
+    }
+    workload.run();
 
     try {
       System.in.read();
-      for (int i=0; i<N_nodes; i++){
-        group.get(i).tell(new SaveLog(), null);
-      }
+      saveLog(system, group, options);
     } 
     catch (IOException ioe) {}
+    TBDMXMetrics.close();                       //Before the nodes stop and take their metrics away
+    if (distributed) {
+      TBDMXDeployment.undeploy(system, options);   //Returns once the other partitions stopped, before the connections are closed
+    }
     system.terminate();
+    try {
+      Await.ready(system.whenTerminated(), Duration.create(10, TimeUnit.SECONDS));
+    }
+    catch (Exception e) {
+      System.err.println("Actor system did not terminate in time");
+    }
+    TBDMXTrace.close();
+    TBDMXLog.close();
   }
 }
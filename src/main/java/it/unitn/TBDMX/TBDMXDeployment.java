@@ -0,0 +1,431 @@
+package it.unitn.TBDMX;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Identify;
+import akka.actor.PoisonPill;
+import akka.actor.Props;
+import akka.pattern.Patterns;
+import akka.util.Timeout;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import scala.concurrent.Await;
+import scala.concurrent.Future;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+import it.unitn.TBDMX.TBDMXNode.RequestCS;
+
+/**
+ * Deployment of the tree over several JVMs, the partitions, connected by Akka remoting (which must be on the classpath).
+ * The tree is cut in `partitions` parts of about the same size, each being a range of consecutive nodes in a depth-first visit from node 0,
+ * so that a part is made of few whole subtrees and only the edges on its borders cross two JVMs.
+ * Every JVM loads the same tree, computes the same parts and creates the nodes of its own part, named `node<id>` as in a single JVM;
+ * the neighbors in other parts are referred to by their remote path, which needs no round trip to be resolved.
+ * Partition 0 is the controller, which also runs the workload; the other ones are started with `TBDMXDeployment --partition=<i>` and the same options.
+ * Partition `i` listens on `host`:`base-port`+`i` (default 127.0.0.1 and 2552), or on the i-th `host:port` of `hosts`, separated by commas.
+ * When the nodes of a partition have their neighbors, it creates the actor `partition`: the controller waits for all of them,
+ * measures the round trip time to each one, which is the cost of a hop between two JVMs, before starting the workload,
+ * and stops them at the end, which terminates the other JVMs.
+ * The work of a generated request cannot leave the controller, so the workload asks the `partition` actor of a remote node
+ * to `Run` the request there, and is told with `Done` when the node enters and leaves the CS.
+ */
+public final class TBDMXDeployment {
+  private TBDMXDeployment() {}
+
+  /**
+   * Request of the workload for a node of another partition, which holds the CS for `hold` ns.
+   */
+  static final class Run implements TBDMXNode.Message {
+    final long id;
+    final int node;
+    final int resource;
+    final boolean shared;
+    final int priority;
+    final long hold;
+
+    Run(long id, int node, int resource, boolean shared, int priority, long hold) {
+      this.id = id;
+      this.node = node;
+      this.resource = resource;
+      this.shared = shared;
+      this.priority = priority;
+      this.hold = hold;
+    }
+  }
+
+  /**
+   * Sent back to the sender of a `Run` when its node enters the CS, and when it leaves it (`exited`).
+   */
+  static final class Done implements TBDMXNode.Message {
+    final long id;
+    final boolean exited;
+
+    Done(long id, boolean exited) {
+      this.id = id;
+      this.exited = exited;
+    }
+  }
+
+  /**
+   * Actor that tells that the nodes of a partition are ready, runs the requests of the workload for them,
+   * and terminates the partition when stopped.
+   */
+  static final class Partition extends AbstractActor {
+    private final ActorRef[] nodes;     // the nodes of the partition, null for the other ones
+
+    Partition(ActorRef[] nodes) {
+      this.nodes = nodes;
+    }
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+        .match(Run.class, this::onRun)
+        .build();
+    }
+
+    private void onRun(Run msg) {
+      ActorRef client = getSender();
+      ActorRef partition = getSelf();
+      ActorSystem system = getContext().getSystem();
+      this.nodes[msg.node].tell(new RequestCS(msg.resource, msg.shared, msg.priority, () -> {
+        client.tell(new Done(msg.id, false), partition);
+        CompletableFuture<Void> cs = new CompletableFuture<>();
+        system.scheduler().scheduleOnce(Duration.create(msg.hold, TimeUnit.NANOSECONDS), () -> {
+          cs.complete(null);
+          client.tell(new Done(msg.id, true), partition);
+        }, system.dispatcher());
+        return cs;
+      }), ActorRef.noSender());
+    }
+
+    @Override
+    public void postStop() {
+      TBDMXMetrics.close();             // Last dump, while the nodes are still there
+      getContext().getSystem().terminate();
+    }
+  }
+
+  /**
+   * Splits the tree in parts of consecutive nodes in a depth-first visit from node 0.
+   *
+   * @param      topology  The tree.
+   * @param      parts     The number of parts.
+   *
+   * @return     The part of each node.
+   */
+  static int[] partition(TBDMXTopology topology, int parts) {
+    int n = topology.size();
+    int[] part = new int[n];
+    int[] stack = new int[n];
+    int[] parent = new int[n];
+    int size = 0;
+    int visited = 0;
+    stack[size++] = 0;
+    parent[0] = -1;
+    while (size > 0) {
+      int i = stack[--size];
+      part[i] = (int) ((long) visited++ * parts / n);
+      for (int k = topology.degree(i) - 1; k >= 0; k--) {
+        int j = topology.neighbor(i, k);
+        if (j != parent[i]) {
+          parent[j] = i;
+          stack[size++] = j;
+        }
+      }
+    }
+    return part;
+  }
+
+  private static String address(TBDMXOptions options, int part) {
+    String hosts = options.getString("hosts", null);
+    if (hosts != null) {
+      String[] list = hosts.split(",");
+      if (part >= list.length) {
+        System.err.println("No address for partition "+part+" in `hosts`");
+        System.exit(-2);
+      }
+      return list[part].trim();
+    }
+    return options.getString("host", "127.0.0.1")+":"+(options.getInt("base-port", 2552) + part);
+  }
+
+  private static String path(TBDMXOptions options, int part, String name) {
+    return "akka.tcp://TBDMX@"+address(options, part)+"/user/"+name;
+  }
+
+  /**
+   * Creates the actor system of a partition, listening on its address.
+   *
+   * @param      options  The options.
+   * @param      part     The partition.
+   *
+   * @return     The actor system.
+   */
+  static ActorSystem createSystem(TBDMXOptions options, int part) {
+    String address = address(options, part);
+    int colon = address.lastIndexOf(':');
+    Config config = ConfigFactory.parseString(
+      "akka.actor.provider = remote\n"+
+      "akka.remote.enabled-transports = [\"akka.remote.netty.tcp\"]\n"+
+      "akka.remote.netty.tcp.hostname = \""+address.substring(0, colon)+"\"\n"+
+      "akka.remote.netty.tcp.port = "+address.substring(colon + 1)+"\n"+
+      "akka.scheduler.tick-duration = 1ms\n"                         // Holds of generated requests are a few ms
+    ).withFallback(TBDMXNode.config(options));
+    return ActorSystem.create("TBDMX", config);
+  }
+
+  /**
+   * Creates the nodes of a partition and sends them their neighbors, then creates its `partition` actor once they are ready.
+   * The controller (partition 0) then waits for the `partition` actors of the other ones, for at most `deploy-timeout` seconds (default 60).
+   *
+   * @param      system    The actor system of the partition.
+   * @param      topology  The tree.
+   * @param      options   The options, which are also given to the nodes.
+   * @param      part      The partition.
+   *
+   * @return     For the controller, every node, the i-th one being the node with id i; for the other partitions, `null`.
+   */
+  static List<ActorRef> deploy(ActorSystem system, TBDMXTopology topology, TBDMXOptions options, int part) {
+    int partitions = options.getInt("partitions", 1);
+    int[] parts = partition(topology, partitions);
+    int n = topology.size();
+    long start = System.nanoTime();
+    ActorRef[] nodes = new ActorRef[n];
+    int[] local = IntStream.range(0, n).filter(i -> parts[i] == part).toArray();
+    int groups = TBDMXNode.groups(options);
+    int[] subtree = partition(topology, partitions * groups);  // The subtrees of a partition are the ones it is made of
+    Arrays.stream(local).parallel().forEach(i -> nodes[i] = system.actorOf(TBDMXNode.props(i, options, topology.degree(i), subtree[i] % groups), "node" + i));
+    long crossing = 0;
+    for (int i : local) {                 // The remote neighbors are resolved here, as `ref` fills `nodes` in
+      for (int k = 0; k < topology.degree(i); k++) {
+        int j = topology.neighbor(i, k);
+        ref(system, options, nodes, parts, j);
+        if (parts[j] != part) {
+          crossing++;
+        }
+      }
+    }
+    TBDMXController.bootstrap(system, topology, options, nodes, local, start);
+    final ActorRef[] locals = new ActorRef[n];
+    for (int i = 0; i < n; i++) {
+      if (parts[i] == part) {
+        locals[i] = nodes[i];
+      }
+    }
+    system.actorOf(Props.create(Partition.class, () -> new Partition(locals)), "partition");
+    System.out.println("Partition "+part+" of "+partitions+": "+local.length+" nodes, "+crossing+" edges to other partitions");
+    if (part != 0) {
+      return null;
+    }
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.getLong("deploy-timeout", 60));
+    FiniteDuration wait = Duration.create(1, TimeUnit.SECONDS);
+    for (int p = 1; p < partitions; p++) {
+      while (true) {
+        try {
+          Await.result(system.actorSelection(path(options, p, "partition")).resolveOne(wait), wait);
+          break;
+        }
+        catch (Exception e) {
+          if (System.nanoTime() > deadline) {
+            System.err.println("Partition "+p+" is not up at "+address(options, p));
+            System.exit(-2);
+          }
+        }
+      }
+    }
+    for (int p = 1; p < partitions; p++) {
+      latency(system, options, p);
+    }
+    List<ActorRef> group = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      group.add(ref(system, options, nodes, parts, i));
+    }
+    return group;
+  }
+
+  /**
+   * Prints the round trip time of `Identify` messages to the `partition` actor of another partition, `pings` (default 200) of them one after the other.
+   */
+  private static void latency(ActorSystem system, TBDMXOptions options, int part) {
+    int pings = options.getInt("pings", 200);
+    TBDMXHistogram rtt = new TBDMXHistogram();
+    Timeout timeout = Timeout.apply(5, TimeUnit.SECONDS);
+    try {
+      for (int i = 0; i < pings; i++) {
+        long start = System.nanoTime();
+        Await.result(Patterns.ask(system.actorSelection(path(options, part, "partition")), new Identify(i), timeout), timeout.duration());
+        rtt.record(System.nanoTime() - start);
+      }
+    }
+    catch (Exception e) {
+      System.err.println("Partition "+part+" did not answer: "+e.getMessage());
+      return;
+    }
+    System.out.println(String.format(Locale.ROOT, "Round trip to partition %d: mean %.3f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+                                     part, rtt.mean() / 1e6, rtt.percentile(0.5) / 1e6, rtt.percentile(0.99) / 1e6, rtt.max() / 1e6));
+  }
+
+  /**
+   * Runs the requests of the workload for the nodes of the other partitions through their `partition` actor.
+   */
+  static final class Remote {
+    private final int[] parts;
+    private final ActorRef[] partitions;
+    private final ActorRef client;
+
+    private Remote(int[] parts, ActorRef[] partitions, ActorRef client) {
+      this.parts = parts;
+      this.partitions = partitions;
+      this.client = client;
+    }
+
+    /**
+     * Whether a node is in another partition than the controller.
+     */
+    boolean isRemote(int node) {
+      return this.parts[node] != 0;
+    }
+
+    /**
+     * Asks the partition of a node to run a request, whose `Done`s are given to the listener of `remote`.
+     *
+     * @param      id        The id of the request, given back in its `Done`s.
+     * @param      node      The node.
+     * @param      resource  The resource.
+     * @param      shared    Whether the access is shared.
+     * @param      priority  The priority of the request.
+     * @param      hold      The ns the CS lasts.
+     */
+    void run(long id, int node, int resource, boolean shared, int priority, long hold) {
+      this.partitions[this.parts[node]].tell(new Run(id, node, resource, shared, priority, hold), this.client);
+    }
+  }
+
+  /**
+   * Actor of the controller receiving the `Done`s.
+   */
+  static final class Client extends AbstractActor {
+    private final BiConsumer<Long, Boolean> listener;
+
+    Client(BiConsumer<Long, Boolean> listener) {
+      this.listener = listener;
+    }
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+        .match(Done.class, msg -> this.listener.accept(msg.id, msg.exited))
+        .build();
+    }
+  }
+
+  /**
+   * Prepares the controller to run requests on the nodes of the other partitions.
+   *
+   * @param      system    The actor system of the controller.
+   * @param      topology  The tree.
+   * @param      options   The options.
+   * @param      listener  Called with the id of a request and `false` when its node enters the CS, then with `true` when it leaves it.
+   *
+   * @return     The `Remote`.
+   */
+  static Remote remote(ActorSystem system, TBDMXTopology topology, TBDMXOptions options, BiConsumer<Long, Boolean> listener) {
+    int partitions = options.getInt("partitions", 1);
+    ActorRef[] refs = new ActorRef[partitions];
+    for (int p = 1; p < partitions; p++) {
+      refs[p] = ((ExtendedActorSystem) system).provider().resolveActorRef(path(options, p, "partition"));
+    }
+    ActorRef client = system.actorOf(Props.create(Client.class, () -> new Client(listener)), "client");
+    return new Remote(partition(topology, partitions), refs, client);
+  }
+
+  private static ActorRef ref(ActorSystem system, TBDMXOptions options, ActorRef[] nodes, int[] parts, int i) {
+    if (nodes[i] == null) {
+      nodes[i] = ((ExtendedActorSystem) system).provider().resolveActorRef(path(options, parts[i], "node" + i));
+    }
+    return nodes[i];
+  }
+
+  /**
+   * Stops the other partitions, called by the controller at the end: it returns once the `partition` actor of each one has terminated,
+   * which means that its stop arrived and that it is terminating its JVM, or after `deploy-timeout` seconds.
+   *
+   * @param      system   The actor system of the controller.
+   * @param      options  The options.
+   */
+  static void undeploy(ActorSystem system, TBDMXOptions options) {
+    FiniteDuration timeout = Duration.create(options.getLong("deploy-timeout", 60), TimeUnit.SECONDS);
+    List<Future<Boolean>> stopped = new ArrayList<>();
+    for (int p = 1; p < options.getInt("partitions", 1); p++) {
+      ActorRef partition = ((ExtendedActorSystem) system).provider().resolveActorRef(path(options, p, "partition"));
+      stopped.add(Patterns.gracefulStop(partition, timeout, PoisonPill.getInstance()));
+    }
+    for (int p = 1; p <= stopped.size(); p++) {
+      try {
+        Await.result(stopped.get(p - 1), timeout);
+      }
+      catch (Exception e) {
+        System.err.println("Partition "+p+" did not stop: "+e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Returns the name of a file of a partition, `name-<part>.ext` for `name.ext`, so that partitions on the same machine do not share it.
+   */
+  private static String ofPartition(String file, int part) {
+    int dot = file.lastIndexOf('.');
+    return dot > file.lastIndexOf('/') ? file.substring(0, dot)+"-"+part+file.substring(dot) : file+"-"+part;
+  }
+
+  /**
+   * Runs a partition other than the controller, until the controller stops it.
+   * The options are the ones of the controller, plus `partition`; the log and metrics files get the number of the partition in their name.
+   *
+   * @param      args  The options.
+   */
+  public static void main(String[] args) {
+    TBDMXOptions options = TBDMXOptions.parse(args);
+    int part = options.getInt("partition", -1);
+    if (part < 1 || part >= options.getInt("partitions", 1)) {
+      System.err.println("The partition must be between 1 and partitions-1, 0 being the controller");
+      System.exit(-2);
+    }
+    Map<String, String> files = new HashMap<>();
+    files.put("log-file", ofPartition(options.getString("log-file", "logs/tbdmx.log"), part));
+    if (options.has("metrics-file")) {
+      files.put("metrics-file", ofPartition(options.getString("metrics-file", null), part));
+    }
+    options = options.with(files);
+    TBDMXLog.start(options);
+    TBDMXTrace.start(options);
+    TBDMXMetrics.start(options);
+    TBDMXTopology topology = TBDMXController.readFromFile(options);
+    ActorSystem system = createSystem(options, part);
+    deploy(system, topology, options, part);
+    try {
+      Await.ready(system.whenTerminated(), Duration.Inf());
+    }
+    catch (Exception e) {
+      System.err.println("Partition "+part+" interrupted");
+    }
+    TBDMXMetrics.close();
+    TBDMXTrace.close();
+    TBDMXLog.close();
+  }
+}
@@ -0,0 +1,183 @@
+package it.unitn.TBDMX;
+
+/**
+ * Phi accrual failure detector (Hayashibara et al.) of the neighbors of a node, fed by their heartbeats.
+ * For each neighbor it keeps the last `window` intervals between heartbeats; `phi` is then how unlikely it is, assuming normally
+ * distributed intervals, that the next heartbeat is still to come after the time elapsed since the last one, on a log10 scale:
+ * a neighbor is suspected when `phi` exceeds `threshold`, e.g. 8 for a chance of 10^-8 of a mistake. An `acceptable pause` is added
+ * to the mean, and the standard deviation is never below a tenth of the heartbeat interval, so that a very regular neighbor is not
+ * suspected at the first late heartbeat. Every edge starts as if two heartbeats had arrived a quarter of an interval earlier and later than expected.
+ * Neighbors are referred to by their local index, as in `TBDMXNode`; it is not thread-safe, like the rest of the state of a node.
+ */
+final class TBDMXFailureDetector {
+  private final long interval;
+  private final double threshold;
+  private final int window;
+  private final long pause;
+  private final double minStd;
+  private long[][] intervals = new long[0][];
+  private int[] count = new int[0];
+  private int[] next = new int[0];
+  private double[] sum = new double[0];
+  private double[] sumSquares = new double[0];
+  private long[] last = new long[0];
+  private long[] suspectedSince = new long[0];  // 0 if not suspected
+
+  /**
+   * Creates a detector for no neighbors, see `renumber`.
+   *
+   * @param      interval   The ns between two heartbeats of a neighbor.
+   * @param      threshold  The `phi` above which a neighbor is suspected.
+   * @param      window     The number of intervals kept per neighbor.
+   * @param      pause      The ns a neighbor may be silent beyond the usual interval.
+   */
+  TBDMXFailureDetector(long interval, double threshold, int window, long pause) {
+    this.interval = interval;
+    this.threshold = threshold;
+    this.window = Math.max(2, window);
+    this.pause = pause;
+    this.minStd = interval / 10.0;
+  }
+
+  /**
+   * Changes the neighbors: the state of the neighbor with index `k` becomes that of index `map[k]`, the others start afresh.
+   *
+   * @param      map   The new index of each old one, or `NONE` (negative) for the neighbors that are gone.
+   * @param      size  The new number of neighbors.
+   * @param      now   The current time in ns.
+   */
+  void renumber(int[] map, int size, long now) {
+    long[][] intervals = new long[size][];
+    int[] count = new int[size];
+    int[] next = new int[size];
+    double[] sum = new double[size];
+    double[] sumSquares = new double[size];
+    long[] last = new long[size];
+    long[] suspectedSince = new long[size];
+    boolean[] kept = new boolean[size];
+    for (int k = 0; k < this.last.length && k < map.length; k++) {
+      int j = map[k];
+      if (j >= 0 && j < size) {
+        intervals[j] = this.intervals[k];
+        count[j] = this.count[k];
+        next[j] = this.next[k];
+        sum[j] = this.sum[k];
+        sumSquares[j] = this.sumSquares[k];
+        last[j] = this.last[k];
+        suspectedSince[j] = this.suspectedSince[k];
+        kept[j] = true;
+      }
+    }
+    this.intervals = intervals;
+    this.count = count;
+    this.next = next;
+    this.sum = sum;
+    this.sumSquares = sumSquares;
+    this.last = last;
+    this.suspectedSince = suspectedSince;
+    for (int j = 0; j < size; j++) {
+      if (!kept[j]) {
+        reset(j, now);
+      }
+    }
+  }
+
+  /**
+   * Forgets the history of a neighbor, as if it had just sent a heartbeat.
+   *
+   * @param      k     The local index of the neighbor.
+   * @param      now   The current time in ns.
+   */
+  void reset(int k, long now) {
+    this.intervals[k] = new long[this.window];
+    this.count[k] = 0;
+    this.next[k] = 0;
+    this.sum[k] = 0;
+    this.sumSquares[k] = 0;
+    this.suspectedSince[k] = 0;
+    this.last[k] = now;
+    add(k, this.interval - this.interval / 4);
+    add(k, this.interval + this.interval / 4);
+  }
+
+  /**
+   * Forgets the history of every neighbor.
+   *
+   * @param      now   The current time in ns.
+   */
+  void reset(long now) {
+    for (int k = 0; k < this.last.length; k++) {
+      reset(k, now);
+    }
+  }
+
+  private void add(int k, long sample) {
+    if (this.count[k] == this.window) {
+      long old = this.intervals[k][this.next[k]];
+      this.sum[k] -= old;
+      this.sumSquares[k] -= (double) old * old;
+    }
+    else {
+      this.count[k]++;
+    }
+    this.intervals[k][this.next[k]] = sample;
+    this.next[k] = (this.next[k] + 1) % this.window;
+    this.sum[k] += sample;
+    this.sumSquares[k] += (double) sample * sample;
+  }
+
+  /**
+   * Records a heartbeat of a neighbor.
+   *
+   * @param      k     The local index of the neighbor.
+   * @param      now   The current time in ns.
+   *
+   * @return     The ns the neighbor was suspected for, if it was, otherwise -1.
+   */
+  long heartbeat(int k, long now) {
+    long suspected = this.suspectedSince[k];
+    if (suspected == 0) {
+      add(k, now - this.last[k]);             // The silence of a suspected neighbor is not a usual interval
+    }
+    this.last[k] = now;
+    this.suspectedSince[k] = 0;
+    return suspected == 0 ? -1 : now - suspected;
+  }
+
+  /**
+   * Returns the suspicion level of a neighbor.
+   *
+   * @param      k     The local index of the neighbor.
+   * @param      now   The current time in ns.
+   *
+   * @return     The `phi` of the neighbor.
+   */
+  double phi(int k, long now) {
+    double mean = this.sum[k] / this.count[k];
+    double variance = this.sumSquares[k] / this.count[k] - mean * mean;
+    double std = Math.max(Math.sqrt(Math.max(variance, 0)), this.minStd);
+    double y = (now - this.last[k] - mean - this.pause) / std;
+    double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));   // Logistic approximation of the normal distribution
+    return now - this.last[k] > mean + this.pause ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+  }
+
+  /**
+   * Suspects a neighbor if it is not yet suspected and its `phi` exceeds the threshold.
+   *
+   * @param      k     The local index of the neighbor.
+   * @param      now   The current time in ns.
+   *
+   * @return     The ns since the last heartbeat of the neighbor if it is now suspected, otherwise -1.
+   */
+  long check(int k, long now) {
+    if (this.suspectedSince[k] != 0 || phi(k, now) < this.threshold) {
+      return -1;
+    }
+    this.suspectedSince[k] = now;
+    return now - this.last[k];
+  }
+
+  boolean suspected(int k) {
+    return this.suspectedSince[k] != 0;
+  }
+}
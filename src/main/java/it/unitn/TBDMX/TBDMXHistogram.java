@@ -0,0 +1,101 @@
+package it.unitn.TBDMX;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of non-negative long values (typically durations in nanoseconds) with a bounded relative error of 1/16.
+ * Values are counted in buckets of logarithmic size: for each power of two there are 16 linear sub-buckets.
+ * Recording a value is a few arithmetic operations and does not allocate. It is not thread-safe.
+ */
+public final class TBDMXHistogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB = 1 << SUB_BITS;
+
+  private final long[] counts = new long[(64 - SUB_BITS + 1) * SUB];
+  private long total;
+  private long sum;
+  private long max;
+
+  private static int bucket(long value) {
+    if (value < SUB) {
+      return (int) value;
+    }
+    int exp = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    return ((exp + 1) << SUB_BITS) + (int) (value >>> exp) - SUB;
+  }
+
+  private static long lowerBound(int bucket) {
+    if (bucket < SUB) {
+      return bucket;
+    }
+    int exp = (bucket >>> SUB_BITS) - 1;
+    return (long) ((bucket & (SUB - 1)) + SUB) << exp;
+  }
+
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    this.counts[bucket(value)]++;
+    this.total++;
+    this.sum += value;
+    if (value > this.max) {
+      this.max = value;
+    }
+  }
+
+  /**
+   * Adds all the values recorded by another histogram.
+   *
+   * @param      other  The other histogram.
+   */
+  public void add(TBDMXHistogram other) {
+    for (int i = 0; i < this.counts.length; i++) {
+      this.counts[i] += other.counts[i];
+    }
+    this.total += other.total;
+    this.sum += other.sum;
+    this.max = Math.max(this.max, other.max);
+  }
+
+  public void reset() {
+    Arrays.fill(this.counts, 0);
+    this.total = 0;
+    this.sum = 0;
+    this.max = 0;
+  }
+
+  public long count() {
+    return this.total;
+  }
+
+  public long max() {
+    return this.max;
+  }
+
+  public double mean() {
+    return this.total == 0 ? 0 : (double) this.sum / this.total;
+  }
+
+  /**
+   * Returns an approximation (the lower bound of its bucket) of the value below which there is the given fraction of the values.
+   *
+   * @param      fraction  The fraction, between 0 and 1 (e.g. 0.99 for the 99th percentile).
+   *
+   * @return     The percentile, 0 if nothing was recorded.
+   */
+  public long percentile(double fraction) {
+    if (this.total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(fraction * this.total);
+    long seen = 0;
+    for (int i = 0; i < this.counts.length; i++) {
+      seen += this.counts[i];
+      if (seen >= rank && this.counts[i] > 0) {
+        return Math.min(lowerBound(i), this.max);
+      }
+    }
+    return this.max;
+  }
+}
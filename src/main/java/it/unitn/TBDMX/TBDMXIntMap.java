@@ -0,0 +1,150 @@
+package it.unitn.TBDMX;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Map from ints to objects with open addressing and linear probing, so that a lookup does not box the key nor allocate.
+ * Removed entries are not replaced by tombstones: the following entries of the same cluster are shifted back,
+ * so the table does not degrade when entries are repeatedly added and removed. It is not thread-safe.
+ * An empty map has no table, as most of the nodes of a large tree have no resource in a state other than the initial one.
+ *
+ * @param      <V>   The type of the values, which cannot be `null`.
+ */
+final class TBDMXIntMap<V> {
+  private static final int[] NO_KEYS = new int[0];
+  private static final Object[] NO_VALUES = new Object[0];
+
+  private int[] keys = NO_KEYS;
+  private Object[] values = NO_VALUES;
+  private int size;
+
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  @SuppressWarnings("unchecked")
+  V get(int key) {
+    if (this.size == 0) {
+      return null;
+    }
+    int mask = this.keys.length - 1;
+    for (int h = hash(key) & mask; this.values[h] != null; h = (h + 1) & mask) {
+      if (this.keys[h] == key) {
+        return (V) this.values[h];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Associates a value to a key, replacing the previous one if any.
+   *
+   * @param      key    The key.
+   * @param      value  The value, not `null`.
+   */
+  void put(int key, V value) {
+    if (this.keys.length == 0) {
+      this.keys = new int[8];
+      this.values = new Object[8];
+    }
+    int mask = this.keys.length - 1;
+    int h = hash(key) & mask;
+    for (; this.values[h] != null; h = (h + 1) & mask) {
+      if (this.keys[h] == key) {
+        this.values[h] = value;
+        return;
+      }
+    }
+    this.keys[h] = key;
+    this.values[h] = value;
+    if (++this.size * 2 > this.keys.length) {
+      resize(this.keys.length * 2);
+    }
+  }
+
+  /**
+   * Removes a key and its value, if present.
+   *
+   * @param      key   The key.
+   */
+  void remove(int key) {
+    if (this.size == 0) {
+      return;
+    }
+    int mask = this.keys.length - 1;
+    int h = hash(key) & mask;
+    while (this.values[h] != null && this.keys[h] != key) {
+      h = (h + 1) & mask;
+    }
+    if (this.values[h] == null) {
+      return;
+    }
+    // Shift back the entries that would not be found anymore through the hole at `h`
+    for (int next = (h + 1) & mask; this.values[next] != null; next = (next + 1) & mask) {
+      int home = hash(this.keys[next]) & mask;
+      if (((next - home) & mask) >= ((next - h) & mask)) {
+        this.keys[h] = this.keys[next];
+        this.values[h] = this.values[next];
+        h = next;
+      }
+    }
+    this.values[h] = null;
+    this.size--;
+    if (this.size == 0) {
+      clear();
+    }
+    else if (this.keys.length > 8 && this.size * 8 < this.keys.length) {
+      resize(this.keys.length / 2);
+    }
+  }
+
+  int size() {
+    return this.size;
+  }
+
+  boolean isEmpty() {
+    return this.size == 0;
+  }
+
+  void clear() {
+    this.keys = NO_KEYS;
+    this.values = NO_VALUES;
+    this.size = 0;
+  }
+
+  /**
+   * Returns the values of the map in a new list, which is not affected by later changes to the map.
+   *
+   * @return     The values.
+   */
+  @SuppressWarnings("unchecked")
+  List<V> values() {
+    List<V> list = new ArrayList<>(this.size);
+    for (Object value : this.values) {
+      if (value != null) {
+        list.add((V) value);
+      }
+    }
+    return list;
+  }
+
+  private void resize(int capacity) {
+    int[] oldKeys = this.keys;
+    Object[] oldValues = this.values;
+    this.keys = new int[capacity];
+    this.values = new Object[capacity];
+    int mask = capacity - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldValues[i] != null) {
+        int h = hash(oldKeys[i]) & mask;
+        while (this.values[h] != null) {
+          h = (h + 1) & mask;
+        }
+        this.keys[h] = oldKeys[i];
+        this.values[h] = oldValues[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,221 @@
+package it.unitn.TBDMX;
+
+/**
+ * FIFO queue of distinct ints in `[0, capacity)`, the local indices of the neighbors of a node (and of the node itself).
+ * The elements are kept in a circular array and their membership in a bitset, so `add` (which ignores duplicates), `remove`
+ * and `contains` take constant time and never allocate. It is not thread-safe, like the rest of the state of a node.
+ * Elements may also have a priority, from 0 to `PRIORITIES - 1`: `poll` then takes the one with the highest priority, raised by one
+ * for every `aging` ns it waited, the first one among equals. Until an element with a priority above 0 is added, the queue
+ * is a plain FIFO and keeps no priorities nor times; after that, `poll` takes time linear in the size of the queue.
+ */
+final class TBDMXIntQueue {
+  static final int PRIORITIES = 4;
+
+  private final int[] items;
+  private final long[] members;
+  private int head;
+  private int size;
+  private byte[] priorities;            // of each element, created on the first one above 0
+  private long[] since;                 // when each element was added, from then on
+  private int prioritized;              // elements with a priority above 0
+
+  /**
+   * Creates an empty queue.
+   *
+   * @param      capacity  The number of distinct elements, which are in `[0, capacity)`.
+   */
+  TBDMXIntQueue(int capacity) {
+    this.items = new int[Math.max(capacity, 1)];
+    this.members = new long[(capacity + 63) >>> 6];
+  }
+
+  /**
+   * Appends an element to the queue, unless it is already in the queue.
+   *
+   * @param      k     The element.
+   *
+   * @return     `true` if the element was added, `false` if it was already in the queue.
+   */
+  boolean add(int k) {
+    return add(k, 0, 0);
+  }
+
+  /**
+   * Appends an element with a priority, unless it is already in the queue, in which case its priority is raised to the given one if lower.
+   *
+   * @param      k         The element.
+   * @param      priority  The priority, from 0 to `PRIORITIES - 1`.
+   * @param      now       The time it is added, in ns.
+   *
+   * @return     `true` if the element was added, `false` if it was already in the queue.
+   */
+  boolean add(int k, int priority, long now) {
+    if (this.priorities == null && priority > 0) {
+      this.priorities = new byte[this.items.length];
+      this.since = new long[this.items.length];
+      for (int i = 0; i < this.size; i++) {
+        this.since[get(i)] = now;       // The elements already in wait from now on
+      }
+    }
+    if (contains(k)) {
+      if (priority > priority(k)) {
+        this.prioritized += priority(k) == 0 ? 1 : 0;
+        this.priorities[k] = (byte) priority;
+      }
+      return false;
+    }
+    if (this.priorities != null) {
+      this.priorities[k] = (byte) priority;
+      this.since[k] = now;
+      this.prioritized += priority > 0 ? 1 : 0;
+    }
+    this.members[k >>> 6] |= 1L << k;
+    int tail = this.head + this.size;
+    if (tail >= this.items.length) {
+      tail -= this.items.length;
+    }
+    this.items[tail] = k;
+    this.size++;
+    return true;
+  }
+
+  /**
+   * Removes the first element of the queue, which must not be empty.
+   *
+   * @return     The element.
+   */
+  int remove() {
+    if (this.size == 0) {
+      throw new IllegalStateException("Empty queue");
+    }
+    int k = this.items[this.head];
+    forget(k);
+    this.head = this.head + 1 == this.items.length ? 0 : this.head + 1;
+    this.size--;
+    return k;
+  }
+
+  /**
+   * Removes the element with the highest priority, taking aging into account, which must not be empty.
+   *
+   * @param      now    The current time, in ns.
+   * @param      aging  The ns after which a waiting element counts as one priority higher, 0 for no aging.
+   *
+   * @return     The element.
+   */
+  int poll(long now, long aging) {
+    if (this.prioritized == 0 || this.size <= 1) {
+      return remove();
+    }
+    int best = get(0);
+    long bestPriority = Long.MIN_VALUE;
+    for (int i = 0; i < this.size; i++) {
+      int k = get(i);
+      long p = this.priorities[k] + (aging > 0 ? (now - this.since[k]) / aging : 0);
+      if (p > bestPriority) {
+        best = k;
+        bestPriority = p;
+      }
+    }
+    discard(best);
+    return best;
+  }
+
+  private void forget(int k) {
+    this.members[k >>> 6] &= ~(1L << k);
+    if (this.priorities != null && this.priorities[k] > 0) {
+      this.priorities[k] = 0;
+      this.prioritized--;
+    }
+  }
+
+  /**
+   * Returns the priority of an element.
+   *
+   * @param      k     The element.
+   *
+   * @return     Its priority, 0 if it has none or is not in the queue.
+   */
+  int priority(int k) {
+    return this.priorities == null ? 0 : this.priorities[k];
+  }
+
+  /**
+   * Returns when an element was added, if the queue keeps priorities.
+   *
+   * @param      k     The element.
+   *
+   * @return     The time passed to `add`, 0 if the queue does not keep them.
+   */
+  long since(int k) {
+    return this.since == null ? 0 : this.since[k];
+  }
+
+  /**
+   * Returns the highest priority in the queue, without aging: the urgency of the requests behind a `Request` of the node.
+   *
+   * @return     The priority, 0 if the queue is empty.
+   */
+  int maxPriority() {
+    int max = 0;
+    for (int i = 0; i < this.size && this.prioritized > 0; i++) {
+      max = Math.max(max, this.priorities[get(i)]);
+    }
+    return max;
+  }
+
+  /**
+   * Removes an element from anywhere in the queue, keeping the order of the others. It takes time linear in the size of the queue.
+   *
+   * @param      k     The element.
+   *
+   * @return     `true` if the element was in the queue.
+   */
+  boolean discard(int k) {
+    if (!contains(k)) {
+      return false;
+    }
+    forget(k);
+    int n = this.size;
+    int kept = 0;
+    for (int i = 0; i < n; i++) {
+      int item = this.items[(this.head + i) % this.items.length];
+      if (item != k) {
+        this.items[(this.head + kept) % this.items.length] = item;
+        kept++;
+      }
+    }
+    this.size = kept;
+    return true;
+  }
+
+  /**
+   * Returns an element without removing it.
+   *
+   * @param      i     The position of the element, 0 being the first one.
+   *
+   * @return     The element.
+   */
+  int get(int i) {
+    return this.items[(this.head + i) % this.items.length];
+  }
+
+  boolean contains(int k) {
+    return (this.members[k >>> 6] & (1L << k)) != 0;
+  }
+
+  boolean isEmpty() {
+    return this.size == 0;
+  }
+
+  int size() {
+    return this.size;
+  }
+
+  void clear() {
+    while (this.size > 0) {
+      remove();
+    }
+    this.head = 0;
+  }
+}
@@ -0,0 +1,348 @@
+package it.unitn.TBDMX;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging subsystem shared by all the nodes of a JVM.
+ * Nodes do not write anything themselves: they append a compact event (node id, event type, resource, peer, queue depth, nanotime)
+ * to a lock-free ring buffer and a single background thread drains it to one append-only file, optionally echoing it on the console.
+ * If the buffer is full the node waits for the writer to make room, so every event reaches the file; with `log-drop` the event is
+ * dropped and counted instead, so a node never waits for the disk, and `close` reports how many were dropped.
+ * Until `start` is called the level is `OFF` and events are discarded at the cost of a comparison.
+ * While `TBDMXTrace` is tracing, every event also goes to the binary trace, whatever the level.
+ */
+public final class TBDMXLog {
+  public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+  /**
+   * The events a node can log. Each one has the minimum level at which it is recorded and a description used when writing it.
+   */
+  public enum Event {
+    NODE_UP(Level.INFO, "node up"),
+    REQUEST_CS(Level.INFO, "requesting CS"),
+    CS_ENTER(Level.INFO, "entering CS"),
+    CS_EXIT(Level.INFO, "exiting CS"),
+    CS_BATCHED(Level.DEBUG, "keeping the token for another request of its own"),
+    CS_CANCELLED(Level.INFO, "request withdrawn"),
+    REQUEST_CS_SHARED(Level.INFO, "requesting shared CS"),
+    CS_ENTER_SHARED(Level.INFO, "entering shared CS"),
+    CS_EXIT_SHARED(Level.INFO, "exiting shared CS"),
+    QUEUE_ADD(Level.DEBUG, "added to queue"),
+    QUEUE_DUPLICATE(Level.DEBUG, "already in queue"),
+    QUEUE_SERVE(Level.DEBUG, "serving"),
+    QUEUE_EMPTY(Level.ERROR, "trying to serve an empty queue"),
+    HOLDER_IMPOSED(Level.INFO, "is holder"),
+    HOLDER_BROADCAST(Level.DEBUG, "sending BroadcastHolder"),
+    HOLDER_SET(Level.DEBUG, "holderNode set"),
+    REQUEST_RECEIVED(Level.DEBUG, "received request"),
+    REQUEST_SENT(Level.DEBUG, "sent request"),
+    REQUEST_UPGRADED(Level.DEBUG, "raised the priority of the request"),
+    PRIVILEGE_RECEIVED(Level.INFO, "access granted"),
+    PRIVILEGE_SENT(Level.DEBUG, "sent privilege"),
+    READ_REQUEST_RECEIVED(Level.DEBUG, "received shared request"),
+    READ_REQUEST_SENT(Level.DEBUG, "sent shared request"),
+    READ_GRANT_RECEIVED(Level.DEBUG, "shared access granted"),
+    READ_GRANT_SENT(Level.DEBUG, "lent shared access"),
+    READ_RELEASE_RECEIVED(Level.DEBUG, "shared access given back"),
+    READ_RELEASE_SENT(Level.DEBUG, "gave shared access back"),
+    CRASHED(Level.WARN, "crashed"),
+    CRASH_IGNORED(Level.WARN, "already down or recovering"),
+    RECOVERING(Level.INFO, "recovering"),
+    RECOVERY_IGNORED(Level.WARN, "up and running, nothing to recover"),
+    RECOVERY_ENQUEUED(Level.DEBUG, "request enqueued during recovery"),
+    ADVICE_RECEIVED(Level.DEBUG, "received advice"),
+    HOLDER_FOUND(Level.INFO, "holder found again"),
+    RECOVERY_PRIVILEGE(Level.INFO, "access granted during recovery"),
+    RECOVERED(Level.INFO, "recovered"),
+    CHECKPOINT_RESTORED(Level.INFO, "state restored from the checkpoint"),
+    CHECKPOINT_STALE(Level.WARN, "checkpoint stale, recovering from the neighbors"),
+    NEIGHBOR_SUSPECTED(Level.WARN, "neighbor suspected"),
+    NEIGHBOR_ALIVE(Level.INFO, "suspected neighbor heard again"),
+    REQUEST_PARKED(Level.DEBUG, "request parked until the neighbor is heard again"),
+    MOVE_PROPOSED(Level.DEBUG, "moving a neighbor"),
+    MOVE_ABORTED(Level.DEBUG, "move aborted"),
+    NEIGHBOR_MOVED(Level.INFO, "neighbor moved away"),
+    NEIGHBOR_ADDED(Level.INFO, "neighbor attached"),
+    MOVED(Level.INFO, "moved next to a new neighbor"),
+    MOVE_REFUSED(Level.WARN, "cannot move the neighbor as asked"),
+    NEIGHBOR_JOINED(Level.INFO, "new node joined as a leaf"),
+    LEAVING(Level.INFO, "leaving the tree"),
+    LEAVE_REFUSED(Level.WARN, "last node of the tree, cannot leave"),
+    LEFT(Level.INFO, "left the tree"),
+    NEIGHBOR_LEFT(Level.INFO, "neighbor left the tree");
+
+    public final Level level;
+    public final String description;
+
+    Event(Level level, String description) {
+      this.level = level;
+      this.description = description;
+    }
+  }
+
+  public static final int NONE = -1; // Peer of events that do not involve any other node, resource of events that concern the whole node (keys are never negative)
+
+  private static final Event[] EVENTS = Event.values();
+
+  private static volatile Level level = Level.OFF;
+  private static volatile boolean running;
+  private static volatile Thread writerThread;
+  private static boolean echo;
+  private static boolean dropWhenFull;
+  private static BufferedWriter out;
+
+  // Ring buffer, one array per field. `published[i]` is the sequence number of the event stored at slot `i`.
+  private static int mask;
+  private static long[] times;
+  private static int[] nodes;
+  private static int[] resources;
+  private static int[] peers;
+  private static int[] depths;
+  private static byte[] events;
+  private static AtomicLongArray published;
+  private static final AtomicLong claimed = new AtomicLong();   // next sequence to be claimed by a producer
+  private static final AtomicLong consumed = new AtomicLong();  // next sequence to be read by the writer
+  private static volatile long flushed;                         // every sequence below this one is on disk
+  private static final int FLUSH_BATCH = 4096;                  // events written between two flushes while the writer never runs out
+  private static final LongAdder dropped = new LongAdder();     // events that found the buffer full
+
+  private TBDMXLog() {}
+
+  /**
+   * Starts the writer thread. The options read are:
+   * `log-level` (DEBUG, INFO, WARN, ERROR or OFF, default INFO), `log-file` (default `logs/tbdmx.log`),
+   * `log-echo` (also print events on the console, default false), `log-buffer` (slots of the ring buffer, rounded up to a power of two)
+   * and `log-drop` (drop the events that find the buffer full instead of waiting for the writer, default false).
+   *
+   * @param      options  The options given to the controller.
+   */
+  public static synchronized void start(TBDMXOptions options) {
+    if (running) {
+      return;
+    }
+    Level lvl;
+    try {
+      lvl = Level.valueOf(options.getString("log-level", "INFO").toUpperCase());
+    }
+    catch (IllegalArgumentException e) {
+      System.err.println("Unknown log level `"+options.getString("log-level", "")+"`");
+      lvl = Level.INFO;
+    }
+    if (lvl == Level.OFF) {
+      return;
+    }
+    String file = options.getString("log-file", "logs/tbdmx.log");
+    try {
+      File parent = new File(file).getAbsoluteFile().getParentFile();
+      if (parent != null) {
+        parent.mkdirs();
+      }
+      out = new BufferedWriter(new FileWriter(file, true), 1 << 16);
+    }
+    catch (IOException e) {
+      System.err.println("Cannot open log file "+file+", logging disabled");
+      return;
+    }
+    int capacity = Integer.highestOneBit(Math.max(1024, options.getInt("log-buffer", 1 << 16)) - 1) << 1;
+    mask = capacity - 1;
+    times = new long[capacity];
+    nodes = new int[capacity];
+    resources = new int[capacity];
+    peers = new int[capacity];
+    depths = new int[capacity];
+    events = new byte[capacity];
+    published = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      published.set(i, -1);
+    }
+    claimed.set(0);
+    consumed.set(0);
+    flushed = 0;
+    dropped.reset();
+    echo = options.getBoolean("log-echo", false);
+    dropWhenFull = options.getBoolean("log-drop", false);
+    running = true;
+    Thread t = new Thread(TBDMXLog::drain, "tbdmx-log-writer");
+    t.setDaemon(true);
+    writerThread = t;
+    t.start();
+    level = lvl;
+  }
+
+  /**
+   * Whether an event would be recorded with the current level. Useful to avoid computing its arguments.
+   *
+   * @param      e     The event.
+   *
+   * @return     `true` if the event is recorded.
+   */
+  public static boolean enabled(Event e) {
+    return e.level.ordinal() >= level.ordinal() || TBDMXTrace.enabled();
+  }
+
+  /**
+   * Appends an event to the ring buffer.
+   *
+   * @param      e         The event.
+   * @param      node      The node logging the event.
+   * @param      resource  The resource the event refers to, or `NONE`.
+   * @param      peer      The other node involved in the event, or `NONE`.
+   * @param      depth     The length of the request queue of the resource at the node.
+   */
+  public static void log(Event e, int node, int resource, int peer, int depth) {
+    log(e, node, resource, peer, depth, NONE);
+  }
+
+  /**
+   * Appends an event concerning a request to the ring buffer. The request is only kept in the trace.
+   *
+   * @param      e         The event.
+   * @param      node      The node logging the event.
+   * @param      resource  The resource the event refers to, or `NONE`.
+   * @param      peer      The other node involved in the event, or `NONE`.
+   * @param      depth     The length of the request queue of the resource at the node.
+   * @param      request   The request, see `TBDMXTrace`, or `NONE`.
+   */
+  public static void log(Event e, int node, int resource, int peer, int depth, long request) {
+    if (TBDMXTrace.enabled()) {
+      TBDMXTrace.record(e, node, resource, peer, depth, request);
+    }
+    if (e.level.ordinal() < level.ordinal()) {
+      return;
+    }
+    long seq;
+    for (;;) {
+      seq = claimed.get();
+      if (seq - consumed.get() > mask) {  // Full: wait for the writer, or drop the event with `log-drop` or once the writer stopped
+        LockSupport.unpark(writerThread);
+        if (dropWhenFull || !running) {
+          dropped.increment();
+          return;
+        }
+        LockSupport.parkNanos(10_000);
+      }
+      else if (claimed.compareAndSet(seq, seq + 1)) {
+        break;
+      }
+    }
+    int slot = (int) seq & mask;
+    times[slot] = System.nanoTime();
+    nodes[slot] = node;
+    resources[slot] = resource;
+    peers[slot] = peer;
+    depths[slot] = depth;
+    events[slot] = (byte) e.ordinal();
+    published.lazySet(slot, seq);
+  }
+
+  /**
+   * Flush barrier: returns once every event appended before the call has been written to the file.
+   * It parks the calling thread until then, so it is meant for the controller, never for a node.
+   */
+  public static void flush() {
+    if (!running) {
+      return;
+    }
+    long target = claimed.get();
+    while (flushed < target && running) {
+      LockSupport.unpark(writerThread);
+      LockSupport.parkNanos(100_000);
+    }
+  }
+
+  /**
+   * Returns the number of events dropped so far because the buffer was full.
+   *
+   * @return     The number of events.
+   */
+  public static long dropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * Flushes the pending events and stops the writer, reporting the events that were dropped. The writer stops only once it consumed
+   * every event claimed so far, including those of nodes that were appending one while the level went `OFF`.
+   */
+  public static synchronized void close() {
+    if (!running) {
+      return;
+    }
+    flush();
+    level = Level.OFF;
+    while (consumed.get() < claimed.get()) {
+      LockSupport.unpark(writerThread);
+      LockSupport.parkNanos(100_000);
+    }
+    running = false;
+    LockSupport.unpark(writerThread);
+    try {
+      writerThread.join();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (dropped.sum() > 0) {
+      System.err.println(dropped.sum()+" events were not logged, the log buffer being full (see --log-buffer)");
+    }
+  }
+
+  /**
+   * Body of the writer thread: it consumes the events in order and flushes the file whenever it runs out of them, or every `FLUSH_BATCH`
+   * events, so that `flush` returns even while the nodes log without a pause. Once stopped it still waits for the events already claimed.
+   */
+  private static void drain() {
+    long next = 0;
+    StringBuilder sb = new StringBuilder(128);
+    try {
+      while (running || next < claimed.get()) {
+        int slot = (int) next & mask;
+        if (published.get(slot) == next) {
+          sb.setLength(0);
+          Event e = EVENTS[events[slot]];
+          sb.append(times[slot]).append('\t').append(nodes[slot]).append('\t').append(e.name()).append('\t');
+          if (resources[slot] != NONE) {
+            sb.append(resources[slot]);
+          }
+          sb.append('\t');
+          if (peers[slot] != NONE) {
+            sb.append(peers[slot]);
+          }
+          sb.append('\t').append(depths[slot]).append('\t').append(e.description).append('\n');
+          out.append(sb);
+          if (echo) {
+            System.out.print(sb);
+          }
+          next++;
+          consumed.lazySet(next);
+          if (next % FLUSH_BATCH == 0) {
+            out.flush();
+            flushed = next;
+          }
+        }
+        else {
+          out.flush();
+          flushed = next;
+          if (!running && next >= claimed.get()) {
+            break;
+          }
+          LockSupport.parkNanos(1_000_000);
+        }
+      }
+      out.flush();
+      flushed = next;
+      out.close();
+    }
+    catch (IOException e) {
+      System.err.println("Logging error: "+e.getMessage());
+      level = Level.OFF;
+      running = false;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package it.unitn.TBDMX;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.AbstractNodeQueue;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedDequeBasedMessageQueueSemantics;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.ArrayDeque;
+
+/**
+ * Unbounded mailbox for a single consumer, which supports the stash of the nodes; selected with `mailbox=single-consumer`.
+ * Akka's `SingleConsumerOnlyUnboundedMailbox` is a lock-free queue for many producers and one consumer, cheaper than the
+ * `LinkedBlockingDeque` of the default mailbox of the actors with a stash, but it cannot put the stashed messages back in front.
+ * Here they go to a plain deque in front of the lock-free queue, which only the actor touches: `unstashAll` is called by the actor,
+ * and the messages are taken by the thread running it.
+ */
+public final class TBDMXMailbox implements MailboxType, ProducesMessageQueue<TBDMXMailbox.Queue> {
+
+  /**
+   * The queue of a node.
+   */
+  public static final class Queue extends AbstractNodeQueue<Envelope> implements MessageQueue, UnboundedDequeBasedMessageQueueSemantics {
+    private final ArrayDeque<Envelope> front = new ArrayDeque<>(0);    // Unstashed messages, only used by the consumer
+
+    @Override
+    public void enqueue(ActorRef receiver, Envelope handle) {
+      add(handle);
+    }
+
+    @Override
+    public void enqueueFirst(ActorRef receiver, Envelope handle) {
+      this.front.addFirst(handle);
+    }
+
+    @Override
+    public Envelope dequeue() {
+      Envelope e = this.front.pollFirst();
+      return e != null ? e : poll();
+    }
+
+    @Override
+    public int numberOfMessages() {
+      return this.front.size() + count();
+    }
+
+    @Override
+    public boolean hasMessages() {
+      return !this.front.isEmpty() || !isEmpty();
+    }
+
+    @Override
+    public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+      for (Envelope e = dequeue(); e != null; e = dequeue()) {
+        deadLetters.enqueue(owner, e);
+      }
+    }
+  }
+
+  /**
+   * Called by Akka with the configuration of the mailbox, which has no settings.
+   *
+   * @param      settings  The settings of the actor system.
+   * @param      config    The configuration of the mailbox.
+   */
+  public TBDMXMailbox(ActorSystem.Settings settings, Config config) {}
+
+  @Override
+  public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+    return new Queue();
+  }
+}
@@ -0,0 +1,558 @@
+package it.unitn.TBDMX;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Metrics of the nodes of a JVM, exported through JMX and optionally dumped periodically to a file.
+ * Each node owns a `Node` with plain counters that only its actor updates: messages sent and received per class, request queue depth,
+ * critical sections, and time spent waiting for (also per priority of the request) and holding them and recovering. The distributions of those times go in one
+ * `TBDMXHistogram` per dispatcher thread instead of one per node, which would not fit millions of nodes.
+ * Readers (the MBean and the dumper) sum everything up without any synchronization, so a snapshot taken during a run may be slightly stale.
+ * Until `start` is called metrics are disabled, nodes get no `Node` and pay a `null` check.
+ */
+public final class TBDMXMetrics {
+  /**
+   * The classes of protocol messages that are counted.
+   */
+  public enum Message { REQUEST, PRIVILEGE, READ_GRANT, READ_RELEASE, BROADCAST_HOLDER, RESTART, ADVICE, MOVE, VALIDATE, HEARTBEAT }
+
+  private static final Message[] MESSAGES = Message.values();
+  private static final int WAIT = 0;
+  private static final int HOLD = 1;
+  private static final int RECOVERY = 2;
+  private static final int DETECTION = 3;
+  private static final int SUSPECTED = 4;
+  private static final int WAIT_BY_PRIORITY = 5;         // one per priority from here on
+  private static final long SNAPSHOT_TTL = 200_000_000L; // a snapshot is reused by the attributes read within this many ns
+
+  private static volatile boolean enabled;
+  private static final ConcurrentHashMap<Integer, Node> nodes = new ConcurrentHashMap<>();
+  private static final List<TBDMXHistogram[]> histograms = new CopyOnWriteArrayList<>();
+  private static final ThreadLocal<TBDMXHistogram[]> localHistograms = ThreadLocal.withInitial(() -> {
+    TBDMXHistogram[] h = new TBDMXHistogram[WAIT_BY_PRIORITY + TBDMXIntQueue.PRIORITIES];
+    for (int i = 0; i < h.length; i++) {
+      h[i] = new TBDMXHistogram();
+    }
+    histograms.add(h);
+    return h;
+  });
+  private static ObjectName name;
+  private static ScheduledExecutorService dumper;
+  private static BufferedWriter out;
+  private static boolean json;
+  private static volatile Snapshot last;
+
+  private TBDMXMetrics() {}
+
+  /**
+   * Metrics of one node. Its methods are called by the node only, so they are not synchronized.
+   */
+  static final class Node {
+    final int id;
+    final long[] sent = new long[MESSAGES.length];
+    final long[] received = new long[MESSAGES.length];
+    int queued;                         // entries in the request queues of all the resources
+    int maxQueued;
+    long entries;
+    long waitNanos;
+    long holdNanos;
+    long recoveries;
+    long recoveryNanos;
+    long suspicions;
+    private long recoveryStart;
+
+    private Node(int id) {
+      this.id = id;
+    }
+
+    void sent(Object msg) {
+      Message m = type(msg);
+      if (m != null) {
+        this.sent[m.ordinal()]++;
+      }
+    }
+
+    void received(Message m) {
+      this.received[m.ordinal()]++;
+    }
+
+    /**
+     * Updates the depth of the request queues after an element was added (`delta` 1) or removed (`delta` -1).
+     *
+     * @param      delta  The change of the depth.
+     */
+    void queued(int delta) {
+      this.queued += delta;
+      if (this.queued > this.maxQueued) {
+        this.maxQueued = this.queued;
+      }
+    }
+
+    /**
+     * Called when a node crashes and forgets its queues.
+     */
+    void crashed() {
+      this.queued = 0;
+    }
+
+    /**
+     * Called when the node enters a critical section.
+     *
+     * @param      wait      The time from the `RequestCS` in ns.
+     * @param      priority  The priority of the request.
+     */
+    void entered(long wait, int priority) {
+      this.entries++;
+      this.waitNanos += wait;
+      TBDMXHistogram[] h = localHistograms.get();
+      h[WAIT].record(wait);
+      h[WAIT_BY_PRIORITY + priority].record(wait);
+    }
+
+    /**
+     * Called when the node leaves a critical section.
+     *
+     * @param      hold  The time from the entry in ns.
+     */
+    void exited(long hold) {
+      this.holdNanos += hold;
+      localHistograms.get()[HOLD].record(hold);
+    }
+
+    void recovering() {
+      this.recoveryStart = System.nanoTime();
+    }
+
+    void recovered() {
+      long t = System.nanoTime() - this.recoveryStart;
+      this.recoveries++;
+      this.recoveryNanos += t;
+      localHistograms.get()[RECOVERY].record(t);
+    }
+
+    /**
+     * Called when the node starts suspecting a neighbor.
+     *
+     * @param      detection  The time since the last heartbeat of the neighbor in ns.
+     */
+    void suspected(long detection) {
+      this.suspicions++;
+      localHistograms.get()[DETECTION].record(detection);
+    }
+
+    /**
+     * Called when a suspected neighbor is heard again.
+     *
+     * @param      suspected  The time the neighbor was suspected for in ns.
+     */
+    void unsuspected(long suspected) {
+      localHistograms.get()[SUSPECTED].record(suspected);
+    }
+
+    long messages() {
+      long n = 0;
+      for (Message m : MESSAGES) {
+        n += m == Message.HEARTBEAT ? 0 : this.received[m.ordinal()];  // the same for every edge, they make no hotspot
+      }
+      return n;
+    }
+  }
+
+  /**
+   * Returns the class of a protocol message.
+   *
+   * @param      msg   The message.
+   *
+   * @return     The class, or `null` if the message is not a protocol one.
+   */
+  static Message type(Object msg) {
+    if (msg instanceof TBDMXNode.Request) {
+      return Message.REQUEST;
+    }
+    if (msg instanceof TBDMXNode.Privilege) {
+      return Message.PRIVILEGE;
+    }
+    if (msg instanceof TBDMXNode.ReadGrant) {
+      return Message.READ_GRANT;
+    }
+    if (msg instanceof TBDMXNode.ReadRelease) {
+      return Message.READ_RELEASE;
+    }
+    if (msg instanceof TBDMXNode.BroadcastHolder) {
+      return Message.BROADCAST_HOLDER;
+    }
+    if (msg instanceof TBDMXNode.Restart) {
+      return Message.RESTART;
+    }
+    if (msg instanceof TBDMXNode.Advice) {
+      return Message.ADVICE;
+    }
+    if (msg instanceof TBDMXNode.MovePrepare || msg instanceof TBDMXNode.MoveReady || msg instanceof TBDMXNode.MoveAbort
+        || msg instanceof TBDMXNode.Reattach || msg instanceof TBDMXNode.Attach || msg instanceof TBDMXNode.Detach) {
+      return Message.MOVE;
+    }
+    if (msg instanceof TBDMXNode.Validate || msg instanceof TBDMXNode.Validation) {
+      return Message.VALIDATE;
+    }
+    if (msg instanceof TBDMXNode.Heartbeat) {
+      return Message.HEARTBEAT;
+    }
+    return null;
+  }
+
+  /**
+   * Enables the metrics, if the option `metrics` is set or a `metrics-file` is given, and registers the MBean.
+   * With `metrics-file` a line with the aggregated metrics is appended to the file every `metrics-period` milliseconds (default 1000):
+   * a JSON object if the file name ends with `.json`, comma separated values (with a header) otherwise.
+   * It must be called before the nodes are created.
+   *
+   * @param      options  The options given to the controller.
+   */
+  public static synchronized void start(TBDMXOptions options) {
+    if (enabled || !(options.getBoolean("metrics", false) || options.has("metrics-file"))) {
+      return;
+    }
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      name = new ObjectName("it.unitn.TBDMX:type=Metrics");
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(new StandardMBean(new Bean(), TBDMXMetricsMBean.class), name);
+    }
+    catch (JMException e) {
+      System.err.println("Cannot register the metrics MBean: "+e.getMessage());
+      name = null;
+    }
+    if (options.has("metrics-file")) {
+      String file = options.getString("metrics-file", null);
+      try {
+        File parent = new File(file).getAbsoluteFile().getParentFile();
+        if (parent != null) {
+          parent.mkdirs();
+        }
+        out = new BufferedWriter(new FileWriter(file, false));
+        json = file.endsWith(".json");
+        if (!json) {
+          out.write(header());
+          out.newLine();
+        }
+      }
+      catch (IOException e) {
+        System.err.println("Cannot open metrics file "+file+", metrics will not be dumped");
+        out = null;
+      }
+      if (out != null) {
+        long period = Math.max(1, options.getLong("metrics-period", 1000));
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+          Thread t = new Thread(r, "tbdmx-metrics-dumper");
+          t.setDaemon(true);
+          return t;
+        });
+        dumper.scheduleAtFixedRate(TBDMXMetrics::dump, period, period, TimeUnit.MILLISECONDS);
+      }
+    }
+    enabled = true;
+  }
+
+  /**
+   * Returns the metrics of a new node.
+   *
+   * @param      id    The id of the node.
+   *
+   * @return     The metrics of the node, or `null` if metrics are disabled.
+   */
+  static Node node(int id) {
+    if (!enabled) {
+      return null;
+    }
+    Node n = new Node(id);
+    nodes.put(id, n);
+    return n;
+  }
+
+  /**
+   * Forgets the metrics of a node that stopped.
+   *
+   * @param      n     The metrics of the node.
+   */
+  static void remove(Node n) {
+    nodes.remove(n.id, n);
+  }
+
+  /**
+   * Writes a last line to the metrics file, if any, stops the dumper and unregisters the MBean.
+   */
+  public static synchronized void close() {
+    if (!enabled) {
+      return;
+    }
+    enabled = false;
+    if (dumper != null) {
+      dumper.shutdown();
+      try {
+        dumper.awaitTermination(10, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      dump();
+      try {
+        out.close();
+      }
+      catch (IOException e) {
+        System.err.println("Error closing the metrics file: "+e.getMessage());
+      }
+      dumper = null;
+      out = null;
+    }
+    if (name != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      }
+      catch (JMException e) {
+        System.err.println("Cannot unregister the metrics MBean: "+e.getMessage());
+      }
+      name = null;
+    }
+    nodes.clear();
+    histograms.clear();
+    localHistograms.remove();
+    last = null;
+  }
+
+  /**
+   * Metrics aggregated over all the nodes at some point in time.
+   */
+  private static final class Snapshot {
+    final long time = System.nanoTime();
+    final long millis = System.currentTimeMillis();
+    int nodes;
+    final long[] sent = new long[MESSAGES.length];
+    final long[] received = new long[MESSAGES.length];
+    long queued;
+    int maxQueued;
+    long entries;
+    long recoveries;
+    long suspicions;
+    final TBDMXHistogram wait = new TBDMXHistogram();
+    final TBDMXHistogram hold = new TBDMXHistogram();
+    final TBDMXHistogram recovery = new TBDMXHistogram();
+    final TBDMXHistogram detection = new TBDMXHistogram();
+    final TBDMXHistogram suspected = new TBDMXHistogram();
+    final TBDMXHistogram[] waitByPriority = new TBDMXHistogram[TBDMXIntQueue.PRIORITIES];
+
+    Snapshot() {
+      for (int p = 0; p < this.waitByPriority.length; p++) {
+        this.waitByPriority[p] = new TBDMXHistogram();
+      }
+    }
+  }
+
+  private static Snapshot snapshot() {
+    Snapshot s = last;
+    if (s != null && System.nanoTime() - s.time < SNAPSHOT_TTL) {
+      return s;
+    }
+    s = new Snapshot();
+    for (Node n : nodes.values()) {
+      s.nodes++;
+      for (int i = 0; i < MESSAGES.length; i++) {
+        s.sent[i] += n.sent[i];
+        s.received[i] += n.received[i];
+      }
+      s.queued += n.queued;
+      s.maxQueued = Math.max(s.maxQueued, n.maxQueued);
+      s.entries += n.entries;
+      s.recoveries += n.recoveries;
+      s.suspicions += n.suspicions;
+    }
+    for (TBDMXHistogram[] h : histograms) {
+      s.wait.add(h[WAIT]);
+      s.hold.add(h[HOLD]);
+      s.recovery.add(h[RECOVERY]);
+      s.detection.add(h[DETECTION]);
+      s.suspected.add(h[SUSPECTED]);
+      for (int p = 0; p < s.waitByPriority.length; p++) {
+        s.waitByPriority[p].add(h[WAIT_BY_PRIORITY + p]);
+      }
+    }
+    last = s;
+    return s;
+  }
+
+  private static double millis(double nanos) {
+    return nanos / 1e6;
+  }
+
+  private static String header() {
+    StringBuilder sb = new StringBuilder("time,nodes");
+    for (Message m : MESSAGES) {
+      sb.append(',').append(m.name().toLowerCase(Locale.ROOT)).append("_sent");
+    }
+    for (Message m : MESSAGES) {
+      sb.append(',').append(m.name().toLowerCase(Locale.ROOT)).append("_received");
+    }
+    sb.append(",queued,max_queue_depth,cs_entries,cs_wait_mean_ms,cs_wait_p50_ms,cs_wait_p99_ms,cs_wait_max_ms")
+      .append(",cs_hold_mean_ms,cs_hold_p99_ms,cs_hold_max_ms,recoveries,recovery_mean_ms,recovery_max_ms")
+      .append(",suspicions,detection_mean_ms,detection_max_ms,suspected_mean_ms,suspected_max_ms");
+    for (int p = 0; p < TBDMXIntQueue.PRIORITIES; p++) {
+      sb.append(",cs_wait_mean_ms_p").append(p).append(",cs_wait_p99_ms_p").append(p);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Appends the current metrics to the file, as a line of CSV or a JSON object.
+   */
+  private static void dump() {
+    Snapshot s = snapshot();
+    String[] keys = header().split(",");
+    List<String> values = new ArrayList<>(keys.length);
+    values.add(Long.toString(s.millis));
+    values.add(Integer.toString(s.nodes));
+    for (long c : s.sent) {
+      values.add(Long.toString(c));
+    }
+    for (long c : s.received) {
+      values.add(Long.toString(c));
+    }
+    values.add(Long.toString(s.queued));
+    values.add(Integer.toString(s.maxQueued));
+    values.add(Long.toString(s.entries));
+    for (double ms : new double[] { millis(s.wait.mean()), millis(s.wait.percentile(0.5)), millis(s.wait.percentile(0.99)), millis(s.wait.max()),
+                                    millis(s.hold.mean()), millis(s.hold.percentile(0.99)), millis(s.hold.max()) }) {
+      values.add(String.format(Locale.ROOT, "%.3f", ms));
+    }
+    values.add(Long.toString(s.recoveries));
+    values.add(String.format(Locale.ROOT, "%.3f", millis(s.recovery.mean())));
+    values.add(String.format(Locale.ROOT, "%.3f", millis(s.recovery.max())));
+    values.add(Long.toString(s.suspicions));
+    for (double ms : new double[] { millis(s.detection.mean()), millis(s.detection.max()), millis(s.suspected.mean()), millis(s.suspected.max()) }) {
+      values.add(String.format(Locale.ROOT, "%.3f", ms));
+    }
+    for (TBDMXHistogram h : s.waitByPriority) {
+      values.add(String.format(Locale.ROOT, "%.3f", millis(h.mean())));
+      values.add(String.format(Locale.ROOT, "%.3f", millis(h.percentile(0.99))));
+    }
+    StringBuilder sb = new StringBuilder(512);
+    if (json) {
+      sb.append('{');
+      for (int i = 0; i < keys.length; i++) {
+        sb.append(i == 0 ? "" : ",").append('"').append(keys[i]).append("\":").append(values.get(i));
+      }
+      sb.append('}');
+    }
+    else {
+      sb.append(String.join(",", values));
+    }
+    try {
+      out.write(sb.toString());
+      out.newLine();
+      out.flush();
+    }
+    catch (IOException e) {
+      System.err.println("Error writing the metrics file: "+e.getMessage());
+    }
+  }
+
+  private static final class Bean implements TBDMXMetricsMBean {
+    @Override public int getNodes() { return snapshot().nodes; }
+
+    @Override
+    public String[] getMessageTypes() {
+      String[] types = new String[MESSAGES.length];
+      for (int i = 0; i < types.length; i++) {
+        types[i] = MESSAGES[i].name();
+      }
+      return types;
+    }
+
+    @Override public long[] getMessagesSent() { return snapshot().sent.clone(); }
+    @Override public long[] getMessagesReceived() { return snapshot().received.clone(); }
+    @Override public long getQueued() { return snapshot().queued; }
+    @Override public int getMaxQueueDepth() { return snapshot().maxQueued; }
+    @Override public long getCsEntries() { return snapshot().entries; }
+    @Override public double getCsWaitMeanMillis() { return millis(snapshot().wait.mean()); }
+    @Override public double getCsWaitP50Millis() { return millis(snapshot().wait.percentile(0.5)); }
+    @Override public double getCsWaitP99Millis() { return millis(snapshot().wait.percentile(0.99)); }
+    @Override public double getCsWaitMaxMillis() { return millis(snapshot().wait.max()); }
+    @Override public double getCsHoldMeanMillis() { return millis(snapshot().hold.mean()); }
+    @Override public double getCsHoldP99Millis() { return millis(snapshot().hold.percentile(0.99)); }
+    @Override public double getCsHoldMaxMillis() { return millis(snapshot().hold.max()); }
+    @Override public long getRecoveries() { return snapshot().recoveries; }
+    @Override public double getRecoveryMeanMillis() { return millis(snapshot().recovery.mean()); }
+    @Override public double getRecoveryMaxMillis() { return millis(snapshot().recovery.max()); }
+    @Override public long getSuspicions() { return snapshot().suspicions; }
+    @Override public double getDetectionMeanMillis() { return millis(snapshot().detection.mean()); }
+    @Override public double getDetectionMaxMillis() { return millis(snapshot().detection.max()); }
+    @Override public double getSuspectedMeanMillis() { return millis(snapshot().suspected.mean()); }
+    @Override public double getSuspectedMaxMillis() { return millis(snapshot().suspected.max()); }
+
+    @Override
+    public double[] getCsWaitMeanMillisByPriority() {
+      TBDMXHistogram[] h = snapshot().waitByPriority;
+      double[] ms = new double[h.length];
+      for (int p = 0; p < ms.length; p++) {
+        ms[p] = millis(h[p].mean());
+      }
+      return ms;
+    }
+
+    @Override
+    public double[] getCsWaitP99MillisByPriority() {
+      TBDMXHistogram[] h = snapshot().waitByPriority;
+      double[] ms = new double[h.length];
+      for (int p = 0; p < ms.length; p++) {
+        ms[p] = millis(h[p].percentile(0.99));
+      }
+      return ms;
+    }
+
+    @Override
+    public String[] topNodes(int count) {
+      PriorityQueue<long[]> top = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0])); // messages received and id of a node
+      for (Node n : nodes.values()) {
+        top.add(new long[] { n.messages(), n.id });
+        if (top.size() > count) {
+          top.poll();
+        }
+      }
+      String[] lines = new String[top.size()];
+      for (int i = lines.length - 1; i >= 0; i--) {
+        long[] busiest = top.poll();
+        Node n = nodes.get((int) busiest[1]);
+        long sent = 0;
+        long entries = 0;
+        double wait = 0;
+        if (n != null) {
+          for (long c : n.sent) {
+            sent += c;
+          }
+          entries = n.entries;
+          wait = entries == 0 ? 0 : millis((double) n.waitNanos / entries);
+        }
+        lines[i] = String.format(Locale.ROOT, "node %d: %d received, %d sent, max queue %d, %d CS, mean wait %.3f ms",
+                                 busiest[1], busiest[0], sent, n == null ? 0 : n.maxQueued, entries, wait);
+      }
+      return lines;
+    }
+  }
+}
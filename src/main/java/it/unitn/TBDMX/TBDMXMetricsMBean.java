@@ -0,0 +1,83 @@
+package it.unitn.TBDMX;
+
+/**
+ * Management interface of `TBDMXMetrics`, registered as `it.unitn.TBDMX:type=Metrics` in the platform MBean server.
+ * Every attribute is aggregated over the nodes of the JVM; times are in milliseconds.
+ */
+public interface TBDMXMetricsMBean {
+  int getNodes();
+
+  /**
+   * @return     The names of the message classes, in the order of `getMessagesSent` and `getMessagesReceived`.
+   */
+  String[] getMessageTypes();
+
+  long[] getMessagesSent();
+
+  long[] getMessagesReceived();
+
+  /**
+   * @return     The entries currently in the request queues of all the nodes.
+   */
+  long getQueued();
+
+  /**
+   * @return     The longest request queue a node ever had.
+   */
+  int getMaxQueueDepth();
+
+  long getCsEntries();
+
+  double getCsWaitMeanMillis();
+
+  double getCsWaitP50Millis();
+
+  double getCsWaitP99Millis();
+
+  double getCsWaitMaxMillis();
+
+  double getCsHoldMeanMillis();
+
+  double getCsHoldP99Millis();
+
+  double getCsHoldMaxMillis();
+
+  long getRecoveries();
+
+  double getRecoveryMeanMillis();
+
+  double getRecoveryMaxMillis();
+
+  /**
+   * Returns how many times a node started suspecting a neighbor, see `TBDMXFailureDetector`.
+   *
+   * @return     The number of suspicions.
+   */
+  long getSuspicions();
+
+  double getDetectionMeanMillis();
+
+  double getDetectionMaxMillis();
+
+  double getSuspectedMeanMillis();
+
+  double getSuspectedMaxMillis();
+
+  /**
+   * Returns the mean wait for an exclusive critical section of each priority, see `TBDMXNode.RequestCS`; shared ones count as priority 0.
+   *
+   * @return     The mean wait in ms, indexed by priority.
+   */
+  double[] getCsWaitMeanMillisByPriority();
+
+  double[] getCsWaitP99MillisByPriority();
+
+  /**
+   * Returns the nodes that received the most protocol messages, which are the hotspots of the tree.
+   *
+   * @param      count  How many nodes to return.
+   *
+   * @return     One line per node, the busiest first.
+   */
+  String[] topNodes(int count);
+}
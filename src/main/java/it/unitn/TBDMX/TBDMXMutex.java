@@ -0,0 +1,204 @@
+package it.unitn.TBDMX;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import scala.concurrent.duration.Duration;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import it.unitn.TBDMX.TBDMXNode.CancelCS;
+import it.unitn.TBDMX.TBDMXNode.RequestCS;
+
+/**
+ * Client API of the distributed lock: application code asks a node of the tree for a resource with `acquire` and gets a `LockHandle`
+ * once the node is in the CS, which lasts until `LockHandle.release` is called, whatever the work done meanwhile.
+ * It is built on the `work` of a `RequestCS`: the work completes the future of the acquisition and returns the stage that `release` completes.
+ * Nothing blocks while waiting, so any number of tasks can wait for the lock at the same time; the futures are completed on `executor`,
+ * never on the threads of the actors. `lock` is the blocking variant, which parks the calling thread (a virtual thread, on JVMs that have them)
+ * instead of holding a monitor.
+ * An acquisition that times out, or whose future is cancelled, is withdrawn from the node with a `CancelCS`. If the node entered the CS in the
+ * meanwhile, the CS is left at once. Requests that are lost because their node crashed are only ended by their timeout.
+ * The nodes must be in the same JVM, as the work of a `RequestCS` cannot leave it.
+ */
+public final class TBDMXMutex {
+  private static final int WAITING = 0;
+  private static final int GRANTED = 1;
+  private static final int ABANDONED = 2;
+  private static final CompletionStage<Void> DONE = CompletableFuture.completedFuture(null);
+
+  private final ActorSystem system;
+  private final List<ActorRef> nodes;
+  private final Executor executor;
+
+  /**
+   * A CS entered through `acquire`, held until released.
+   */
+  public static final class LockHandle implements AutoCloseable {
+    private final int node;
+    private final int resource;
+    private final CompletableFuture<Void> released = new CompletableFuture<>();
+
+    private LockHandle(int node, int resource) {
+      this.node = node;
+      this.resource = resource;
+    }
+
+    public int node() {
+      return this.node;
+    }
+
+    public int resource() {
+      return this.resource;
+    }
+
+    /**
+     * Leaves the CS. Further calls have no effect.
+     */
+    public void release() {
+      this.released.complete(null);
+    }
+
+    public boolean isReleased() {
+      return this.released.isDone();
+    }
+
+    @Override
+    public void close() {
+      release();
+    }
+  }
+
+  /**
+   * Creates the client of a tree, completing the futures on the common fork/join pool.
+   *
+   * @param      system  The actor system of the nodes.
+   * @param      nodes   The nodes, the i-th one being the node with id i, e.g. from `TBDMXController.createNodes`.
+   */
+  public TBDMXMutex(ActorSystem system, List<ActorRef> nodes) {
+    this(system, nodes, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Creates the client of a tree.
+   *
+   * @param      system    The actor system of the nodes.
+   * @param      nodes     The nodes, the i-th one being the node with id i.
+   * @param      executor  Where the futures returned by `acquire` are completed.
+   */
+  public TBDMXMutex(ActorSystem system, List<ActorRef> nodes, Executor executor) {
+    this.system = system;
+    this.nodes = nodes;
+    this.executor = executor;
+  }
+
+  /**
+   * Asks exclusive access to resource 0 at a node, with no timeout.
+   *
+   * @param      node  The id of the node.
+   *
+   * @return     The handle of the CS, once entered.
+   */
+  public CompletableFuture<LockHandle> acquire(int node) {
+    return acquire(node, 0, false, 0, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Asks exclusive access to a resource at a node.
+   *
+   * @param      node      The id of the node.
+   * @param      resource  The key of the resource.
+   * @param      timeout   The time after which the acquisition fails with a `TimeoutException`, 0 for no timeout.
+   * @param      unit      The unit of `timeout`.
+   *
+   * @return     The handle of the CS, once entered.
+   */
+  public CompletableFuture<LockHandle> acquire(int node, int resource, long timeout, TimeUnit unit) {
+    return acquire(node, resource, false, timeout, unit);
+  }
+
+  /**
+   * Asks access to a resource at a node. Cancelling the returned future withdraws the request.
+   * A shared acquisition cannot be withdrawn from the node, so one that times out or is cancelled leaves its CS as soon as it gets it.
+   *
+   * @param      node      The id of the node.
+   * @param      resource  The key of the resource, not negative.
+   * @param      shared    Whether the access is shared.
+   * @param      timeout   The time after which the acquisition fails with a `TimeoutException`, 0 for no timeout.
+   * @param      unit      The unit of `timeout`.
+   *
+   * @return     The handle of the CS, once entered.
+   *
+   * @throws     IllegalArgumentException  If the key is negative.
+   */
+  public CompletableFuture<LockHandle> acquire(int node, int resource, boolean shared, long timeout, TimeUnit unit) {
+    RequestCS.key(resource);
+    ActorRef ref = this.nodes.get(node);
+    CompletableFuture<LockHandle> acquired = new CompletableFuture<>();
+    AtomicInteger state = new AtomicInteger(WAITING);
+    Supplier<CompletionStage<?>> work = () -> {                 // Run by the node, when it enters the CS
+      if (!state.compareAndSet(WAITING, GRANTED)) {
+        return DONE;                                            // Abandoned, but not withdrawn in time
+      }
+      LockHandle handle = new LockHandle(node, resource);
+      this.executor.execute(() -> {
+        if (!acquired.complete(handle)) {                       // Cancelled right after the entry
+          handle.release();
+        }
+      });
+      return handle.released;
+    };
+    acquired.whenComplete((handle, error) -> {
+      if (error != null && state.compareAndSet(WAITING, ABANDONED) && !shared) {
+        ref.tell(new CancelCS(resource, work), ActorRef.noSender());
+      }
+    });
+    if (timeout > 0) {
+      Cancellable timer = this.system.scheduler().scheduleOnce(Duration.create(timeout, unit),
+        () -> acquired.completeExceptionally(new TimeoutException("Resource "+resource+" not acquired at node "+node+" in "+timeout+" "+unit)),
+        this.system.dispatcher());
+      acquired.whenComplete((handle, error) -> timer.cancel());
+    }
+    ref.tell(new RequestCS(resource, shared, work), ActorRef.noSender());
+    return acquired;
+  }
+
+  /**
+   * Asks exclusive access to a resource at a node and waits for it, parking the calling thread.
+   *
+   * @param      node      The id of the node.
+   * @param      resource  The key of the resource.
+   * @param      timeout   The longest time to wait, 0 to wait with no limit.
+   * @param      unit      The unit of `timeout`.
+   *
+   * @return     The handle of the CS, to be released by the caller, e.g. with try-with-resources.
+   *
+   * @throws     TimeoutException      If the resource was not acquired in time; the request is withdrawn.
+   * @throws     InterruptedException  If the thread is interrupted while waiting; the request is withdrawn.
+   */
+  public LockHandle lock(int node, int resource, long timeout, TimeUnit unit) throws TimeoutException, InterruptedException {
+    CompletableFuture<LockHandle> acquired = acquire(node, resource, false, timeout, unit);
+    try {
+      return acquired.get();
+    }
+    catch (InterruptedException e) {
+      acquired.cancel(false);
+      throw e;
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof TimeoutException) {
+        throw (TimeoutException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+}
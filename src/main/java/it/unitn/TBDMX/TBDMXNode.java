@@ -1,474 +1,3258 @@
 package it.unitn.TBDMX;
 import akka.actor.ActorRef;
-import akka.actor.AbstractActor;
+import akka.actor.AbstractActorWithStash;
+import akka.actor.Cancellable;
 import akka.actor.Props;
+import akka.japi.pf.FI;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.concurrent.TimeUnit;
-import java.util.Random;
-import java.util.Set;
-import java.util.HashSet;
-import java.util.Queue;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.lang.Thread;
-import java.lang.InterruptedException;
+import java.util.Arrays;
 import java.util.Collections;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
-public class TBDMXNode extends AbstractActor {
+import it.unitn.TBDMX.TBDMXLog.Event;
+
+public class TBDMXNode extends AbstractActorWithStash {
   private int id; // node ID
-  private boolean holder;
-  private boolean recoveryHolder;
   private boolean crashed;
   private boolean recovering;
-  private boolean asked;
-  private boolean using;
   private int adviceCounter;
-  private List<Advice> receivedAdvices = new ArrayList<>();
-  private ActorRef holderNode;
-  private List<ActorRef> neighbors = new ArrayList<>();
-  private Queue<ActorRef> requestQueue = new LinkedList<>();   
-  private Queue<ActorRef> recoveryQueue = new LinkedList<>();   
-  private Random rnd = new Random();
-  private BufferedWriter logger;
-
-  private long time;
-  
+  private List<Advice> receivedAdvices; // allocated by the first `Advice`, and dropped once they are all there
+  // Nodes are referred to by their local index: the k-th neighbor is `k` and the node itself is `selfIndex`, equal to the number of neighbors
+  private int rootNode = NONE; // direction of the initial holder, where the token of every resource starts
+  private int echoes;          // neighbors yet to answer the `BroadcastHolder` of the node with a `Ready`, see `echo`
+  private ActorRef imposedBy;  // sender of the `ImposeHolder`, told `Ready` once every node knows the holder
+  private int selfIndex;
+  private ActorRef[] neighbors;            // `null` while the neighbors are read from the shared `tree`, see `neighbor`
+  private int[] neighborIds;
+  private TBDMXTopology tree;               // the neighbors of `id` in `tree` are `nodes[tree.neighbor(id, k)]`, until the first move
+  private ActorRef[] nodes;
+  private int[] neighborIndex;              // open addressing table from node ids to local indices, pairs (id+1, index), `null` for few neighbors
+  private TBDMXIntMap<Resource> resources = new TBDMXIntMap<>(); // only the resources whose state is not the initial one
+
+  private static final int NONE = -1;
+  private static final int[] EMPTY = new int[0];
+  private static final int SCAN = 8;       // neighbors up to which `indexOf` scans them instead of using `neighborIndex`
+  private static final int ORDER_ATTEMPTS = 100; // moves started for a `MoveNeighbor` before giving up
+  private static final long RESHAPE_RETRY = 10;  // ms between two checks of the edges of a move asked by the controller
+  private static final LongAdder sentMessages = new LongAdder(); // Protocol messages sent by all the nodes of the JVM
+  private static final LongAdder sentFrames = new LongAdder();   // Messages and `Envelope`s actually sent to the neighbors, see `flush`
+  private int csCounter;
+  private final TBDMXMetrics.Node metrics;  // `null` unless `TBDMXMetrics` was started
+  // Adaptive restructuring of the tree, see `maybeMove`
+  private final int adaptive;             // requests of a neighbor forwarded the same way after which it is moved there, 0 if disabled
+  private final int maxDegree;            // a node takes no more neighbors than this by a move
+  private int[] forwarded = EMPTY;        // requests of each neighbor forwarded to `towards[k]` in a row
+  private int[] towards = EMPTY;
+  private int candidate = NONE;           // neighbor to be moved next to `candidateTo`, once the edges involved are quiet
+  private int candidateTo = NONE;
+  private int patience;                   // checks left before giving up the candidate
+  private int moving = NONE;              // neighbor being moved by the node next to `movingTo`, waiting for their `MoveReady`
+  private int movingTo = NONE;
+  private int moveRound;
+  private Advice movingState;
+  private Advice movingToState;
+  private int frozenBy = NONE;            // id of the node moving this one or attaching a node to it
+  // Changes of the tree asked by the controller, see `reshape`
+  private int orderedNode = NONE;         // id of the neighbor to move next to the neighbor `orderedTo`, after a `MoveNeighbor`
+  private int orderedTo = NONE;
+  private int orderAttempts;
+  private boolean leaving;                // moving the other neighbors next to `successor`, then detaching from it
+  private int successor = NONE;           // id of the neighbor that takes over from the node leaving
+  private Cancellable retry;
+  // Durable state, see `checkpoint`
+  private final TBDMXCheckpoint checkpoint; // `null` unless `checkpoint-dir` is given
+  private int[] sentTo = EMPTY;           // token messages sent to each neighbor
+  private int[] receivedFrom = EMPTY;     // token messages received from each neighbor
+  private boolean fastRecovery;           // recovering from the checkpoint, waiting for the `Validation`s
+  private boolean stale;                  // some `Validation` showed that messages were lost while crashed
+  private int validations;
+  // Failure detection, see `onTick`
+  private final long heartbeatNanos;      // between two heartbeats, 0 if disabled
+  private final TBDMXFailureDetector detector; // `null` if disabled
+  private final long restartAfter;        // ms after which a crashed node recovers by itself, 0 to wait for a `Recovery`
+  private final Heartbeat heartbeat;      // `null` if disabled
+  private List<List<Request>> parked = Collections.emptyList(); // requests for each suspected neighbor, sent when it is back
+  private Cancellable ticks;
+  private Cancellable restart;
+  // Batching, see `onReleaseCS`
+  private final int batch;                // local CSs the holder runs in a row while others wait, 0 if disabled
+  private final long batchNanos;          // time from the first of them after which it lets the others go, 0 for no limit
+  private final long agingNanos;          // wait after which a request counts as one priority higher, 0 for no aging
+  // k-mutual exclusion, see `token`
+  private final int tokens;               // of every resource, the CSs that may run at the same time
+  private int nextToken;                  // first token looked at by the next choice, rotating among equals
+  // Coalescing of the messages to the same neighbor, see `flush`
+  private final boolean coalesce;
+  private final long coalesceNanos;       // how long the first message waits for others, 0 to send them after every input message
+  private boolean dispatching;            // handling a message through `onMessage`, the messages sent meanwhile are held
+  private List<Message>[] outbox;         // messages held for each neighbor, allocated by the first one
+  private int[] pending = EMPTY;          // neighbors with some message held, in the order of their first one
+  private int pendingCount;
+  private long firstHeld;
+  private boolean urgent;                 // a token is held, which leaves at the end of the message whatever the window
+  private Cancellable flushTimer;
+
+  /**
+   * State of the node for one resource, i.e. one token.
+   * A resource has no state at a node until something happens to it there: until then the token is in the direction of the initial holder,
+   * nobody asked for it and the queue is empty. When the state goes back to this one the resource is removed again,
+   * so a node only keeps the resources whose token passed by it and did not go back.
+   */
+  private static final class Resource {
+    final int key;
+    boolean holder;
+    int holderNode;
+    boolean asked;
+    boolean using;
+    int cs;                             // number of the CS being executed, to recognize its `ReleaseCS`
+    long time;                          // of the request of the node in `requestQueue`, or of the CS being executed
+    Supplier<CompletionStage<?>> work;
+    byte priority;
+    byte askedPriority;                 // of the last `Request` sent to `holderNode`
+    ArrayDeque<LocalRequest> local;     // further requests of the node, behind the one in `requestQueue`, created on the first one
+    int turn;                           // CSs run in a row since the token was last taken from the queue, when batching
+    long turnStart;
+    TBDMXIntQueue requestQueue;         // created on the first request
+    boolean recoveryHolder;
+    TBDMXIntQueue recoveryQueue;        // created on the first request during a recovery
+    int advised;                        // last `Advice` that referred to the resource, while recovering
+    // Shared access
+    boolean askedRead;                  // a shared `Request` was sent to `holderNode`
+    boolean reading;                    // the node is in a shared CS
+    boolean readAgain;                  // shared access was requested again during the shared CS
+    int readCs;
+    long readTime;
+    Supplier<CompletionStage<?>> readWork;
+    TBDMXIntQueue readQueue;            // neighbors (and the node itself) waiting for shared access, created on the first one
+    int readers;                        // shared CSs admitted by the node and not over yet: its own and the `ReadGrant`s it sent
+    int[] lent;                         // `ReadGrant`s sent to each neighbor and not given back, created on the first one
+    int borrowed;                       // `ReadGrant`s received from `holderNode` and not given back
+    boolean writerServed;               // the last turn at the holder was exclusive, so waiting readers go first
+    boolean recoveryReadGrant;
+    // Times for `TBDMXMetrics`, in ns
+    long requested;                     // last `RequestCS`
+    long entered;                       // entry in the CS
+    long readRequested;
+    long readEntered;
+    // Messages of the node about the resource, which never change: created on the first send and then reused
+    Request request;
+    Request readRequest;
+    Privilege privilege;
+    ReadGrant readGrant;
+
+    Resource(int key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * An exclusive `RequestCS` of the node waiting behind another one for the same resource.
+   */
+  private static final class LocalRequest {
+    final long time;
+    final Supplier<CompletionStage<?>> work;
+    final byte priority;
+    final long requested;
+
+    LocalRequest(long time, Supplier<CompletionStage<?>> work, byte priority, long requested) {
+      this.time = time;
+      this.work = work;
+      this.priority = priority;
+      this.requested = requested;
+    }
+  }
+
   /*-- Actor constructors --------------------------------------------------- */
-  public TBDMXNode(int id) {
+  public TBDMXNode(int id, TBDMXOptions options) throws IOException {
     this.id = id;
-    try {
-      this.logger = new BufferedWriter(new FileWriter("logs/node"+id+".log"));
+    this.adaptive = options.getInt("adaptive", 0);
+    this.maxDegree = options.getInt("adaptive-degree", 16);
+    this.metrics = TBDMXMetrics.node(id);
+    this.checkpoint = options.has("checkpoint-dir") ? new TBDMXCheckpoint(new File(options.getString("checkpoint-dir", "checkpoints")), id) : null;
+    this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(options.getLong("heartbeat", 0));
+    this.detector = this.heartbeatNanos > 0 ? new TBDMXFailureDetector(this.heartbeatNanos, options.getDouble("phi", 8),
+      options.getInt("heartbeat-window", 100), TimeUnit.MILLISECONDS.toNanos(options.getLong("heartbeat-pause", options.getLong("heartbeat", 0)))) : null;
+    this.restartAfter = options.getLong("restart-after", 0);
+    this.heartbeat = this.detector != null ? new Heartbeat(id) : null;
+    this.batch = options.getInt("batch", 0);
+    this.batchNanos = TimeUnit.MICROSECONDS.toNanos(options.getLong("batch-time", 0));
+    this.agingNanos = TimeUnit.MILLISECONDS.toNanos(options.getLong("aging", 100));
+    this.tokens = Math.max(1, options.getInt("tokens", 1));
+    this.nextToken = id % this.tokens;
+    this.coalesce = options.getBoolean("coalesce", false);
+    this.coalesceNanos = TimeUnit.MICROSECONDS.toNanos(options.getLong("coalesce-window", 0));
+    log(Event.NODE_UP);
+  }
+
+  @Override
+  public void preStart() {
+    if (this.detector != null) {
+      FiniteDuration period = Duration.create(this.heartbeatNanos, TimeUnit.NANOSECONDS);
+      this.ticks = getContext().getSystem().scheduler().schedule(period, period, getSelf(), Tick.INSTANCE, getContext().dispatcher(), getSelf());
+    }
+  }
+
+  @Override
+  public void postStop() {
+    if (this.ticks != null) {
+      this.ticks.cancel();
+    }
+    if (this.restart != null) {
+      this.restart.cancel();
+    }
+    if (this.flushTimer != null) {
+      this.flushTimer.cancel();
     }
-    catch (IOException e){
-      System.err.println("Node "+this.id+": cannot initialize log! Probably missing directory `logs`");
+    if (this.retry != null) {
+      this.retry.cancel();
+    }
+    if (this.metrics != null) {
+      TBDMXMetrics.remove(this.metrics);
     }
-    log("Node "+id+" up.");
   }
 
   static public Props props(int id) {
-    return Props.create(TBDMXNode.class, () -> new TBDMXNode(id));
+    return props(id, new TBDMXOptions(Collections.emptyMap()));
   }
 
-  /*-- Auxiliary functions--------------------------------------------------- */
   /**
-   * Writes a string of log both in the log file of the node and on the console.
+   * Returns the `Props` of a node. The options read are `adaptive` (default 0, disabled) and `adaptive-degree` (default 16), see `maybeMove`,
+   * `checkpoint-dir`, see `checkpoint`, `heartbeat`, `phi`, `heartbeat-window`, `heartbeat-pause` and `restart-after`, see `onTick`,
+   * `batch` and `batch-time`, see `onReleaseCS`, `aging`, see `addToRequestQueue`, and `tokens`, see `token`.
+   * A node whose checkpoint cannot be opened fails to start, and its supervisor decides what follows.
    *
-   * @param      s     The string to be logged.
+   * @param      id       The id of the node.
+   * @param      options  The options given to the controller.
+   *
+   * @return     The `Props`.
    */
-  private void log(String s){
-    try {
-      this.logger.write(s+"\n");
-    } 
-    catch (IOException e) {
-      System.err.println("Node "+this.id+": logging error");
+  static public Props props(int id, TBDMXOptions options) {
+    return Props.create(TBDMXNode.class, () -> new TBDMXNode(id, options));
+  }
+
+  /**
+   * Returns the `Props` of a node with the execution profile chosen with `dispatcher` and `mailbox`, defined in `application.conf`.
+   * The dispatcher is `default` (Akka's), `throughput` (a fork/join pool where a node handles up to 64 messages in a row before giving
+   * its thread away) or `affinity` (each of `groups` subtrees has a thread of its own, so the messages within a subtree never change thread,
+   * see `config`). The mailbox, for the nodes with at least `mailbox-hubs` neighbors (default 0, every node), is `default` or
+   * `single-consumer` (see `TBDMXMailbox`). None is bounded, as a node must never wait for room nor drop a `Privilege`: the protocol bounds
+   * the `Request`s waiting at a node instead, since a neighbor asks for a resource once until it gets the token.
+   *
+   * @param      id       The id of the node.
+   * @param      options  The options given to the controller.
+   * @param      degree   The number of neighbors of the node.
+   * @param      group    The subtree of the node, see `TBDMXDeployment.partition`, used modulo `groups`.
+   *
+   * @return     The `Props`.
+   */
+  static Props props(int id, TBDMXOptions options, int degree, int group) {
+    Props props = props(id, options);
+    switch (options.getString("dispatcher", "default")) {
+      case "throughput":
+        props = props.withDispatcher("tbdmx.throughput-dispatcher");
+        break;
+      case "affinity":
+        props = props.withDispatcher("tbdmx.group-"+(group % groups(options)));
+        break;
+      default:
+        break;
     }
-    System.out.println(s);
+    String mailbox = options.getString("mailbox", "default");
+    if (!mailbox.equals("default") && degree >= options.getInt("mailbox-hubs", 0)) {
+      props = props.withMailbox("tbdmx."+mailbox+"-mailbox");
+    }
+    return props;
   }
 
   /**
-   * Function that simulates a critical section. 
-   * The thread just goes to sleep for a certain period of time. 
+   * Returns the number of subtrees that get a thread of their own with `dispatcher=affinity`: `groups`, by default one per core.
+   *
+   * @param      options  The options given to the controller.
+   *
+   * @return     The number of groups.
    */
-  private void criticalSection(){
-    this.using = true;
-    log("Entering CS @ node "+this.id);
-    try { Thread.sleep(this.time); } 
-    catch (InterruptedException e) { e.printStackTrace(); }
-    log("Exiting CS @ node "+this.id);
-    this.using = false;
+  static int groups(TBDMXOptions options) {
+    return Math.max(1, options.getInt("groups", Runtime.getRuntime().availableProcessors()));
   }
 
   /**
-   * Function to add a node to a `reqeustQueue`.
-   * It first checks whether the node to be added is already inside the queue.
-   * This method uses the `offer` function which ensures to push on queue without exceptions
+   * Returns the configuration of an actor system for the nodes: `application.conf`, plus the dispatcher of each group with `dispatcher=affinity`
+   * (a copy of `tbdmx.group-dispatcher`, a single thread). Unknown profiles end the program.
+   *
+   * @param      options  The options given to the controller.
    *
-   * @param      node  The node to be added to the queue
+   * @return     The configuration.
    */
-  private void addToRequestQueue(ActorRef node) {
-    if (!this.requestQueue.contains(node)){
-      while (!this.requestQueue.offer(node));
-      log("Node "+this.id+": Queue is now "+this.requestQueue);
+  static Config config(TBDMXOptions options) {
+    String dispatcher = options.getString("dispatcher", "default");
+    String mailbox = options.getString("mailbox", "default");
+    if (!Arrays.asList("default", "throughput", "affinity").contains(dispatcher)
+        || !Arrays.asList("default", "single-consumer").contains(mailbox)) {
+      System.err.println("Unknown dispatcher `"+dispatcher+"` or mailbox `"+mailbox+"`");
+      System.exit(-2);
     }
-    else {
-      log("Node "+this.id+" is already in queue"+this.requestQueue);
+    StringBuilder profile = new StringBuilder();
+    if (dispatcher.equals("affinity")) {
+      for (int g = 0; g < groups(options); g++) {
+        profile.append("tbdmx.group-").append(g).append(" = ${tbdmx.group-dispatcher}\n");
+      }
     }
+    return ConfigFactory.parseString(profile.toString()).withFallback(ConfigFactory.load()).resolve();
+  }
 
+  /*-- Auxiliary functions--------------------------------------------------- */
+  /**
+   * Logs an event of the whole node through `TBDMXLog`.
+   *
+   * @param      e     The event to be logged.
+   */
+  private void log(Event e){
+    TBDMXLog.log(e, this.id, TBDMXLog.NONE, TBDMXLog.NONE, 0);
   }
 
   /**
-   * A method to serve the next element in a non-empty queue. 
-   * If the next element to be served is the node itself, then it enters the critical section. 
-   * Once exited the CS, if the queue is not empty, being the possessor of the token, the node calls again the method. 
-   * If instead it is one of the neighbors, a `Privilege` message is sent. 
-   * Moreover if the queue is not empty after having served the neighbor, a `Request` message is "piggybacks" 
-   * in order to obtain the token again and serve the next element in the queue.
+   * Logs an event of the whole node involving another node through `TBDMXLog`.
+   *
+   * @param      e     The event to be logged.
+   * @param      peer  The local index of the other node involved.
    */
-  private void serveQueue() {
-    if (!this.requestQueue.isEmpty()){
-      ActorRef head = this.requestQueue.remove();
-      log("Node "+this.id+": serving "+head+". Queue is now "+this.requestQueue);
-      if (head==getSelf()){
-        criticalSection();
-        if (!this.requestQueue.isEmpty()) { 
-          serveQueue();
-        }    
-      }
-      else {
-        head.tell(new Privilege(),getSelf());
-        this.holder = false;
-        this.holderNode = head;
-        //piggybacking token request back 
-        if (!this.requestQueue.isEmpty()) {
-          head.tell(new Request(),getSelf());
-          asked = true;
-        }
-      }
-    } 
-    else {
-      System.err.println("ERROR in serveQueue (node "+this.id+"): trying to serve an empty queue");
+  private void log(Event e, int peer){
+    if (TBDMXLog.enabled(e)) {
+      TBDMXLog.log(e, this.id, TBDMXLog.NONE, idAt(peer), 0);
     }
   }
 
-  /*-- Message classes ------------------------------------------------------ */
+  /**
+   * Logs an event concerning a resource through `TBDMXLog`, together with the current length of its queue.
+   *
+   * @param      e     The event to be logged.
+   * @param      r     The resource.
+   */
+  private void log(Event e, Resource r){
+    TBDMXLog.log(e, this.id, r.key, TBDMXLog.NONE, depth(r));
+  }
 
-  public static class ImposeHolder implements Serializable {}
-  public static class SetNeighbors implements Serializable {
-    public final List<ActorRef> group;
-    public SetNeighbors(List<ActorRef> group) {
-      this.group = Collections.unmodifiableList(new ArrayList<ActorRef>(group));
+  /**
+   * Logs an event concerning a resource and involving another node through `TBDMXLog`, together with the current length of the queue.
+   *
+   * @param      e     The event to be logged.
+   * @param      r     The resource.
+   * @param      peer  The local index of the other node involved.
+   */
+  private void log(Event e, Resource r, int peer){
+    if (TBDMXLog.enabled(e)) {
+      TBDMXLog.log(e, this.id, r.key, idAt(peer), depth(r));
     }
   }
-  public static class RequestCS implements Serializable {
-    public final long time;
-    public RequestCS(long time){
-      this.time = time;
+
+  /**
+   * Logs an event concerning a request of the node for a resource through `TBDMXLog`, which keeps the request in the trace.
+   *
+   * @param      e        The event to be logged.
+   * @param      r        The resource.
+   * @param      request  The time of the `RequestCS` at the node, which identifies the request.
+   */
+  private void logRequest(Event e, Resource r, long request){
+    TBDMXLog.log(e, this.id, r.key, TBDMXLog.NONE, depth(r), request);
+  }
+
+  /**
+   * Returns the `Request` of the node for a resource. An exclusive one carries the highest priority in the `requestQueue`,
+   * which is remembered as `askedPriority`, so it must be sent.
+   *
+   * @param      r       The resource.
+   * @param      shared  Whether shared access is asked.
+   *
+   * @return     The message.
+   */
+  private Request request(Resource r, boolean shared){
+    if (shared) {
+      if (r.readRequest == null) {
+        r.readRequest = new Request(this.id, r.key, true);
+      }
+      return r.readRequest;
+    }
+    r.askedPriority = (byte) (r.requestQueue == null ? 0 : r.requestQueue.maxPriority());
+    if (r.askedPriority > 0) {
+      return new Request(this.id, r.key, false, r.askedPriority, false);
     }
+    if (r.request == null) {
+      r.request = new Request(this.id, r.key, false);
+    }
+    return r.request;
   }
-  
-  public static class SaveLog implements Serializable {}
-  public static class Crash implements Serializable {}
-  public static class Recovery implements Serializable {}
-  public static class BroadcastHolder implements Serializable {}
-  public static class Request implements Serializable {}
-  public static class Privilege implements Serializable {}
-  public static class Restart implements Serializable {}
-  public static class Advice implements Serializable {
-    public final ActorRef sender;
-    public final boolean holder; //"to me, you're the holder"
-    public final boolean asked; //"I have asked the token"
-    public final int adviceCounter;
-    public final boolean inRequestQueue;
-    public Advice(ActorRef sender, boolean holder, boolean asked, boolean inRequestQueue, int adviceCounter){
-      this.sender = sender;
-      this.holder = holder;
-      this.asked = asked;
-      this.inRequestQueue = inRequestQueue;
-      this.adviceCounter = adviceCounter;
+
+  private Privilege privilege(Resource r){
+    if (r.privilege == null) {
+      r.privilege = new Privilege(this.id, r.key);
     }
-    public String toString(){
-      return ("this.sender: "+this.sender+" "+"this.holder: "+this.holder+" "+"this.asked: "+this.asked+" "+"this.inRequestQueue: "+this.inRequestQueue+" "+"this.adviceCounter: "+this.adviceCounter);
+    return r.privilege;
+  }
+
+  private ReadGrant readGrant(Resource r){
+    if (r.readGrant == null) {
+      r.readGrant = new ReadGrant(this.id, r.key);
+    }
+    return r.readGrant;
+  }
+
+  private void queued(int delta){
+    if (this.metrics != null) {
+      this.metrics.queued(delta);
     }
   }
-  
+
+  private static int depth(Resource r){
+    return r.requestQueue == null ? 0 : r.requestQueue.size();
+  }
+
+  private static int readDepth(Resource r){
+    return r.readQueue == null ? 0 : r.readQueue.size();
+  }
+
   /**
-   * Function called upon receipt of an `ImposeHolder` message.
-   * It sends a `BroadcastHolder` to all its neighbors. 
+   * Sends a protocol message to a neighbor, counting it in `sentMessages` and in the metrics of the node.
+   * With `coalesce` the message is held until `flush`, unless it is part of a move: then the held messages leave first,
+   * to keep the order of the messages on every edge.
    *
-   * @param      msg   The message indicating that the node is the initial holder.
+   * @param      node  The local index of the receiver.
+   * @param      msg   The message.
    */
-  private void onImposeHolder(ImposeHolder msg) {
-    this.holder = true;
-    for (ActorRef node : neighbors) {
-      if (node != getSender()) {
-        node.tell(new BroadcastHolder(),getSelf());
-        log(this.id+": IS HOLDER. Sending BroadcastHolder from "+ getSelf()+" to "+node);
+  private void send(int node, Object msg){
+    if (this.detector != null && msg instanceof Request && this.detector.suspected(node)) {
+      this.parked.get(node).add((Request) msg);
+      log(Event.REQUEST_PARKED, node);
+      return;
+    }
+    sentMessages.increment();
+    if (this.metrics != null) {
+      this.metrics.sent(msg);
+    }
+    if (this.checkpoint != null && (msg instanceof Request || msg instanceof Privilege || msg instanceof ReadGrant || msg instanceof ReadRelease)) {
+      this.sentTo[node]++;
+    }
+    if (this.coalesce && this.dispatching && !(msg instanceof MovePrepare || msg instanceof MoveReady || msg instanceof MoveAbort
+                                               || msg instanceof Attach || msg instanceof Reattach || msg instanceof Detach)) {
+      hold(node, (Message) msg);
+      return;
+    }
+    flush();
+    sentFrames.increment();
+    neighbor(node).tell(msg, getSelf());
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private void hold(int node, Message msg){
+    if (this.outbox == null) {
+      this.outbox = new List[this.selfIndex];
+      this.pending = new int[Math.min(this.selfIndex, 4)];
+    }
+    List<Message> held = this.outbox[node];
+    if (held == null) {
+      held = this.outbox[node] = new ArrayList<>(2);
+    }
+    if (held.isEmpty()) {
+      if (this.pendingCount == this.pending.length) {
+        this.pending = Arrays.copyOf(this.pending, this.pendingCount * 2);
+      }
+      this.pending[this.pendingCount++] = node;
+      if (this.pendingCount == 1) {
+        this.firstHeld = System.nanoTime();
       }
     }
+    held.add(msg);
+    this.urgent |= msg instanceof Privilege || msg instanceof ReadGrant;
   }
-  
+
   /**
-   * Upon receiving a `SetNeighbors` message, the node sets its neighbors to the same value as the one in the message.
-   *
-   * @param      msg   The message containing the neighbors to be set.
+   * Sends the messages held for the neighbors: one message as it is, more to the same neighbor in an `Envelope`,
+   * which the neighbor handles as if they had arrived one after the other.
    */
-  private void onSetNeighbors(SetNeighbors msg) {
-    this.neighbors = msg.group;
+  private void flush(){
+    if (this.flushTimer != null) {
+      this.flushTimer.cancel();
+      this.flushTimer = null;
+    }
+    for (int i = 0; i < this.pendingCount; i++) {
+      List<Message> held = this.outbox[this.pending[i]];
+      sentFrames.increment();
+      neighbor(this.pending[i]).tell(held.size() == 1 ? held.get(0) : new Envelope(held.toArray(new Message[0])), getSelf());
+      held.clear();
+    }
+    this.pendingCount = 0;
+    this.urgent = false;
   }
 
   /**
-   * Called on 'RequestCS' which is sent from the controller indicating that the node should enter the critical section.
-   * If the node is not crashed nor recovering, then it checks whether its `requestQueue` is empty or not. If it is not, then it adds itself to the queue.
-   * If instead the queue is empty, then it checks whether it is the holder of the token. If it is, then it enters the critical section.
-   * If it is not the holder, then it adds itself to the queue and sets `asked` to `true` in order to remember having sent a request.
-   * If the node is recovering while receiving the request, it adds such request to a secondary queue, `recoveryQueue` which will be merged with `serveQueue` later.
+   * Called at the end of every message handled through `onMessage`: the held messages leave, at once or when the first one has waited
+   * `coalesceNanos`, in which case a `Flush` is scheduled in case no other message comes in the meanwhile.
+   * A token never waits for the window, as every node asking for it would wait too.
+   */
+  private void flushHeld(){
+    if (this.pendingCount == 0) {
+      return;
+    }
+    long waited = System.nanoTime() - this.firstHeld;
+    if (this.urgent || waited >= this.coalesceNanos) {
+      flush();
+    }
+    else if (this.flushTimer == null) {
+      this.flushTimer = getContext().getSystem().scheduler().scheduleOnce(Duration.create(this.coalesceNanos - waited, TimeUnit.NANOSECONDS),
+        getSelf(), Flush.INSTANCE, getContext().dispatcher(), getSelf());
+    }
+  }
+
+  private void onFlush(Flush msg){
+    this.flushTimer = null;
+    flush();
+  }
+
+  /**
+   * Handles the messages of an `Envelope` in order, writing the checkpoint once at the end.
    *
-   * @param      msg   The message containing how much time the node should stay inside the CS.
+   * @param      msg   The envelope.
    */
-  private void onRequestCS(RequestCS msg) {
-    log("Node "+this.id+"(holder: "+this.holder+"): requesting CS");
-    this.time = msg.time;
-    if (!this.crashed && !this.recovering){
-      if (!this.requestQueue.isEmpty()) {
-        addToRequestQueue(getSelf());
-      } 
-      else if (!this.holder && this.requestQueue.isEmpty()) {
-        addToRequestQueue(getSelf());
-        this.holderNode.tell(new Request(),getSelf());
-        this.asked = true;
-      }
-      else if (this.holder && this.requestQueue.isEmpty()) {
-        criticalSection();
-        if (!this.requestQueue.isEmpty()) {
-          serveQueue();          
-        }
-      }  
-      else {
-        System.err.println("ERROR in RequestCS: impossible node state");
-        System.exit(-1);
-      }
+  private void onEnvelope(Envelope msg){
+    boolean saved = false;
+    for (Message m : msg.messages) {
+      saved |= dispatch(m);
     }
-    else if (this.recovering){
-      log("Node "+this.id+": recovery requestCS enqueued");
-      while (!this.recoveryQueue.offer(getSelf())); //ensures to push on queue without exceptions
-      log("Node "+this.id+": recoveryQueue is now "+this.recoveryQueue);     
+    if (saved && this.checkpoint != null) {
+      checkpoint();
     }
   }
-  
+
   /**
-   * Called upon receiving a `BroadcastHolder` message. The node receiving the message will set it's `holderNode` to the sender of the message, 
-   * and the `holder` flag to `false` since it is not the holder.
-   * Then it sends a new a `BroadcastHolder` to each neighbor, except the sender of the previous `BroadcastHolder`. 
+   * Returns a neighbor.
    *
-   * @param      msg   The message indicating to store and broadcast information on the holder.
+   * @param      k     The local index of the neighbor.
+   *
+   * @return     The neighbor.
    */
-  private void onBroadcastHolder(BroadcastHolder msg) {
-    this.holder = false;
-    this.holderNode = getSender();
-    log("Node "+ this.id +": holderNode is "+this.holderNode);
-    for (ActorRef node : this.neighbors) {
-      if (node != getSender()) {
-        node.tell(new BroadcastHolder(),getSelf());
-        log(this.id+": sending BroadcastHolder from "+ getSelf()+" to "+node);
+  private ActorRef neighbor(int k){
+    return this.neighbors != null ? this.neighbors[k] : this.nodes[this.tree.neighbor(this.id, k)];
+  }
+
+  private int neighborId(int k){
+    return this.neighborIds != null ? this.neighborIds[k] : this.tree.neighbor(this.id, k);
+  }
+
+  /**
+   * Copies the neighbors out of the shared table, before they are changed by a move.
+   */
+  private void ownNeighbors(){
+    if (this.neighbors == null) {
+      ActorRef[] neighbors = new ActorRef[this.selfIndex];
+      int[] ids = new int[this.selfIndex];
+      for (int k = 0; k < this.selfIndex; k++) {
+        neighbors[k] = neighbor(k);
+        ids[k] = neighborId(k);
       }
-    }  
+      this.neighbors = neighbors;
+      this.neighborIds = ids;
+      this.tree = null;
+      this.nodes = null;
+    }
   }
-  
+
   /**
-   * Upon receiving a `Request` message, if the node is not crashed nor recovering, then it adds the request to the queue. 
-   * It then checks whether it is not in the critical section nor it has already asked for the token, and if it is the holder, it then serves the queue. 
-   * If the node added to the queue is the only node in the queue, then no Request can have been sent before to request the token, hence one should be sent.
+   * Returns the number of protocol messages (`Request`, `Privilege`, `ReadGrant`, `ReadRelease`, `BroadcastHolder`, `Restart`, `Advice` and those of the moves) sent so far by the nodes of this JVM.
    *
-   * @param      msg   A message requiring the token.
+   * @return     The number of messages.
    */
-  private void onRequest(Request msg) {
-    log("Node "+this.id+"(using: "+this.using+", asked: "+this.asked+"): received request from "+getSender());
-    if (!this.crashed && !this.recovering){
-      addToRequestQueue(getSender());
-      if (!this.using && !this.asked){
-        if (this.holder){
-          serveQueue();
-          this.asked = false;
-        } 
-        else if (this.requestQueue.size()==1) { //not the holder, single element
-          this.asked = true;
-          this.holderNode.tell(new Request(),getSelf());
-        }
-      }
-    } 
-    else if (this.recovering){
-      log("Node "+this.id+": recovery request enqueued");
-      while (!this.recoveryQueue.offer(getSender())); //ensures to push on queue without exceptions
-      log("Node "+this.id+": recoveryQueue is now "+this.recoveryQueue);
-    }
+  public static long messagesSent(){
+    return sentMessages.sum();
   }
-  
+
   /**
-   * Called on the `Privilege` message receipt. If the node is not crashed nor is recovering, then it received the token correctly and can serve the next element in the queue.
-   * At this moment it also reset the counter `adviceCounter` since it got the token and is not risking starvation anymore.
-   * If instead the node is recovering, then the flag `recoveryHolder` is set, which indicates that during the recovery a `Privilege` message was received, but the queue could not be served. 
+   * Returns the number of messages actually sent by the nodes of this JVM to their neighbors: with `coalesce`, an `Envelope` is one of them.
    *
-   * @param      msg   The message (virtually) bringing the token.
+   * @return     The number of messages.
    */
-  private void onPrivilege(Privilege msg) {
-    if (!this.crashed && !this.recovering){
-      this.adviceCounter = 0;
-      log("Node "+this.id+": access granted by "+getSender());
-      this.holderNode = getSelf();
-      this.holder = true;
-      this.asked = false;
-      serveQueue();
-    }
-    else if(this.recovering){
-      this.recoveryHolder = true;
+  public static long framesSent(){
+    return sentFrames.sum();
+  }
+
+  /**
+   * Counts a protocol message received in the metrics of the node.
+   *
+   * @param      m     The class of the message.
+   */
+  private void received(TBDMXMetrics.Message m){
+    if (this.metrics != null) {
+      this.metrics.received(m);
     }
   }
-  
+
   /**
-   * Upon receiving a `Restart` message, the receiver sends an `Advice` message to the sender of the `Restart` which had crashed.
-   * In particular, the `Advice` message, will tell the crashed node:
-   * if it was the holder wrt to the actual node;
-   * if the actual node made any request to satisfy any previous request;
-   * if the actual node contains the crashed node in its queue;
-   * A counter that allows avoiding starvation of the node.
+   * Counts a token message (`Request`, `Privilege`, `ReadGrant` or `ReadRelease`) received from a neighbor, unless the node is crashed and loses it.
    *
-   * @param      msg   The `Restart` message indicating a crashed node and the need for information.
+   * @param      from  The local index of the neighbor.
    */
-  private void onRestart(Restart msg) {
-    this.adviceCounter++;                         
-    getSender().tell(                             
-      new Advice(
-        getSelf(),
-        this.holderNode==getSender(),
-        this.asked,
-        this.requestQueue.contains(getSender()),
-        this.adviceCounter
-      ),
-      getSelf()
-    );
-  }
-  
+  private void counted(int from){
+    if (this.checkpoint != null && !this.crashed && from != NONE) {
+      this.receivedFrom[from]++;
+    }
+  }
+
   /**
-   * Upon receiving an `Advice` message, the node stores such message. When it received an `Advice` from each neighbor, then it can start the recover the information it had before crashing.
-   * First of all the messages are sort by `adviceCounter` to avoid starvation. Then, if 
-   * - All `Advice`s indicate that the crashed node was the holder, then it is the holder of the token.
-   * - One of the nodes states that the crashed node was not the holder, then it was not, but the first node is the `holderNode` for the crashed one.
-   * - One of the nodes states that the crashed nose was the `holderNode` wrt to it, and it made a request to the crashed node, then such node should be added to the requestQueue.
-   *  Then the node checks whether something happened during its recovery phase. If the `recoveryHolder` the crashed node is the holder of the token. If the `recoveryQueue` is not empty,
-   *  then some requests have arrived before recovering completely and they should be added to the `requestQueue`. 
-   *  At last if the node is now the holder, then it can proceed to serve the next node in the queue. If instead it is not the holder and its queue is not empty and it hasn't make any request yet, 
-   *  it will send a `Request` to its holder.
+   * Returns the id of a node from its local index.
    *
-   * @param      msg   The message containing information about the node before the crash.
+   * @param      k     The local index of the node.
+   *
+   * @return     The id of the node, or `TBDMXLog.NONE` if the index is `NONE`.
    */
-  private void onAdvice(Advice msg) {
-    log("Node "+this.id+" received advice from node: "+getSender()+" containing: "+msg.toString());
-    this.receivedAdvices.add(msg);                                                          //Add all Advice messages to a queue
-    if (receivedAdvices.size() == this.neighbors.size()) {                                  //When full start analyzes. For sure it will become full since no package can be lost.
-      this.receivedAdvices.sort((Advice a1,Advice a2)->a1.adviceCounter-a2.adviceCounter);  //Sort all messages for the adviceCounter in order not to starve any node.
-      for (Advice ad : receivedAdvices) {                                                   //For all the messages in the list
-        System.out.println("Advice: "+ad.sender);
-        if (ad.asked && ad.holder) {                                                        //If it requsted me the token, then I add it to the queue.
-          requestQueue.add(ad.sender);
-        }
+  private int idAt(int k){
+    if (k == this.selfIndex) {
+      return this.id;
+    }
+    return k == NONE ? TBDMXLog.NONE : neighborId(k);
+  }
 
-        this.holder &= ad.holder;                                                           //If all the nodes say that I'm the holder, then I'm the holder, otherwise someone else is
-        if (!ad.holder) {
-          this.holderNode = ad.sender;                                                      //Set the holder to that node
-          this.asked = ad.inRequestQueue;                                                   //Set asked to true if I've made a request, that is I'm in its requestQueue
-          log("Holder found again! "+ad.sender+" inrequestQueue: "+ad.inRequestQueue);
+  /**
+   * Returns the local index of a neighbor from its id, looking it up in `neighborIndex`, or among the neighbors if there are few of them.
+   *
+   * @param      id    The id of the neighbor, as carried by its messages.
+   *
+   * @return     The local index of the neighbor, or `NONE` if the node is not a neighbor.
+   */
+  private int indexOf(int id){
+    if (this.neighborIndex == null) {
+      for (int k = 0; k < this.selfIndex; k++) {
+        if (neighborId(k) == id) {
+          return k;
         }
-        log("Node "+this.id+": During recovery: "+this.holder);
       }
-      this.receivedAdvices.clear();
-      
-      if (this.recoveryHolder) {                                                            //If while I was crashed I received a Privilege message, then I'm the holder.
-        this.adviceCounter = 0;                                                             
-        log("Node "+this.id+": (recovery) access granted ");
-        this.holder = true;
-        this.asked = false;
+      return NONE;
+    }
+    int mask = (this.neighborIndex.length >>> 1) - 1;
+    for (int h = hash(id) & mask; this.neighborIndex[2*h] != 0; h = (h + 1) & mask) {
+      if (this.neighborIndex[2*h] == id + 1) {
+        return this.neighborIndex[2*h + 1];
       }
-      while (!this.recoveryQueue.isEmpty()){                                                //If a received Request messages while I was recovering, then I add them at the end of the queue I created before hand
-        ActorRef recoveredNode=this.recoveryQueue.remove();
-        if (!this.requestQueue.contains(recoveredNode)) {
-          this.requestQueue.add(recoveredNode);
-        }
+    }
+    return NONE;
+  }
+
+  private static int hash(int id){
+    int h = id * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Returns the local index of the sender of a protocol message, reporting messages coming from unknown nodes.
+   *
+   * @param      id    The id carried by the message.
+   *
+   * @return     The local index of the sender, or `NONE` if it is not a neighbor.
+   */
+  private int sender(int id){
+    int k = indexOf(id);
+    if (k == NONE) {
+      System.err.println("Node "+this.id+": message from node "+id+", which is not a neighbor");
+    }
+    return k;
+  }
+
+  /**
+   * Returns the state of a resource, creating it if the node has none.
+   * A new state is the initial one: the token is towards `rootNode`.
+   * While the node is crashed or recovering it knows nothing about the token, and, as on a crash, optimistically assumes to hold it;
+   * but when it recovers from its checkpoint, a resource not in the checkpoint was in its initial state.
+   *
+   * @param      key   The key of the resource.
+   *
+   * @return     The state of the resource.
+   */
+  private Resource resource(int key){
+    Resource r = this.resources.get(key);
+    if (r == null) {
+      r = new Resource(key);
+      if ((this.crashed || this.recovering) && !this.fastRecovery) {
+        r.holder = true;
+        r.holderNode = NONE;
       }
-      
-      if (this.holder){                                                                    //Finally, if I'm the holder, then I can serve the queue if it is not empty
-        if (!this.requestQueue.isEmpty()){
-          serveQueue();
-          this.asked = false;
-        }
-      } 
-      else if (!this.asked && !this.requestQueue.isEmpty()) {                              //Else I can send a Request message to my holderNode.
-        this.asked = true;
-        this.holderNode.tell(new Request(),getSelf());
+      else {
+        r.holder = this.rootNode == this.selfIndex;
+        r.holderNode = this.rootNode;
       }
-      this.recovering = false;
-      log("After crashing "+String.valueOf(this.requestQueue));
+      this.resources.put(key, r);
     }
+    return r;
   }
 
   /**
-   * Upon receiving a `Crash` message, if the node was not already crashed or recovering, then it crashes, which implies the lose of knowledge regarding the token and the request. 
-   * The list of neighbors is preserved.
+   * Called when a handler is done with a resource: if the state of the resource went back to the initial one, it is removed.
+   * While crashed the node forgets everything, and while recovering it keeps everything until all the `Advice`s arrived.
    *
-   * @param      msg   The message which dooms a node.
+   * @param      r     The resource.
    */
-  private void onCrash(Crash msg) {
-    log("Node "+this.id+" crashed.");
-    if (!this.crashed && !this.recovering){                                 //If I receive the crashed command, and my status is not crashed, then
-      log("Before crashing "+String.valueOf(this.requestQueue));
-      this.crashed = true;                                                  //Set my status to crashed
-      this.requestQueue.clear();                                            //Clear the queue of requests
-      this.holder = true;                                                   //I set optimistically the holder to my self, works best with the recovery phase
-      this.asked = false;                                                   //I assume I've never asked
-      this.holderNode = null;                                               //There is no holder since I assume it's me.
+  private void release(Resource r){
+    if (this.recovering) {
+      return;
     }
-    else {
-      log("Node "+this.id+": node is already down or recovering!");
+    if (this.crashed || (!r.using && !r.asked && depth(r) == 0 && r.holderNode == this.rootNode && r.holder == (this.rootNode == this.selfIndex)
+        && !r.reading && !r.askedRead && readDepth(r) == 0 && r.readers == 0 && r.borrowed == 0)) {
+      this.resources.remove(r.key);
     }
   }
 
   /**
-   * Upon receipt of a `Recovery` message, if the token is still crashed, then it starts the recovery procedure, 
-   * which implies as a first step to send a `Restart` message to all the neighbors to gather information
+   * Chooses which token of a resource an exclusive `RequestCS` of the node asks for. With `tokens` = k, every resource has k tokens,
+   * so that up to k nodes are in its CS at the same time: token `t` of resource `key` is the resource `key * k + t` of the protocol,
+   * with its own holder pointers, queues and recovery, so each token is never lost nor duplicated by a crash and the k are always there.
+   * The node only knows where each token is as the direction of its `holderNode`, so the nearest token is estimated as, in order:
+   * one held by the node and free, one held by the node that others are using, one the node already asked for (which costs no message),
+   * and one nobody asked for here; each one the later the more requests are queued for it, and the node's own requests go to
+   * the tokens it is not waiting for yet. Among equals, the choice rotates, so that the requests of the nodes spread over the k tokens.
+   * With k > 1 a shared request takes a token as an exclusive one does (see `onRequestCS`), so at most k CSs of any kind run at once.
    *
-   * @param      msg   A message that tells to a crashed node to reboot.
+   * @param      key     The key of the resource, at most `maxKey(k)`.
+   *
+   * @return     The key of the token in the protocol.
    */
-  private void onRecovery(Recovery msg) {
-    log("Node "+this.id+" recovering.");
-    if (this.crashed){ //If it crashed
-      for (ActorRef node : neighbors) { //For all its neighbors
-        node.tell(new Restart(), this.getSelf()); //It asks for infos
+  private int token(int key) {
+    if (this.tokens == 1) {
+      return key;
+    }
+    int best = 0;
+    int bestCost = Integer.MAX_VALUE;
+    for (int i = 0; i < this.tokens; i++) {
+      int t = (this.nextToken + i) % this.tokens;
+      Resource r = this.resources.get(key * this.tokens + t);
+      int cost;
+      if (r == null) {                                                      //Initial state: free here if the node is the initial holder
+        cost = this.rootNode == this.selfIndex ? 0 : 3;
       }
-      this.crashed = false; //After sending the message it is not in the crashed phase anymore
-      this.recovering = true; //But it starts to recover.
-    } 
+      else {
+        boolean waiting = r.requestQueue != null && r.requestQueue.contains(this.selfIndex);
+        cost = (r.holder ? (r.using || depth(r) > 0 || r.readers > 0 ? 1 : 0) : (r.asked ? 2 : 3)) + depth(r)
+               + (waiting || r.using ? 4 + (r.local == null ? 0 : r.local.size()) * 4 : 0);
+      }
+      if (cost < bestCost) {
+        best = t;
+        bestCost = cost;
+      }
+    }
+    this.nextToken = (this.nextToken + 1) % this.tokens;
+    return key * this.tokens + best;
+  }
+
+  /**
+   * Returns the largest key of a resource with a number of tokens, whose last token `key * tokens + tokens - 1` is still an int.
+   *
+   * @param      tokens  The tokens of every resource.
+   *
+   * @return     The key.
+   */
+  static int maxKey(int tokens) {
+    return (Integer.MAX_VALUE - (tokens - 1)) / tokens;
+  }
+
+  /**
+   * Function that simulates a critical section.
+   * The node does not block the dispatcher thread: it schedules a `ReleaseCS` message to itself after `time` milliseconds or,
+   * if the `RequestCS` carried some `work`, it starts it and sends the `ReleaseCS` as soon as the returned stage completes.
+   * The queue is then served again in `onReleaseCS`.
+   *
+   * @param      r       The resource whose CS is entered.
+   * @param      shared  Whether the access is shared, in which case it uses the time and the work of the shared `RequestCS`.
+   */
+  private void criticalSection(Resource r, boolean shared){
+    int cs = ++this.csCounter;
+    Supplier<CompletionStage<?>> work;
+    long time;
+    if (shared) {
+      r.reading = true;
+      r.readCs = cs;
+      logRequest(Event.CS_ENTER_SHARED, r, r.readRequested);
+      work = r.readWork;
+      time = r.readTime;
+      if (this.metrics != null) {
+        r.readEntered = System.nanoTime();
+        this.metrics.entered(r.readEntered - r.readRequested, 0);
+      }
+    }
+    else {
+      r.using = true;
+      r.cs = cs;
+      logRequest(Event.CS_ENTER, r, r.requested);
+      work = r.work;
+      time = r.time;
+      if (this.metrics != null) {
+        r.entered = System.nanoTime();
+        this.metrics.entered(r.entered - r.requested, r.priority);
+      }
+    }
+    final ReleaseCS release = new ReleaseCS(r.key, cs);
+    final ActorRef self = getSelf();
+    if (work != null) {
+      CompletionStage<?> stage;
+      try {
+        stage = work.get();
+      }
+      catch (RuntimeException e) {
+        System.err.println("Node "+this.id+": critical section work failed: "+e);
+        self.tell(release, self);
+        return;
+      }
+      if (stage == null) {                                      // No asynchronous work: the CS is over already
+        self.tell(release, self);
+        return;
+      }
+      stage.whenComplete((result, error) -> self.tell(release, self));
+    }
     else {
-      log("Node "+this.id+": node is up and runnning, nothing to recover!");
+      getContext().getSystem().scheduler().scheduleOnce(
+        Duration.create(time, TimeUnit.MILLISECONDS), self, release, getContext().dispatcher(), self
+      );
     }
   }
 
   /**
-   * When the controller sends such message to the nodes, it indicates that they need to close the buffer onto which they were writing their log.
+   * Function to add a node to the `requestQueue` of a resource, creating the queue if needed.
+   * The node is not added if it is already inside the queue, which is checked in constant time, but its priority may be raised.
+   * The queue is served by priority, a request counting as one priority higher for every `aging` ms it waited, so none starves.
+   * A node that already asked the token with a lower priority asks it again with the new one, so that the urgency of a request
+   * reaches the holder; this `Request` is an `upgrade`, ignored by a `holderNode` that already sent the token.
    *
-   * @param      msg   The message indicating to close the logs.
+   * @param      r         The resource.
+   * @param      node      The local index of the node to be added to the queue
+   * @param      priority  The priority of its request.
    */
-  private void onSaveLog(SaveLog msg){
-    try {
-      this.logger.close();
-      System.out.println("Node "+this.id+": log saved successfully.");
+  private void addToRequestQueue(Resource r, int node, int priority) {
+    if (r.requestQueue == null) {
+      r.requestQueue = new TBDMXIntQueue(this.selfIndex + 1);
+    }
+    if (r.requestQueue.add(node, priority, System.nanoTime())){
+      queued(1);
+      log(Event.QUEUE_ADD, r, node);
+    }
+    else {
+      log(Event.QUEUE_DUPLICATE, r, node);
     }
-    catch (IOException e) {
-      System.err.println("Error closing log file.");
+    if (!r.holder && r.asked && priority > r.askedPriority) {
+      r.askedPriority = (byte) priority;
+      send(r.holderNode, new Request(this.id, r.key, false, priority, true));
+      log(Event.REQUEST_UPGRADED, r, r.holderNode);
     }
   }
 
-  // Here we define the mapping between the received message types
-  // and our actor methods
-  @Override
-  public Receive createReceive() {
-    return receiveBuilder()
-      .match(SaveLog.class,  this::onSaveLog)
-      .match(Crash.class,  this::onCrash)
-      .match(Recovery.class,  this::onRecovery)
-      .match(ImposeHolder.class,  this::onImposeHolder)
-      .match(SetNeighbors.class,  this::onSetNeighbors)
-      .match(RequestCS.class,  this::onRequestCS)
-      .match(BroadcastHolder.class,  this::onBroadcastHolder)
-      .match(Request.class,  this::onRequest)
-      .match(Privilege.class,  this::onPrivilege)
-      .match(Restart.class,  this::onRestart)
-      .match(Advice.class,  this::onAdvice)
+  /**
+   * Function to add a node to the `readQueue` of a resource, creating the queue if needed. Duplicates are ignored.
+   *
+   * @param      r     The resource.
+   * @param      node  The local index of the node asking for shared access.
+   */
+  private void addToReadQueue(Resource r, int node) {
+    if (r.readQueue == null) {
+      r.readQueue = new TBDMXIntQueue(this.selfIndex + 1);
+    }
+    r.readQueue.add(node);
+  }
+
+  /**
+   * Called by the holder of a resource whenever its state changed, to decide who goes next. Readers and writers take turns:
+   * - If nobody is waiting for exclusive access, every waiting reader is admitted at once, even if other readers are in their CS.
+   * - Otherwise, once the readers admitted so far are over, the writers' turn and the turn of the readers waiting meanwhile alternate.
+   * Hence a writer waits at most for one turn of readers, and a reader waits at most for one writer.
+   *
+   * @param      r     The resource, of which the node is the holder.
+   */
+  private void dispatch(Resource r) {
+    if (r.using) {
+      return;
+    }
+    boolean readersWaiting = readDepth(r) > 0;
+    boolean writerWaiting = depth(r) > 0;
+    if (readersWaiting && (!writerWaiting || (r.readers == 0 && r.writerServed))) {
+      r.writerServed = false;
+      grantReads(r);
+    }
+    else if (writerWaiting && r.readers == 0) {
+      r.writerServed = true;
+      serveQueue(r);
+    }
+  }
+
+  /**
+   * Admits every node waiting in the `readQueue`: the node itself enters its shared CS, the neighbors are lent a `ReadGrant`,
+   * which they pass on in their subtree and give back with a `ReadRelease` when all the readers there are over.
+   * Only the holder, or a node that was lent a `ReadGrant` by its `holderNode`, admits readers.
+   *
+   * @param      r     The resource.
+   */
+  private void grantReads(Resource r) {
+    while (readDepth(r) > 0) {
+      int k = r.readQueue.remove();
+      r.readers++;
+      if (k == this.selfIndex) {
+        criticalSection(r, true);
+      }
+      else {
+        if (r.lent == null) {
+          r.lent = new int[this.selfIndex];
+        }
+        r.lent[k]++;
+        send(k, readGrant(r));
+        log(Event.READ_GRANT_SENT, r, k);
+      }
+    }
+  }
+
+  /**
+   * Called when the number of readers admitted by the node may have dropped to zero.
+   * The holder can then serve the writers, while a node that was lent `ReadGrant`s gives them back to its `holderNode`.
+   *
+   * @param      r     The resource.
+   */
+  private void readersDone(Resource r) {
+    if (r.readers > 0) {
+      return;
+    }
+    if (r.holder) {
+      dispatch(r);
+    }
+    else if (r.borrowed > 0) {
+      send(r.holderNode, new ReadRelease(this.id, r.key, r.borrowed));
+      log(Event.READ_RELEASE_SENT, r, r.holderNode);
+      r.borrowed = 0;
+    }
+  }
+
+  /**
+   * A method to serve the next element in a non-empty queue.
+   * If the next element to be served is the node itself, then it enters the critical section.
+   * Once exited the CS, if the queue is not empty, being the possessor of the token, the node calls again the method.
+   * If instead it is one of the neighbors, a `Privilege` message is sent.
+   * Moreover if the queue is not empty after having served the neighbor, a `Request` message is "piggybacks"
+   * in order to obtain the token again and serve the next element in the queue. The same holds for the readers still waiting,
+   * which the new holder will admit.
+   *
+   * @param      r     The resource whose queue is served.
+   */
+  private void serveQueue(Resource r) {
+    if (depth(r) > 0){
+      int head = r.requestQueue.poll(System.nanoTime(), this.agingNanos);
+      queued(-1);
+      log(Event.QUEUE_SERVE, r, head);
+      if (head==this.selfIndex){
+        startTurn(r);
+        criticalSection(r, false);
+        nextLocal(r);
+      }
+      else {
+        boolean back = !r.requestQueue.isEmpty();
+        boolean carried = back && this.batch > 0 && r.requestQueue.maxPriority() == 0;
+        send(head, carried ? new Privilege(this.id, r.key, true) : privilege(r)); //With batching the token carries the request back
+        log(Event.PRIVILEGE_SENT, r, head);
+        r.holder = false;
+        r.holderNode = head;
+        //piggybacking token request back
+        if (back) {
+          r.askedPriority = 0;
+          if (!carried) {
+            send(head, request(r, false));
+            log(Event.REQUEST_SENT, r, head);
+          }
+          r.asked = true;
+        }
+        if (r.readQueue != null) {
+          r.readQueue.discard(head);            //The new holder admits its own readers
+        }
+        if (readDepth(r) > 0) {
+          send(head, request(r, true));
+          log(Event.READ_REQUEST_SENT, r, head);
+          r.askedRead = true;
+        }
+      }
+    }
+    else {
+      log(Event.QUEUE_EMPTY, r);
+    }
+  }
+
+  /**
+   * Starts counting the CSs the node runs in a row, see `onReleaseCS`.
+   *
+   * @param      r     The resource.
+   */
+  private void startTurn(Resource r) {
+    if (this.batch > 0) {
+      r.turn = 1;
+      r.turnStart = System.nanoTime();
+    }
+  }
+
+  /**
+   * Called when the request of the node in the `requestQueue` entered the CS: the next local request, if any, takes its place at the end of the queue.
+   * The next one is the first of those with the highest priority.
+   *
+   * @param      r     The resource.
+   */
+  private void nextLocal(Resource r) {
+    if (r.local == null || r.local.isEmpty()) {
+      return;
+    }
+    LocalRequest next = null;
+    for (LocalRequest l : r.local) {
+      if (next == null || l.priority > next.priority) {
+        next = l;
+      }
+    }
+    r.local.removeFirstOccurrence(next);
+    r.time = next.time;
+    r.work = next.work;
+    r.priority = next.priority;
+    r.requested = next.requested;
+    addToRequestQueue(r, this.selfIndex, r.priority);
+  }
+
+  /*-- Message classes ------------------------------------------------------ */
+
+  /**
+   * Messages exchanged with and between nodes, bound to `TBDMXSerializer` in `application.conf`.
+   */
+  public interface Message extends Serializable {}
+
+  // Messages without fields are singletons
+  public static final class ImposeHolder implements Message {
+    public static final ImposeHolder INSTANCE = new ImposeHolder();
+    private ImposeHolder() {}
+  }
+  public static class SetNeighbors implements Message {
+    public final List<ActorRef> group;
+    public final int[] ids; //ids[k] is the id of group.get(k)
+    public final int holder; //Id of the neighbor towards the initial holder, own id if holder, NONE if left to `BroadcastHolder`
+    public final transient TBDMXTopology tree; //Neighbors of every node shared by the nodes of the JVM, instead of `group` and `ids`
+    public final transient ActorRef[] nodes; //nodes[i] is the node with id i of `tree`
+    public SetNeighbors(List<ActorRef> group, int[] ids) {
+      this(group, ids, NONE);
+    }
+    public SetNeighbors(List<ActorRef> group, int[] ids, int holder) {
+      this.group = Collections.unmodifiableList(new ArrayList<ActorRef>(group));
+      this.ids = ids.clone();
+      this.holder = holder;
+      this.tree = null;
+      this.nodes = null;
+    }
+    public SetNeighbors(TBDMXTopology tree, ActorRef[] nodes, int holder) {
+      this.group = Collections.emptyList();
+      this.ids = EMPTY;
+      this.holder = holder;
+      this.tree = tree;
+      this.nodes = nodes;
+    }
+  }
+  public static final class Flush implements Message {
+    public static final Flush INSTANCE = new Flush();
+    private Flush() {}
+  }
+  public static class Envelope implements Message {
+    public final Message[] messages; //Sent by a node to the same neighbor while handling one message, or within `coalesce-window`
+    public Envelope(Message[] messages) {
+      this.messages = messages;
+    }
+  }
+  public static final class Ready implements Message {
+    public static final Ready INSTANCE = new Ready();
+    private Ready() {}
+  }
+  public static class RequestCS implements Message {
+    public final int resource; //Key of the resource, 0 if not given, never negative
+    public final boolean shared; //Shared (read) access, which other shared accesses can overlap
+    public final long time;
+    public final transient Supplier<CompletionStage<?>> work; //Started when entering the CS, which is left when the stage completes, or at once if it is null
+    public final int priority; //Of an exclusive access, from 0 to `TBDMXIntQueue.PRIORITIES - 1`, higher first
+    public RequestCS(long time){
+      this(0, false, time);
+    }
+    public RequestCS(int resource, long time){
+      this(resource, false, time);
+    }
+    public RequestCS(int resource, boolean shared, long time){
+      this(resource, shared, time, 0);
+    }
+    public RequestCS(int resource, boolean shared, long time, int priority){
+      this.resource = key(resource);
+      this.shared = shared;
+      this.time = time;
+      this.work = null;
+      this.priority = priority;
+    }
+    public RequestCS(Supplier<CompletionStage<?>> work){
+      this(0, false, work);
+    }
+    public RequestCS(int resource, Supplier<CompletionStage<?>> work){
+      this(resource, false, work);
+    }
+    public RequestCS(int resource, boolean shared, Supplier<CompletionStage<?>> work){
+      this(resource, shared, 0, work);
+    }
+    public RequestCS(int resource, boolean shared, int priority, Supplier<CompletionStage<?>> work){
+      this.resource = key(resource);
+      this.shared = shared;
+      this.time = 0;
+      this.work = work;
+      this.priority = priority;
+    }
+    /**
+     * Checks the key of a resource: negative keys are reserved, as the log marks the events of the whole node with `TBDMXLog.NONE`.
+     *
+     * @throws     IllegalArgumentException  If the key is negative.
+     */
+    static int key(int resource) {
+      if (resource < 0) {
+        throw new IllegalArgumentException("Negative resource key "+resource);
+      }
+      return resource;
+    }
+  }
+  public static class CancelCS implements Message {
+    public final int resource;
+    public final transient Supplier<CompletionStage<?>> work; //Identifies the `RequestCS`, which is local to the JVM as well
+    public CancelCS(int resource, Supplier<CompletionStage<?>> work){
+      this.resource = RequestCS.key(resource);
+      this.work = work;
+    }
+  }
+  public static class ReleaseCS implements Message {
+    public final int resource;
+    public final int cs; //Which critical section is being released, stale ones (e.g. after a crash) are ignored
+    public ReleaseCS(int resource, int cs){
+      this.resource = resource;
+      this.cs = cs;
+    }
+  }
+
+  public static final class SaveLog implements Message {
+    public static final SaveLog INSTANCE = new SaveLog();
+    private SaveLog() {}
+  }
+  public static final class Crash implements Message {
+    public static final Crash INSTANCE = new Crash();
+    private Crash() {}
+  }
+  public static final class Recovery implements Message {
+    public static final Recovery INSTANCE = new Recovery();
+    private Recovery() {}
+  }
+  public static final class Tick implements Message {
+    public static final Tick INSTANCE = new Tick();
+    private Tick() {}
+  }
+  // Protocol messages carry the id of the sending node, resolved to a local index by the receiver
+  public static class BroadcastHolder implements Message {
+    public final int sender;
+    public BroadcastHolder(int sender){
+      this.sender = sender;
+    }
+  }
+  public static class Request implements Message {
+    public final int sender;
+    public final int resource;
+    public final boolean shared;
+    public final int priority; //The highest priority of the requests behind it
+    public final boolean upgrade; //Raises the priority of a `Request` already sent
+    public Request(int sender, int resource, boolean shared){
+      this(sender, resource, shared, 0, false);
+    }
+    public Request(int sender, int resource, boolean shared, int priority, boolean upgrade){
+      this.sender = sender;
+      this.resource = resource;
+      this.shared = shared;
+      this.priority = priority;
+      this.upgrade = upgrade;
+    }
+  }
+  public static class Privilege implements Message {
+    public final int sender;
+    public final int resource;
+    public final boolean back; //The sender wants the token back, in place of a `Request` following it
+    public Privilege(int sender, int resource){
+      this(sender, resource, false);
+    }
+    public Privilege(int sender, int resource, boolean back){
+      this.sender = sender;
+      this.resource = resource;
+      this.back = back;
+    }
+  }
+  public static class ReadGrant implements Message {
+    public final int sender;
+    public final int resource;
+    public ReadGrant(int sender, int resource){
+      this.sender = sender;
+      this.resource = resource;
+    }
+  }
+  public static class ReadRelease implements Message {
+    public final int sender;
+    public final int resource;
+    public final int count; //Number of `ReadGrant`s given back
+    public ReadRelease(int sender, int resource, int count){
+      this.sender = sender;
+      this.resource = resource;
+      this.count = count;
+    }
+  }
+  public static class Restart implements Message {
+    public final int sender;
+    public Restart(int sender){
+      this.sender = sender;
+    }
+  }
+  public static class Heartbeat implements Message {
+    public final int sender;
+    public Heartbeat(int sender){
+      this.sender = sender;
+    }
+  }
+  public static class Validate implements Message {
+    public final int sender;
+    public final int sent; //Token messages the sender sent to the receiver, as of its checkpoint
+    public Validate(int sender, int sent){
+      this.sender = sender;
+      this.sent = sent;
+    }
+  }
+  public static class Validation implements Message {
+    public final int sender;
+    public final int sent; //Token messages the sender sent to the receiver so far, -1 if it does not count them
+    public Validation(int sender, int sent){
+      this.sender = sender;
+      this.sent = sent;
+    }
+  }
+  public static class MovePrepare implements Message {
+    public final int sender;
+    public final int round;
+    public final boolean attach; //The receiver is the one the moved node is attached to
+    public MovePrepare(int sender, int round, boolean attach){
+      this.sender = sender;
+      this.round = round;
+      this.attach = attach;
+    }
+  }
+  public static class MoveReady implements Message {
+    public final int sender;
+    public final int round;
+    public final Advice state; //State of the sender wrt the node moving, null if it cannot take part in a move now
+    public MoveReady(int sender, int round, Advice state){
+      this.sender = sender;
+      this.round = round;
+      this.state = state;
+    }
+  }
+  public static class MoveAbort implements Message {
+    public final int sender;
+    public MoveAbort(int sender){
+      this.sender = sender;
+    }
+  }
+  public static class Reattach implements Message {
+    public final int sender; //The old neighbor, replaced by the new one
+    public final int to;
+    public final ActorRef toRef;
+    public Reattach(int sender, int to, ActorRef toRef){
+      this.sender = sender;
+      this.to = to;
+      this.toRef = toRef;
+    }
+  }
+  public static class Attach implements Message {
+    public final int sender;
+    public final int node; //The new neighbor
+    public final ActorRef nodeRef;
+    public final int[] towardsNode; //Resources whose token is now towards the new neighbor
+    public final int[] towardsSender; //Resources whose token stays towards the sender, although `rootNode` changes
+    public final boolean root; //`rootNode` is now the new neighbor
+    public Attach(int sender, int node, ActorRef nodeRef, int[] towardsNode, int[] towardsSender, boolean root){
+      this.sender = sender;
+      this.node = node;
+      this.nodeRef = nodeRef;
+      this.towardsNode = towardsNode;
+      this.towardsSender = towardsSender;
+      this.root = root;
+    }
+  }
+  public static class Join implements Message {
+    public final int node; //The new node, which joins the tree as a leaf next to the receiver
+    public final ActorRef nodeRef;
+    public Join(int node, ActorRef nodeRef){
+      this.node = node;
+      this.nodeRef = nodeRef;
+    }
+  }
+  public static final class Leave implements Message {
+    public static final Leave INSTANCE = new Leave();
+    private Leave() {}
+  }
+  public static final class Reshape implements Message {
+    public static final Reshape INSTANCE = new Reshape();
+    private Reshape() {}
+  }
+  public static class Detach implements Message {
+    public final int sender; //A leaf leaving the tree
+    public final boolean root; //The sender was `rootNode`, which the receiver now is
+    public final int[] tokens; //Resources whose token the sender held, which the receiver now holds
+    public Detach(int sender, boolean root, int[] tokens){
+      this.sender = sender;
+      this.root = root;
+      this.tokens = tokens;
+    }
+  }
+  public static class MoveNeighbor implements Message {
+    public final int node; //The neighbor to move, with the nodes behind it
+    public final int to; //The neighbor it is attached to
+    public MoveNeighbor(int node, int to){
+      this.node = node;
+      this.to = to;
+    }
+  }
+  public static class Advice implements Message {
+    public static final byte HOLDER = 1; //"to me, you're the holder"
+    public static final byte ASKED = 2; //"I have asked the token"
+    public static final byte IN_REQUEST_QUEUE = 4;
+    public static final byte ASKED_READ = 8; //"I have asked shared access"
+    public static final byte IN_READ_QUEUE = 16;
+    public static final int PRIORITY_SHIFT = 5; //The priority of the exclusive request, asked by the sender (HOLDER) or by the receiver (IN_REQUEST_QUEUE)
+    public final int sender;
+    public final int adviceCounter;
+    public final boolean holder; //HOLDER for the resources that are not listed, whose token is still where it started
+    public final int[] resources; //The resources the sender has a state for
+    public final byte[] flags; //flags[i] refers to resources[i]
+    public final int[] leases; //`ReadGrant`s not given back yet, lent by the holderNode of the two to the other
+    public Advice(int sender, int adviceCounter, boolean holder, int[] resources, byte[] flags, int[] leases){
+      this.sender = sender;
+      this.adviceCounter = adviceCounter;
+      this.holder = holder;
+      this.resources = resources;
+      this.flags = flags;
+      this.leases = leases;
+    }
+    public static int priority(int flags) {
+      return (flags & 0xFF) >>> PRIORITY_SHIFT;
+    }
+    public String toString(){
+      return ("this.sender: "+this.sender+" "+"this.holder: "+this.holder+" "+"this.resources: "+this.resources.length+" "+"this.adviceCounter: "+this.adviceCounter);
+    }
+  }
+
+  /**
+   * Function called upon receipt of an `ImposeHolder` message.
+   * The node becomes the initial holder of the token of every resource, and it sends a `BroadcastHolder` to all its neighbors.
+   * Once they all answered with a `Ready`, the whole tree knows the holder and the node tells the sender of the message.
+   *
+   * @param      msg   The message indicating that the node is the initial holder.
+   */
+  private void onImposeHolder(ImposeHolder msg) {
+    this.rootNode = this.selfIndex;
+    log(Event.HOLDER_IMPOSED);
+    BroadcastHolder broadcast = new BroadcastHolder(this.id);
+    for (int k = 0; k < this.selfIndex; k++) {
+      send(k, broadcast);
+      log(Event.HOLDER_BROADCAST, k);
+    }
+    this.imposedBy = getSender();
+    this.echoes = this.selfIndex;
+    if (this.echoes == 0) {
+      echo();
+    }
+  }
+
+  /**
+   * Upon receiving a `Ready` from a neighbor it sent a `BroadcastHolder` to, the subtree of the neighbor knows the holder.
+   *
+   * @param      msg   The message of the neighbor.
+   */
+  private void onReady(Ready msg) {
+    if (--this.echoes == 0) {
+      echo();
+    }
+  }
+
+  /**
+   * Called once every neighbor the node sent a `BroadcastHolder` to answered: the node answers the `BroadcastHolder` it got with a
+   * `Ready`, or the holder tells the sender of the `ImposeHolder`. The `Ready`s do not go through `send`, as they are not part of the protocol.
+   */
+  private void echo() {
+    if (this.rootNode != this.selfIndex) {
+      neighbor(this.rootNode).tell(Ready.INSTANCE, getSelf());
+    }
+    else if (this.imposedBy != null && this.imposedBy != getContext().getSystem().deadLetters()) {
+      this.imposedBy.tell(Ready.INSTANCE, getSelf());
+    }
+    this.imposedBy = null;
+  }
+
+  /**
+   * Upon receiving a `SetNeighbors` message, the node sets its neighbors to the same value as the one in the message.
+   * It also indexes their ids, so that the id carried by a message is turned into a local index in constant time.
+   * If the message carries the table shared by the nodes of the JVM, the node keeps a reference to it instead of copies of its neighbors.
+   * If the message tells the direction of the initial holder, the node sets its `rootNode` at once, as a `BroadcastHolder` would,
+   * and it acknowledges with a `Ready`, so that the tree is ready when every node has answered.
+   *
+   * @param      msg   The message containing the neighbors to be set.
+   */
+  private void onSetNeighbors(SetNeighbors msg) {
+    if (msg.tree != null) {
+      this.neighbors = null;
+      this.neighborIds = null;
+      this.tree = msg.tree;
+      this.nodes = msg.nodes;
+      this.selfIndex = msg.tree.degree(this.id);
+    }
+    else {
+      this.neighbors = msg.group.toArray(new ActorRef[0]);
+      this.neighborIds = msg.ids.clone();
+      this.tree = null;
+      this.nodes = null;
+      this.selfIndex = this.neighbors.length;
+    }
+    indexNeighbors();
+    if (this.checkpoint != null) {
+      this.sentTo = new int[this.selfIndex];
+      this.receivedFrom = new int[this.selfIndex];
+    }
+    if (this.detector != null) {
+      this.detector.renumber(new int[0], this.selfIndex, System.nanoTime());
+      this.parked = new ArrayList<>(this.selfIndex);
+      for (int k = 0; k < this.selfIndex; k++) {
+        this.parked.add(new ArrayList<>(0));
+      }
+    }
+    if (msg.holder == this.id) {
+      this.rootNode = this.selfIndex;
+      log(Event.HOLDER_IMPOSED);
+    }
+    else if (msg.holder != NONE) {
+      this.rootNode = indexOf(msg.holder);
+      log(Event.HOLDER_SET, this.rootNode);
+    }
+    if (getSender() != getContext().getSystem().deadLetters()) {
+      getSender().tell(Ready.INSTANCE, getSelf());
+    }
+    unstashAll();                                                           //What came before, to a node joining the tree
+  }
+
+  /**
+   * Indexes the ids of the neighbors in `neighborIndex` if there are many of them, and resets the counters of the adaptive mode, which are per neighbor.
+   */
+  private void indexNeighbors() {
+    this.neighborIndex = null;
+    if (this.selfIndex > SCAN) {
+      int slots = Integer.highestOneBit(this.selfIndex * 2) * 2;
+      this.neighborIndex = new int[2 * slots];
+      for (int k = 0; k < this.selfIndex; k++) {
+        int h = hash(neighborId(k)) & (slots - 1);
+        while (this.neighborIndex[2*h] != 0) {
+          h = (h + 1) & (slots - 1);
+        }
+        this.neighborIndex[2*h] = neighborId(k) + 1;
+        this.neighborIndex[2*h + 1] = k;
+      }
+    }
+    if (this.adaptive > 0) {
+      this.forwarded = new int[this.selfIndex];
+      this.towards = new int[this.selfIndex];
+      this.candidate = NONE;
+    }
+  }
+
+  /**
+   * Called on 'RequestCS' which is sent from the controller indicating that the node should enter the critical section of a resource.
+   * If the node is not crashed nor recovering, then it checks whether its `requestQueue` is empty or not. If it is not, or the node is already in the CS, then it adds itself to the queue.
+   * If instead the queue is empty, then it checks whether it is the holder of the token. If it is, then it enters the critical section.
+   * If it is not the holder, then it adds itself to the queue and sets `asked` to `true` in order to remember having sent a request.
+   * If the node is recovering while receiving the request, it adds such request to a secondary queue, `recoveryQueue` which will be merged with `serveQueue` later.
+   * The node is in the queues at most once per resource: if it is already waiting, the request waits behind in `local`, see `nextLocal`.
+   * With more than one token a shared request is served as an exclusive one, since readers sharing a token would run next to the
+   * holders of the other tokens; a key above `maxKey` has no tokens and the request is ignored.
+   *
+   * @param      msg   The message containing the resource and how much time the node should stay inside the CS.
+   */
+  private void onRequestCS(RequestCS msg) {
+    if (msg.resource > maxKey(this.tokens)) {
+      System.err.println("Node "+this.id+": resource "+msg.resource+" out of range with "+this.tokens+" tokens, request ignored");
+      return;
+    }
+    Resource r = resource(token(msg.resource));
+    long now = this.metrics != null || TBDMXTrace.enabled() ? System.nanoTime() : 0;
+    if (msg.shared && this.tokens == 1) {
+      r.readRequested = now;
+      onRequestShared(r, msg);
+      release(r);
+      return;
+    }
+    logRequest(Event.REQUEST_CS, r, now);
+    byte priority = (byte) Math.max(0, Math.min(TBDMXIntQueue.PRIORITIES - 1, msg.priority));
+    if ((!this.crashed && !this.recovering && r.requestQueue != null && r.requestQueue.contains(this.selfIndex))
+        || (this.recovering && r.recoveryQueue != null && r.recoveryQueue.contains(this.selfIndex))) {
+      if (r.local == null) {
+        r.local = new ArrayDeque<>(2);
+      }
+      LocalRequest waiting = new LocalRequest(msg.time, msg.work, priority, now);
+      if (priority > r.priority) {                                          //The more urgent one takes the place in the queue
+        LocalRequest queued = waiting;
+        waiting = new LocalRequest(r.time, r.work, r.priority, r.requested);
+        r.time = queued.time;
+        r.work = queued.work;
+        r.priority = queued.priority;
+        r.requested = queued.requested;
+        if (this.recovering) {
+          r.recoveryQueue.add(this.selfIndex, priority, System.nanoTime());
+        }
+        else {
+          addToRequestQueue(r, this.selfIndex, priority);
+        }
+      }
+      r.local.add(waiting);
+      return;
+    }
+    r.requested = now;
+    r.time = msg.time;
+    r.work = msg.work;
+    r.priority = priority;
+    if (!this.crashed && !this.recovering){
+      if (depth(r) > 0 || r.using) {
+        addToRequestQueue(r, this.selfIndex, priority);
+      }
+      else if (!r.holder) {
+        addToRequestQueue(r, this.selfIndex, priority);
+        send(r.holderNode, request(r, false));
+        log(Event.REQUEST_SENT, r, r.holderNode);
+        r.asked = true;
+      }
+      else if (r.readers > 0) {             //Wait for the readers, `dispatch` lets no new one in meanwhile
+        addToRequestQueue(r, this.selfIndex, priority);
+      }
+      else {
+        startTurn(r);
+        criticalSection(r, false);
+      }
+    }
+    else if (this.recovering){
+      if (r.recoveryQueue == null) {
+        r.recoveryQueue = new TBDMXIntQueue(this.selfIndex + 1);
+      }
+      r.recoveryQueue.add(this.selfIndex, priority, System.nanoTime());
+      log(Event.RECOVERY_ENQUEUED, r, this.selfIndex);
+    }
+    release(r);
+  }
+
+  /**
+   * Handles a `RequestCS` for shared access. If the node is already in a shared CS, the request is asked again when it is over.
+   *
+   * @param      r     The resource.
+   * @param      msg   The request.
+   */
+  private void onRequestShared(Resource r, RequestCS msg) {
+    logRequest(Event.REQUEST_CS_SHARED, r, r.readRequested);
+    r.readTime = msg.time;
+    r.readWork = msg.work;
+    if (r.reading) {
+      r.readAgain = true;
+    }
+    else {
+      askShared(r, this.selfIndex);
+    }
+  }
+
+  /**
+   * Puts a node waiting for shared access in the `readQueue`: the holder admits it through `dispatch`,
+   * any other node asks shared access to its `holderNode` (once, until it is granted) and admits it when a `ReadGrant` comes back.
+   *
+   * @param      r     The resource.
+   * @param      node  The local index of the node asking for shared access, which may be the node itself.
+   */
+  private void askShared(Resource r, int node) {
+    if (!this.crashed && !this.recovering){
+      addToReadQueue(r, node);
+      if (r.holder) {
+        dispatch(r);
+      }
+      else if (!r.askedRead) {
+        r.askedRead = true;
+        send(r.holderNode, request(r, true));
+        log(Event.READ_REQUEST_SENT, r, r.holderNode);
+      }
+    }
+    else if (this.recovering){
+      addToReadQueue(r, node);
+      log(Event.RECOVERY_ENQUEUED, r, node);
+    }
+  }
+
+  /**
+   * Called when the critical section entered in `criticalSection` is over.
+   * The node leaves the CS and, being still the holder of the token, serves the next element in the queue if any.
+   * If the CS was a shared one, the node is one reader less and, if it was the last one, gives the access back or serves the writers.
+   * With `batch` the holder that has another request of its own waiting runs it right away, ahead of the queue, up to `batch` CSs in a row
+   * and within `batch-time` microseconds from the first, instead of sending the token away and asking it back after every CS:
+   * the nodes waiting meanwhile are delayed by at most `batch` CSs, or `batch-time` plus one CS.
+   * `ReleaseCS` messages that do not refer to the current CS (e.g. the node crashed in the meanwhile) are ignored.
+   *
+   * @param      msg   The message indicating which critical section is over.
+   */
+  private void onReleaseCS(ReleaseCS msg) {
+    Resource r = this.resources.get(msg.resource);
+    if (r == null) {
+      return;
+    }
+    if (r.using && msg.cs == r.cs) {
+      log(Event.CS_EXIT, r);
+      r.using = false;
+      if (this.metrics != null) {
+        this.metrics.exited(System.nanoTime() - r.entered);
+      }
+      if (this.batch > 0 && r.turn < this.batch && depth(r) > 0 && r.requestQueue.contains(this.selfIndex)
+          && r.requestQueue.maxPriority() <= r.requestQueue.priority(this.selfIndex)           //No neighbor waits with a more urgent request
+          && (this.batchNanos == 0 || System.nanoTime() - r.turnStart < this.batchNanos)) {
+        r.requestQueue.discard(this.selfIndex);
+        queued(-1);
+        r.turn++;
+        log(Event.CS_BATCHED, r);
+        criticalSection(r, false);
+        nextLocal(r);
+      }
+      else {
+        dispatch(r);
+      }
+    }
+    else if (r.reading && msg.cs == r.readCs) {
+      log(Event.CS_EXIT_SHARED, r);
+      r.reading = false;
+      if (this.metrics != null) {
+        this.metrics.exited(System.nanoTime() - r.readEntered);
+      }
+      r.readers--;
+      readersDone(r);
+      if (r.readAgain) {
+        r.readAgain = false;
+        askShared(r, this.selfIndex);
+      }
+    }
+    release(r);
+    maybeMove();
+  }
+
+  /**
+   * Called on a `CancelCS`: the exclusive `RequestCS` carrying the same `work` is withdrawn if it is still waiting, and its `work` is never started.
+   * A request waiting in `local` is just dropped; the one in the `requestQueue` (or in the `recoveryQueue`) leaves it, and the next local one,
+   * if any, takes its place. A `Request` already sent for it is not taken back: the token comes anyway and the node passes it on
+   * (or keeps it) as the queue says, as when a crash empties the queue. A request that is not found has entered its CS, or was lost in a crash.
+   *
+   * @param      msg   The message.
+   */
+  private void onCancelCS(CancelCS msg) {
+    if (msg.resource > maxKey(this.tokens)) {
+      return;
+    }
+    for (int t = 0; t < this.tokens; t++) {
+      Resource r = this.resources.get(msg.resource * this.tokens + t);
+      if (r == null) {
+        continue;
+      }
+      if (r.local != null) {
+        for (LocalRequest l : r.local) {
+          if (l.work == msg.work) {
+            r.local.removeFirstOccurrence(l);
+            logRequest(Event.CS_CANCELLED, r, l.requested);
+            return;
+          }
+        }
+      }
+      TBDMXIntQueue queue = this.recovering ? r.recoveryQueue : r.requestQueue;
+      if (r.work == msg.work && !this.crashed && queue != null && queue.discard(this.selfIndex)) {
+        logRequest(Event.CS_CANCELLED, r, r.requested);
+        r.work = null;
+        if (this.recovering) {
+          if (r.local != null && !r.local.isEmpty()) {
+            LocalRequest next = r.local.poll();
+            r.time = next.time;
+            r.work = next.work;
+            r.priority = next.priority;
+            r.requested = next.requested;
+            queue.add(this.selfIndex, next.priority, System.nanoTime());
+          }
+          return;
+        }
+        queued(-1);
+        nextLocal(r);
+        if (r.holder) {
+          dispatch(r);                      //It may have been waiting for the readers, in front of others
+        }
+        release(r);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Called upon receiving a `BroadcastHolder` message. The node receiving the message will set its `rootNode`,
+   * the initial `holderNode` of every resource, to the sender of the message.
+   * Then it sends a new a `BroadcastHolder` to each neighbor, except the sender of the previous `BroadcastHolder`,
+   * and answers with a `Ready` once they all did, see `echo`.
+   *
+   * @param      msg   The message indicating to store and broadcast information on the holder.
+   */
+  private void onBroadcastHolder(BroadcastHolder msg) {
+    received(TBDMXMetrics.Message.BROADCAST_HOLDER);
+    int from = sender(msg.sender);
+    if (from == NONE) {
+      return;
+    }
+    this.rootNode = from;
+    log(Event.HOLDER_SET, from);
+    BroadcastHolder broadcast = new BroadcastHolder(this.id);
+    for (int k = 0; k < this.selfIndex; k++) {
+      if (k != from) {
+        send(k, broadcast);
+        log(Event.HOLDER_BROADCAST, k);
+      }
+    }
+    this.echoes = this.selfIndex - 1;
+    if (this.echoes == 0) {
+      echo();
+    }
+  }
+
+  /**
+   * Upon receiving a `Request` message, if the node is not crashed nor recovering, then it adds the request to the queue of the resource.
+   * It then checks whether it is not in the critical section nor it has already asked for the token, and if it is the holder, it then serves the queue.
+   * If the node added to the queue is the only node in the queue, then no Request can have been sent before to request the token, hence one should be sent.
+   *
+   * @param      msg   A message requiring the token.
+   */
+  private void onRequest(Request msg) {
+    received(TBDMXMetrics.Message.REQUEST);
+    int from = sender(msg.sender);
+    if (from == NONE) {
+      return;
+    }
+    counted(from);
+    Resource r = resource(msg.resource);
+    if (this.adaptive > 0 && !r.holder && r.holderNode != from && !this.crashed && !this.recovering) {
+      forwarded(from, r.holderNode);
+    }
+    if (msg.shared) {
+      onReadRequest(r, from);
+      release(r);
+      return;
+    }
+    if (msg.upgrade && (this.crashed || this.recovering || r.requestQueue == null || !r.requestQueue.contains(from))) {
+      release(r);                           //Already served, or merged with the priority of the `Advice`
+      return;
+    }
+    log(Event.REQUEST_RECEIVED, r, from);
+    if (!this.crashed && !this.recovering){
+      addToRequestQueue(r, from, msg.priority);
+      if (msg.upgrade) {
+        release(r);
+        return;
+      }
+      if (!r.using && !r.asked){
+        if (r.holder){
+          r.asked = false;                  //Before serving, which may ask the token back
+          dispatch(r);
+        }
+        else if (r.requestQueue.size()==1) { //not the holder, single element
+          r.asked = true;
+          send(r.holderNode, request(r, false));
+          log(Event.REQUEST_SENT, r, r.holderNode);
+        }
+      }
+    }
+    else if (this.recovering){
+      if (r.recoveryQueue == null) {
+        r.recoveryQueue = new TBDMXIntQueue(this.selfIndex + 1);
+      }
+      r.recoveryQueue.add(from, msg.priority, System.nanoTime());
+      log(Event.RECOVERY_ENQUEUED, r, from);
+    }
+    release(r);
+  }
+
+  /**
+   * Handles a `Request` for shared access from a neighbor, in the same way as a shared `RequestCS` of the node itself.
+   * A neighbor that is the `holderNode` sent it before the `Privilege` reached it, and now admits its readers itself.
+   *
+   * @param      r     The resource.
+   * @param      from  The local index of the neighbor.
+   */
+  private void onReadRequest(Resource r, int from) {
+    log(Event.READ_REQUEST_RECEIVED, r, from);
+    if (r.holder || r.holderNode != from) {
+      askShared(r, from);
+    }
+  }
+
+  /**
+   * Called when the `holderNode` lends shared access to the node: it admits in turn all the readers waiting in its `readQueue`
+   * and gives the access back once all of them are over. While recovering, a `ReadGrant` sent after the `Advice` of the lender
+   * is only counted, to be given back when the recovery is over.
+   *
+   * @param      msg   The message lending shared access.
+   */
+  private void onReadGrant(ReadGrant msg) {
+    received(TBDMXMetrics.Message.READ_GRANT);
+    int from = sender(msg.sender);
+    if (from == NONE || this.crashed) {
+      return;
+    }
+    counted(from);
+    Resource r = resource(msg.resource);
+    if (this.recovering) {
+      if (this.fastRecovery || adviceReceived(msg.sender)) { //Otherwise the `Advice` already counted it
+        r.borrowed++;
+        r.recoveryReadGrant = true;
+      }
+      return;
+    }
+    log(Event.READ_GRANT_RECEIVED, r, from);
+    r.askedRead = false;
+    r.borrowed++;
+    grantReads(r);
+    readersDone(r);
+    release(r);
+  }
+
+  /**
+   * Called when a neighbor gives back shared access it was lent, since all the readers it admitted are over.
+   *
+   * @param      msg   The message giving back shared access.
+   */
+  private void onReadRelease(ReadRelease msg) {
+    received(TBDMXMetrics.Message.READ_RELEASE);
+    int from = sender(msg.sender);
+    if (from == NONE || this.crashed) {
+      return;
+    }
+    counted(from);
+    Resource r = resource(msg.resource);
+    if (this.recovering && !this.fastRecovery && !adviceReceived(msg.sender)) { //The `Advice` will not count it
+      return;
+    }
+    log(Event.READ_RELEASE_RECEIVED, r, from);
+    if (r.lent == null) {
+      r.lent = new int[this.selfIndex];
+    }
+    r.lent[from] -= msg.count;
+    r.readers -= msg.count;
+    if (!this.recovering) {
+      readersDone(r);
+      release(r);
+      maybeMove();
+    }
+  }
+
+  private boolean adviceReceived(int sender) {
+    if (this.receivedAdvices == null) {
+      return false;
+    }
+    for (Advice ad : this.receivedAdvices) {
+      if (ad.sender == sender) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Called on the `Privilege` message receipt. If the node is not crashed nor is recovering, then it received the token correctly and can serve the next element in the queue.
+   * At this moment it also reset the counter `adviceCounter` since it got the token and is not risking starvation anymore.
+   * If instead the node is recovering, then the flag `recoveryHolder` is set, which indicates that during the recovery a `Privilege` message was received, but the queue could not be served.
+   * A `Privilege` that asks the token `back` is also handled as a `Request` of the sender received right after it.
+   *
+   * @param      msg   The message (virtually) bringing the token.
+   */
+  private void onPrivilege(Privilege msg) {
+    received(TBDMXMetrics.Message.PRIVILEGE);
+    counted(indexOf(msg.sender));
+    if (!this.crashed && !this.recovering){
+      this.adviceCounter = 0;
+      Resource r = resource(msg.resource);
+      log(Event.PRIVILEGE_RECEIVED, r, indexOf(msg.sender));
+      r.holderNode = this.selfIndex;
+      r.holder = true;
+      r.asked = false;
+      r.askedRead = false;
+      if (msg.back) {                       //The queue was not empty, as the node asked the token, so the sender goes after the others
+        log(Event.REQUEST_RECEIVED, r, indexOf(msg.sender));
+        addToRequestQueue(r, indexOf(msg.sender), 0);
+      }
+      dispatch(r);
+      release(r);
+      maybeMove();
+    }
+    else if(this.recovering){
+      Resource r = resource(msg.resource);
+      r.recoveryHolder = true;
+      if (msg.back) {
+        if (r.recoveryQueue == null) {
+          r.recoveryQueue = new TBDMXIntQueue(this.selfIndex + 1);
+        }
+        r.recoveryQueue.add(indexOf(msg.sender), 0, System.nanoTime());
+        log(Event.RECOVERY_ENQUEUED, r, indexOf(msg.sender));
+      }
+    }
+  }
+
+  /**
+   * Upon receiving a `Restart` message, the receiver sends an `Advice` message to the sender of the `Restart` which had crashed.
+   * In particular, the `Advice` message, will tell the crashed node, for each resource the receiver has a state for:
+   * if it was the holder wrt to the actual node;
+   * if the actual node made any request to satisfy any previous request;
+   * if the actual node contains the crashed node in its queue;
+   * the same for shared access, and how many `ReadGrant`s one of the two lent to the other;
+   * For the other resources it is enough to tell whether the crashed node is `rootNode`, since the token is where it started.
+   * A counter that allows avoiding starvation of the node is sent as well.
+   *
+   * @param      msg   The `Restart` message indicating a crashed node and the need for information.
+   */
+  private void onRestart(Restart msg) {
+    received(TBDMXMetrics.Message.RESTART);
+    int from = sender(msg.sender);
+    if (from == NONE) {
+      return;
+    }
+    if (this.detector != null) {
+      this.parked.get(from).clear();                                        //The `Advice` tells which requests are pending
+    }
+    this.adviceCounter++;
+    send(from, advice(from));
+  }
+
+  /**
+   * Builds the `Advice` describing the state of the node wrt a neighbor, as described in `onRestart`.
+   *
+   * @param      from  The local index of the neighbor.
+   *
+   * @return     The `Advice`.
+   */
+  private Advice advice(int from) {
+    List<Resource> known = this.resources.values();
+    int[] keys = new int[known.size()];
+    byte[] flags = new byte[known.size()];
+    int[] leases = new int[known.size()];
+    for (int i = 0; i < keys.length; i++) {
+      Resource r = known.get(i);
+      keys[i] = r.key;
+      flags[i] = (byte) ((r.holderNode==from ? Advice.HOLDER : 0)
+        | (r.asked ? Advice.ASKED : 0)
+        | (r.requestQueue != null && r.requestQueue.contains(from) ? Advice.IN_REQUEST_QUEUE : 0)
+        | (r.askedRead ? Advice.ASKED_READ : 0)
+        | (r.readQueue != null && r.readQueue.contains(from) ? Advice.IN_READ_QUEUE : 0)
+        | (r.holderNode==from ? r.askedPriority : r.requestQueue == null ? 0 : r.requestQueue.priority(from)) << Advice.PRIORITY_SHIFT);
+      leases[i] = r.holderNode==from ? r.borrowed : (r.lent == null ? 0 : r.lent[from]);
+    }
+    return new Advice(this.id, this.adviceCounter, !this.crashed && this.rootNode==from, keys, flags, leases);
+  }
+
+  /**
+   * Upon receiving an `Advice` message, the node stores such message. When it received an `Advice` from each neighbor, then it can start the recover the information it had before crashing.
+   * First of all the messages are sort by `adviceCounter` to avoid starvation. Then, for each resource mentioned by some `Advice` (the others are still in their initial state), if
+   * - All `Advice`s indicate that the crashed node was the holder, then it is the holder of the token.
+   * - One of the nodes states that the crashed node was not the holder, then it was not, but the first node is the `holderNode` for the crashed one.
+   * - One of the nodes states that the crashed nose was the `holderNode` wrt to it, and it made a request to the crashed node, then such node should be added to the requestQueue.
+   *  Then the node checks whether something happened during its recovery phase. If the `recoveryHolder` the crashed node is the holder of the token. If the `recoveryQueue` is not empty,
+   *  then some requests have arrived before recovering completely and they should be added to the `requestQueue`.
+   *  At last if the node is now the holder, then it can proceed to serve the next node in the queue. If instead it is not the holder and its queue is not empty and it hasn't make any request yet,
+   *  it will send a `Request` to its holder.
+   *
+   * @param      msg   The message containing information about the node before the crash.
+   */
+  private void onAdvice(Advice msg) {
+    received(TBDMXMetrics.Message.ADVICE);
+    if (sender(msg.sender) == NONE) {
+      return;
+    }
+    log(Event.ADVICE_RECEIVED, indexOf(msg.sender));
+    if (this.receivedAdvices == null) {
+      this.receivedAdvices = new ArrayList<>(this.selfIndex);
+    }
+    this.receivedAdvices.add(msg);                                                          //Add all Advice messages to a queue
+    if (receivedAdvices.size() == this.selfIndex) {                                        //When full start analyzes. For sure it will become full since no package can be lost.
+      this.receivedAdvices.sort((Advice a1,Advice a2)->a1.adviceCounter-a2.adviceCounter);  //Sort all messages for the adviceCounter in order not to starve any node.
+      for (Advice ad : receivedAdvices) {                                                   //Every resource some neighbor knows about has to be recovered
+        for (int key : ad.resources) {
+          resource(key);
+        }
+      }
+      List<Resource> recovered = this.resources.values();
+      for (Resource r : recovered) {
+        r.advised = 0;
+      }
+      for (int a = 0; a < receivedAdvices.size(); a++) {                                    //For all the messages in the list
+        Advice ad = receivedAdvices.get(a);
+        int from = indexOf(ad.sender);
+        for (int i = 0; i < ad.resources.length; i++) {
+          Resource r = this.resources.get(ad.resources[i]);
+          applyAdvice(r, ad.flags[i], ad.leases[i], from);
+          r.advised = a + 1;
+        }
+        for (Resource r : recovered) {                                                      //The resources not listed are in their initial state at the sender
+          if (r.advised != a + 1) {
+            applyAdvice(r, ad.holder ? Advice.HOLDER : 0, 0, from);
+          }
+        }
+      }
+      this.receivedAdvices = null;
+      recovered(recovered);
+    }
+  }
+
+  /**
+   * Ends a recovery, once the state of the resources is known again: the requests and the `Privilege`s received meanwhile are applied,
+   * then the node serves or asks for the tokens as needed.
+   *
+   * @param      recovered  The resources.
+   */
+  private void recovered(List<Resource> recovered) {
+    for (Resource r : recovered) {
+      if (r.holder) {
+        r.holderNode = this.selfIndex;
+      }
+      if (r.recoveryHolder) {                                                             //If while I was crashed I received a Privilege message, then I'm the holder.
+        this.adviceCounter = 0;
+        log(Event.RECOVERY_PRIVILEGE, r);
+        r.holder = true;
+        r.holderNode = this.selfIndex;
+        r.asked = false;
+        r.recoveryHolder = false;
+      }
+      while (r.recoveryQueue != null && !r.recoveryQueue.isEmpty()){                      //If a received Request messages while I was recovering, then I add them at the end of the queue I created before hand
+        int priority = r.recoveryQueue.priority(r.recoveryQueue.get(0));
+        long since = r.recoveryQueue.since(r.recoveryQueue.get(0));
+        int recoveredNode = r.recoveryQueue.remove();
+        if (r.requestQueue == null) {
+          r.requestQueue = new TBDMXIntQueue(this.selfIndex + 1);
+        }
+        if (r.requestQueue.add(recoveredNode, priority, since > 0 ? since : System.nanoTime())) {   //Duplicates are ignored by the queue, keeping the higher priority
+          queued(1);
+        }
+      }
+      r.recoveryQueue = null;
+      if (r.recoveryReadGrant) {                                                          //The shared access I asked was lent while recovering
+        r.askedRead = false;
+        r.recoveryReadGrant = false;
+      }
+    }
+    this.recovering = false;
+    this.fastRecovery = false;
+    log(Event.RECOVERED);
+    unstashAll();                                                           //The `Join`s that came meanwhile
+    if (this.metrics != null) {
+      this.metrics.recovered();
+    }
+
+    for (Resource r : recovered) {
+      if (r.holder){                                                                      //Finally, if I'm the holder, then I can serve the queue if it is not empty
+        r.asked = false;                                                                  //Before serving, which may ask the token back
+        dispatch(r);
+      }
+      else {
+        if (!r.asked && depth(r) > 0) {                                                   //Else I can send a Request message to my holderNode.
+          r.asked = true;
+          send(r.holderNode, request(r, false));
+          log(Event.REQUEST_SENT, r, r.holderNode);
+        }
+        readersDone(r);                                                                   //Give back the shared access lent to the readers that are over
+        if (!r.askedRead && readDepth(r) > 0) {
+          r.askedRead = true;
+          send(r.holderNode, request(r, true));
+          log(Event.READ_REQUEST_SENT, r, r.holderNode);
+        }
+      }
+      release(r);
+    }
+  }
+
+  /**
+   * Applies what a neighbor advised about a resource to its state, as described in `onAdvice`.
+   * The shared accesses are recovered in the same way: a neighbor for which the node is the holder may have asked shared access
+   * and may have been lent some, while the `holderNode` may have the node in its `readQueue` and may have lent it some.
+   *
+   * @param      r       The resource.
+   * @param      flags   The `Advice` flags of the resource.
+   * @param      leases  The `ReadGrant`s lent by one of the two nodes to the other.
+   * @param      from    The local index of the neighbor.
+   */
+  private void applyAdvice(Resource r, int flags, int leases, int from) {
+    boolean holder = (flags & Advice.HOLDER) != 0;
+    int priority = Advice.priority(flags);
+    if ((flags & Advice.ASKED) != 0 && holder) {                                            //If it requsted me the token, then I add it to the queue, with the priority it asked with.
+      if (r.requestQueue == null) {
+        r.requestQueue = new TBDMXIntQueue(this.selfIndex + 1);
+      }
+      if (r.requestQueue.add(from, priority, System.nanoTime())) {
+        queued(1);
+      }
+    }
+    r.holder &= holder;                                                                     //If all the nodes say that I'm the holder, then I'm the holder, otherwise someone else is
+    if (!holder) {
+      r.holderNode = from;                                                                  //Set the holder to that node
+      r.asked = (flags & Advice.IN_REQUEST_QUEUE) != 0;                                     //Set asked to true if I've made a request, that is I'm in its requestQueue
+      r.askedPriority = (byte) (r.asked ? priority : 0);
+      r.askedRead = (flags & Advice.IN_READ_QUEUE) != 0;
+      r.borrowed += leases;                                                                 //Shared access it lent me, to be given back
+      log(Event.HOLDER_FOUND, r, from);
+    }
+    else {
+      if ((flags & Advice.ASKED_READ) != 0) {
+        addToReadQueue(r, from);
+      }
+      if (leases > 0) {                                                                     //Shared access I lent it, to be given back
+        if (r.lent == null) {
+          r.lent = new int[this.selfIndex];
+        }
+        r.lent[from] += leases;
+        r.readers += leases;
+      }
+    }
+  }
+
+  /*-- Adaptive restructuring ----------------------------------------------- */
+  /**
+   * Counts a request of a neighbor that the node forwards towards the token, as it is not the holder.
+   * When `adaptive` requests of the same neighbor in a row went the same way, the neighbor becomes the candidate to be moved there:
+   * the neighbor, with its whole subtree, is detached from the node and attached to the next node on the way to the token,
+   * so that its requests and the token cross one edge less. Repeated moves bring the nodes that often ask for a token next to
+   * the nodes where it usually is, in the spirit of the path compression of Naimi and Trehel, while keeping a tree.
+   *
+   * @param      from     The local index of the neighbor asking.
+   * @param      towards  The local index of the neighbor the request goes to.
+   */
+  private void forwarded(int from, int towards) {
+    if (this.towards[from] != towards) {
+      this.towards[from] = towards;
+      this.forwarded[from] = 0;
+    }
+    if (++this.forwarded[from] >= this.adaptive && this.candidate == NONE && this.moving == NONE) {
+      this.forwarded[from] = 0;
+      this.candidate = from;
+      this.candidateTo = towards;
+      this.patience = this.adaptive;
+    }
+  }
+
+  /**
+   * Starts moving the candidate neighbor, if there is one and the edges towards it and towards the node it goes next to are quiet.
+   * A move involves three nodes: the node moving its neighbor `x` next to another neighbor `g`, which coordinates it, `x` and `g`.
+   * 1. The node sends a `MovePrepare` to `x` and `g`. Each of them replies with a `MoveReady` carrying its state wrt the node,
+   *    the same as in an `Advice`, and stops processing any other message until the move is over.
+   * 2. Once both replied, the node checks that the two edges are quiet for every resource: nobody asked a token or shared access
+   *    through them, no `ReadGrant` lent through them is out, and the two ends agree on where each token is,
+   *    i.e. no `Privilege` is on the way. Every message that can be on an edge leaves a trace of this kind, so the check also covers
+   *    the messages sent by the node while `x` and `g` were already frozen. Otherwise the move is aborted with a `MoveAbort`.
+   * 3. The node forgets `x`, `x` replaces the node with `g` (`Reattach`) and `g` adds `x` (`Attach`).
+   *    The tokens in the subtree of `x` are now reached through `g`, the others as before, so every `holderNode` still points to the token.
+   * Since the edges are quiet, the only state to change is which neighbor the tokens are towards.
+   * Moves are refused by crashed, recovering or frozen nodes and by nodes that already have `maxDegree` neighbors.
+   */
+  private void maybeMove() {
+    if (this.candidate == NONE || this.moving != NONE || this.crashed || this.recovering || this.leaving) {
+      return;
+    }
+    if (!quiet(this.candidate) || !quiet(this.candidateTo)) {
+      if (--this.patience <= 0) {
+        this.candidate = NONE;
+      }
+      return;
+    }
+    startMove(this.candidate, this.candidateTo);
+    this.candidate = NONE;
+  }
+
+  /**
+   * Starts moving a neighbor next to another one, see `maybeMove`.
+   *
+   * @param      x     The local index of the neighbor to move.
+   * @param      g     The local index of the neighbor it is attached to.
+   */
+  private void startMove(int x, int g) {
+    this.moving = x;
+    this.movingTo = g;
+    this.moveRound++;
+    this.movingState = null;
+    this.movingToState = null;
+    log(Event.MOVE_PROPOSED, x);
+    send(x, new MovePrepare(this.id, this.moveRound, false));
+    send(g, new MovePrepare(this.id, this.moveRound, true));
+  }
+
+  /**
+   * Checks that no resource of the node is waiting for something through an edge.
+   *
+   * @param      k     The local index of the neighbor at the other end of the edge.
+   *
+   * @return     `true` if the edge is quiet on this side.
+   */
+  private boolean quiet(int k) {
+    for (Resource r : this.resources.values()) {
+      if ((r.holderNode == k && (r.asked || r.askedRead || r.borrowed > 0))
+          || (r.requestQueue != null && r.requestQueue.contains(k))
+          || (r.readQueue != null && r.readQueue.contains(k))
+          || (r.lent != null && r.lent[k] > 0)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks that the state of a neighbor, taken when it was frozen, shows a quiet edge and that the two ends agree on where every token is:
+   * exactly one of them must point to the other.
+   *
+   * @param      k      The local index of the neighbor.
+   * @param      state  Its state wrt the node.
+   *
+   * @return     `true` if the edge can be moved.
+   */
+  private boolean agrees(int k, Advice state) {
+    if ((this.rootNode == k) == state.holder) {
+      return false;
+    }
+    for (int i = 0; i < state.resources.length; i++) {
+      int f = state.flags[i];
+      boolean theirs = (f & Advice.HOLDER) != 0;
+      if ((theirs && (f & (Advice.ASKED | Advice.ASKED_READ)) != 0)
+          || (f & (Advice.IN_REQUEST_QUEUE | Advice.IN_READ_QUEUE)) != 0 || state.leases[i] != 0) {
+        return false;
+      }
+      Resource r = this.resources.get(state.resources[i]);
+      if (((r == null ? this.rootNode : r.holderNode) == k) == theirs) {
+        return false;
+      }
+    }
+    int[] listed = state.resources.clone();
+    Arrays.sort(listed);
+    for (Resource r : this.resources.values()) {
+      if (Arrays.binarySearch(listed, r.key) < 0 && (r.holderNode == k) == state.holder) {
+        return false;
+      }
+    }
+    return quiet(k);
+  }
+
+  /**
+   * Called on a `MovePrepare`: unless it cannot take part in a move now, the node sends its state and freezes until the move is over.
+   *
+   * @param      msg   The message.
+   */
+  private void onMovePrepare(MovePrepare msg) {
+    received(TBDMXMetrics.Message.MOVE);
+    int from = sender(msg.sender);
+    if (from == NONE) {
+      return;
+    }
+    if (this.frozenBy != NONE || this.crashed || this.recovering || this.moving != NONE
+        || (msg.attach && (this.selfIndex >= this.maxDegree || this.leaving))) {
+      send(from, new MoveReady(this.id, msg.round, null));
+      return;
+    }
+    send(from, new MoveReady(this.id, msg.round, advice(from)));
+    this.frozenBy = msg.sender;
+    getContext().become(frozen(), false);
+  }
+
+  /**
+   * Collects the `MoveReady` of the two nodes involved in a move started by the node, and completes the move or aborts it, see `maybeMove`.
+   *
+   * @param      msg   The message.
+   */
+  private void onMoveReady(MoveReady msg) {
+    received(TBDMXMetrics.Message.MOVE);
+    if (this.moving == NONE || msg.round != this.moveRound) {
+      return;
+    }
+    int from = indexOf(msg.sender);
+    if (this.movingTo == NONE) {
+      detach(msg.state);
+      return;
+    }
+    if (msg.state == null) {
+      if (this.leaving && from == this.movingTo) {                          //The successor takes no more neighbors, try with another one
+        this.successor = neighborId(this.moving);
+      }
+      abortMove();
+      return;
+    }
+    if (from == this.moving) {
+      this.movingState = msg.state;
+    }
+    else if (from == this.movingTo) {
+      this.movingToState = msg.state;
+    }
+    if (this.movingState == null || this.movingToState == null) {
+      return;
+    }
+    if (!agrees(this.moving, this.movingState) || !agrees(this.movingTo, this.movingToState)) {
+      abortMove();
+      return;
+    }
+    int x = this.moving;
+    int g = this.movingTo;
+    this.moving = NONE;
+    this.movingState = null;
+    if (neighborId(x) == this.orderedNode && neighborId(g) == this.orderedTo) {
+      this.orderedNode = NONE;
+    }
+    // The resources whose token is in the subtree of x, which g now reaches directly. Those that g has no state for
+    // follow `rootNode`, so when it changes the others have to be told to stay towards the node.
+    List<Resource> known = this.resources.values();
+    int[] listed = this.movingToState.resources;
+    this.movingToState = null;
+    int[] towardsNode = new int[known.size() + listed.length];
+    int[] towardsSender = new int[known.size() + listed.length];
+    int n = 0;
+    int m = 0;
+    for (Resource r : known) {
+      if (r.holderNode == x) {
+        towardsNode[n++] = r.key;
+      }
+      else {
+        towardsSender[m++] = r.key;
+      }
+    }
+    for (int key : listed) {
+      if (this.resources.get(key) == null) {
+        if (this.rootNode == x) {
+          towardsNode[n++] = key;
+        }
+      }
+    }
+    boolean root = this.rootNode == x;
+    send(g, new Attach(this.id, neighborId(x), neighbor(x), Arrays.copyOf(towardsNode, n), root ? Arrays.copyOf(towardsSender, m) : new int[0], root));
+    send(x, new Reattach(this.id, neighborId(g), neighbor(g)));
+    log(Event.NEIGHBOR_MOVED, x);
+    for (Resource r : known) {
+      if (r.holderNode == x) {
+        r.holderNode = g;
+      }
+    }
+    if (root) {
+      this.rootNode = g;
+    }
+    // Forget x, the indices after it shift down by one
+    int[] map = new int[this.selfIndex + 1];
+    for (int k = 0; k <= this.selfIndex; k++) {
+      map[k] = k < x ? k : k - 1;
+    }
+    map[x] = NONE;
+    ActorRef[] neighbors = new ActorRef[this.selfIndex - 1];
+    int[] ids = new int[this.selfIndex - 1];
+    for (int k = 0; k < this.selfIndex; k++) {
+      if (k != x) {
+        neighbors[map[k]] = neighbor(k);
+        ids[map[k]] = neighborId(k);
+      }
+    }
+    renumber(neighbors, ids, map);
+    for (Resource r : this.resources.values()) {
+      release(r);
+    }
+  }
+
+  private void abortMove() {
+    log(Event.MOVE_ABORTED, this.moving);
+    MoveAbort abort = new MoveAbort(this.id);
+    send(this.moving, abort);
+    if (this.movingTo != NONE) {
+      send(this.movingTo, abort);
+    }
+    this.moving = NONE;
+    this.movingState = null;
+    this.movingToState = null;
+  }
+
+  /**
+   * Called on the node being moved: the node that moves it is replaced by the new neighbor, with the same local index,
+   * since every token that was towards the old neighbor is now towards the new one.
+   *
+   * @param      msg   The message.
+   */
+  private void onReattach(Reattach msg) {
+    received(TBDMXMetrics.Message.MOVE);
+    int k = indexOf(msg.sender);
+    if (msg.sender != this.frozenBy || k == NONE) {
+      stash();
+      return;
+    }
+    ownNeighbors();
+    this.neighbors[k] = msg.toRef;
+    this.neighborIds[k] = msg.to;
+    indexNeighbors();
+    if (this.checkpoint != null) {                                          //A new edge
+      this.sentTo[k] = 0;
+      this.receivedFrom[k] = 0;
+    }
+    if (this.detector != null) {
+      this.detector.reset(k, System.nanoTime());
+    }
+    log(Event.MOVED, k);
+    unfreeze();
+  }
+
+  /**
+   * Called on the node a moved node is attached to: it adds the new neighbor and points to it the tokens that are in its subtree.
+   *
+   * @param      msg   The message.
+   */
+  private void onAttach(Attach msg) {
+    received(TBDMXMetrics.Message.MOVE);
+    if (msg.sender != this.frozenBy) {
+      stash();
+      return;
+    }
+    int x = this.selfIndex;
+    int[] map = new int[this.selfIndex + 1];
+    for (int k = 0; k < this.selfIndex; k++) {
+      map[k] = k;
+    }
+    map[this.selfIndex] = this.selfIndex + 1;
+    ownNeighbors();
+    ActorRef[] neighbors = Arrays.copyOf(this.neighbors, this.selfIndex + 1);
+    int[] ids = Arrays.copyOf(this.neighborIds, this.selfIndex + 1);
+    neighbors[x] = msg.nodeRef;
+    ids[x] = msg.node;
+    renumber(neighbors, ids, map);
+    for (int key : msg.towardsSender) {                       //Their state would otherwise follow `rootNode` to the new neighbor
+      resource(key);
+    }
+    for (int key : msg.towardsNode) {
+      Resource r = resource(key);
+      r.holder = false;
+      r.holderNode = x;
+    }
+    if (msg.root) {
+      this.rootNode = x;
+    }
+    for (Resource r : this.resources.values()) {
+      release(r);
+    }
+    log(Event.NEIGHBOR_ADDED, x);
+    unfreeze();
+  }
+
+  private void onMoveAbort(MoveAbort msg) {
+    received(TBDMXMetrics.Message.MOVE);
+    if (msg.sender == this.frozenBy) {
+      unfreeze();
+    }
+  }
+
+  private void unfreeze() {
+    this.frozenBy = NONE;
+    getContext().unbecome();
+    unstashAll();
+  }
+
+  /*-- Membership ----------------------------------------------------------- */
+  /**
+   * Called on a `Join`: the new node becomes the last neighbor of the node, which then sends it its only neighbor, the node, and
+   * tells it that every token is that way. No message can be on the new edge yet, so the tree grows without freezing anybody.
+   * A crashed or recovering node takes the new neighbor once recovered, since the recovery waits for an `Advice` from every neighbor.
+   *
+   * @param      msg   The message.
+   */
+  private void onJoin(Join msg) {
+    received(TBDMXMetrics.Message.MOVE);
+    if (this.crashed || this.recovering) {
+      stash();
+      return;
+    }
+    int x = this.selfIndex;
+    int[] map = new int[this.selfIndex + 1];
+    for (int k = 0; k < this.selfIndex; k++) {
+      map[k] = k;
+    }
+    map[this.selfIndex] = this.selfIndex + 1;
+    ownNeighbors();
+    ActorRef[] neighbors = Arrays.copyOf(this.neighbors, this.selfIndex + 1);
+    int[] ids = Arrays.copyOf(this.neighborIds, this.selfIndex + 1);
+    neighbors[x] = msg.nodeRef;
+    ids[x] = msg.node;
+    renumber(neighbors, ids, map);
+    msg.nodeRef.tell(new SetNeighbors(Collections.singletonList(getSelf()), new int[] {this.id}, this.id), ActorRef.noSender());
+    log(Event.NEIGHBOR_JOINED, x);
+  }
+
+  /**
+   * Called on a `Leave`: the node starts leaving the tree, see `reshape`. The neighbor that takes over is the one towards the initial holder.
+   * The last node of a tree cannot leave.
+   *
+   * @param      msg   The message.
+   */
+  private void onLeave(Leave msg) {
+    if (this.leaving) {
+      return;
+    }
+    if (this.selfIndex == 0) {
+      log(Event.LEAVE_REFUSED);
+      return;
+    }
+    this.leaving = true;
+    this.successor = neighborId(this.rootNode != NONE && this.rootNode < this.selfIndex ? this.rootNode : 0);
+    log(Event.LEAVING, indexOf(this.successor));
+  }
+
+  private void onMoveNeighbor(MoveNeighbor msg) {
+    this.orderedNode = msg.node;
+    this.orderedTo = msg.to;
+    this.orderAttempts = 0;
+  }
+
+  private void onReshape(Reshape msg) {
+    this.retry = null;
+  }
+
+  /**
+   * Carries out the changes of the tree asked by the controller, one move at a time and only when the edges involved are quiet,
+   * with the same steps as the moves of the adaptive mode, see `maybeMove`:
+   * 1. A `MoveNeighbor` moves a neighbor, with the nodes behind it, next to another one; the node gives up after `ORDER_ATTEMPTS` aborted moves.
+   * 2. A node leaving moves its neighbors next to its `successor` one by one, until it is a leaf. Meanwhile it takes no moved nodes,
+   *    and still serves the requests, its own included.
+   * 3. The leaf freezes the `successor` with a `MovePrepare`, as if it were to be moved, and once the edge is quiet and the node has
+   *    no request, CS or shared access going on, it gives the tokens it holds to the `successor` with a `Detach` and stops.
+   * It is called after every message and, while something is left to do, every `RESHAPE_RETRY` ms.
+   * A crash suspends all of this until the recovery is over; a node that joins the tree meanwhile is moved as well.
+   */
+  private void reshape() {
+    if (this.moving == NONE && this.frozenBy == NONE && !this.crashed && !this.recovering) {
+      if (this.orderedNode != NONE) {
+        int x = indexOf(this.orderedNode);
+        int g = indexOf(this.orderedTo);
+        if (x == NONE || g == NONE || x == g || this.orderAttempts >= ORDER_ATTEMPTS) {
+          log(Event.MOVE_REFUSED, x);
+          this.orderedNode = NONE;
+        }
+        else if (quiet(x) && quiet(g)) {
+          this.orderAttempts++;
+          startMove(x, g);
+        }
+      }
+      else if (this.leaving) {
+        int g = indexOf(this.successor);
+        if (g == NONE) {                                                    //Moved away by a neighbor
+          g = 0;
+          this.successor = neighborId(g);
+        }
+        if (this.selfIndex > 1) {
+          int x = g == 0 ? 1 : 0;
+          if (quiet(x) && quiet(g)) {
+            startMove(x, g);
+          }
+        }
+        else if (idle()) {
+          this.moving = g;
+          this.movingTo = NONE;
+          this.moveRound++;
+          send(g, new MovePrepare(this.id, this.moveRound, false));
+        }
+      }
+    }
+    if ((this.orderedNode != NONE || this.leaving) && this.retry == null) {
+      this.retry = getContext().getSystem().scheduler().scheduleOnce(Duration.create(RESHAPE_RETRY, TimeUnit.MILLISECONDS),
+        getSelf(), Reshape.INSTANCE, getContext().dispatcher(), getSelf());
+    }
+  }
+
+  /**
+   * Checks that nothing is going on at the node: no CS, no request waiting, its own or of others, and no shared access lent or borrowed.
+   *
+   * @return     `true` if the node is idle.
+   */
+  private boolean idle() {
+    for (Resource r : this.resources.values()) {
+      if (r.using || r.asked || depth(r) > 0 || r.reading || r.askedRead || readDepth(r) > 0 || r.readers > 0 || r.borrowed > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Last step of a leave, on the `MoveReady` of the only neighbor left. The two ends of the edge agree on where every token is,
+   * and no message is on the edge, so the tokens the node holds, if any, are now held by the neighbor; if the node was `rootNode`
+   * the neighbor becomes it, for the resources that have no state yet. Otherwise the neighbor is released and the leave is tried again later.
+   *
+   * @param      state  The state of the neighbor wrt the node, `null` if it cannot take part in a move now.
+   */
+  private void detach(Advice state) {
+    if (state == null) {
+      this.moving = NONE;
+      return;
+    }
+    if (!agrees(this.moving, state) || !idle()) {
+      abortMove();
+      return;
+    }
+    int[] held = new int[this.resources.size()];
+    int n = 0;
+    for (Resource r : this.resources.values()) {
+      if (r.holder) {
+        held[n++] = r.key;
+      }
+    }
+    send(this.moving, new Detach(this.id, this.rootNode == this.selfIndex, Arrays.copyOf(held, n)));
+    log(Event.LEFT, this.moving);
+    this.moving = NONE;
+    this.leaving = false;
+    this.orderedNode = NONE;
+    getContext().stop(getSelf());
+  }
+
+  /**
+   * Called on the neighbor a leaving node detaches from, which is frozen by it: the node takes the tokens the leaving node held and forgets it.
+   *
+   * @param      msg   The message.
+   */
+  private void onDetach(Detach msg) {
+    received(TBDMXMetrics.Message.MOVE);
+    int x = indexOf(msg.sender);
+    if (msg.sender != this.frozenBy || x == NONE) {
+      stash();
+      return;
+    }
+    for (int key : msg.tokens) {
+      Resource r = resource(key);
+      r.holder = true;
+      r.holderNode = this.selfIndex;
+    }
+    if (msg.root) {
+      for (Resource r : this.resources.values()) {
+        if (r.holderNode == x) {
+          r.holder = true;
+          r.holderNode = this.selfIndex;
+        }
+      }
+      this.rootNode = this.selfIndex;
+    }
+    log(Event.NEIGHBOR_LEFT, x);
+    // Forget x, the indices after it shift down by one
+    int[] map = new int[this.selfIndex + 1];
+    for (int k = 0; k <= this.selfIndex; k++) {
+      map[k] = k < x ? k : k - 1;
+    }
+    map[x] = NONE;
+    ActorRef[] neighbors = new ActorRef[this.selfIndex - 1];
+    int[] ids = new int[this.selfIndex - 1];
+    for (int k = 0; k < this.selfIndex; k++) {
+      if (k != x) {
+        neighbors[map[k]] = neighbor(k);
+        ids[map[k]] = neighborId(k);
+      }
+    }
+    renumber(neighbors, ids, map);
+    for (Resource r : this.resources.values()) {
+      release(r);
+    }
+    unfreeze();
+  }
+
+  /**
+   * Changes the neighbors of the node, renumbering the local indices in its whole state: index `k` becomes `map[k]`, `selfIndex` included.
+   * The indices mapped to `NONE` must not appear in the state of any resource.
+   *
+   * @param      neighbors  The new neighbors.
+   * @param      ids        Their ids.
+   * @param      map        The new index of each old one.
+   */
+  private void renumber(ActorRef[] neighbors, int[] ids, int[] map) {
+    flush();                                                                //Held with the old indices
+    this.outbox = null;
+    this.neighbors = neighbors;
+    this.neighborIds = ids;
+    this.tree = null;
+    this.nodes = null;
+    this.selfIndex = neighbors.length;
+    indexNeighbors();
+    if (this.rootNode != NONE) {
+      this.rootNode = map[this.rootNode];
+    }
+    if (this.checkpoint != null) {
+      int[] sentTo = new int[this.selfIndex];
+      int[] receivedFrom = new int[this.selfIndex];
+      for (int k = 0; k < this.sentTo.length; k++) {
+        if (map[k] != NONE) {
+          sentTo[map[k]] = this.sentTo[k];
+          receivedFrom[map[k]] = this.receivedFrom[k];
+        }
+      }
+      this.sentTo = sentTo;
+      this.receivedFrom = receivedFrom;
+    }
+    if (this.detector != null) {
+      this.detector.renumber(map, this.selfIndex, System.nanoTime());
+      List<List<Request>> parked = new ArrayList<>(this.selfIndex);
+      for (int k = 0; k < this.selfIndex; k++) {
+        parked.add(new ArrayList<>(0));
+      }
+      for (int k = 0; k < this.parked.size(); k++) {
+        if (map[k] != NONE) {
+          parked.set(map[k], this.parked.get(k));
+        }
+      }
+      this.parked = parked;
+    }
+    for (Resource r : this.resources.values()) {
+      if (r.holderNode != NONE) {
+        r.holderNode = map[r.holderNode];
+      }
+      r.requestQueue = renumber(r.requestQueue, map);
+      r.readQueue = renumber(r.readQueue, map);
+      if (r.lent != null) {
+        int[] lent = new int[this.selfIndex];
+        for (int k = 0; k < r.lent.length; k++) {
+          if (map[k] != NONE) {
+            lent[map[k]] = r.lent[k];
+          }
+        }
+        r.lent = lent;
+      }
+    }
+  }
+
+  private TBDMXIntQueue renumber(TBDMXIntQueue queue, int[] map) {
+    if (queue == null) {
+      return null;
+    }
+    TBDMXIntQueue renumbered = new TBDMXIntQueue(this.selfIndex + 1);
+    for (int i = 0; i < queue.size(); i++) {
+      int k = queue.get(i);
+      renumbered.add(map[k], queue.priority(k), queue.since(k) > 0 ? queue.since(k) : System.nanoTime());
+    }
+    return renumbered;
+  }
+
+  /**
+   * Upon receiving a `Crash` message, if the node was not already crashed or recovering, then it crashes, which implies the lose of knowledge regarding the tokens and the requests.
+   * The list of neighbors and the direction of the initial holder are preserved.
+   *
+   * @param      msg   The message which dooms a node.
+   */
+  private void onCrash(Crash msg) {
+    if (!this.crashed && !this.recovering){                                 //If I receive the crashed command, and my status is not crashed, then
+      flush();                                                              //What was sent before the crash is not lost
+      log(Event.CRASHED);
+      this.crashed = true;                                                  //Set my status to crashed
+      this.resources.clear();                                               //Forget the tokens, the queues and the CSs, whose pending `ReleaseCS` will be ignored
+      Arrays.fill(this.sentTo, 0);                                          //and the counters, which are in the checkpoint
+      Arrays.fill(this.receivedFrom, 0);
+      for (List<Request> requests : this.parked) {
+        requests.clear();
+      }
+      if (this.restartAfter > 0) {
+        this.restart = getContext().getSystem().scheduler().scheduleOnce(
+          Duration.create(this.restartAfter, TimeUnit.MILLISECONDS), getSelf(), Recovery.INSTANCE, getContext().dispatcher(), getSelf()
+        );
+      }
+      if (this.metrics != null) {
+        this.metrics.crashed();
+      }
+      if (this.moving != NONE) {                                            //Release the nodes frozen by a move of mine
+        abortMove();
+      }
+      this.candidate = NONE;
+    }
+    else {
+      log(Event.CRASH_IGNORED);
+    }
+  }
+
+  /**
+   * Upon receipt of a `Recovery` message, if the token is still crashed, then it starts the recovery procedure,
+   * which implies as a first step to send a `Restart` message to all the neighbors to gather information.
+   * With a checkpoint, the node first restores its state from there and only sends a `Validate` to each neighbor, see `onValidation`;
+   * if the checkpoint cannot be read the `Restart`s follow the `Validate`s at once.
+   *
+   * @param      msg   A message that tells to a crashed node to reboot.
+   */
+  private void onRecovery(Recovery msg) {
+    log(Event.RECOVERING);
+    if (this.crashed){ //If it crashed
+      if (this.restart != null) {
+        this.restart.cancel();
+        this.restart = null;
+      }
+      if (this.detector != null) {
+        this.detector.reset(System.nanoTime());                             //It heard nobody while down
+      }
+      this.crashed = false; //It is not in the crashed phase anymore
+      this.recovering = true; //But it starts to recover.
+      if (this.metrics != null) {
+        this.metrics.recovering();
+      }
+      if (this.checkpoint != null) {
+        this.fastRecovery = restore(this.checkpoint.load());
+        this.stale = false;
+        this.validations = 0;
+        for (int k = 0; k < this.selfIndex; k++) {
+          send(k, new Validate(this.id, this.sentTo[k]));
+        }
+        if (this.fastRecovery) {
+          log(Event.CHECKPOINT_RESTORED);
+          if (this.selfIndex == 0) {
+            recovered(this.resources.values());
+          }
+          return;
+        }
+      }
+      restart();
+    }
+    else {
+      log(Event.RECOVERY_IGNORED);
+    }
+  }
+
+  private void restart() {
+    Restart restart = new Restart(this.id);
+    for (int k = 0; k < this.selfIndex; k++) { //For all its neighbors
+      send(k, restart); //It asks for infos
+    }
+  }
+
+  /*-- Failure detection ---------------------------------------------------- */
+  /**
+   * Called every `heartbeat` ms, when failure detection is enabled: the node sends a `Heartbeat` to each neighbor, unless it is crashed,
+   * and checks with its `TBDMXFailureDetector` whether some neighbor has been silent for too long.
+   * Requests for a suspected neighbor are parked instead of being sent into the void: when the neighbor is heard again they are sent,
+   * when it recovers they are dropped, since its recovery (`Restart` or `Validate`) finds out about them anyway.
+   * With `restart-after` a crashed node also recovers by itself that many ms after the crash, without waiting for a `Recovery`,
+   * so the tokens it held are unavailable for at most the detection time of its neighbors plus `restart-after` plus the recovery.
+   *
+   * @param      msg   The message.
+   */
+  private void onTick(Tick msg) {
+    if (this.crashed) {
+      return;
+    }
+    for (int k = 0; k < this.selfIndex; k++) {
+      if (this.metrics != null) {
+        this.metrics.sent(this.heartbeat);
+      }
+      neighbor(k).tell(this.heartbeat, getSelf());
+    }
+    long now = System.nanoTime();
+    for (int k = 0; k < this.selfIndex; k++) {
+      long silence = this.detector.check(k, now);
+      if (silence >= 0) {
+        log(Event.NEIGHBOR_SUSPECTED, k);
+        if (this.metrics != null) {
+          this.metrics.suspected(silence);
+        }
+      }
+    }
+  }
+
+  private void onHeartbeat(Heartbeat msg) {
+    received(TBDMXMetrics.Message.HEARTBEAT);
+    int from = indexOf(msg.sender);                                         //It may come from a neighbor moved away meanwhile
+    if (from == NONE || this.crashed || this.detector == null) {
+      return;
+    }
+    long suspected = this.detector.heartbeat(from, System.nanoTime());
+    if (suspected >= 0) {
+      log(Event.NEIGHBOR_ALIVE, from);
+      if (this.metrics != null) {
+        this.metrics.unsuspected(suspected);
+      }
+      flush(from);
+    }
+  }
+
+  /**
+   * Sends the requests parked for a neighbor.
+   *
+   * @param      k     The local index of the neighbor.
+   */
+  private void flush(int k) {
+    List<Request> requests = this.parked.get(k);
+    if (requests.isEmpty()) {
+      return;
+    }
+    this.parked.set(k, new ArrayList<>(0));
+    for (Request request : requests) {
+      send(k, request);
+    }
+  }
+
+  /*-- Checkpoint ----------------------------------------------------------- */
+  /**
+   * Writes the state of the node to its checkpoint, after every message that may change it (unless crashed or recovering):
+   * the neighbors, the token messages sent to and received from each of them, and the resources.
+   * On a recovery the node restores this state, which is the one it had when it crashed, except for the messages it lost while down.
+   * Those are found by comparing, for each edge, the token messages the neighbor sent with those the node received (`onValidation`).
+   * The CSs of the node and its own requests are lost in a crash anyway, so they are dropped from the restored state.
+   */
+  private void checkpoint() {
+    if (this.checkpoint == null || this.crashed || this.recovering) {
+      return;
+    }
+    TBDMXCheckpoint c = this.checkpoint;
+    c.begin();
+    c.put(this.selfIndex);
+    for (int k = 0; k < this.selfIndex; k++) {
+      c.put(neighborId(k));
+      c.put(this.sentTo[k]);
+      c.put(this.receivedFrom[k]);
+    }
+    List<Resource> known = this.resources.values();
+    c.put(known.size());
+    for (Resource r : known) {
+      c.put(r.key);
+      c.put((r.holder ? 1 : 0) | (r.asked ? 2 : 0) | (r.askedRead ? 4 : 0) | (r.writerServed ? 8 : 0) | (r.using ? 16 : 0)
+            | (r.reading ? 32 : 0) | (r.lent != null ? 64 : 0) | r.askedPriority << 7);
+      c.put(r.holderNode);
+      c.put(r.readers);
+      c.put(r.borrowed);
+      put(c, r.requestQueue);
+      put(c, r.readQueue);
+      if (r.lent != null) {
+        for (int lent : r.lent) {
+          c.put(lent);
+        }
+      }
+    }
+    c.commit();
+  }
+
+  private static void put(TBDMXCheckpoint c, TBDMXIntQueue queue) {
+    int size = queue == null ? 0 : queue.size();
+    c.put(size);
+    for (int i = 0; i < size; i++) {
+      int k = queue.get(i);
+      c.put(k * TBDMXIntQueue.PRIORITIES + queue.priority(k));
+    }
+  }
+
+  /**
+   * Restores the state written by `checkpoint`, if it refers to the current neighbors.
+   *
+   * @param      image  The checkpoint, `null` if it could not be read.
+   *
+   * @return     `true` if the state was restored.
+   */
+  private boolean restore(int[] image) {
+    if (image == null || image.length == 0 || image[0] != this.selfIndex) {
+      return false;
+    }
+    try {
+      int at = 1;
+      for (int k = 0; k < this.selfIndex; k++) {
+        if (image[at] != neighborId(k)) {
+          return false;
+        }
+        this.sentTo[k] = image[at + 1];
+        this.receivedFrom[k] = image[at + 2];
+        at += 3;
+      }
+      int n = image[at++];
+      for (int i = 0; i < n; i++) {
+        Resource r = new Resource(image[at++]);
+        int flags = image[at++];
+        r.holder = (flags & 1) != 0;
+        r.asked = (flags & 2) != 0;
+        r.askedRead = (flags & 4) != 0;
+        r.writerServed = (flags & 8) != 0;
+        r.askedPriority = (byte) (flags >>> 7);
+        r.holderNode = image[at++];
+        r.readers = image[at++];
+        r.borrowed = image[at++];
+        at = queue(image, at, r, false);
+        at = queue(image, at, r, true);
+        if ((flags & 64) != 0) {
+          r.lent = Arrays.copyOfRange(image, at, at + this.selfIndex);
+          at += this.selfIndex;
+        }
+        if ((flags & 32) != 0) {                                            //The shared CS of the node is over
+          r.readers--;
+        }
+        if (r.requestQueue != null) {                                       //and so are its requests
+          r.requestQueue.discard(this.selfIndex);
+          queued(r.requestQueue.size());
+        }
+        if (r.readQueue != null) {
+          r.readQueue.discard(this.selfIndex);
+        }
+        this.resources.put(r.key, r);
+      }
+      return true;
+    }
+    catch (ArrayIndexOutOfBoundsException e) {
+      this.resources.clear();
+      return false;
+    }
+  }
+
+  private int queue(int[] image, int at, Resource r, boolean read) {
+    int size = image[at++];
+    if (size > 0) {
+      TBDMXIntQueue queue = new TBDMXIntQueue(this.selfIndex + 1);
+      long now = System.nanoTime();
+      for (int i = 0; i < size; i++) {
+        int v = image[at++];
+        queue.add(v / TBDMXIntQueue.PRIORITIES, v % TBDMXIntQueue.PRIORITIES, now);
+      }
+      if (read) {
+        r.readQueue = queue;
+      }
+      else {
+        r.requestQueue = queue;
+      }
+    }
+    return at;
+  }
+
+  /**
+   * Called on a `Validate` from a recovering neighbor: the node takes the number of token messages the neighbor sent as the
+   * number it received, and answers with the number of those it sent to the neighbor.
+   *
+   * @param      msg   The message.
+   */
+  private void onValidate(Validate msg) {
+    received(TBDMXMetrics.Message.VALIDATE);
+    int from = sender(msg.sender);
+    if (from == NONE) {
+      return;
+    }
+    if (this.checkpoint == null) {
+      send(from, new Validation(this.id, -1));                              //Never matches, the neighbor recovers from the `Advice`s
+      if (this.detector != null) {
+        this.parked.get(from).clear();
+      }
+      return;
+    }
+    this.receivedFrom[from] = msg.sent;
+    send(from, new Validation(this.id, this.sentTo[from]));
+    if (this.detector != null) {                                            //The neighbor keeps its checkpoint, which lacks them
+      flush(from);
+    }
+  }
+
+  /**
+   * Collects the `Validation`s of the neighbors. Messages on an edge are delivered in order, so those the neighbor sent before its
+   * `Validation` were either counted in the checkpoint, or received while recovering, or lost while crashed: the checkpoint is stale
+   * for that edge only in the last case, when the counts differ. When every edge agrees the recovery is over; otherwise the node
+   * forgets the restored state and falls back to the `Restart`s and `Advice`s, which only depend on the state of the neighbors.
+   *
+   * @param      msg   The message.
+   */
+  private void onValidation(Validation msg) {
+    received(TBDMXMetrics.Message.VALIDATE);
+    int from = sender(msg.sender);
+    if (from == NONE || !this.recovering) {
+      return;
+    }
+    this.stale |= this.receivedFrom[from] != msg.sent;
+    this.receivedFrom[from] = msg.sent;
+    if (!this.fastRecovery || ++this.validations < this.selfIndex) {
+      return;
+    }
+    if (this.stale) {
+      log(Event.CHECKPOINT_STALE);
+      this.fastRecovery = false;
+      List<Resource> restored = this.resources.values();
+      this.resources.clear();
+      for (Resource old : restored) {                                       //The requests of the node since the `Recovery` are kept
+        keepRequests(old);
+      }
+      if (this.metrics != null) {
+        this.metrics.crashed();
+      }
+      restart();
+      return;
+    }
+    recovered(this.resources.values());
+  }
+
+  /**
+   * Carries the requests the node made while its checkpoint was being validated over to the recovery from the `Advice`s:
+   * the restored state had none of its own, so those in a restored resource all came after the `Recovery`.
+   *
+   * @param      old   A resource of the restored state, already forgotten.
+   */
+  private void keepRequests(Resource old) {
+    boolean exclusive = old.recoveryQueue != null && old.recoveryQueue.contains(this.selfIndex);
+    boolean shared = old.readQueue != null && old.readQueue.contains(this.selfIndex);
+    if (!exclusive && !shared) {
+      return;
+    }
+    Resource r = resource(old.key);
+    if (exclusive) {
+      r.time = old.time;
+      r.work = old.work;
+      r.priority = old.priority;
+      r.requested = old.requested;
+      r.local = old.local;
+      r.recoveryQueue = new TBDMXIntQueue(this.selfIndex + 1);
+      r.recoveryQueue.add(this.selfIndex, old.priority, System.nanoTime());
+    }
+    if (shared) {
+      r.readTime = old.readTime;
+      r.readWork = old.readWork;
+      r.readRequested = old.readRequested;
+      addToReadQueue(r, this.selfIndex);
+    }
+  }
+
+  /**
+   * When the controller sends such message to the nodes, the node answers with a `Ready`: every event it logged so far is in the
+   * buffer of `TBDMXLog`, so once all the nodes answered the controller flushes the log once, see `TBDMXController.saveLog`.
+   * The node never waits for the writer itself.
+   *
+   * @param      msg   The message indicating to save the logs.
+   */
+  private void onSaveLog(SaveLog msg){
+    if (getSender() != getContext().getSystem().deadLetters()) {
+      getSender().tell(Ready.INSTANCE, getSelf());
+    }
+  }
+
+  /**
+   * Wraps the handler of a message that may change the state of the node, so that the state is written to the checkpoint afterwards.
+   */
+  private <M> FI.UnitApply<M> saved(FI.UnitApply<M> handler) {
+    if (this.checkpoint == null) {
+      return handler;
+    }
+    return msg -> {
+      handler.apply(msg);
+      checkpoint();
+    };
+  }
+
+  /**
+   * Handler of a type of message, `saved` if the state is written to the checkpoint afterwards.
+   */
+  private static final class Handler {
+    final BiConsumer<TBDMXNode, Object> handle;
+    final boolean saved;
+
+    Handler(BiConsumer<TBDMXNode, Object> handle, boolean saved) {
+      this.handle = handle;
+      this.saved = saved;
+    }
+  }
+
+  // Here we define the mapping between the received message types and our actor methods, once for all the nodes:
+  // a `Receive` built by each node, with a lambda per case, would take more memory than the rest of the node
+  private static final Map<Class<?>, Handler> HANDLERS = new HashMap<>();
+
+  @SuppressWarnings("unchecked")
+  private static <M> void handle(Class<M> type, BiConsumer<TBDMXNode, M> handler, boolean saved) {
+    HANDLERS.put(type, new Handler((BiConsumer<TBDMXNode, Object>) (BiConsumer<TBDMXNode, ?>) handler, saved));
+  }
+
+  static {
+    handle(SaveLog.class,  TBDMXNode::onSaveLog, false);
+    handle(Crash.class,  TBDMXNode::onCrash, false);
+    handle(Recovery.class,  TBDMXNode::onRecovery, false);
+    handle(ImposeHolder.class,  TBDMXNode::onImposeHolder, false);
+    handle(SetNeighbors.class,  TBDMXNode::onSetNeighbors, true);
+    handle(RequestCS.class,  TBDMXNode::onRequestCS, true);
+    handle(ReleaseCS.class,  TBDMXNode::onReleaseCS, true);
+    handle(CancelCS.class,  TBDMXNode::onCancelCS, true);
+    handle(BroadcastHolder.class,  TBDMXNode::onBroadcastHolder, false);
+    handle(Ready.class,  TBDMXNode::onReady, false);
+    handle(Request.class,  TBDMXNode::onRequest, true);
+    handle(Privilege.class,  TBDMXNode::onPrivilege, true);
+    handle(ReadGrant.class,  TBDMXNode::onReadGrant, true);
+    handle(ReadRelease.class,  TBDMXNode::onReadRelease, true);
+    handle(Restart.class,  TBDMXNode::onRestart, false);
+    handle(Advice.class,  TBDMXNode::onAdvice, true);
+    handle(Validate.class,  TBDMXNode::onValidate, true);
+    handle(Validation.class,  TBDMXNode::onValidation, true);
+    handle(MovePrepare.class,  TBDMXNode::onMovePrepare, false);
+    handle(MoveReady.class,  TBDMXNode::onMoveReady, true);
+    handle(MoveAbort.class,  (node, msg) -> {}, false);  //Sent to a node that was not ready
+    handle(Tick.class,  TBDMXNode::onTick, false);
+    handle(Heartbeat.class,  TBDMXNode::onHeartbeat, false);
+    handle(Envelope.class,  TBDMXNode::onEnvelope, false);
+    handle(Flush.class,  TBDMXNode::onFlush, false);
+    handle(Join.class,  TBDMXNode::onJoin, true);
+    handle(Leave.class,  TBDMXNode::onLeave, false);
+    handle(MoveNeighbor.class,  TBDMXNode::onMoveNeighbor, false);
+    handle(Reshape.class,  TBDMXNode::onReshape, false);
+  }
+
+  private void onMessage(Object msg) {
+    if (this.neighbors == null && this.tree == null && !(msg instanceof SetNeighbors)) {    //Joining, until the neighbor sends the tree
+      stash();
+      return;
+    }
+    this.dispatching = true;
+    boolean saved = dispatch(msg);
+    if (this.orderedNode != NONE || this.leaving) {
+      reshape();
+    }
+    if (saved && this.checkpoint != null) {
+      checkpoint();
+    }
+    this.dispatching = false;
+    flushHeld();
+  }
+
+  /**
+   * Handles a message.
+   *
+   * @param      msg   The message.
+   *
+   * @return     Whether the state is to be written to the checkpoint.
+   */
+  private boolean dispatch(Object msg) {
+    Handler handler = HANDLERS.get(msg.getClass());
+    if (handler == null) {
+      unhandled(msg);
+      return false;
+    }
+    handler.handle.accept(this, msg);
+    return handler.saved;
+  }
+
+  @Override
+  public Receive createReceive() {
+    return receiveBuilder()
+      .matchAny(this::onMessage)
       .build();
   }
-}
 
+  /**
+   * Behavior of a node frozen by a move: it answers no other `MovePrepare` and defers every other message until the move is over,
+   * except for the heartbeats.
+   *
+   * @return     The behavior.
+   */
+  private Receive frozen() {
+    return receiveBuilder()
+      .match(MovePrepare.class,  this::onMovePrepare)
+      .match(Reattach.class,  saved(this::onReattach))
+      .match(Attach.class,  saved(this::onAttach))
+      .match(Detach.class,  saved(this::onDetach))
+      .match(MoveAbort.class,  this::onMoveAbort)
+      .match(Tick.class,  this::onTick)                   //Keep beating, a move is no failure
+      .match(Heartbeat.class,  this::onHeartbeat)
+      .match(Flush.class,  this::onFlush)
+      .matchAny(msg -> stash())
+      .build();
+  }
+}
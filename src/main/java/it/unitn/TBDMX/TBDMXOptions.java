@@ -0,0 +1,110 @@
+package it.unitn.TBDMX;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Options given to the controller on the command line, in the form `--key=value` or just `--key` for boolean flags.
+ * They are immutable and can be handed to the nodes, which read the ones they are interested in.
+ */
+public class TBDMXOptions implements Serializable {
+  private final Map<String, String> values;
+
+  public TBDMXOptions(Map<String, String> values) {
+    this.values = Collections.unmodifiableMap(new HashMap<>(values));
+  }
+
+  /**
+   * Parses the command line arguments. Anything that is not an option terminates the program.
+   *
+   * @param      args  The arguments of `main`.
+   *
+   * @return     The parsed options.
+   */
+  public static TBDMXOptions parse(String[] args) {
+    Map<String, String> values = new HashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--") || arg.length() == 2) {
+        System.err.println("Invalid option `"+arg+"`, options are given as --key=value");
+        System.exit(-2);
+      }
+      int eq = arg.indexOf('=');
+      if (eq < 0) {
+        values.put(arg.substring(2), "true");
+      }
+      else {
+        values.put(arg.substring(2, eq), arg.substring(eq+1));
+      }
+    }
+    return new TBDMXOptions(values);
+  }
+
+  /**
+   * Returns these options with some values added or replaced.
+   *
+   * @param      values  The new values.
+   *
+   * @return     The new options.
+   */
+  public TBDMXOptions with(Map<String, String> values) {
+    Map<String, String> merged = new HashMap<>(this.values);
+    merged.putAll(values);
+    return new TBDMXOptions(merged);
+  }
+
+  public boolean has(String key) {
+    return this.values.containsKey(key);
+  }
+
+  public String getString(String key, String def) {
+    String v = this.values.get(key);
+    return v == null ? def : v;
+  }
+
+  public boolean getBoolean(String key, boolean def) {
+    String v = this.values.get(key);
+    return v == null ? def : Boolean.parseBoolean(v);
+  }
+
+  public int getInt(String key, int def) {
+    String v = this.values.get(key);
+    try {
+      return v == null ? def : Integer.parseInt(v);
+    }
+    catch (NumberFormatException e) {
+      System.err.println("Option `"+key+"` expects an integer, got `"+v+"`");
+      System.exit(-2);
+      return def;
+    }
+  }
+
+  public long getLong(String key, long def) {
+    String v = this.values.get(key);
+    try {
+      return v == null ? def : Long.parseLong(v);
+    }
+    catch (NumberFormatException e) {
+      System.err.println("Option `"+key+"` expects an integer, got `"+v+"`");
+      System.exit(-2);
+      return def;
+    }
+  }
+
+  public double getDouble(String key, double def) {
+    String v = this.values.get(key);
+    try {
+      return v == null ? def : Double.parseDouble(v);
+    }
+    catch (NumberFormatException e) {
+      System.err.println("Option `"+key+"` expects a number, got `"+v+"`");
+      System.exit(-2);
+      return def;
+    }
+  }
+
+  public String toString() {
+    return this.values.toString();
+  }
+}
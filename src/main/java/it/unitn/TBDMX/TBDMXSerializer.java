@@ -0,0 +1,569 @@
+package it.unitn.TBDMX;
+
+import akka.actor.ActorRef;
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.Serialization;
+import akka.serialization.SerializerWithStringManifest;
+
+import java.io.NotSerializableException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import it.unitn.TBDMX.TBDMXNode.Advice;
+import it.unitn.TBDMX.TBDMXNode.Attach;
+import it.unitn.TBDMX.TBDMXNode.BroadcastHolder;
+import it.unitn.TBDMX.TBDMXNode.Crash;
+import it.unitn.TBDMX.TBDMXNode.Detach;
+import it.unitn.TBDMX.TBDMXNode.Envelope;
+import it.unitn.TBDMX.TBDMXNode.Flush;
+import it.unitn.TBDMX.TBDMXNode.Heartbeat;
+import it.unitn.TBDMX.TBDMXNode.ImposeHolder;
+import it.unitn.TBDMX.TBDMXNode.Join;
+import it.unitn.TBDMX.TBDMXNode.Leave;
+import it.unitn.TBDMX.TBDMXNode.Message;
+import it.unitn.TBDMX.TBDMXNode.MoveAbort;
+import it.unitn.TBDMX.TBDMXNode.MoveNeighbor;
+import it.unitn.TBDMX.TBDMXNode.MovePrepare;
+import it.unitn.TBDMX.TBDMXNode.MoveReady;
+import it.unitn.TBDMX.TBDMXNode.Privilege;
+import it.unitn.TBDMX.TBDMXNode.ReadGrant;
+import it.unitn.TBDMX.TBDMXNode.ReadRelease;
+import it.unitn.TBDMX.TBDMXNode.Ready;
+import it.unitn.TBDMX.TBDMXNode.Reattach;
+import it.unitn.TBDMX.TBDMXNode.Recovery;
+import it.unitn.TBDMX.TBDMXNode.ReleaseCS;
+import it.unitn.TBDMX.TBDMXNode.Request;
+import it.unitn.TBDMX.TBDMXNode.RequestCS;
+import it.unitn.TBDMX.TBDMXNode.Reshape;
+import it.unitn.TBDMX.TBDMXNode.Restart;
+import it.unitn.TBDMX.TBDMXNode.SaveLog;
+import it.unitn.TBDMX.TBDMXNode.SetNeighbors;
+import it.unitn.TBDMX.TBDMXNode.Tick;
+import it.unitn.TBDMX.TBDMXNode.Validate;
+import it.unitn.TBDMX.TBDMXNode.Validation;
+
+/**
+ * Binary serializer of the `TBDMXNode.Message`s, used by Akka instead of Java serialization when messages leave the JVM.
+ * Each class has a fixed manifest of one or two letters, and the fields are written without any header: ids and counters as varints,
+ * resource keys (which may be negative) as zigzag varints and the booleans of a message, with the priority of a request, packed in a byte of flags.
+ * An `Envelope` holds the manifest and the length of each of its messages before their bytes.
+ * `ActorRef`s are written as their serialized path and resolved by the provider of the receiving system.
+ * A `RequestCS` carrying some `work`, and a `SetNeighbors` carrying the table shared by the nodes, are local to their JVM and cannot be serialized.
+ */
+public final class TBDMXSerializer extends SerializerWithStringManifest {
+  private static final String IMPOSE_HOLDER = "IH", SET_NEIGHBORS = "SN", REQUEST_CS = "RC", RELEASE_CS = "RL", SAVE_LOG = "SL";
+  private static final String CRASH = "C", RECOVERY = "RY", BROADCAST_HOLDER = "B", REQUEST = "Q", PRIVILEGE = "P", READ_GRANT = "RG";
+  private static final String READ_RELEASE = "RR", RESTART = "RS", MOVE_PREPARE = "MP", MOVE_READY = "MR", MOVE_ABORT = "MA";
+  private static final String REATTACH = "RA", ATTACH = "AT", ADVICE = "A", RUN = "DR", DONE = "DD";
+  private static final String VALIDATE = "V", VALIDATION = "VN", HEARTBEAT = "H", TICK = "T", READY = "RD";
+  private static final String PRIVILEGE_BACK = "PB", ENVELOPE = "E", FLUSH = "FL", JOIN = "J", LEAVE = "L", DETACH = "DT";
+  private static final String MOVE_NEIGHBOR = "MN", RESHAPE = "RH";
+  private static final byte[] EMPTY = new byte[0];
+
+  private final ExtendedActorSystem system;
+
+  public TBDMXSerializer(ExtendedActorSystem system) {
+    this.system = system;
+  }
+
+  @Override
+  public int identifier() {
+    return 0x7B_D3_C0_01;
+  }
+
+  @Override
+  public String manifest(Object o) {
+    if (o instanceof Request) return REQUEST;
+    if (o instanceof Privilege) return ((Privilege) o).back ? PRIVILEGE_BACK : PRIVILEGE;
+    if (o instanceof ReadGrant) return READ_GRANT;
+    if (o instanceof ReadRelease) return READ_RELEASE;
+    if (o instanceof BroadcastHolder) return BROADCAST_HOLDER;
+    if (o instanceof Restart) return RESTART;
+    if (o instanceof Advice) return ADVICE;
+    if (o instanceof Validate) return VALIDATE;
+    if (o instanceof Validation) return VALIDATION;
+    if (o instanceof Heartbeat) return HEARTBEAT;
+    if (o instanceof RequestCS) return REQUEST_CS;
+    if (o instanceof ReleaseCS) return RELEASE_CS;
+    if (o instanceof MovePrepare) return MOVE_PREPARE;
+    if (o instanceof MoveReady) return MOVE_READY;
+    if (o instanceof MoveAbort) return MOVE_ABORT;
+    if (o instanceof Reattach) return REATTACH;
+    if (o instanceof Attach) return ATTACH;
+    if (o instanceof Detach) return DETACH;
+    if (o instanceof Join) return JOIN;
+    if (o instanceof MoveNeighbor) return MOVE_NEIGHBOR;
+    if (o instanceof SetNeighbors) return SET_NEIGHBORS;
+    if (o instanceof ImposeHolder) return IMPOSE_HOLDER;
+    if (o instanceof SaveLog) return SAVE_LOG;
+    if (o instanceof Crash) return CRASH;
+    if (o instanceof Recovery) return RECOVERY;
+    if (o instanceof Tick) return TICK;
+    if (o instanceof Ready) return READY;
+    if (o instanceof Envelope) return ENVELOPE;
+    if (o instanceof Flush) return FLUSH;
+    if (o instanceof Leave) return LEAVE;
+    if (o instanceof Reshape) return RESHAPE;
+    if (o instanceof TBDMXDeployment.Run) return RUN;
+    if (o instanceof TBDMXDeployment.Done) return DONE;
+    throw new IllegalArgumentException("Cannot serialize "+o.getClass().getName());
+  }
+
+  @Override
+  public byte[] toBinary(Object o) {
+    Output out = new Output();
+    if (o instanceof Request) {
+      Request m = (Request) o;
+      out.varint(m.sender);
+      out.zigzag(m.resource);
+      out.flags((m.shared ? 1 : 0) | (m.upgrade ? 2 : 0) | m.priority << 2);
+    }
+    else if (o instanceof Privilege) {
+      Privilege m = (Privilege) o;
+      out.varint(m.sender);
+      out.zigzag(m.resource);
+    }
+    else if (o instanceof ReadGrant) {
+      ReadGrant m = (ReadGrant) o;
+      out.varint(m.sender);
+      out.zigzag(m.resource);
+    }
+    else if (o instanceof ReadRelease) {
+      ReadRelease m = (ReadRelease) o;
+      out.varint(m.sender);
+      out.zigzag(m.resource);
+      out.varint(m.count);
+    }
+    else if (o instanceof BroadcastHolder) {
+      out.varint(((BroadcastHolder) o).sender);
+    }
+    else if (o instanceof Restart) {
+      out.varint(((Restart) o).sender);
+    }
+    else if (o instanceof Advice) {
+      advice(out, (Advice) o);
+    }
+    else if (o instanceof Validate) {
+      out.varint(((Validate) o).sender);
+      out.zigzag(((Validate) o).sent);
+    }
+    else if (o instanceof Validation) {
+      out.varint(((Validation) o).sender);
+      out.zigzag(((Validation) o).sent);
+    }
+    else if (o instanceof Heartbeat) {
+      out.varint(((Heartbeat) o).sender);
+    }
+    else if (o instanceof RequestCS) {
+      RequestCS m = (RequestCS) o;
+      if (m.work != null) {
+        throw new IllegalArgumentException("A RequestCS with some work cannot leave its JVM");
+      }
+      out.zigzag(m.resource);
+      out.flags((m.shared ? 1 : 0) | m.priority << 2);
+      out.varlong(m.time);
+    }
+    else if (o instanceof ReleaseCS) {
+      ReleaseCS m = (ReleaseCS) o;
+      out.zigzag(m.resource);
+      out.varint(m.cs);
+    }
+    else if (o instanceof MovePrepare) {
+      MovePrepare m = (MovePrepare) o;
+      out.varint(m.sender);
+      out.varint(m.round);
+      out.flags(m.attach);
+    }
+    else if (o instanceof MoveReady) {
+      MoveReady m = (MoveReady) o;
+      out.varint(m.sender);
+      out.varint(m.round);
+      out.flags(m.state != null);
+      if (m.state != null) {
+        advice(out, m.state);
+      }
+    }
+    else if (o instanceof MoveAbort) {
+      out.varint(((MoveAbort) o).sender);
+    }
+    else if (o instanceof Reattach) {
+      Reattach m = (Reattach) o;
+      out.varint(m.sender);
+      out.varint(m.to);
+      out.string(Serialization.serializedActorPath(m.toRef));
+    }
+    else if (o instanceof Attach) {
+      Attach m = (Attach) o;
+      out.varint(m.sender);
+      out.varint(m.node);
+      out.string(Serialization.serializedActorPath(m.nodeRef));
+      out.keys(m.towardsNode);
+      out.keys(m.towardsSender);
+      out.flags(m.root);
+    }
+    else if (o instanceof Detach) {
+      Detach m = (Detach) o;
+      out.varint(m.sender);
+      out.flags(m.root);
+      out.keys(m.tokens);
+    }
+    else if (o instanceof Join) {
+      Join m = (Join) o;
+      out.varint(m.node);
+      out.string(Serialization.serializedActorPath(m.nodeRef));
+    }
+    else if (o instanceof MoveNeighbor) {
+      MoveNeighbor m = (MoveNeighbor) o;
+      out.varint(m.node);
+      out.varint(m.to);
+    }
+    else if (o instanceof SetNeighbors) {
+      SetNeighbors m = (SetNeighbors) o;
+      if (m.tree != null) {
+        throw new IllegalArgumentException("A SetNeighbors with a shared table cannot leave its JVM");
+      }
+      out.varint(m.ids.length);
+      for (int k = 0; k < m.ids.length; k++) {
+        out.varint(m.ids[k]);
+        out.string(Serialization.serializedActorPath(m.group.get(k)));
+      }
+      out.zigzag(m.holder);
+    }
+    else if (o instanceof Envelope) {
+      Envelope m = (Envelope) o;
+      out.varint(m.messages.length);
+      for (Message message : m.messages) {
+        byte[] bytes = toBinary(message);
+        out.string(manifest(message));
+        out.varint(bytes.length);
+        out.raw(bytes);
+      }
+    }
+    else if (o instanceof TBDMXDeployment.Run) {
+      TBDMXDeployment.Run m = (TBDMXDeployment.Run) o;
+      out.varlong(m.id);
+      out.varint(m.node);
+      out.zigzag(m.resource);
+      out.flags((m.shared ? 1 : 0) | m.priority << 2);
+      out.varlong(m.hold);
+    }
+    else if (o instanceof TBDMXDeployment.Done) {
+      TBDMXDeployment.Done m = (TBDMXDeployment.Done) o;
+      out.varlong(m.id);
+      out.flags(m.exited);
+    }
+    else {
+      manifest(o);                      // Singletons have no fields, anything else is rejected there
+      return EMPTY;
+    }
+    return out.toByteArray();
+  }
+
+  private static void advice(Output out, Advice m) {
+    out.varint(m.sender);
+    out.varint(m.adviceCounter);
+    out.flags(m.holder, m.leases != null);
+    out.keys(m.resources);
+    out.raw(m.flags);
+    if (m.leases != null) {
+      for (int lease : m.leases) {
+        out.varint(lease);
+      }
+    }
+  }
+
+  @Override
+  public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException {
+    Input in = new Input(bytes);
+    try {
+      switch (manifest) {
+        case REQUEST: {
+          int sender = in.varint();
+          int resource = in.zigzag();
+          int flags = in.flags();
+          return new Request(sender, resource, (flags & 1) != 0, flags >>> 2, (flags & 2) != 0);
+        }
+        case PRIVILEGE:
+          return new Privilege(in.varint(), in.zigzag());
+        case PRIVILEGE_BACK:
+          return new Privilege(in.varint(), in.zigzag(), true);
+        case READ_GRANT:
+          return new ReadGrant(in.varint(), in.zigzag());
+        case READ_RELEASE: {
+          int sender = in.varint();
+          int resource = in.zigzag();
+          return new ReadRelease(sender, resource, in.varint());
+        }
+        case BROADCAST_HOLDER:
+          return new BroadcastHolder(in.varint());
+        case RESTART:
+          return new Restart(in.varint());
+        case ADVICE:
+          return advice(in);
+        case VALIDATE: {
+          int sender = in.varint();
+          return new Validate(sender, in.zigzag());
+        }
+        case VALIDATION: {
+          int sender = in.varint();
+          return new Validation(sender, in.zigzag());
+        }
+        case HEARTBEAT:
+          return new Heartbeat(in.varint());
+        case REQUEST_CS: {
+          int resource = in.zigzag();
+          int flags = in.flags();
+          return new RequestCS(resource, (flags & 1) != 0, in.varlong(), flags >>> 2);
+        }
+        case RELEASE_CS:
+          return new ReleaseCS(in.zigzag(), in.varint());
+        case MOVE_PREPARE: {
+          int sender = in.varint();
+          int round = in.varint();
+          return new MovePrepare(sender, round, (in.flags() & 1) != 0);
+        }
+        case MOVE_READY: {
+          int sender = in.varint();
+          int round = in.varint();
+          Advice state = (in.flags() & 1) != 0 ? advice(in) : null;
+          return new MoveReady(sender, round, state);
+        }
+        case MOVE_ABORT:
+          return new MoveAbort(in.varint());
+        case REATTACH: {
+          int sender = in.varint();
+          int to = in.varint();
+          return new Reattach(sender, to, actorRef(in.string()));
+        }
+        case ATTACH: {
+          int sender = in.varint();
+          int node = in.varint();
+          ActorRef nodeRef = actorRef(in.string());
+          int[] towardsNode = in.keys();
+          int[] towardsSender = in.keys();
+          return new Attach(sender, node, nodeRef, towardsNode, towardsSender, (in.flags() & 1) != 0);
+        }
+        case DETACH: {
+          int sender = in.varint();
+          boolean root = (in.flags() & 1) != 0;
+          return new Detach(sender, root, in.keys());
+        }
+        case JOIN: {
+          int node = in.varint();
+          return new Join(node, actorRef(in.string()));
+        }
+        case MOVE_NEIGHBOR: {
+          int node = in.varint();
+          return new MoveNeighbor(node, in.varint());
+        }
+        case SET_NEIGHBORS: {
+          int[] ids = new int[in.varint()];
+          List<ActorRef> group = new ArrayList<>(ids.length);
+          for (int k = 0; k < ids.length; k++) {
+            ids[k] = in.varint();
+            group.add(actorRef(in.string()));
+          }
+          return new SetNeighbors(group, ids, in.zigzag());
+        }
+        case IMPOSE_HOLDER:
+          return ImposeHolder.INSTANCE;
+        case SAVE_LOG:
+          return SaveLog.INSTANCE;
+        case CRASH:
+          return Crash.INSTANCE;
+        case RECOVERY:
+          return Recovery.INSTANCE;
+        case TICK:
+          return Tick.INSTANCE;
+        case READY:
+          return Ready.INSTANCE;
+        case FLUSH:
+          return Flush.INSTANCE;
+        case LEAVE:
+          return Leave.INSTANCE;
+        case RESHAPE:
+          return Reshape.INSTANCE;
+        case ENVELOPE: {
+          Message[] messages = new Message[in.varint()];
+          for (int i = 0; i < messages.length; i++) {
+            String m = in.string();
+            messages[i] = (Message) fromBinary(in.raw(in.varint()), m);
+          }
+          return new Envelope(messages);
+        }
+        case RUN: {
+          long id = in.varlong();
+          int node = in.varint();
+          int resource = in.zigzag();
+          int flags = in.flags();
+          return new TBDMXDeployment.Run(id, node, resource, (flags & 1) != 0, flags >>> 2, in.varlong());
+        }
+        case DONE: {
+          long id = in.varlong();
+          return new TBDMXDeployment.Done(id, (in.flags() & 1) != 0);
+        }
+        default:
+          throw new NotSerializableException("Unknown manifest `"+manifest+"`");
+      }
+    }
+    catch (ArrayIndexOutOfBoundsException | NegativeArraySizeException e) {
+      throw new NotSerializableException("Malformed message with manifest `"+manifest+"`");
+    }
+  }
+
+  private static Advice advice(Input in) {
+    int sender = in.varint();
+    int adviceCounter = in.varint();
+    int flags = in.flags();
+    int[] resources = in.keys();
+    byte[] resourceFlags = in.raw(resources.length);
+    int[] leases = null;
+    if ((flags & 2) != 0) {
+      leases = new int[resources.length];
+      for (int i = 0; i < leases.length; i++) {
+        leases[i] = in.varint();
+      }
+    }
+    return new Advice(sender, adviceCounter, (flags & 1) != 0, resources, resourceFlags, leases);
+  }
+
+  private ActorRef actorRef(String path) {
+    return this.system.provider().resolveActorRef(path);
+  }
+
+  /**
+   * Growable buffer the fields are written to.
+   */
+  private static final class Output {
+    private byte[] buf = new byte[16];
+    private int pos;
+
+    private void ensure(int n) {
+      if (this.pos + n > this.buf.length) {
+        this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length * 2, this.pos + n));
+      }
+    }
+
+    void varint(int v) {
+      ensure(5);
+      while ((v & ~0x7F) != 0) {
+        this.buf[this.pos++] = (byte) ((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      this.buf[this.pos++] = (byte) v;
+    }
+
+    void varlong(long v) {
+      ensure(10);
+      while ((v & ~0x7FL) != 0) {
+        this.buf[this.pos++] = (byte) ((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      this.buf[this.pos++] = (byte) v;
+    }
+
+    void zigzag(int v) {
+      varint((v << 1) ^ (v >> 31));
+    }
+
+    void flags(boolean bit0) {
+      flags(bit0, false);
+    }
+
+    void flags(boolean bit0, boolean bit1) {
+      flags((bit0 ? 1 : 0) | (bit1 ? 2 : 0));
+    }
+
+    void flags(int bits) {
+      ensure(1);
+      this.buf[this.pos++] = (byte) bits;
+    }
+
+    void keys(int[] keys) {
+      varint(keys.length);
+      for (int key : keys) {
+        zigzag(key);
+      }
+    }
+
+    void raw(byte[] bytes) {
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, this.buf, this.pos, bytes.length);
+      this.pos += bytes.length;
+    }
+
+    void string(String s) {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      varint(bytes.length);
+      raw(bytes);
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(this.buf, this.pos);
+    }
+  }
+
+  private static final class Input {
+    private final byte[] buf;
+    private int pos;
+
+    Input(byte[] buf) {
+      this.buf = buf;
+    }
+
+    int varint() {
+      int v = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = this.buf[this.pos++];
+        v |= (b & 0x7F) << shift;
+        if (b >= 0) {
+          return v;
+        }
+      }
+    }
+
+    long varlong() {
+      long v = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = this.buf[this.pos++];
+        v |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          return v;
+        }
+      }
+    }
+
+    int zigzag() {
+      int v = varint();
+      return (v >>> 1) ^ -(v & 1);
+    }
+
+    int flags() {
+      return this.buf[this.pos++];
+    }
+
+    int[] keys() {
+      int[] keys = new int[varint()];
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = zigzag();
+      }
+      return keys;
+    }
+
+    byte[] raw(int n) {
+      if (n < 0 || this.pos + n > this.buf.length) {
+        throw new ArrayIndexOutOfBoundsException(this.pos + n);
+      }
+      byte[] bytes = Arrays.copyOfRange(this.buf, this.pos, this.pos + n);
+      this.pos += n;
+      return bytes;
+    }
+
+    String string() {
+      int n = varint();
+      return new String(raw(n), StandardCharsets.UTF_8);
+    }
+  }
+}
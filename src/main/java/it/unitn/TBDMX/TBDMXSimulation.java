@@ -0,0 +1,811 @@
+package it.unitn.TBDMX;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Discrete-event simulation of Raymond's algorithm, a second execution engine that runs the same node logic as `TBDMXNode`
+ * (requests, token passing, piggybacked requests, crashes and the `Restart`/`Advice` recovery) on a single thread and a virtual clock.
+ *
+ * There are no actors nor message objects: every node has a region of ints in `state`, with its record, its edges and its request queue
+ * one after the other, so that handling a message mostly touches one or two cache lines, and is referred to by the position of its region;
+ * the recovery queue and the advices of node i are stored in the slots `offsets[i]+i ... offsets[i+1]+i` (one per neighbor plus one for
+ * the node itself) of shared arrays. Neighbors are referred to by their local index, a node being the local index `degree` of itself,
+ * exactly as in the CSR of the topology.
+ * Events are kept in a binary heap ordered by time and then by creation, so a run depends only on its parameters and is exactly reproducible.
+ * Channels are FIFO like Akka's: a message never overtakes a previous one on the same edge (with a constant delay this holds by construction).
+ *
+ * All times are virtual nanoseconds.
+ */
+public final class TBDMXSimulation {
+  // Event types. The first ones are also messages and index `messages`.
+  private static final byte REQUEST = 0, PRIVILEGE = 1, RESTART = 2, ADVICE = 3;
+  private static final byte ARRIVAL = 4, RELEASE_CS = 5, CRASH = 6, RECOVERY = 7, REQUEST_CS = 8;
+  private static final String[] MESSAGE_NAMES = { "Request", "Privilege", "Restart", "Advice" };
+
+  // Node flags
+  private static final byte ASKED = 1, USING = 2, CRASHED = 4, RECOVERING = 8, RECOVERY_HOLDER = 16;
+
+  // Advice flags
+  private static final int ADV_HOLDER = 1, ADV_ASKED = 2, ADV_IN_QUEUE = 4;
+
+  /**
+   * The parameters of a run.
+   */
+  public static final class Params {
+    public long seed = 1;
+    public int root = 0;                // initial holder
+    public long requests = 1_000_000;   // number of `RequestCS`
+    public double rate = 1e5;           // requests per virtual second, at uniformly random nodes
+    public long csTime = 1_000;         // mean duration of a CS
+    public boolean csExponential;       // exponentially distributed CS durations instead of constant ones
+    public long delay = 1_000;          // minimum delay of a message
+    public long jitter = 0;             // additional delay, uniform in [0, jitter)
+    public int crashes;                 // crashes injected at uniformly random times and nodes
+    public long downtime = 1_000_000;   // time between a crash and the recovery
+
+    /**
+     * Reads the parameters from the options `--seed`, `--root`, `--requests`, `--rate`, `--cs-time` (microseconds), `--cs-dist` (`const` or `exp`),
+     * `--delay` (microseconds), `--jitter` (microseconds), `--crashes` and `--downtime` (microseconds).
+     *
+     * @param      options  The options.
+     *
+     * @return     The parameters.
+     */
+    public static Params from(TBDMXOptions options) {
+      Params p = new Params();
+      p.seed = options.getLong("seed", p.seed);
+      p.root = options.getInt("root", p.root);
+      p.requests = options.getLong("requests", p.requests);
+      p.rate = options.getDouble("rate", p.rate);
+      p.csTime = (long) (options.getDouble("cs-time", p.csTime / 1e3) * 1e3);
+      p.csExponential = options.getString("cs-dist", "const").equals("exp");
+      p.delay = (long) (options.getDouble("delay", p.delay / 1e3) * 1e3);
+      p.jitter = (long) (options.getDouble("jitter", p.jitter / 1e3) * 1e3);
+      p.crashes = options.getInt("crashes", p.crashes);
+      p.downtime = (long) (options.getDouble("downtime", p.downtime / 1e3) * 1e3);
+      return p;
+    }
+  }
+
+  private final Params params;
+  private final SplittableRandom rnd;
+  private final int n;
+  private final int[] offsets;
+  private final int[] regions;      // position of the region of node i in `state`
+  private final long[] lastArrival; // per directed edge, to keep channels FIFO when delays vary
+
+  // Node state: the region of a node at b is its record, the fields below at `state[b + field]`, then for its k-th neighbor the position
+  // of the region of the neighbor at `b + S + 2k` and the local index of the node at the neighbor at `b + S + 2k + 1`, then its request
+  // queue, the entry s at `b + S + 2*degree + 2s` and at the next int 1 if the local index s is in the queue.
+  // The fields only used while recovering are in `recovery`, at `recovery[id*R + field]`, to keep the record small.
+  private static final int DEG = 0;            // degree
+  private static final int HOLDER = 1;         // local index of `holderNode`, `DEG` if the node is the holder, -1 if unknown
+  private static final int FLAGS = 2;
+  private static final int QHEAD = 3, QSIZE = 4;
+  private static final int ADVICE_COUNTER = 5;
+  private static final int CS_EPOCH = 6;       // to recognize the `RELEASE_CS` of a CS lost in a crash
+  private static final int LOCAL_HEAD = 7, LOCAL_TAIL = 8; // local requests waiting at the node, as a linked list of their arrival times
+  private static final int ID = 9;
+  private static final int S = 10;
+  private static final int RHEAD = 0, RSIZE = 1, ADV_RECEIVED = 2;
+  private static final int R = 3;
+  private final int[] state;
+  private final int[] recovery;
+  private final int[] recoveryQueue;
+  private final int[] advFlags, advCounter, advOrder;
+  private long[] advSort = new long[16];
+
+  private long[] reqTime = new long[1024];
+  private int[] reqNext = new int[1024];
+  private int freeReq = -1, reqUsed;
+
+  // Event heap: `heap` holds the indices of the events in the pool, ordered by (time, seq)
+  private int[] heap = new int[1024];
+  private int heapSize;
+  private long[] evTime = new long[1024], evSeq = new long[1024];
+  private int[] evNode = new int[1024], evArg = new int[1024], evData = new int[1024];
+  private byte[] evType = new byte[1024];
+  private int[] freeEv = new int[1024];
+  private int freeEvSize, evUsed;
+  private long seq;
+
+  // Run state and statistics
+  private long now;
+  private long arrived, granted, dropped, lost, errors, events, checksum;
+  private int inCS, maxHeap;
+  private final long[] messages = new long[MESSAGE_NAMES.length];
+  private final TBDMXHistogram waits = new TBDMXHistogram();
+
+  public TBDMXSimulation(TBDMXTopology topology, Params params) {
+    this.params = params;
+    this.rnd = new SplittableRandom(params.seed);
+    this.n = topology.size();
+    this.offsets = new int[n + 1];
+    for (int i = 0; i < n; i++) {
+      this.offsets[i + 1] = this.offsets[i] + topology.degree(i);
+    }
+    int m = this.offsets[n];
+    long size = (long) (S + 2) * n + 4L * m;
+    if (size > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("Tree too large to simulate: "+n+" nodes");
+    }
+    this.state = new int[(int) size];
+    this.regions = new int[n];
+    int[] order = depthFirst(topology, params.root);
+    for (int j = 0, b = 0; j < n; j++) {
+      int i = order[j];
+      int d = this.offsets[i + 1] - this.offsets[i];
+      this.regions[i] = b;
+      this.state[b + DEG] = d;
+      this.state[b + LOCAL_HEAD] = -1;
+      this.state[b + LOCAL_TAIL] = -1;
+      this.state[b + ID] = i;
+      b += S + 4 * d + 2;
+    }
+    int[] targets = new int[m];
+    for (int i = 0; i < n; i++) {
+      for (int k = 0, d = topology.degree(i); k < d; k++) {
+        targets[this.offsets[i] + k] = topology.neighbor(i, k);
+      }
+    }
+    int[] reverse = computeReverse(targets);
+    for (int i = 0; i < n; i++) {
+      for (int e = this.offsets[i], k = 0; e < this.offsets[i + 1]; e++, k++) {
+        this.state[this.regions[i] + S + 2 * k] = this.regions[targets[e]];
+        this.state[this.regions[i] + S + 2 * k + 1] = reverse[e];
+      }
+    }
+    this.lastArrival = params.jitter > 0 ? new long[m] : null;
+    this.recovery = new int[R * n];
+    this.recoveryQueue = new int[m + n];
+    this.advFlags = new int[m + n];
+    this.advCounter = new int[m + n];
+    this.advOrder = new int[m + n];
+    initHolders();
+  }
+
+  /**
+   * Returns the nodes in a depth-first visit from the root, the order of their regions: the regions of a node and of its first
+   * child are next to each other, and so are those of the nodes of a small subtree.
+   */
+  private static int[] depthFirst(TBDMXTopology topology, int root) {
+    int n = topology.size();
+    int[] order = new int[n];
+    int[] stack = new int[n];
+    boolean[] seen = new boolean[n];
+    int visited = 0, top = 0;
+    for (int start = root; visited < n; start = (start + 1) % n) {   // A forest is laid out one tree after the other
+      if (seen[start]) {
+        continue;
+      }
+      seen[start] = true;
+      stack[top++] = start;
+      while (top > 0) {
+        int u = stack[--top];
+        order[visited++] = u;
+        for (int k = topology.degree(u) - 1; k >= 0; k--) {
+          int v = topology.neighbor(u, k);
+          if (!seen[v]) {
+            seen[v] = true;
+            stack[top++] = v;
+          }
+        }
+      }
+    }
+    return order;
+  }
+
+  private int degree(int i) {
+    return this.state[i + DEG];
+  }
+
+  /**
+   * Returns the first slot of a node in the arrays of the recovery queues and of the advices.
+   */
+  private int slot(int i) {
+    return this.offsets[this.state[i + ID]] + this.state[i + ID];
+  }
+
+  /**
+   * Returns the position of the fields of a node in `recovery`.
+   */
+  private int recovery(int i) {
+    return R * this.state[i + ID];
+  }
+
+  /**
+   * Returns the position of the request queue of a node in `state`.
+   */
+  private int queue(int i) {
+    return i + S + 2 * this.state[i + DEG];
+  }
+
+  /**
+   * For each directed edge u->v, finds the position of u among the neighbors of v, by sorting the neighbors of every node once.
+   */
+  private int[] computeReverse(int[] targets) {
+    int m = this.offsets[n];
+    long[] sorted = new long[m];
+    for (int i = 0; i < n; i++) {
+      for (int e = this.offsets[i]; e < this.offsets[i + 1]; e++) {
+        sorted[e] = ((long) targets[e] << 32) | (e - this.offsets[i]);
+      }
+      Arrays.sort(sorted, this.offsets[i], this.offsets[i + 1]);
+    }
+    int[] rev = new int[m];
+    for (int u = 0; u < n; u++) {
+      for (int e = this.offsets[u]; e < this.offsets[u + 1]; e++) {
+        int v = targets[e];
+        int pos = Arrays.binarySearch(sorted, this.offsets[v], this.offsets[v + 1], (long) u << 32);
+        pos = pos < 0 ? -pos - 1 : pos;
+        if (pos >= this.offsets[v + 1] || (int) (sorted[pos] >>> 32) != u) {
+          throw new IllegalArgumentException("Node "+u+" lists "+v+" as neighbor, but not vice versa");
+        }
+        rev[e] = (int) sorted[pos];
+      }
+    }
+    return rev;
+  }
+
+  /**
+   * Sets the holder pointers as the `BroadcastHolder` flood from `root` would: every node points to its neighbor towards the root.
+   */
+  private void initHolders() {
+    for (int i = 0; i < n; i++) {
+      this.state[this.regions[i] + HOLDER] = -1;
+    }
+    int[] bfs = new int[n];
+    int head = 0, tail = 0;
+    int root = this.regions[params.root];
+    bfs[tail++] = root;
+    this.state[root + HOLDER] = degree(root);
+    while (head < tail) {
+      int u = bfs[head++];
+      for (int k = 0, d = degree(u); k < d; k++) {
+        int v = this.state[u + S + 2 * k];
+        if (this.state[v + HOLDER] == -1) {
+          this.state[v + HOLDER] = this.state[u + S + 2 * k + 1];
+          bfs[tail++] = v;
+        }
+      }
+    }
+  }
+
+  /*-- Events --------------------------------------------------------------- */
+
+  private void schedule(long time, byte type, int node, int arg, int data) {
+    int ev;
+    if (this.freeEvSize > 0) {
+      ev = this.freeEv[--this.freeEvSize];
+    }
+    else {
+      ev = this.evUsed++;
+      if (ev == this.evTime.length) {
+        int len = ev * 2;
+        this.evTime = Arrays.copyOf(this.evTime, len);
+        this.evSeq = Arrays.copyOf(this.evSeq, len);
+        this.evNode = Arrays.copyOf(this.evNode, len);
+        this.evArg = Arrays.copyOf(this.evArg, len);
+        this.evData = Arrays.copyOf(this.evData, len);
+        this.evType = Arrays.copyOf(this.evType, len);
+        this.freeEv = Arrays.copyOf(this.freeEv, len);
+      }
+    }
+    this.evTime[ev] = time;
+    this.evSeq[ev] = this.seq++;
+    this.evType[ev] = type;
+    this.evNode[ev] = node;
+    this.evArg[ev] = arg;
+    this.evData[ev] = data;
+    if (this.heapSize == this.heap.length) {
+      this.heap = Arrays.copyOf(this.heap, this.heapSize * 2);
+    }
+    int i = this.heapSize++;
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (!before(ev, this.heap[parent])) {
+        break;
+      }
+      this.heap[i] = this.heap[parent];
+      i = parent;
+    }
+    this.heap[i] = ev;
+    if (this.heapSize > this.maxHeap) {
+      this.maxHeap = this.heapSize;
+    }
+  }
+
+  private boolean before(int a, int b) {
+    return this.evTime[a] < this.evTime[b] || (this.evTime[a] == this.evTime[b] && this.evSeq[a] < this.evSeq[b]);
+  }
+
+  private int pop() {
+    int top = this.heap[0];
+    int last = this.heap[--this.heapSize];
+    int i = 0;
+    int half = this.heapSize >>> 1;
+    while (i < half) {
+      int child = 2 * i + 1;
+      if (child + 1 < this.heapSize && before(this.heap[child + 1], this.heap[child])) {
+        child++;
+      }
+      if (!before(this.heap[child], last)) {
+        break;
+      }
+      this.heap[i] = this.heap[child];
+      i = child;
+    }
+    this.heap[i] = last;
+    this.freeEv[this.freeEvSize++] = top;
+    return top;
+  }
+
+  /**
+   * Sends a message from a node to one of its neighbors, after the configured delay but never before the previous message on the same edge.
+   */
+  private void send(int from, int k, byte type, int data) {
+    long at = this.now + this.params.delay;
+    if (this.lastArrival != null) {
+      int e = this.offsets[this.state[from + ID]] + k;
+      at += this.rnd.nextLong(this.params.jitter);
+      if (at < this.lastArrival[e]) {
+        at = this.lastArrival[e];
+      }
+      this.lastArrival[e] = at;
+    }
+    this.messages[type]++;
+    schedule(at, type, this.state[from + S + 2 * k], this.state[from + S + 2 * k + 1], data);
+  }
+
+  /*-- Node logic, as in `TBDMXNode` ---------------------------------------- */
+
+  private boolean is(int i, byte flag) {
+    return (this.state[i + FLAGS] & flag) != 0;
+  }
+
+  private void set(int i, byte flag, boolean value) {
+    this.state[i + FLAGS] = (byte) (value ? this.state[i + FLAGS] | flag : this.state[i + FLAGS] & ~flag);
+  }
+
+  private boolean holder(int i) {
+    return this.state[i + HOLDER] == degree(i);
+  }
+
+  private void addToRequestQueue(int i, int k) {
+    int q = queue(i);
+    if (this.state[q + 2 * k + 1] == 0) {
+      this.state[q + 2 * k + 1] = 1;
+      int tail = this.state[i + QHEAD] + this.state[i + QSIZE];
+      if (tail > degree(i)) {
+        tail -= degree(i) + 1;
+      }
+      this.state[q + 2 * tail] = k;
+      this.state[i + QSIZE]++;
+    }
+  }
+
+  private int removeFromRequestQueue(int i) {
+    int q = queue(i);
+    int k = this.state[q + 2 * this.state[i + QHEAD]];
+    this.state[i + QHEAD] = this.state[i + QHEAD] == degree(i) ? 0 : this.state[i + QHEAD] + 1;
+    this.state[i + QSIZE]--;
+    this.state[q + 2 * k + 1] = 0;
+    return k;
+  }
+
+  private void addToRecoveryQueue(int i, int k) {
+    int base = slot(i);
+    int cap = degree(i) + 1;
+    int r = recovery(i);
+    for (int j = 0; j < this.recovery[r + RSIZE]; j++) {
+      if (this.recoveryQueue[base + (this.recovery[r + RHEAD] + j) % cap] == k) {
+        return;
+      }
+    }
+    this.recoveryQueue[base + (this.recovery[r + RHEAD] + this.recovery[r + RSIZE]) % cap] = k;
+    this.recovery[r + RSIZE]++;
+  }
+
+  private void criticalSection(int i) {
+    if (this.state[i + LOCAL_HEAD] == -1) { // the node is served but nobody here is waiting anymore
+      this.errors++;
+      if (this.state[i + QSIZE] > 0) {
+        serveQueue(i);
+      }
+      return;
+    }
+    set(i, USING, true);
+    if (++this.inCS > 1) {
+      throw new IllegalStateException("Mutual exclusion violated at time "+this.now+": node "+this.state[i + ID]+" entered the CS while another node is in it");
+    }
+    int req = this.state[i + LOCAL_HEAD];
+    this.state[i + LOCAL_HEAD] = this.reqNext[req];
+    if (this.state[i + LOCAL_HEAD] == -1) {
+      this.state[i + LOCAL_TAIL] = -1;
+    }
+    this.waits.record(this.now - this.reqTime[req]);
+    this.reqNext[req] = this.freeReq;
+    this.freeReq = req;
+    this.checksum = this.checksum * 31 + this.state[i + ID];
+    long duration = this.params.csExponential
+      ? (long) (-Math.log(1 - this.rnd.nextDouble()) * this.params.csTime)
+      : this.params.csTime;
+    schedule(this.now + duration, RELEASE_CS, i, 0, this.state[i + CS_EPOCH]);
+  }
+
+  private void serveQueue(int i) {
+    if (this.state[i + QSIZE] == 0) {
+      this.errors++;
+      return;
+    }
+    int head = removeFromRequestQueue(i);
+    if (head == degree(i)) {
+      criticalSection(i);
+    }
+    else {
+      send(i, head, PRIVILEGE, 0);
+      this.state[i + HOLDER] = head;
+      if (this.state[i + QSIZE] > 0) {
+        send(i, head, REQUEST, 0);
+        set(i, ASKED, true);
+      }
+    }
+  }
+
+  private void onRequestCS(int i) {
+    this.arrived++;
+    if (is(i, CRASHED)) {
+      this.dropped++;
+      return;
+    }
+    int req;
+    if (this.freeReq >= 0) {
+      req = this.freeReq;
+      this.freeReq = this.reqNext[req];
+    }
+    else {
+      req = this.reqUsed++;
+      if (req == this.reqTime.length) {
+        this.reqTime = Arrays.copyOf(this.reqTime, req * 2);
+        this.reqNext = Arrays.copyOf(this.reqNext, req * 2);
+      }
+    }
+    this.reqTime[req] = this.now;
+    this.reqNext[req] = -1;
+    if (this.state[i + LOCAL_TAIL] == -1) {
+      this.state[i + LOCAL_HEAD] = req;
+    }
+    else {
+      this.reqNext[this.state[i + LOCAL_TAIL]] = req;
+    }
+    this.state[i + LOCAL_TAIL] = req;
+    if (is(i, RECOVERING)) {
+      addToRecoveryQueue(i, degree(i));
+    }
+    else if (this.state[i + QSIZE] > 0 || is(i, USING)) {
+      addToRequestQueue(i, degree(i));
+    }
+    else if (!holder(i)) {
+      addToRequestQueue(i, degree(i));
+      send(i, this.state[i + HOLDER], REQUEST, 0);
+      set(i, ASKED, true);
+    }
+    else {
+      criticalSection(i);
+    }
+  }
+
+  private void onReleaseCS(int i, int epoch) {
+    if (!is(i, USING) || epoch != this.state[i + CS_EPOCH]) {
+      return;
+    }
+    set(i, USING, false);
+    this.inCS--;
+    this.granted++;
+    if (this.state[i + LOCAL_HEAD] != -1) { // further local requests arrived during the CS
+      addToRequestQueue(i, degree(i));
+    }
+    if (this.state[i + QSIZE] > 0) {
+      serveQueue(i);
+    }
+  }
+
+  private void onRequest(int i, int k) {
+    if (!is(i, CRASHED) && !is(i, RECOVERING)) {
+      addToRequestQueue(i, k);
+      if (!is(i, USING) && !is(i, ASKED)) {
+        if (holder(i)) {
+          serveQueue(i);
+          set(i, ASKED, false);
+        }
+        else if (this.state[i + QSIZE] == 1) {
+          set(i, ASKED, true);
+          send(i, this.state[i + HOLDER], REQUEST, 0);
+        }
+      }
+    }
+    else if (is(i, RECOVERING)) {
+      addToRecoveryQueue(i, k);
+    }
+  }
+
+  private void onPrivilege(int i) {
+    if (!is(i, CRASHED) && !is(i, RECOVERING)) {
+      this.state[i + ADVICE_COUNTER] = 0;
+      this.state[i + HOLDER] = degree(i);
+      set(i, ASKED, false);
+      serveQueue(i);
+    }
+    else if (is(i, RECOVERING)) {
+      set(i, RECOVERY_HOLDER, true);
+    }
+  }
+
+  private void onRestart(int i, int k) {
+    this.state[i + ADVICE_COUNTER]++;
+    int f = (this.state[i + HOLDER] == k ? ADV_HOLDER : 0)
+      | (is(i, ASKED) ? ADV_ASKED : 0)
+      | (this.state[queue(i) + 2 * k + 1] != 0 ? ADV_IN_QUEUE : 0);
+    send(i, k, ADVICE, f | this.state[i + ADVICE_COUNTER] << 3);
+  }
+
+  private void onAdvice(int i, int k, int data) {
+    int base = slot(i);
+    this.advFlags[base + k] = data & 7;
+    this.advCounter[base + k] = data >>> 3;
+    int r = recovery(i);
+    this.advOrder[base + this.recovery[r + ADV_RECEIVED]++] = k;
+    if (this.recovery[r + ADV_RECEIVED] == degree(i)) {
+      finishRecovery(i);
+    }
+  }
+
+  /**
+   * Rebuilds the state of a recovering node from the advices of all its neighbors, processed by increasing `adviceCounter` as in `TBDMXNode.onAdvice`.
+   */
+  private void finishRecovery(int i) {
+    int base = slot(i);
+    int d = degree(i);
+    if (this.advSort.length < d) {
+      this.advSort = new long[d];
+    }
+    for (int j = 0; j < d; j++) {
+      this.advSort[j] = ((long) this.advCounter[base + this.advOrder[base + j]] << 32) | j;
+    }
+    Arrays.sort(this.advSort, 0, d);
+    boolean holder = true;
+    for (int j = 0; j < d; j++) {
+      int k = this.advOrder[base + (int) this.advSort[j]];
+      int f = this.advFlags[base + k];
+      if ((f & ADV_ASKED) != 0 && (f & ADV_HOLDER) != 0) {
+        addToRequestQueue(i, k);
+      }
+      if ((f & ADV_HOLDER) == 0) {
+        holder = false;
+        this.state[i + HOLDER] = k;
+        set(i, ASKED, (f & ADV_IN_QUEUE) != 0);
+      }
+    }
+    int r = recovery(i);
+    this.recovery[r + ADV_RECEIVED] = 0;
+    if (is(i, RECOVERY_HOLDER)) {
+      this.state[i + ADVICE_COUNTER] = 0;
+      holder = true;
+      set(i, ASKED, false);
+      set(i, RECOVERY_HOLDER, false);
+    }
+    if (holder) {
+      this.state[i + HOLDER] = d;
+    }
+    int cap = d + 1;
+    while (this.recovery[r + RSIZE] > 0) {
+      addToRequestQueue(i, this.recoveryQueue[base + this.recovery[r + RHEAD]]);
+      this.recovery[r + RHEAD] = (this.recovery[r + RHEAD] + 1) % cap;
+      this.recovery[r + RSIZE]--;
+    }
+    if (holder) {
+      if (this.state[i + QSIZE] > 0) {
+        serveQueue(i);
+        set(i, ASKED, false);
+      }
+    }
+    else if (!is(i, ASKED) && this.state[i + QSIZE] > 0) {
+      set(i, ASKED, true);
+      send(i, this.state[i + HOLDER], REQUEST, 0);
+    }
+    set(i, RECOVERING, false);
+  }
+
+  private void onCrash(int i) {
+    if (is(i, CRASHED) || is(i, RECOVERING)) {
+      return;
+    }
+    if (is(i, USING)) {
+      this.inCS--;
+      this.state[i + CS_EPOCH]++;
+    }
+    while (this.state[i + QSIZE] > 0) {
+      removeFromRequestQueue(i);
+    }
+    while (this.state[i + LOCAL_HEAD] != -1) {
+      int req = this.state[i + LOCAL_HEAD];
+      this.state[i + LOCAL_HEAD] = this.reqNext[req];
+      this.reqNext[req] = this.freeReq;
+      this.freeReq = req;
+      this.lost++;
+    }
+    this.state[i + LOCAL_TAIL] = -1;
+    this.state[i + FLAGS] = CRASHED;
+    this.state[i + HOLDER] = degree(i);
+  }
+
+  private void onRecovery(int i) {
+    if (!is(i, CRASHED)) {
+      return;
+    }
+    for (int k = 0, d = degree(i); k < d; k++) {
+      send(i, k, RESTART, 0);
+    }
+    set(i, CRASHED, false);
+    set(i, RECOVERING, true);
+    if (degree(i) == 0) {
+      finishRecovery(i);
+    }
+  }
+
+  /*-- Run ------------------------------------------------------------------ */
+
+  private long interarrival() {
+    return (long) (-Math.log(1 - this.rnd.nextDouble()) * 1e9 / this.params.rate);
+  }
+
+  /**
+   * Adds a `RequestCS` at a node to the generated ones, to replay a given workload.
+   *
+   * @param      at    The time of the request.
+   * @param      node  The node.
+   */
+  void request(long at, int node) {
+    schedule(at, REQUEST_CS, this.regions[node], 0, 0);
+  }
+
+  /**
+   * Adds a crash of a node to the generated ones.
+   *
+   * @param      at    The time of the crash.
+   * @param      node  The node.
+   */
+  void crash(long at, int node) {
+    schedule(at, CRASH, this.regions[node], 0, 0);
+  }
+
+  /**
+   * Adds a recovery of a node to the generated ones.
+   *
+   * @param      at    The time of the recovery.
+   * @param      node  The node.
+   */
+  void recover(long at, int node) {
+    schedule(at, RECOVERY, this.regions[node], 0, 0);
+  }
+
+  /**
+   * Returns the hash of the nodes in the order they entered the CS, `checksum = checksum * 31 + node` from 0.
+   *
+   * @return     The hash.
+   */
+  long checksum() {
+    return this.checksum;
+  }
+
+  /**
+   * Returns the messages sent so far, of every type.
+   *
+   * @return     The number of messages.
+   */
+  long messages() {
+    long total = 0;
+    for (long c : this.messages) {
+      total += c;
+    }
+    return total;
+  }
+
+  /**
+   * Runs the workload until every event has been processed.
+   */
+  public void run() {
+    if (this.params.requests > 0) {
+      schedule(interarrival(), ARRIVAL, 0, 0, 0);
+    }
+    long horizon = (long) (this.params.requests * 1e9 / this.params.rate);
+    for (int c = 0; c < this.params.crashes; c++) {
+      long at = this.rnd.nextLong(Math.max(1, horizon));
+      int node = this.regions[this.rnd.nextInt(n)];
+      schedule(at, CRASH, node, 0, 0);
+      schedule(at + this.params.downtime, RECOVERY, node, 0, 0);
+    }
+    long remaining = this.params.requests;
+    while (this.heapSize > 0) {
+      int ev = pop();
+      this.now = this.evTime[ev];
+      this.events++;
+      int i = this.evNode[ev];
+      switch (this.evType[ev]) {
+        case ARRIVAL:
+          onRequestCS(this.regions[this.rnd.nextInt(n)]);
+          if (--remaining > 0) {
+            schedule(this.now + interarrival(), ARRIVAL, 0, 0, 0);
+          }
+          break;
+        case REQUEST_CS: onRequestCS(i); break;
+        case RELEASE_CS: onReleaseCS(i, this.evData[ev]); break;
+        case REQUEST:    onRequest(i, this.evArg[ev]); break;
+        case PRIVILEGE:  onPrivilege(i); break;
+        case RESTART:    onRestart(i, this.evArg[ev]); break;
+        case ADVICE:     onAdvice(i, this.evArg[ev], this.evData[ev]); break;
+        case CRASH:      onCrash(i); break;
+        case RECOVERY:   onRecovery(i); break;
+        default: throw new IllegalStateException("Unknown event "+this.evType[ev]);
+      }
+    }
+  }
+
+  /**
+   * Returns a summary of the run.
+   *
+   * @param      wallNanos  The real time taken by the run.
+   *
+   * @return     The summary, one statistic per line.
+   */
+  public String report(long wallNanos) {
+    StringBuilder sb = new StringBuilder();
+    long total = messages();
+    long pending = arrived - dropped - lost - granted;
+    sb.append("nodes              ").append(n).append('\n');
+    sb.append("requests           ").append(arrived).append(" (dropped at crashed nodes ").append(dropped)
+      .append(", lost in crashes ").append(lost).append(", never granted ").append(pending).append(")\n");
+    sb.append("grants             ").append(granted).append('\n');
+    sb.append("virtual time       ").append(String.format("%.3f s", now / 1e9)).append('\n');
+    sb.append("wall time          ").append(String.format("%.3f s", wallNanos / 1e9)).append('\n');
+    sb.append("events             ").append(events).append(" (max pending ").append(maxHeap).append(")\n");
+    sb.append("messages           ").append(total).append(String.format(" (%.3f per CS)", granted == 0 ? 0.0 : (double) total / granted)).append('\n');
+    for (int t = 0; t < MESSAGE_NAMES.length; t++) {
+      sb.append("  ").append(String.format("%-17s", MESSAGE_NAMES[t])).append(this.messages[t]).append('\n');
+    }
+    sb.append("wait (us)          ").append(String.format("mean %.1f p50 %.1f p90 %.1f p99 %.1f max %.1f",
+      waits.mean() / 1e3, waits.percentile(0.5) / 1e3, waits.percentile(0.9) / 1e3, waits.percentile(0.99) / 1e3, waits.max() / 1e3)).append('\n');
+    sb.append("errors             ").append(errors).append('\n');
+    sb.append("checksum           ").append(Long.toHexString(checksum)).append('\n');
+    return sb.toString();
+  }
+
+  /**
+   * Runs a simulation. The tree is read from `--tree` or generated with `--shape` (LINE, STAR, KARY or RANDOM), `--nodes` and `--arity`;
+   * the other options are described in `Params.from`.
+   */
+  public static void main(String[] args) {
+    TBDMXOptions options = TBDMXOptions.parse(args);
+    Params params = Params.from(options);
+    TBDMXTopology topology = null;
+    try {
+      if (options.has("tree")) {
+        topology = TBDMXTopology.load(options.getString("tree", null));
+      }
+      else {
+        topology = TBDMXTopology.generate(
+          TBDMXTopology.Shape.valueOf(options.getString("shape", "RANDOM").toUpperCase()),
+          options.getInt("nodes", 1_000_000), options.getInt("arity", 4), params.seed);
+      }
+      topology.validateTree();
+    }
+    catch (IOException e) {System.err.println("Error reading tree file! "+e.getMessage()); System.exit(-2);}
+    catch (IllegalArgumentException e) {System.err.println("Invalid tree: "+e.getMessage()); System.exit(-2);}
+    long start = System.nanoTime();
+    TBDMXSimulation sim = new TBDMXSimulation(topology, params);
+    sim.run();
+    System.out.print(sim.report(System.nanoTime() - start));
+  }
+}
@@ -0,0 +1,159 @@
+package it.unitn.TBDMX;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel running tasks at given `System.nanoTime()` deadlines on a single thread of its own.
+ * Time is divided in ticks; each slot of the wheel holds the tasks due in the ticks that map to it, with the number of
+ * turns of the wheel still to wait, so scheduling and expiring a task take constant time whatever the number of pending tasks.
+ * Deadlines are absolute, so a sequence of tasks scheduled at fixed offsets from an origin does not drift, and a task
+ * is never run before its deadline but may run up to a tick later. Tasks whose deadline already passed run at the next tick.
+ * Tasks due in the same tick run in the order they were scheduled.
+ * Tasks can be scheduled from any thread, including the wheel thread; they must not block.
+ */
+final class TBDMXTimerWheel {
+  private static final class Timeout {
+    final long deadline;
+    final Runnable task;
+    long rounds;
+    Timeout next;
+
+    Timeout(long deadline, Runnable task) {
+      this.deadline = deadline;
+      this.task = task;
+    }
+  }
+
+  private final long tick;
+  private final int mask;
+  private final Timeout[] wheel;        // first task of each slot, in the order they were scheduled
+  private final Timeout[] tails;
+  private final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+  private final Thread thread;
+  private final long start;
+  private long ticks;                   // ticks already expired
+  private volatile boolean running = true;
+
+  /**
+   * Creates the wheel and starts its thread.
+   *
+   * @param      tickNanos  The length of a tick in ns, the resolution of the wheel.
+   * @param      slots      The number of slots, rounded up to a power of two.
+   * @param      name       The name of the thread.
+   */
+  TBDMXTimerWheel(long tickNanos, int slots, String name) {
+    this.tick = Math.max(1, tickNanos);
+    int size = Integer.highestOneBit(Math.max(2, slots) - 1) << 1;
+    this.mask = size - 1;
+    this.wheel = new Timeout[size];
+    this.tails = new Timeout[size];
+    this.start = System.nanoTime();
+    this.thread = new Thread(this::loop, name);
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Runs a task at a given time.
+   *
+   * @param      deadline  The time, as given by `System.nanoTime()`.
+   * @param      task      The task.
+   */
+  void schedule(long deadline, Runnable task) {
+    this.incoming.add(new Timeout(deadline, task));
+  }
+
+  /**
+   * Stops the thread of the wheel, dropping the pending tasks, and waits for it to end.
+   */
+  void stop() {
+    this.running = false;
+    LockSupport.unpark(this.thread);
+    if (Thread.currentThread() != this.thread) {
+      try {
+        this.thread.join();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void loop() {
+    while (this.running) {
+      long deadline = this.start + (this.ticks + 1) * this.tick;
+      long now;
+      while ((now = System.nanoTime()) < deadline && this.running) {
+        LockSupport.parkNanos(deadline - now);
+      }
+      transfer();
+      int slot = (int) (this.ticks & this.mask);
+      Timeout due = null;                                       // expired tasks, run once the slot is consistent again
+      Timeout last = null;
+      Timeout kept = null;
+      Timeout keptLast = null;
+      for (Timeout t = this.wheel[slot]; t != null; t = t.next) {
+        if (t.rounds <= 0) {
+          if (last == null) {
+            due = t;
+          }
+          else {
+            last.next = t;
+          }
+          last = t;
+        }
+        else {
+          t.rounds--;
+          if (keptLast == null) {
+            kept = t;
+          }
+          else {
+            keptLast.next = t;
+          }
+          keptLast = t;
+        }
+      }
+      if (last != null) {
+        last.next = null;
+      }
+      if (keptLast != null) {
+        keptLast.next = null;
+      }
+      this.wheel[slot] = kept;
+      this.tails[slot] = keptLast;
+      this.ticks++;
+      for (Timeout t = due; t != null && this.running; t = t.next) {
+        try {
+          t.task.run();
+        }
+        catch (RuntimeException e) {
+          System.err.println("Timer task failed: "+e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves the newly scheduled tasks to their slots.
+   */
+  private void transfer() {
+    Timeout t;
+    while ((t = this.incoming.poll()) != null) {
+      long due = Math.max(this.ticks, (t.deadline - this.start + this.tick - 1) / this.tick - 1); // tick at whose end the deadline has passed
+      if (t.deadline <= this.start) {
+        due = this.ticks;
+      }
+      t.rounds = (due - this.ticks) >> Long.numberOfTrailingZeros(this.wheel.length);
+      int slot = (int) (due & this.mask);
+      t.next = null;
+      if (this.tails[slot] == null) {
+        this.wheel[slot] = t;
+      }
+      else {
+        this.tails[slot].next = t;
+      }
+      this.tails[slot] = t;
+    }
+  }
+}
@@ -0,0 +1,463 @@
+package it.unitn.TBDMX;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The structure of the tree, stored as a compressed sparse row (CSR) adjacency: the neighbors of node i are
+ * `targets[offsets[i]] ... targets[offsets[i+1]-1]`. Both arrays are `IntBuffer`s so that a binary topology can be used directly from a memory-mapped file.
+ *
+ * Three file formats are read by `load`, which recognizes them from their first bytes:
+ * 1. The n-th line contains the neighbors of the n-th node separated by spaces.
+ * 2. A GraphML (or graph-online) xml file with a `<node>` element for each node and an `<edge>` element for each edge,
+ *    whose endpoints are either `source`/`target` or `vertex1`/`vertex2`. It is parsed with StAX, so its formatting does not matter.
+ * 3. The binary format written by `writeBinary`: the magic number `TBDT`, the version, n, the number m of entries of `targets`,
+ *    then the n+1 `offsets` and the m `targets`, all big-endian ints.
+ */
+public final class TBDMXTopology {
+  public enum Shape { LINE, STAR, KARY, RANDOM }
+
+  private static final int MAGIC = 0x54424454; // "TBDT"
+  private static final int VERSION = 1;
+  private static final int HEADER_INTS = 4;
+
+  private final int n;
+  private final IntBuffer offsets;
+  private final IntBuffer targets;
+
+  private TBDMXTopology(int n, IntBuffer offsets, IntBuffer targets) {
+    this.n = n;
+    this.offsets = offsets;
+    this.targets = targets;
+  }
+
+  /**
+   * Builds a topology from a list of undirected edges. Each edge appears in the neighbors of both its endpoints, in the order of the edges.
+   *
+   * @param      n      The number of nodes.
+   * @param      from   One endpoint of each edge.
+   * @param      to     The other endpoint of each edge.
+   * @param      edges  The number of edges, that is how many entries of `from` and `to` are used.
+   *
+   * @return     The topology.
+   */
+  public static TBDMXTopology fromEdges(int n, int[] from, int[] to, int edges) {
+    int[] offsets = new int[n + 1];
+    for (int e = 0; e < edges; e++) {
+      checkNode(from[e], n);
+      checkNode(to[e], n);
+      offsets[from[e] + 1]++;
+      offsets[to[e] + 1]++;
+    }
+    for (int i = 0; i < n; i++) {
+      offsets[i + 1] += offsets[i];
+    }
+    int[] next = Arrays.copyOf(offsets, n);
+    int[] targets = new int[2 * edges];
+    for (int e = 0; e < edges; e++) {
+      targets[next[from[e]]++] = to[e];
+      targets[next[to[e]]++] = from[e];
+    }
+    return new TBDMXTopology(n, IntBuffer.wrap(offsets), IntBuffer.wrap(targets));
+  }
+
+  /**
+   * Generates a tree of the given shape.
+   * - `LINE`: node i is connected to node i+1.
+   * - `STAR`: every node is connected to node 0.
+   * - `KARY`: balanced tree in which the parent of node i is node (i-1)/arity.
+   * - `RANDOM`: random recursive tree, the parent of node i is chosen uniformly among the nodes 0..i-1.
+   *
+   * @param      shape  The shape of the tree.
+   * @param      n      The number of nodes.
+   * @param      arity  The arity of `KARY` trees.
+   * @param      seed   The seed used by `RANDOM` trees.
+   *
+   * @return     The tree.
+   */
+  public static TBDMXTopology generate(Shape shape, int n, int arity, long seed) {
+    int[] parents = new int[n];
+    int[] children = new int[n];
+    Random rnd = new Random(seed);
+    for (int i = 1; i < n; i++) {
+      int parent;
+      switch (shape) {
+        case LINE:   parent = i - 1; break;
+        case STAR:   parent = 0; break;
+        case KARY:   parent = (i - 1) / arity; break;
+        case RANDOM: parent = rnd.nextInt(i); break;
+        default: throw new IllegalArgumentException("Unknown shape "+shape);
+      }
+      parents[i - 1] = parent;
+      children[i - 1] = i;
+    }
+    return fromEdges(n, parents, children, n - 1);
+  }
+
+  private static void checkNode(int node, int n) {
+    if (node < 0 || node >= n) {
+      throw new IllegalArgumentException("Node "+node+" does not exist, there are "+n+" nodes");
+    }
+  }
+
+  public int size() {
+    return this.n;
+  }
+
+  public int degree(int node) {
+    return this.offsets.get(node + 1) - this.offsets.get(node);
+  }
+
+  /**
+   * Returns the k-th neighbor of a node.
+   *
+   * @param      node  The node.
+   * @param      k     The position of the neighbor, between 0 and `degree(node)-1`.
+   *
+   * @return     The id of the neighbor.
+   */
+  public int neighbor(int node, int k) {
+    return this.targets.get(this.offsets.get(node) + k);
+  }
+
+  /**
+   * Returns, for every node, its neighbor on the way to a root, found with a breadth-first visit: the direction of the initial holder
+   * when the root is the holder, which the nodes are given at startup instead of waiting for the `BroadcastHolder`s.
+   *
+   * @param      root  The root.
+   *
+   * @return     The parent of each node, the root being its own parent.
+   */
+  public int[] parents(int root) {
+    checkNode(root, this.n);
+    int[] parent = new int[this.n];
+    Arrays.fill(parent, -1);
+    int[] queue = new int[this.n];
+    int head = 0;
+    int tail = 0;
+    parent[root] = root;
+    queue[tail++] = root;
+    while (head < tail) {
+      int i = queue[head++];
+      for (int k = 0; k < degree(i); k++) {
+        int j = neighbor(i, k);
+        if (parent[j] < 0) {
+          parent[j] = i;
+          queue[tail++] = j;
+        }
+      }
+    }
+    return parent;
+  }
+
+  /**
+   * Checks that the topology is a tree: every neighbor exists, the adjacency is symmetric, there are n-1 edges, no cycles and every node is reachable from node 0.
+   *
+   * @throws     IllegalArgumentException  If the topology is not a tree, explaining why.
+   */
+  public void validateTree() {
+    if (this.n == 0) {
+      throw new IllegalArgumentException("The tree has no nodes");
+    }
+    int m = this.offsets.get(this.n);
+    if (this.offsets.get(0) != 0 || m != this.targets.limit()) {
+      throw new IllegalArgumentException("Malformed adjacency offsets");
+    }
+    if (m != 2 * (this.n - 1)) {
+      throw new IllegalArgumentException("A tree of "+this.n+" nodes has "+(this.n - 1)+" edges, found "+(m / 2.0));
+    }
+    int[] parent = new int[this.n];
+    Arrays.fill(parent, -2);
+    int[] queue = new int[this.n];
+    int head = 0, tail = 0;
+    queue[tail++] = 0;
+    parent[0] = -1;
+    while (head < tail) {
+      int u = queue[head++];
+      boolean parentSeen = false;
+      for (int k = 0, d = degree(u); k < d; k++) {
+        int v = neighbor(u, k);
+        checkNode(v, this.n);
+        if (v == u) {
+          throw new IllegalArgumentException("Node "+u+" is a neighbor of itself");
+        }
+        if (v == parent[u] && !parentSeen) {
+          parentSeen = true;
+        }
+        else if (parent[v] != -2) {
+          throw new IllegalArgumentException("The edge "+u+"-"+v+" closes a cycle");
+        }
+        else {
+          if (!hasNeighbor(v, u)) {
+            throw new IllegalArgumentException("Node "+u+" lists "+v+" as neighbor, but not vice versa");
+          }
+          parent[v] = u;
+          queue[tail++] = v;
+        }
+      }
+    }
+    if (tail != this.n) {
+      throw new IllegalArgumentException("The tree is not connected, only "+tail+" of "+this.n+" nodes are reachable from node 0");
+    }
+  }
+
+  private boolean hasNeighbor(int node, int neighbor) {
+    for (int k = 0, d = degree(node); k < d; k++) {
+      if (neighbor(node, k) == neighbor) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Writes the topology in the binary format, which can then be memory-mapped by `load`.
+   *
+   * @param      file         The file to write.
+   *
+   * @throws     IOException  If the file cannot be written.
+   */
+  public void writeBinary(String file) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(this.n);
+      out.writeInt(this.targets.limit());
+      for (int i = 0; i <= this.n; i++) {
+        out.writeInt(this.offsets.get(i));
+      }
+      for (int i = 0; i < this.targets.limit(); i++) {
+        out.writeInt(this.targets.get(i));
+      }
+    }
+  }
+
+  /**
+   * Reads a topology from a file in any of the supported formats.
+   *
+   * @param      file         The file to read.
+   *
+   * @return     The topology.
+   *
+   * @throws     IOException  If the file cannot be read.
+   * @throws     IllegalArgumentException  If the content of the file is malformed.
+   */
+  public static TBDMXTopology load(String file) throws IOException {
+    byte[] start = new byte[4];
+    int read;
+    try (InputStream in = new FileInputStream(file)) {
+      read = in.read(start);
+    }
+    if (read == 4 && ((start[0] & 0xff) << 24 | (start[1] & 0xff) << 16 | (start[2] & 0xff) << 8 | (start[3] & 0xff)) == MAGIC) {
+      return loadBinary(file);
+    }
+    try (PushbackInputStream in = new PushbackInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+      int c;
+      do {
+        c = in.read();
+      } while (c != -1 && Character.isWhitespace(c));
+      if (c != -1) {
+        in.unread(c);
+      }
+      if (c == '<') {
+        return loadGraphML(in);
+      }
+      return loadNeighborLists(in);
+    }
+  }
+
+  private static TBDMXTopology loadBinary(String file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+      MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      map.order(ByteOrder.BIG_ENDIAN);
+      IntBuffer ints = map.asIntBuffer();
+      if (ints.limit() < HEADER_INTS || ints.get(1) != VERSION) {
+        throw new IllegalArgumentException("Unsupported binary topology");
+      }
+      int n = ints.get(2);
+      int m = ints.get(3);
+      if (n < 0 || m < 0 || (long) HEADER_INTS + n + 1 + m != ints.limit()) {
+        throw new IllegalArgumentException("Truncated binary topology");
+      }
+      ints.position(HEADER_INTS).limit(HEADER_INTS + n + 1);
+      IntBuffer offsets = ints.slice();
+      ints.limit(HEADER_INTS + n + 1 + m).position(HEADER_INTS + n + 1);
+      IntBuffer targets = ints.slice();
+      return new TBDMXTopology(n, offsets, targets);
+    }
+  }
+
+  /**
+   * Reads the neighbor lists format without regular expressions nor boxing: the characters are scanned once
+   * and the ids appended directly to the arrays of the CSR.
+   */
+  private static TBDMXTopology loadNeighborLists(InputStream in) throws IOException {
+    BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII), 1 << 16);
+    int[] offsets = new int[1024];
+    int[] targets = new int[4096];
+    int n = 0, m = 0;
+    int value = 0;
+    boolean inNumber = false, lineHasContent = false;
+    int c;
+    while (true) {
+      c = br.read();
+      if (c >= '0' && c <= '9') {
+        value = value * 10 + (c - '0');
+        inNumber = true;
+        lineHasContent = true;
+        continue;
+      }
+      if (inNumber) {
+        if (m == targets.length) {
+          targets = Arrays.copyOf(targets, m * 2);
+        }
+        targets[m++] = value;
+        value = 0;
+        inNumber = false;
+      }
+      if (c == '\n' || c == -1) {
+        if (lineHasContent) {
+          if (n + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+          }
+          offsets[++n] = m;
+          lineHasContent = false;
+        }
+        if (c == -1) {
+          break;
+        }
+      }
+      else if (c != ' ' && c != '\t' && c != '\r') {
+        throw new IllegalArgumentException("Unexpected character `"+(char) c+"` in line "+(n + 1));
+      }
+    }
+    return new TBDMXTopology(n, IntBuffer.wrap(offsets, 0, n + 1).slice(), IntBuffer.wrap(targets, 0, m).slice());
+  }
+
+  /**
+   * Reads a GraphML file with a streaming parser. Node ids can be numbers, in which case they must be 0..n-1,
+   * or any string, in which case nodes are numbered in order of appearance.
+   */
+  private static TBDMXTopology loadGraphML(InputStream in) throws IOException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    int nodes = 0, edges = 0;
+    int[] from = new int[1024];
+    int[] to = new int[1024];
+    int[] ids = new int[1024];
+    Map<String, Integer> names = null; // Only used if the ids are not numbers, which is decided by the first id found
+    boolean decided = false;
+    try {
+      XMLStreamReader xml = factory.createXMLStreamReader(in);
+      while (xml.hasNext()) {
+        if (xml.next() != XMLStreamConstants.START_ELEMENT) {
+          continue;
+        }
+        String element = xml.getLocalName();
+        if (element.equals("node")) {
+          String id = xml.getAttributeValue(null, "id");
+          if (id == null) {
+            throw new IllegalArgumentException("<node> without id");
+          }
+          if (nodes == ids.length) {
+            ids = Arrays.copyOf(ids, nodes * 2);
+          }
+          if (!decided) {
+            names = isNumber(id) ? null : new HashMap<>();
+            decided = true;
+          }
+          ids[nodes++] = names == null ? parseNode(id) : index(names, id);
+        }
+        else if (element.equals("edge")) {
+          String a = xml.getAttributeValue(null, "source");
+          String b = xml.getAttributeValue(null, "target");
+          if (a == null || b == null) {
+            a = xml.getAttributeValue(null, "vertex1");
+            b = xml.getAttributeValue(null, "vertex2");
+          }
+          if (a == null || b == null) {
+            throw new IllegalArgumentException("<edge> without endpoints");
+          }
+          if (!decided) {
+            names = isNumber(a) ? null : new HashMap<>();
+            decided = true;
+          }
+          if (edges == from.length) {
+            from = Arrays.copyOf(from, edges * 2);
+            to = Arrays.copyOf(to, edges * 2);
+          }
+          from[edges] = names == null ? parseNode(a) : index(names, a);
+          to[edges] = names == null ? parseNode(b) : index(names, b);
+          edges++;
+        }
+      }
+      xml.close();
+    }
+    catch (XMLStreamException e) {
+      throw new IOException("Malformed xml: "+e.getMessage(), e);
+    }
+    if (names != null && names.size() != nodes) {
+      throw new IllegalArgumentException("Edges refer to "+(names.size() - nodes)+" undeclared nodes");
+    }
+    boolean[] declared = new boolean[nodes];
+    for (int i = 0; i < nodes; i++) {
+      checkNode(ids[i], nodes);
+      if (declared[ids[i]]) {
+        throw new IllegalArgumentException("Node "+ids[i]+" declared twice");
+      }
+      declared[ids[i]] = true;
+    }
+    return fromEdges(nodes, from, to, edges);
+  }
+
+  private static boolean isNumber(String s) {
+    if (s.isEmpty() || s.length() > 9) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int parseNode(String s) {
+    if (!isNumber(s)) {
+      throw new IllegalArgumentException("`"+s+"` is not a number, unlike the first node id of the file");
+    }
+    return Integer.parseInt(s);
+  }
+
+  private static int index(Map<String, Integer> names, String name) {
+    Integer i = names.get(name);
+    if (i == null) {
+      i = names.size();
+      names.put(name, i);
+    }
+    return i;
+  }
+}
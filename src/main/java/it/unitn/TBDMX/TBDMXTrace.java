@@ -0,0 +1,183 @@
+package it.unitn.TBDMX;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.unitn.TBDMX.TBDMXLog.Event;
+
+/**
+ * Binary trace of the events of the nodes of a JVM, read by `TBDMXTraceAnalyzer`.
+ * Each thread that logs an event writes it to a segment of its own, a memory-mapped file in `trace-dir`, as a record of `RECORD` bytes:
+ * `System.nanoTime()`, request, node, resource, peer, event and length of the request queue. Writing a record takes no lock and no system call,
+ * and the pages belong to the operating system, so they reach the disk even if the JVM dies. When a segment is full the thread maps a new one.
+ * A segment starts with a header (magic, version, record size and number of records, updated after every record); the pages that were never
+ * written take no space on disk. The request of a record is the time of the `RequestCS` at the node, `TBDMXLog.NONE` for events of no request.
+ * Unlike the log, the trace takes every event, whatever the level, as it goes through `TBDMXLog.log`.
+ * The records of a segment are in time order, and `System.nanoTime()` is the same clock for all the threads and processes of a machine,
+ * so the segments of the JVMs of a deployment can be merged as long as they run on the same machine.
+ */
+public final class TBDMXTrace {
+  static final int MAGIC = 0x54424458;
+  static final short VERSION = 1;
+  static final int HEADER = 16;         // magic, version, record size, records
+  static final int COUNT = 8;           // offset of the number of records in the header
+  static final int RECORD = 32;
+  static final int TIME = 0, REQUEST = 8, NODE = 16, RESOURCE = 20, PEER = 24, EVENT = 28, DEPTH = 30; // offsets in a record
+  static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+  static final String SUFFIX = ".trace";
+
+  private static volatile boolean tracing;
+  private static volatile int generation;  // of the segments, as threads keep theirs after `close`
+  private static File dir;
+  private static String prefix;
+  private static int segmentBytes;
+  private static final AtomicInteger threads = new AtomicInteger();
+  private static final List<Segment> segments = new ArrayList<>();
+  private static final ThreadLocal<Segment> current = new ThreadLocal<>();
+
+  /**
+   * The segment a thread is writing.
+   */
+  private static final class Segment {
+    final MappedByteBuffer map;
+    final int generation;
+    final int thread;
+    final int number;
+    int position = HEADER;
+    long records;
+
+    Segment(MappedByteBuffer map, int generation, int thread, int number) {
+      this.map = map;
+      this.generation = generation;
+      this.thread = thread;
+      this.number = number;
+    }
+  }
+
+  private TBDMXTrace() {}
+
+  /**
+   * Starts tracing if the option `trace-dir` is given. The other option read is `trace-segment`, the MiB of each segment (default 64).
+   * The segments are named after the process, the thread and their number, so several JVMs can share the directory.
+   *
+   * @param      options  The options given to the controller.
+   */
+  public static synchronized void start(TBDMXOptions options) {
+    if (tracing || !options.has("trace-dir")) {
+      return;
+    }
+    dir = new File(options.getString("trace-dir", "traces"));
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      System.err.println("Cannot create trace directory "+dir+", tracing disabled");
+      return;
+    }
+    long bytes = Math.max(1, Math.min(1024, options.getLong("trace-segment", 64))) << 20;
+    segmentBytes = (int) Math.min(Integer.MAX_VALUE - RECORD, bytes) / RECORD * RECORD + HEADER;
+    prefix = "trace-"+ManagementFactory.getRuntimeMXBean().getName().split("@")[0]+"-";
+    threads.set(0);
+    generation++;
+    tracing = true;
+  }
+
+  /**
+   * Whether events are being traced.
+   *
+   * @return     `true` if `record` writes them.
+   */
+  public static boolean enabled() {
+    return tracing;
+  }
+
+  /**
+   * Appends an event to the segment of the calling thread.
+   *
+   * @param      e         The event.
+   * @param      node      The node logging the event.
+   * @param      resource  The resource the event refers to, or `TBDMXLog.NONE`.
+   * @param      peer      The other node involved in the event, or `TBDMXLog.NONE`.
+   * @param      depth     The length of the request queue of the resource at the node.
+   * @param      request   The request the event refers to, or `TBDMXLog.NONE`.
+   */
+  static void record(Event e, int node, int resource, int peer, int depth, long request) {
+    Segment s = current.get();
+    if (s == null || s.position == segmentBytes || s.generation != generation) {
+      s = next(s);
+      if (s == null) {
+        return;
+      }
+    }
+    MappedByteBuffer map = s.map;
+    int p = s.position;
+    map.putLong(p + TIME, System.nanoTime());
+    map.putLong(p + REQUEST, request);
+    map.putInt(p + NODE, node);
+    map.putInt(p + RESOURCE, resource);
+    map.putInt(p + PEER, peer);
+    map.putShort(p + EVENT, (short) e.ordinal());
+    map.putShort(p + DEPTH, (short) Math.min(depth, Short.MAX_VALUE));
+    s.position = p + RECORD;
+    map.putLong(COUNT, ++s.records);
+  }
+
+  /**
+   * Maps a new segment for the calling thread.
+   *
+   * @param      full  The segment the thread filled, `null` (or one of an earlier `start`) for its first one.
+   *
+   * @return     The new segment, `null` if tracing is over or the segment cannot be mapped.
+   */
+  private static synchronized Segment next(Segment full) {
+    if (!tracing) {
+      return null;
+    }
+    if (full != null && full.generation != generation) {
+      full = null;
+    }
+    int thread = full == null ? threads.getAndIncrement() : full.thread;
+    int number = full == null ? 0 : full.number + 1;
+    File file = new File(dir, prefix+thread+"-"+number+SUFFIX);
+    Segment s;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(0);
+      MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+      map.order(ORDER);
+      map.putInt(0, MAGIC);
+      map.putShort(4, VERSION);
+      map.putShort(6, (short) RECORD);
+      s = new Segment(map, generation, thread, number);
+    }
+    catch (IOException e) {
+      System.err.println("Cannot map trace segment "+file+": "+e.getMessage()+", tracing disabled");
+      tracing = false;
+      return null;
+    }
+    segments.add(s);
+    current.set(s);
+    return s;
+  }
+
+  /**
+   * Stops tracing and writes the segments to disk. Events logged afterwards are discarded.
+   */
+  public static synchronized void close() {
+    if (!tracing) {
+      return;
+    }
+    tracing = false;
+    long records = 0;
+    for (Segment s : segments) {
+      s.map.force();
+      records += s.records;
+    }
+    System.out.println("Trace of "+records+" events in "+segments.size()+" segments written to "+dir);
+    segments.clear();
+  }
+}
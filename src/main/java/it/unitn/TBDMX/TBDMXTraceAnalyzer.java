@@ -0,0 +1,742 @@
+package it.unitn.TBDMX;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+import it.unitn.TBDMX.TBDMXLog.Event;
+
+/**
+ * Offline analysis of the binary traces written by `TBDMXTrace`, e.g. `gradle analyze -PanalyzeArgs='--trace-dir=traces'`.
+ * `read` maps the segments and decodes them in parallel, then merges them by time with a fork/join merge sort whose runs are the segments,
+ * each one in order already, and whose largest merges are split among the threads as well. `analyze` splits the merged records by resource
+ * (every token of `tokens` being a resource of its own, as in the log), checks each share in a task of its own and adds up the results:
+ * <ul>
+ * <li>no exclusive CS overlaps another CS of the same resource, a CS ending when its node leaves it, crashes or leaves the tree;</li>
+ * <li>every request is granted, withdrawn, or lost with a node that crashed or left after it (and is not granted after its recovery);</li>
+ * <li>the wait from each request to its CS, the hops of the token (`Privilege`s sent) and the `Request`s sent per exclusive grant,
+ *     and the time each token is idle, overall and while some request waits for it.</li>
+ * </ul>
+ * The requests still waiting when the trace ends count as never granted, so the nodes should be idle by then.
+ * The records take about as much heap as the trace takes on disk, plus 8 bytes each while they are sorted.
+ */
+public final class TBDMXTraceAnalyzer {
+  private static final Event[] EVENTS = Event.values();
+  private static final int GRAIN = 1 << 16;             // records handled by a task without splitting further
+  private static final int VIOLATIONS = 10;             // overlaps described, per share of the resources
+  private static final boolean[] ANALYZED = new boolean[EVENTS.length];
+
+  static {
+    for (Event e : new Event[] {Event.REQUEST_CS, Event.REQUEST_CS_SHARED, Event.CS_ENTER, Event.CS_ENTER_SHARED, Event.CS_EXIT,
+                                Event.CS_EXIT_SHARED, Event.CS_CANCELLED, Event.PRIVILEGE_SENT, Event.REQUEST_SENT, Event.CRASHED, Event.LEFT}) {
+      ANALYZED[e.ordinal()] = true;
+    }
+  }
+
+  private final int size;
+  private final int segments;
+  private long[] times;
+  private long[] requests;
+  private int[] nodes;
+  private int[] resources;
+  private int[] peers;
+  private short[] events;
+  private short[] depths;
+
+  /**
+   * A range of indices handled by a task.
+   */
+  private interface Range {
+    void run(int lo, int hi);
+  }
+
+  /**
+   * Runs a `Range` over `[lo, hi)`, split in halves until they are at most `grain` long.
+   */
+  private static final class Split extends RecursiveAction {
+    private final int lo, hi, grain;
+    private final Range range;
+
+    Split(int lo, int hi, int grain, Range range) {
+      this.lo = lo;
+      this.hi = hi;
+      this.grain = grain;
+      this.range = range;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.hi - this.lo <= this.grain) {
+        this.range.run(this.lo, this.hi);
+        return;
+      }
+      int mid = (this.lo + this.hi) >>> 1;
+      invokeAll(new Split(this.lo, mid, this.grain, this.range), new Split(mid, this.hi, this.grain, this.range));
+    }
+  }
+
+  /**
+   * Sorts by time the records of the runs `[lo, hi)`, i.e. the positions from `bounds[lo]` to `bounds[hi]`, each run being sorted already.
+   * The positions end up in `dst`, `src` being used by the halves.
+   */
+  private static final class Sort extends RecursiveAction {
+    private final long[] times;
+    private final int[] bounds;
+    private final int lo, hi;
+    private final int[] src, dst;
+
+    Sort(long[] times, int[] bounds, int lo, int hi, int[] src, int[] dst) {
+      this.times = times;
+      this.bounds = bounds;
+      this.lo = lo;
+      this.hi = hi;
+      this.src = src;
+      this.dst = dst;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.hi - this.lo == 1) {
+        for (int i = this.bounds[this.lo]; i < this.bounds[this.hi]; i++) {
+          this.dst[i] = i;
+        }
+        return;
+      }
+      int mid = (this.lo + this.hi) >>> 1;
+      invokeAll(new Sort(this.times, this.bounds, this.lo, mid, this.dst, this.src), new Sort(this.times, this.bounds, mid, this.hi, this.dst, this.src));
+      new Merge(this.times, this.src, this.bounds[this.lo], this.bounds[mid], this.bounds[mid], this.bounds[this.hi], this.dst, this.bounds[this.lo]).compute();
+    }
+  }
+
+  /**
+   * Merges by time the sorted positions `src[aLo, aHi)` and `src[bLo, bHi)` into `dst` from `dLo`, the first run winning ties.
+   * Long merges are split around the middle of the longer run, found in the other one by binary search, and the halves run in parallel.
+   */
+  private static final class Merge extends RecursiveAction {
+    private final long[] times;
+    private final int[] src, dst;
+    private final int aLo, aHi, bLo, bHi, dLo;
+
+    Merge(long[] times, int[] src, int aLo, int aHi, int bLo, int bHi, int[] dst, int dLo) {
+      this.times = times;
+      this.src = src;
+      this.aLo = aLo;
+      this.aHi = aHi;
+      this.bLo = bLo;
+      this.bHi = bHi;
+      this.dst = dst;
+      this.dLo = dLo;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.aHi - this.aLo + this.bHi - this.bLo <= GRAIN) {
+        int a = this.aLo, b = this.bLo, d = this.dLo;
+        while (a < this.aHi && b < this.bHi) {
+          this.dst[d++] = this.times[this.src[a]] <= this.times[this.src[b]] ? this.src[a++] : this.src[b++];
+        }
+        System.arraycopy(this.src, a, this.dst, d, this.aHi - a);
+        System.arraycopy(this.src, b, this.dst, d + this.aHi - a, this.bHi - b);
+        return;
+      }
+      int am, bm;
+      if (this.aHi - this.aLo >= this.bHi - this.bLo) {
+        am = (this.aLo + this.aHi) >>> 1;
+        bm = search(this.bLo, this.bHi, this.times[this.src[am]], false);
+      }
+      else {
+        bm = (this.bLo + this.bHi) >>> 1;
+        am = search(this.aLo, this.aHi, this.times[this.src[bm]], true);
+      }
+      invokeAll(new Merge(this.times, this.src, this.aLo, am, this.bLo, bm, this.dst, this.dLo),
+                new Merge(this.times, this.src, am, this.aHi, bm, this.bHi, this.dst, this.dLo + am - this.aLo + bm - this.bLo));
+    }
+
+    /**
+     * The first position of `src[lo, hi)` whose time is above `time`, or not below it unless `equal`.
+     */
+    private int search(int lo, int hi, long time, boolean equal) {
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        long t = this.times[this.src[mid]];
+        if (t < time || (equal && t == time)) {
+          lo = mid + 1;
+        }
+        else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+  }
+
+  /**
+   * What the analysis found, summed over the resources.
+   */
+  public static final class Report {
+    public long exclusive, shared;      // CSs entered
+    public long overlaps;               // CSs entered while they should not
+    public long requests, granted, cancelled, lost, never;
+    public long unmatched;              // CSs entered for requests that are not in the trace
+    public long hops, sent;             // `Privilege`s and `Request`s sent
+    public long idle, idleWanted, span; // ns, summed over the resources
+    public int keys;
+    public final TBDMXHistogram waits = new TBDMXHistogram();
+    public final TBDMXHistogram hopsPerGrant = new TBDMXHistogram();
+    public final TBDMXHistogram handoffs = new TBDMXHistogram(); // idle time of a token while requests wait, each time
+    public final List<String> violations = new ArrayList<>();
+
+    private void add(Report other) {
+      this.exclusive += other.exclusive;
+      this.shared += other.shared;
+      this.overlaps += other.overlaps;
+      this.requests += other.requests;
+      this.granted += other.granted;
+      this.cancelled += other.cancelled;
+      this.lost += other.lost;
+      this.never += other.never;
+      this.unmatched += other.unmatched;
+      this.hops += other.hops;
+      this.sent += other.sent;
+      this.idle += other.idle;
+      this.idleWanted += other.idleWanted;
+      this.span += other.span;
+      this.keys += other.keys;
+      this.waits.add(other.waits);
+      this.hopsPerGrant.add(other.hopsPerGrant);
+      this.handoffs.add(other.handoffs);
+      this.violations.addAll(other.violations);
+    }
+
+    /**
+     * Whether mutual exclusion held and every request that was not lost was granted.
+     *
+     * @return     `true` if no CS overlaps and no request is left waiting.
+     */
+    public boolean ok() {
+      return this.overlaps == 0 && this.never == 0;
+    }
+
+    /**
+     * Prints the report, and the first overlaps found on the standard error.
+     */
+    public void print() {
+      for (String v : this.violations) {
+        System.err.println(v);
+      }
+      long grants = Math.max(1, this.exclusive);
+      System.out.println(String.format(Locale.ROOT, "%d CSs (%d shared) on %d resources, %d overlapping", this.exclusive + this.shared,
+                                       this.shared, this.keys, this.overlaps));
+      System.out.println(String.format(Locale.ROOT, "%d requests, %d granted, %d withdrawn, %d lost in crashes, %d never granted; "
+                                       +"wait mean %.3f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms", this.requests, this.granted, this.cancelled,
+                                       this.lost, this.never, this.waits.mean() / 1e6, this.waits.percentile(0.5) / 1e6,
+                                       this.waits.percentile(0.99) / 1e6, this.waits.max() / 1e6));
+      System.out.println(String.format(Locale.ROOT, "token hops per grant mean %.2f, p50 %d, p99 %d, max %d; %.2f requests sent per grant",
+                                       this.hopsPerGrant.mean(), this.hopsPerGrant.percentile(0.5), this.hopsPerGrant.percentile(0.99),
+                                       this.hopsPerGrant.max(), (double) this.sent / grants));
+      System.out.println(String.format(Locale.ROOT, "tokens idle %.1f%% of the time, %.1f%% while requested; idle while requested mean %.3f ms, "
+                                       +"p50 %.3f ms, p99 %.3f ms, max %.3f ms", 100.0 * this.idle / Math.max(1, this.span),
+                                       100.0 * this.idleWanted / Math.max(1, this.span), this.handoffs.mean() / 1e6,
+                                       this.handoffs.percentile(0.5) / 1e6, this.handoffs.percentile(0.99) / 1e6, this.handoffs.max() / 1e6));
+    }
+  }
+
+  /**
+   * The requests of a node for a resource and whether it is in its CS.
+   */
+  private static final class Slot {
+    long[] pending = new long[2];
+    int count;
+    long[] lost;                        // pending when the node crashed or left
+    int lostCount;
+    boolean exclusive, shared;
+
+    void add(long request) {
+      if (this.count == this.pending.length) {
+        this.pending = Arrays.copyOf(this.pending, this.count * 2);
+      }
+      this.pending[this.count++] = request;
+    }
+
+    boolean remove(long request) {
+      for (int i = 0; i < this.count; i++) {
+        if (this.pending[i] == request) {
+          this.pending[i] = this.pending[--this.count];
+          return true;
+        }
+      }
+      return false;
+    }
+
+    boolean removeLost(long request) {
+      for (int i = 0; i < this.lostCount; i++) {
+        if (this.lost[i] == request) {
+          this.lost[i] = this.lost[--this.lostCount];
+          return true;
+        }
+      }
+      return false;
+    }
+
+    void loseAll() {
+      if (this.lost == null || this.lost.length < this.lostCount + this.count) {
+        this.lost = Arrays.copyOf(this.lost == null ? new long[0] : this.lost, this.lostCount + this.count + 2);
+      }
+      System.arraycopy(this.pending, 0, this.lost, this.lostCount, this.count);
+      this.lostCount += this.count;
+      this.count = 0;
+    }
+  }
+
+  /**
+   * The state of a resource along the trace.
+   */
+  private static final class Key {
+    final int key;
+    final long first;
+    long last;
+    final TBDMXIntMap<Slot> slots = new TBDMXIntMap<>();
+    int exclusive, shared;              // nodes in the CS
+    int holder = TBDMXLog.NONE;         // the last one in the exclusive CS
+    int pending;                        // requests waiting
+    long idleSince;                     // since no node is in the CS
+    long wantedSince = -1;              // since no node is in the CS while requests wait, -1 if not
+    int hops;                           // since the last exclusive CS
+
+    Key(int key, long time) {
+      this.key = key;
+      this.first = time;
+      this.last = time;
+      this.idleSince = time;
+    }
+
+    Slot slot(int node) {
+      Slot s = this.slots.get(node);
+      if (s == null) {
+        s = new Slot();
+        this.slots.put(node, s);
+      }
+      return s;
+    }
+  }
+
+  /**
+   * Checks the records of a share of the resources, given by their positions in time order.
+   */
+  private final class Check extends RecursiveTask<Report> {
+    private final int[] positions;
+    private final int length;
+
+    Check(int[] positions, int length) {
+      this.positions = positions;
+      this.length = length;
+    }
+
+    @Override
+    protected Report compute() {
+      Report report = new Report();
+      TBDMXIntMap<Key> keys = new TBDMXIntMap<>();
+      List<Key> all = new ArrayList<>();
+      for (int j = 0; j < this.length; j++) {
+        int i = this.positions[j];
+        long t = times[i];
+        int node = nodes[i];
+        Event e = EVENTS[events[i]];
+        if (resources[i] == TBDMXLog.NONE) {            // CRASHED or LEFT: the node is out of its CSs and its requests are lost
+          for (Key k : all) {
+            Slot s = k.slots.get(node);
+            if (s != null) {
+              if (s.exclusive || s.shared) {
+                exit(k, s, s.exclusive, t);
+              }
+              k.pending -= s.count;
+              s.loseAll();
+            }
+          }
+          continue;
+        }
+        Key k = keys.get(resources[i]);
+        if (k == null) {
+          k = new Key(resources[i], t);
+          keys.put(k.key, k);
+          all.add(k);
+        }
+        k.last = t;
+        switch (e) {
+          case REQUEST_CS:
+          case REQUEST_CS_SHARED:
+            report.requests++;
+            k.slot(node).add(requests[i]);
+            k.pending++;
+            if (k.exclusive + k.shared == 0 && k.wantedSince < 0) {
+              k.wantedSince = t;
+            }
+            break;
+          case CS_CANCELLED: {
+            Slot s = k.slot(node);
+            if (s.remove(requests[i])) {
+              k.pending--;
+              report.cancelled++;
+            }
+            else if (s.removeLost(requests[i])) {
+              report.cancelled++;
+            }
+            break;
+          }
+          case CS_ENTER:
+          case CS_ENTER_SHARED: {
+            boolean exclusive = e == Event.CS_ENTER;
+            Slot s = k.slot(node);
+            if (k.exclusive > 0 || (exclusive && k.shared > 0)) {
+              report.overlaps++;
+              if (report.violations.size() < VIOLATIONS) {
+                report.violations.add(String.format(Locale.ROOT, "%d: node %d entered the %sCS of resource %d while %s", t, node,
+                                                    exclusive ? "" : "shared ", k.key, k.exclusive > 0 ? "node "+k.holder+" was in it"
+                                                                                                       : k.shared+" nodes were reading"));
+              }
+            }
+            if (s.remove(requests[i])) {
+              k.pending--;
+              report.granted++;
+              report.waits.record(t - requests[i]);
+            }
+            else if (s.removeLost(requests[i])) {
+              report.granted++;
+              report.waits.record(t - requests[i]);
+            }
+            else {
+              report.unmatched++;
+            }
+            if (k.exclusive + k.shared == 0) {
+              report.idle += t - k.idleSince;
+              if (k.wantedSince >= 0) {
+                report.idleWanted += t - k.wantedSince;
+                report.handoffs.record(t - k.wantedSince);
+                k.wantedSince = -1;
+              }
+            }
+            if (exclusive) {
+              report.exclusive++;
+              report.hopsPerGrant.record(k.hops);
+              k.hops = 0;
+              k.exclusive++;
+              k.holder = node;
+              s.exclusive = true;
+            }
+            else {
+              report.shared++;
+              k.shared++;
+              s.shared = true;
+            }
+            break;
+          }
+          case CS_EXIT:
+          case CS_EXIT_SHARED: {
+            Slot s = k.slot(node);
+            if (e == Event.CS_EXIT ? s.exclusive : s.shared) {
+              exit(k, s, e == Event.CS_EXIT, t);
+            }
+            break;
+          }
+          case PRIVILEGE_SENT:
+            k.hops++;
+            report.hops++;
+            break;
+          case REQUEST_SENT:
+            report.sent++;
+            break;
+          default:
+            break;
+        }
+      }
+      for (Key k : all) {
+        if (k.exclusive + k.shared == 0) {
+          report.idle += k.last - k.idleSince;
+        }
+        report.span += k.last - k.first;
+        for (Slot s : k.slots.values()) {
+          report.never += s.count;
+          report.lost += s.lostCount;
+        }
+      }
+      report.keys = all.size();
+      return report;
+    }
+
+    private void exit(Key k, Slot s, boolean exclusive, long t) {
+      if (exclusive) {
+        s.exclusive = false;
+        k.exclusive--;
+      }
+      else {
+        s.shared = false;
+        k.shared--;
+      }
+      if (k.exclusive + k.shared == 0) {
+        k.idleSince = t;
+        if (k.pending > 0) {
+          k.wantedSince = t;
+        }
+      }
+    }
+  }
+
+  private TBDMXTraceAnalyzer(int size, int segments) {
+    this.size = size;
+    this.segments = segments;
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  public int segments() {
+    return this.segments;
+  }
+
+  /**
+   * Reads trace segments and merges their records by time.
+   *
+   * @param      files  The segments, e.g. all the ones in a `trace-dir`.
+   * @param      pool   The threads decoding and sorting the records.
+   *
+   * @return     The merged trace.
+   *
+   * @throws     IOException  If a segment cannot be read or is not one.
+   */
+  public static TBDMXTraceAnalyzer read(List<File> files, ForkJoinPool pool) throws IOException {
+    MappedByteBuffer[] maps = new MappedByteBuffer[files.size()];
+    int[] bounds = new int[files.size() + 1];
+    long total = 0;
+    for (int f = 0; f < maps.length; f++) {
+      try (RandomAccessFile file = new RandomAccessFile(files.get(f), "r")) {
+        maps[f] = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+      }
+      maps[f].order(TBDMXTrace.ORDER);
+      if (maps[f].capacity() < TBDMXTrace.HEADER || maps[f].getInt(0) != TBDMXTrace.MAGIC || maps[f].getShort(4) != TBDMXTrace.VERSION
+          || maps[f].getShort(6) != TBDMXTrace.RECORD) {
+        throw new IOException(files.get(f)+" is not a trace segment of this version");
+      }
+      total += Math.min(maps[f].getLong(TBDMXTrace.COUNT), (maps[f].capacity() - TBDMXTrace.HEADER) / TBDMXTrace.RECORD);
+      if (total > Integer.MAX_VALUE - 8) {
+        throw new IOException("More than "+(Integer.MAX_VALUE - 8)+" records, analyze fewer segments at once");
+      }
+      bounds[f + 1] = (int) total;
+    }
+    TBDMXTraceAnalyzer trace = new TBDMXTraceAnalyzer((int) total, maps.length);
+    int n = trace.size;
+    trace.times = new long[n];
+    trace.requests = new long[n];
+    trace.nodes = new int[n];
+    trace.resources = new int[n];
+    trace.peers = new int[n];
+    trace.events = new short[n];
+    trace.depths = new short[n];
+    pool.invoke(new Split(0, maps.length, 1, (lo, hi) -> {
+      for (int f = lo; f < hi; f++) {
+        MappedByteBuffer map = maps[f];
+        for (int i = bounds[f], p = TBDMXTrace.HEADER; i < bounds[f + 1]; i++, p += TBDMXTrace.RECORD) {
+          trace.times[i] = map.getLong(p + TBDMXTrace.TIME);
+          trace.requests[i] = map.getLong(p + TBDMXTrace.REQUEST);
+          trace.nodes[i] = map.getInt(p + TBDMXTrace.NODE);
+          trace.resources[i] = map.getInt(p + TBDMXTrace.RESOURCE);
+          trace.peers[i] = map.getInt(p + TBDMXTrace.PEER);
+          short e = map.getShort(p + TBDMXTrace.EVENT);
+          trace.events[i] = e >= 0 && e < EVENTS.length ? e : (short) Event.QUEUE_EMPTY.ordinal();
+          trace.depths[i] = map.getShort(p + TBDMXTrace.DEPTH);
+        }
+      }
+    }));
+    int[] order = new int[n];
+    if (maps.length > 0) {
+      pool.invoke(new Sort(trace.times, bounds, 0, maps.length, new int[n], order));
+    }
+    trace.times = gather(pool, order, trace.times);    // One field at a time, the unsorted one being garbage right after
+    trace.requests = gather(pool, order, trace.requests);
+    trace.nodes = gather(pool, order, trace.nodes);
+    trace.resources = gather(pool, order, trace.resources);
+    trace.peers = gather(pool, order, trace.peers);
+    trace.events = gather(pool, order, trace.events);
+    trace.depths = gather(pool, order, trace.depths);
+    return trace;
+  }
+
+  private static long[] gather(ForkJoinPool pool, int[] order, long[] field) {
+    long[] sorted = new long[field.length];
+    pool.invoke(new Split(0, field.length, GRAIN, (lo, hi) -> {
+      for (int i = lo; i < hi; i++) {
+        sorted[i] = field[order[i]];
+      }
+    }));
+    return sorted;
+  }
+
+  private static int[] gather(ForkJoinPool pool, int[] order, int[] field) {
+    int[] sorted = new int[field.length];
+    pool.invoke(new Split(0, field.length, GRAIN, (lo, hi) -> {
+      for (int i = lo; i < hi; i++) {
+        sorted[i] = field[order[i]];
+      }
+    }));
+    return sorted;
+  }
+
+  private static short[] gather(ForkJoinPool pool, int[] order, short[] field) {
+    short[] sorted = new short[field.length];
+    pool.invoke(new Split(0, field.length, GRAIN, (lo, hi) -> {
+      for (int i = lo; i < hi; i++) {
+        sorted[i] = field[order[i]];
+      }
+    }));
+    return sorted;
+  }
+
+  /**
+   * Checks the merged trace. The records are split by resource into four shares per thread of `pool`, the events of the whole node
+   * (crashes and departures) going to every share, and the shares are checked in parallel.
+   *
+   * @param      pool  The threads checking the shares.
+   *
+   * @return     What was found.
+   */
+  public Report analyze(ForkJoinPool pool) {
+    int shares = Math.max(1, pool.getParallelism() * 4);
+    int chunks = (this.size + GRAIN - 1) / GRAIN;
+    int[][] counts = new int[chunks][shares];
+    pool.invoke(new Split(0, chunks, 1, (lo, hi) -> {
+      for (int c = lo; c < hi; c++) {
+        int[] count = counts[c];
+        for (int i = c * GRAIN, end = Math.min(this.size, i + GRAIN); i < end; i++) {
+          if (ANALYZED[this.events[i]]) {
+            if (this.resources[i] == TBDMXLog.NONE) {
+              for (int s = 0; s < shares; s++) {
+                count[s]++;
+              }
+            }
+            else {
+              count[Math.floorMod(this.resources[i], shares)]++;
+            }
+          }
+        }
+      }
+    }));
+    int[][] positions = new int[shares][];
+    int[] lengths = new int[shares];
+    for (int s = 0; s < shares; s++) {
+      int offset = 0;
+      for (int c = 0; c < chunks; c++) {
+        int count = counts[c][s];
+        counts[c][s] = offset;                          // Where the chunk writes its positions in the share
+        offset += count;
+      }
+      positions[s] = new int[offset];
+      lengths[s] = offset;
+    }
+    pool.invoke(new Split(0, chunks, 1, (lo, hi) -> {
+      for (int c = lo; c < hi; c++) {
+        int[] next = counts[c];
+        for (int i = c * GRAIN, end = Math.min(this.size, i + GRAIN); i < end; i++) {
+          if (ANALYZED[this.events[i]]) {
+            if (this.resources[i] == TBDMXLog.NONE) {
+              for (int s = 0; s < shares; s++) {
+                positions[s][next[s]++] = i;
+              }
+            }
+            else {
+              int s = Math.floorMod(this.resources[i], shares);
+              positions[s][next[s]++] = i;
+            }
+          }
+        }
+      }
+    }));
+    List<Check> checks = new ArrayList<>(shares);
+    for (int s = 0; s < shares; s++) {
+      checks.add(new Check(positions[s], lengths[s]));
+    }
+    for (Check check : checks) {
+      pool.execute(check);
+    }
+    Report report = new Report();
+    for (Check check : checks) {
+      report.add(check.join());
+    }
+    return report;
+  }
+
+  /**
+   * Writes the merged trace in the format of the log, see `TBDMXLog`, so that the tools written for the log work on it.
+   *
+   * @param      file  The file.
+   *
+   * @throws     IOException  If the file cannot be written.
+   */
+  public void write(String file) throws IOException {
+    try (BufferedWriter out = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+      StringBuilder sb = new StringBuilder(128);
+      for (int i = 0; i < this.size; i++) {
+        sb.setLength(0);
+        Event e = EVENTS[this.events[i]];
+        sb.append(this.times[i]).append('\t').append(this.nodes[i]).append('\t').append(e.name()).append('\t');
+        if (this.resources[i] != TBDMXLog.NONE) {
+          sb.append(this.resources[i]);
+        }
+        sb.append('\t');
+        if (this.peers[i] != TBDMXLog.NONE) {
+          sb.append(this.peers[i]);
+        }
+        sb.append('\t').append(this.depths[i]).append('\t').append(e.description).append('\n');
+        out.append(sb);
+      }
+    }
+  }
+
+  /**
+   * Analyzes the segments in `trace-dir` (default `traces`) with `threads` threads (default: one per core), optionally writing the merged
+   * trace to `text`. The exit status is 1 if a CS overlaps or a request is never granted.
+   *
+   * @param      args  The options.
+   */
+  public static void main(String[] args) {
+    TBDMXOptions options = TBDMXOptions.parse(args);
+    File dir = new File(options.getString("trace-dir", "traces"));
+    File[] files = dir.listFiles((d, name) -> name.endsWith(TBDMXTrace.SUFFIX));
+    if (files == null || files.length == 0) {
+      System.err.println("No trace segments in "+dir);
+      System.exit(-2);
+    }
+    Arrays.sort(files);
+    ForkJoinPool pool = new ForkJoinPool(options.getInt("threads", Runtime.getRuntime().availableProcessors()));
+    try {
+      long start = System.nanoTime();
+      TBDMXTraceAnalyzer trace = read(Arrays.asList(files), pool);
+      long merged = System.nanoTime();
+      Report report = trace.analyze(pool);
+      long done = System.nanoTime();
+      System.out.println(String.format(Locale.ROOT, "%d records of %d segments read and merged in %d ms, analyzed in %d ms with %d threads",
+                                       trace.size(), trace.segments(), TimeUnit.NANOSECONDS.toMillis(merged - start),
+                                       TimeUnit.NANOSECONDS.toMillis(done - merged), pool.getParallelism()));
+      report.print();
+      if (options.has("text")) {
+        trace.write(options.getString("text", "trace.log"));
+      }
+      System.exit(report.ok() ? 0 : 1);
+    }
+    catch (IOException e) {
+      System.err.println("Cannot read the trace: "+e.getMessage());
+      System.exit(-2);
+    }
+  }
+}
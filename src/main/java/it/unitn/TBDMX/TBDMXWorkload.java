@@ -0,0 +1,735 @@
+package it.unitn.TBDMX;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import it.unitn.TBDMX.TBDMXNode.Crash;
+import it.unitn.TBDMX.TBDMXNode.Leave;
+import it.unitn.TBDMX.TBDMXNode.MoveNeighbor;
+import it.unitn.TBDMX.TBDMXNode.Recovery;
+import it.unitn.TBDMX.TBDMXNode.RequestCS;
+
+/**
+ * Drives the nodes with the commands of a script or with requests generated at runtime. Every command is sent by a
+ * `TBDMXTimerWheel` at a deadline computed from the start of the workload, so the timing does not drift and the main thread is free.
+ * The `workload` option selects the source:
+ * <ul>
+ * <li>`script` (the default) reads the `commands.conf` format from the file given with `commands`: a first line with the initial holder,
+ * then `request <node> <ms> [resource [priority]]`, `read <node> <ms> [resource]`, `crash <node>`, `recovery <node>`, `wait <ms>`,
+ * and the changes of the tree `join <node> <to>` (the new node, whose id follows the last one, joins as a leaf of `to`), `leave <node>`
+ * and `move <node> <from> <to>` (`from` moves its neighbor `node`, with the nodes behind it, next to its neighbor `to`);</li>
+ * <li>`open` issues requests at `rate` per second, with `poisson` or `constant` `arrivals`, whatever the state of the nodes;</li>
+ * <li>`closed` runs `clients` clients on every node, each asking for a CS, waiting for it to be over and then `think`ing for some ms.</li>
+ * </ul>
+ * Generated requests last `cs-time` ms, always (`const`) or on average (`exp` or `uniform` `cs-dist`), ask one of `resources` resources,
+ * for shared access with probability `read-fraction` (exclusive ones have priority `high-priority` with probability `high-fraction`,
+ * 0 otherwise), and open loop ones go to a node chosen by `select`: `uniform`, `zipf`
+ * (exponent `zipf`) or `hot` (`hot-fraction` of the requests to `hot` nodes). With `crash-rate` nodes also crash (one at a time,
+ * as the recovery does not handle neighbors crashing together) and recover `downtime` ms later. With `churn-rate` nodes also join the tree
+ * as leaves of random nodes and leave it, as many of each on average; the nodes that leave serve the requests they got, and get no more.
+ * The CSs of the generated requests are checked against each other: no two exclusive ones of the same resource may overlap, nor a shared
+ * one with an exclusive one, and with `tokens` > 1 no more than `tokens` CSs of any kind, so a token duplicated by a crash or by a change
+ * of the tree shows up as an overlap, and a token lost as requests never served.
+ * A node queues its own exclusive requests for a resource, but serves one shared request per resource at a time, so a shared request
+ * for a node that is already asking the same is held by the workload until that one is over.
+ */
+public final class TBDMXWorkload {
+  private enum Mode { SCRIPT, OPEN, CLOSED }
+  private static final int NO_CLIENT = -1;
+
+  /**
+   * A request of the workload, from its creation to the end of its CS.
+   */
+  private static final class Pending {
+    final int node;
+    final int resource;
+    final boolean shared;
+    final int priority;
+    final int client;                   // closed loop client that issued it, or `NO_CLIENT`
+    final long created;
+    final long hold;
+    final long think;
+    volatile long entered;
+    final AtomicBoolean running = new AtomicBoolean();    // in the CS, as far as the overlap check goes
+
+    Pending(int node, int resource, boolean shared, int priority, int client, long created, long hold, long think) {
+      this.node = node;
+      this.resource = resource;
+      this.shared = shared;
+      this.priority = priority;
+      this.client = client;
+      this.created = created;
+      this.hold = hold;
+      this.think = think;
+    }
+  }
+
+  private final List<ActorRef> nodes;
+  private final ActorSystem system;     // where the nodes that join are created, and the barrier waiting for the holder
+  private final TBDMXOptions options;
+  private final Mode mode;
+  private final TBDMXTimerWheel wheel;
+  private final CountDownLatch done = new CountDownLatch(1);
+  private long origin;
+
+  // Script
+  private BufferedReader script;
+  private long offset;                  // ms from `origin` of the next command
+  private int lineNumber;
+
+  // Generators, only used on the thread of the wheel
+  private SplittableRandom rnd;
+  private int resources;
+  private double readFraction;
+  private double highFraction;
+  private int highPriority;
+  private long csTime;
+  private String csDist;
+  private String select;
+  private double[] zipf;                // cumulative probability of the ranks
+  private int[] ranked;                 // nodes by rank, for `zipf` and `hot`
+  private int hot;
+  private double hotFraction;
+  private long end;
+  private boolean generating;
+  private final HashMap<Long, ArrayDeque<Pending>> pending = new HashMap<>();   // requests sent to each node for each resource and mode, in order
+  private final HashMap<Long, ArrayDeque<Pending>> waiting = new HashMap<>();   // shared requests held until the one sent is over
+  private int outstanding;
+  private boolean[] down;
+  private List<List<Integer>> parked;   // closed loop clients of a crashed node
+  private long issued, served, dropped, crashes;   // issued = served + dropped + outstanding
+  private long rejected;                // open loop requests of a crashed node, never issued
+  private List<Integer> members;        // nodes that did not leave the tree, for the generators
+  private boolean[] gone;               // the node is leaving or left
+  private long joins, leaves;
+  private int tokens;
+  private AtomicIntegerArray inCS;      // CSs of each resource running now, exclusive (even) and shared (odd)
+  private final AtomicLong checked = new AtomicLong();
+  private final AtomicLong overlaps = new AtomicLong();
+  private TBDMXDeployment.Remote remote;                                        // Nodes in other JVMs, if any
+  private final ConcurrentHashMap<Long, Pending> running = new ConcurrentHashMap<>(); // Requests run by other JVMs, by id
+  private long ids;
+  private final boolean imposed;                                                // The holder was given to the nodes by `TBDMXController.bootstrap`
+  private final TBDMXHistogram waits = new TBDMXHistogram();
+  private final TBDMXHistogram[] waitsByPriority = new TBDMXHistogram[TBDMXIntQueue.PRIORITIES];
+
+  /**
+   * Prepares the workload read from the options, which may add nodes to the tree.
+   *
+   * @param      options  The options given to the controller.
+   * @param      nodes    The nodes, the i-th one being the node with id i; the ones that join are added at the end.
+   * @param      system   The actor system of the nodes, which must not be `null`.
+   */
+  public TBDMXWorkload(TBDMXOptions options, List<ActorRef> nodes, ActorSystem system) {
+    this.nodes = nodes;
+    this.system = Objects.requireNonNull(system);
+    this.options = options;
+    this.mode = choice(options, "workload", "script", Mode.values());
+    this.imposed = options.getString("bootstrap", "flood").equals("bfs");
+    this.wheel = new TBDMXTimerWheel(options.getLong("tick", 1000) * 1000, 4096, "tbdmx-workload");
+  }
+
+  /**
+   * Runs the generated requests of the nodes in other JVMs through `remote`, which must give its `Done`s to `done`.
+   *
+   * @param      remote  The nodes in other JVMs.
+   */
+  void distribute(TBDMXDeployment.Remote remote) {
+    this.remote = remote;
+  }
+
+  /**
+   * A request run by another JVM entered (or `exited`) the CS; the entry is seen here one hop later than it happened.
+   *
+   * @param      id      The id of the request.
+   * @param      exited  Whether the CS is over.
+   */
+  void done(long id, boolean exited) {
+    if (!exited) {
+      Pending p = this.running.get(id);
+      if (p != null) {
+        p.entered = System.nanoTime();
+      }
+      return;
+    }
+    Pending p = this.running.remove(id);
+    if (p != null) {
+      this.wheel.schedule(System.nanoTime(), () -> exit(p, p.think));
+    }
+  }
+
+  /**
+   * Returns the initial holder of the workload: the `holder` option if given, otherwise the first line of the script,
+   * or 0 for the generators.
+   *
+   * @param      options  The options given to the controller.
+   *
+   * @return     The id of the initial holder.
+   */
+  static int holder(TBDMXOptions options) {
+    if (options.has("holder") || choice(options, "workload", "script", Mode.values()) != Mode.SCRIPT) {
+      return options.getInt("holder", 0);
+    }
+    String file = options.getString("commands", "commands.conf");
+    String st = null;
+    try (BufferedReader script = new BufferedReader(new FileReader(file))) {
+      st = script.readLine();
+      return Integer.parseInt(st.trim());
+    }
+    catch (FileNotFoundException e) {System.err.println("Command file not found!"); System.exit(-2);}
+    catch (IOException e) {System.err.println("Error reading command file!"); System.exit(-2);}
+    catch (NumberFormatException | NullPointerException e) {System.err.println("Invalid command at line 1: "+st); System.exit(-2);}
+    return -1;
+  }
+
+  private static <E extends Enum<E>> E choice(TBDMXOptions options, String key, String def, E[] values) {
+    String value = options.getString(key, def);
+    for (E e : values) {
+      if (e.name().equalsIgnoreCase(value)) {
+        return e;
+      }
+    }
+    System.err.println("Unknown "+key+" `"+value+"`");
+    System.exit(-2);
+    return null;
+  }
+
+  /**
+   * Runs the workload and returns when it is over: the script was consumed or, for the generators,
+   * `duration` ms passed and the requests issued in the meanwhile were served.
+   * Unless the nodes were given the holder at startup, the holder is imposed first, and the workload starts once every node knows it:
+   * the wait is here and not in a task of the wheel, which must not block.
+   */
+  public void run() {
+    int holder = this.options.getInt("holder", 0);
+    if (this.mode == Mode.SCRIPT) {
+      String file = this.options.getString("commands", "commands.conf");
+      String st = null;
+      try {
+        this.script = new BufferedReader(new FileReader(file));
+        st = this.script.readLine();
+        this.lineNumber = 1;
+        holder = Integer.parseInt(st.trim());
+      }
+      catch (FileNotFoundException e) {System.err.println("Command file not found!"); System.exit(-2);}
+      catch (IOException e) {System.err.println("Error reading command file!"); System.exit(-2);}
+      catch (NumberFormatException | NullPointerException e) {System.err.println("Invalid command at line 1: "+st); System.exit(-2);}
+    }
+    if (!this.imposed) {
+      TBDMXController.impose(this.system, this.nodes.get(holder), this.options);
+    }
+    this.origin = System.nanoTime();
+    this.wheel.schedule(this.origin, this.mode == Mode.SCRIPT ? this::script : this::generate);
+    try {
+      this.done.await();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    this.wheel.stop();
+  }
+
+  private long at(long ms) {
+    return this.origin + TimeUnit.MILLISECONDS.toNanos(ms);
+  }
+
+  /**
+   * Sends the commands of the script up to the next `wait`, and schedules itself again at the end of the wait.
+   */
+  private void script() {
+    String st = null;
+    try {
+      while ((st = this.script.readLine()) != null) {
+        this.lineNumber++;
+        String[] command = st.split(" ", 0);
+        if (command[0].equals("request") || command[0].equals("read")) {
+          int resource = command.length > 3 ? Integer.parseInt(command[3]) : 0;
+          int priority = command.length > 4 ? Integer.parseInt(command[4]) : 0;
+          boolean shared = command[0].equals("read");
+          this.nodes.get(Integer.parseInt(command[1])).tell(new RequestCS(resource, shared, Integer.parseInt(command[2]), priority), ActorRef.noSender());
+        }
+        else if (command[0].equals("crash")) {
+          this.nodes.get(Integer.parseInt(command[1])).tell(Crash.INSTANCE, ActorRef.noSender());
+        }
+        else if (command[0].equals("recovery")) {
+          this.nodes.get(Integer.parseInt(command[1])).tell(Recovery.INSTANCE, ActorRef.noSender());
+        }
+        else if (command[0].equals("join")) {
+          int to = Integer.parseInt(command[2]);
+          if (Integer.parseInt(command[1]) != this.nodes.size() || to >= this.nodes.size()) {
+            throw new IndexOutOfBoundsException();
+          }
+          TBDMXController.join(this.system, this.nodes, this.options, to);
+        }
+        else if (command[0].equals("leave")) {
+          this.nodes.get(Integer.parseInt(command[1])).tell(Leave.INSTANCE, ActorRef.noSender());
+        }
+        else if (command[0].equals("move")) {
+          MoveNeighbor move = new MoveNeighbor(Integer.parseInt(command[1]), Integer.parseInt(command[3]));
+          this.nodes.get(Integer.parseInt(command[2])).tell(move, ActorRef.noSender());
+        }
+        else if (command[0].equals("wait")) {
+          this.offset += Integer.parseInt(command[1]);
+          this.wheel.schedule(at(this.offset), this::script);
+          return;
+        }
+      }
+      this.script.close();
+    }
+    catch (IOException e) {System.err.println("Error reading command file!"); System.exit(-2);}
+    catch (IllegalArgumentException | IndexOutOfBoundsException e) {System.err.println("Invalid command at line "+this.lineNumber+": "+st); System.exit(-2);}
+    this.done.countDown();
+  }
+
+  /**
+   * Sets the generators up from the options and starts generating.
+   */
+  private void generate() {
+    int n = this.nodes.size();
+    this.rnd = new SplittableRandom(this.options.getLong("seed", 1));
+    this.resources = Math.max(1, this.options.getInt("resources", 1));
+    this.readFraction = this.options.getDouble("read-fraction", 0);
+    this.highFraction = this.options.getDouble("high-fraction", 0);
+    this.highPriority = Math.max(0, Math.min(TBDMXIntQueue.PRIORITIES - 1, this.options.getInt("high-priority", TBDMXIntQueue.PRIORITIES - 1)));
+    for (int p = 0; p < this.waitsByPriority.length; p++) {
+      this.waitsByPriority[p] = new TBDMXHistogram();
+    }
+    this.csTime = (long) (this.options.getDouble("cs-time", 10) * 1e6);
+    this.csDist = this.options.getString("cs-dist", "const");
+    if (!Arrays.asList("const", "exp", "uniform").contains(this.csDist)) {
+      System.err.println("Unknown cs-dist `"+this.csDist+"`");
+      System.exit(-2);
+    }
+    this.select = this.options.getString("select", "uniform");
+    if (!this.select.equals("uniform")) {
+      this.ranked = new int[n];                                   // ranks are given to the nodes at random, not by id
+      for (int i = 0; i < n; i++) {
+        int j = this.rnd.nextInt(i + 1);
+        this.ranked[i] = this.ranked[j];
+        this.ranked[j] = i;
+      }
+      if (this.select.equals("zipf")) {
+        double s = this.options.getDouble("zipf", 1.0);
+        this.zipf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+          sum += 1 / Math.pow(i + 1, s);
+          this.zipf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+          this.zipf[i] /= sum;
+        }
+      }
+      else if (this.select.equals("hot")) {
+        this.hot = Math.min(n, Math.max(1, this.options.getInt("hot", 8)));
+        this.hotFraction = this.options.getDouble("hot-fraction", 0.9);
+      }
+      else {
+        System.err.println("Unknown select `"+this.select+"`");
+        System.exit(-2);
+      }
+    }
+    this.down = new boolean[n];
+    this.parked = new ArrayList<>(n);
+    this.members = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      this.parked.add(new ArrayList<>(0));
+      this.members.add(i);
+    }
+    this.gone = new boolean[n];
+    this.tokens = Math.max(1, this.options.getInt("tokens", 1));
+    if (this.resources - 1 > TBDMXNode.maxKey(this.tokens)) {
+      System.err.println("At most "+(TBDMXNode.maxKey(this.tokens) + 1L)+" resources with "+this.tokens+" tokens");
+      System.exit(-2);
+    }
+    this.inCS = new AtomicIntegerArray(2 * this.resources);
+    this.end = this.options.getLong("duration", 10000);
+    this.generating = true;
+    if (this.mode == Mode.OPEN) {
+      double rate = this.options.getDouble("rate", 1000) / 1e3;   // per ms
+      boolean poisson = this.options.getString("arrivals", "poisson").equals("poisson");
+      this.wheel.schedule(this.origin, () -> arrivals(0, rate, poisson));
+    }
+    else {
+      int clients = this.options.getInt("clients", 1);
+      long think = (long) (this.options.getDouble("think", 0) * 1e6);
+      this.wheel.schedule(this.origin, () -> {
+        for (int i = 0; i < n; i++) {
+          for (int c = 0; c < clients; c++) {
+            request(i, c, think);
+          }
+        }
+      });
+    }
+    double crashRate = this.options.getDouble("crash-rate", 0) / 1e3;
+    if (crashRate > 0) {
+      long downtime = this.options.getLong("downtime", 500);
+      long gap = this.options.getLong("crash-gap", 100);
+      this.wheel.schedule(at(exponential(1 / crashRate)), () -> crash(crashRate, downtime, gap));
+    }
+    double churnRate = this.options.getDouble("churn-rate", 0) / 1e3;
+    if (churnRate > 0) {
+      if (this.remote != null) {
+        System.err.println("Nodes can join and leave the tree only when all of them are in this JVM");
+        System.exit(-2);
+      }
+      this.wheel.schedule(at(exponential(1 / churnRate)), () -> churn(churnRate));
+    }
+    this.wheel.schedule(at(this.end), () -> {
+      this.generating = false;
+      this.wheel.schedule(at(this.end + this.options.getLong("drain", 10000)), this::finish);
+      checkDone();
+    });
+  }
+
+  private long exponential(double mean) {
+    return (long) (-Math.log(1 - this.rnd.nextDouble()) * mean);
+  }
+
+  /**
+   * Issues the open loop requests whose arrival time passed and schedules itself at the next one.
+   *
+   * @param      next     The arrival time of the next request, in ns from `origin`.
+   * @param      rate     The requests per ms.
+   * @param      poisson  Whether the time between arrivals is exponential, rather than constant.
+   */
+  private void arrivals(double next, double rate, boolean poisson) {
+    long now = System.nanoTime() - this.origin;
+    while (next <= now && next < this.end * 1e6) {
+      request(node(), this.rnd.nextInt(this.resources), this.rnd.nextDouble() < this.readFraction, NO_CLIENT, 0);
+      next += (poisson ? -Math.log(1 - this.rnd.nextDouble()) : 1) / rate * 1e6;
+    }
+    if (next < this.end * 1e6) {
+      final double t = next;
+      this.wheel.schedule(this.origin + (long) t, () -> arrivals(t, rate, poisson));
+    }
+  }
+
+  private int node() {
+    int node = NO_CLIENT;
+    if (this.zipf != null) {
+      int rank = Arrays.binarySearch(this.zipf, this.rnd.nextDouble());
+      node = this.ranked[Math.min(rank < 0 ? -rank - 1 : rank, this.ranked.length - 1)];
+    }
+    else if (this.ranked != null && this.rnd.nextDouble() < this.hotFraction) {
+      node = this.ranked[this.rnd.nextInt(this.hot)];
+    }
+    if (node == NO_CLIENT || this.gone[node]) {                    // The nodes that left are replaced by any other one
+      node = this.members.get(this.rnd.nextInt(this.members.size()));
+    }
+    return node;
+  }
+
+  private long hold() {
+    switch (this.csDist) {
+      case "exp":
+        return exponential(this.csTime);
+      case "uniform":
+        return (long) (this.rnd.nextDouble() * 2 * this.csTime);
+      default:
+        return this.csTime;
+    }
+  }
+
+  /**
+   * Next request of a closed loop client.
+   *
+   * @param      node    The node of the client.
+   * @param      client  The client.
+   * @param      think   The ns it waits after each CS.
+   */
+  private void request(int node, int client, long think) {
+    if (this.generating && !this.gone[node]) {                   // The clients of a node that left stop
+      request(node, this.rnd.nextInt(this.resources), this.rnd.nextDouble() < this.readFraction, client, think);
+    }
+  }
+
+  private void request(int node, int resource, boolean shared, int client, long think) {
+    if (this.down[node]) {                                        // Clients wait for the recovery, open loop requests are rejected
+      if (client != NO_CLIENT) {
+        this.parked.get(node).add(client);
+      }
+      else {
+        this.rejected++;
+      }
+      return;
+    }
+    int priority = !shared && this.highFraction > 0 && this.rnd.nextDouble() < this.highFraction ? this.highPriority : 0;
+    Pending p = new Pending(node, resource, shared, priority, client, System.nanoTime(), hold(), think);
+    this.issued++;
+    this.outstanding++;
+    long key = key(p);
+    if (shared && this.pending.containsKey(key)) {
+      this.waiting.computeIfAbsent(key, k -> new ArrayDeque<>()).add(p);
+    }
+    else {
+      issue(key, p, think);
+    }
+  }
+
+  private long key(Pending p) {
+    return ((long) p.node * this.resources + p.resource) * 2 + (p.shared ? 1 : 0);
+  }
+
+  private void issue(long key, Pending p, long think) {
+    this.pending.computeIfAbsent(key, k -> new ArrayDeque<>(1)).add(p);
+    if (this.remote != null && this.remote.isRemote(p.node)) {
+      long id = this.ids++;
+      this.running.put(id, p);
+      this.remote.run(id, p.node, p.resource, p.shared, p.priority, p.hold);
+      return;
+    }
+    this.nodes.get(p.node).tell(new RequestCS(p.resource, p.shared, p.priority, () -> enter(p, think)), ActorRef.noSender());
+  }
+
+  /**
+   * The work of a generated request, called by the node when it enters the CS: the CS is over after the hold time of the request.
+   */
+  private CompletionStage<?> enter(Pending p, long think) {
+    p.entered = System.nanoTime();
+    check(p, true);
+    CompletableFuture<Void> cs = new CompletableFuture<>();
+    this.wheel.schedule(p.entered + p.hold, () -> {
+      check(p, false);
+      cs.complete(null);
+      exit(p, think);
+    });
+    return cs;
+  }
+
+  /**
+   * Counts a CS of a generated request in (`entering`, called by the node) or out (called before the node is told that it is over,
+   * so that the CS that follows it never seems to overlap), and checks it against the other ones of the same resource running now.
+   *
+   * @param      p         The request.
+   * @param      entering  Whether the CS starts.
+   */
+  private void check(Pending p, boolean entering) {
+    int slot = 2 * p.resource + (p.shared ? 1 : 0);
+    if (!entering) {
+      if (p.running.getAndSet(false)) {
+        this.inCS.decrementAndGet(slot);
+      }
+      return;
+    }
+    p.running.set(true);
+    int running = this.inCS.incrementAndGet(slot);
+    int other = this.inCS.get(slot ^ 1);
+    this.checked.incrementAndGet();
+    boolean overlap = this.tokens > 1 ? running + other > this.tokens                 // A shared CS takes a token as well
+                                      : other > 0 || (!p.shared && running > 1);
+    if (overlap) {
+      this.overlaps.incrementAndGet();
+    }
+  }
+
+  private void exit(Pending p, long think) {
+    long key = key(p);
+    ArrayDeque<Pending> sent = this.pending.get(key);
+    if (sent == null || !sent.remove(p)) {                        // Lost in a crash
+      return;
+    }
+    if (sent.isEmpty()) {
+      this.pending.remove(key);
+    }
+    this.served++;
+    this.outstanding--;
+    this.waits.record(p.entered - p.created);
+    this.waitsByPriority[p.priority].record(p.entered - p.created);
+    ArrayDeque<Pending> queue = this.waiting.get(key);
+    if (queue != null) {
+      issue(key, queue.poll(), think);
+      if (queue.isEmpty()) {
+        this.waiting.remove(key);
+      }
+    }
+    if (p.client != NO_CLIENT) {
+      this.wheel.schedule(System.nanoTime() + think, () -> request(p.node, p.client, think));
+    }
+    checkDone();
+  }
+
+  /**
+   * Crashes a node, drops its requests and schedules its recovery and the next crash, which never overlaps with this one.
+   */
+  private void crash(double rate, long downtime, long gap) {
+    if (!this.generating) {
+      return;
+    }
+    int node = this.members.get(this.rnd.nextInt(this.members.size()));
+    this.crashes++;
+    this.down[node] = true;
+    this.nodes.get(node).tell(Crash.INSTANCE, ActorRef.noSender());
+    for (int resource = 0; resource < this.resources; resource++) {
+      for (long key = ((long) node * this.resources + resource) * 2, last = key + 1; key <= last; key++) {
+        for (Map<Long, ArrayDeque<Pending>> requests : Arrays.asList(this.pending, this.waiting)) {
+          ArrayDeque<Pending> queue = requests.remove(key);
+          while (queue != null && !queue.isEmpty()) {
+            drop(queue.poll());
+          }
+        }
+      }
+    }
+    long recovery = System.nanoTime() - this.origin + TimeUnit.MILLISECONDS.toNanos(downtime);
+    this.wheel.schedule(this.origin + recovery, () -> {
+      this.down[node] = false;
+      this.nodes.get(node).tell(Recovery.INSTANCE, ActorRef.noSender());
+      long think = (long) (this.options.getDouble("think", 0) * 1e6);
+      for (int client : this.parked.get(node)) {
+        request(node, client, think);
+      }
+      this.parked.get(node).clear();
+    });
+    long next = recovery + TimeUnit.MILLISECONDS.toNanos(gap) + (long) (exponential(1 / rate) * 1e6);
+    this.wheel.schedule(this.origin + next, () -> crash(rate, downtime, gap));
+    checkDone();
+  }
+
+  /**
+   * Adds a node to the tree, as a leaf of a random node, or takes a random node away, and schedules the next change.
+   * The shared requests held by the workload for a node that leaves are dropped, the ones it got are served before it goes.
+   *
+   * @param      rate  The changes per ms.
+   */
+  private void churn(double rate) {
+    if (!this.generating) {
+      return;
+    }
+    if (this.members.size() <= 2 || this.rnd.nextBoolean()) {
+      int to = this.members.get(this.rnd.nextInt(this.members.size()));
+      int node = TBDMXController.join(this.system, this.nodes, this.options, to);
+      this.joins++;
+      this.members.add(node);
+      this.gone = Arrays.copyOf(this.gone, this.nodes.size());
+      this.down = Arrays.copyOf(this.down, this.nodes.size());
+      this.parked.add(new ArrayList<>(0));
+      if (this.mode == Mode.CLOSED) {
+        long think = (long) (this.options.getDouble("think", 0) * 1e6);
+        for (int c = 0; c < this.options.getInt("clients", 1); c++) {
+          request(node, c, think);
+        }
+      }
+    }
+    else {
+      int node = this.members.remove(this.rnd.nextInt(this.members.size()));
+      this.leaves++;
+      this.gone[node] = true;
+      this.nodes.get(node).tell(Leave.INSTANCE, ActorRef.noSender());
+      for (int resource = 0; resource < this.resources; resource++) {
+        ArrayDeque<Pending> queue = this.waiting.remove(((long) node * this.resources + resource) * 2 + 1);
+        while (queue != null && !queue.isEmpty()) {
+          drop(queue.poll());
+        }
+      }
+    }
+    this.wheel.schedule(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(exponential(1 / rate)), () -> churn(rate));
+    checkDone();
+  }
+
+  private void drop(Pending p) {
+    check(p, false);
+    this.dropped++;
+    this.outstanding--;
+    if (p.client != NO_CLIENT) {
+      this.parked.get(p.node).add(p.client);
+    }
+  }
+
+  private void checkDone() {
+    if (!this.generating && this.outstanding == 0) {
+      finish();
+    }
+  }
+
+  /**
+   * Prints what the generators did and lets `run` return.
+   */
+  private void finish() {
+    if (this.done.getCount() == 0) {
+      return;
+    }
+    if (this.outstanding > 0) {
+      System.err.println(this.outstanding+" requests still not served");
+    }
+    System.out.println(String.format(Locale.ROOT, "%d requests issued, %d served, %d dropped by %d crashes and %d leaves, %d rejected by a crashed node; wait mean %.3f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+                                     this.issued, this.served, this.dropped, this.crashes, this.leaves, this.rejected, this.waits.mean() / 1e6,
+                                     this.waits.percentile(0.5) / 1e6, this.waits.percentile(0.99) / 1e6, this.waits.max() / 1e6));
+    System.out.println(String.format(Locale.ROOT, "%d CSs checked, %d overlapping%s", this.checked.get(), this.overlaps.get(),
+                                     this.joins + this.leaves > 0 ? "; "+this.joins+" nodes joined the tree, "+this.leaves+" left it" : ""));
+    if (this.highFraction > 0 && this.highPriority > 0) {
+      for (int priority : new int[] {0, this.highPriority}) {
+        TBDMXHistogram w = this.waitsByPriority[priority];
+        System.out.println(String.format(Locale.ROOT, "priority %d: %d served, wait mean %.3f ms, p99 %.3f ms, max %.3f ms",
+                                         priority, w.count(), w.mean() / 1e6, w.percentile(0.99) / 1e6, w.max() / 1e6));
+      }
+    }
+    this.done.countDown();
+  }
+
+  /**
+   * Returns the CSs of generated requests that overlapped another one they should not have, see `check`.
+   *
+   * @return     The number of CSs.
+   */
+  long overlaps() {
+    return this.overlaps.get();
+  }
+
+  /**
+   * Returns the generated requests neither served nor lost in a crash by the end of the drain, once `run` returned.
+   *
+   * @return     The number of requests.
+   */
+  long unserved() {
+    return this.outstanding;
+  }
+
+  /**
+   * Returns the generated requests served, once `run` returned.
+   *
+   * @return     The number of requests.
+   */
+  long served() {
+    return this.served;
+  }
+
+  /**
+   * Returns the nodes that joined the tree, once `run` returned.
+   *
+   * @return     The number of nodes.
+   */
+  long joins() {
+    return this.joins;
+  }
+
+  /**
+   * Returns the nodes that left the tree, once `run` returned.
+   *
+   * @return     The number of nodes.
+   */
+  long leaves() {
+    return this.leaves;
+  }
+}
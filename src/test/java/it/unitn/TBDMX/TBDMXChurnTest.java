@@ -0,0 +1,169 @@
+package it.unitn.TBDMX;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a closed loop workload on a tree while nodes join it, leave it and move, with and without crashes, and checks what
+ * `TBDMXWorkload` checks: no CS overlaps one it should not (a duplicated token) and every request is served or lost in a crash of its node
+ * (a lost token leaves requests waiting for ever). The moves are the ones of the adaptive mode, counted in the log.
+ */
+public class TBDMXChurnTest {
+  private static File dir;
+  private static File log;
+  private ActorSystem system;
+
+  @BeforeClass
+  public static void setup() throws IOException {
+    dir = Files.createTempDirectory("tbdmx-churn").toFile();
+    log = new File(dir, "tbdmx.log");
+    Map<String, String> logging = new HashMap<>();
+    logging.put("log-level", "INFO");
+    logging.put("log-file", log.getPath());
+    logging.put("log-buffer", Integer.toString(1 << 20));
+    TBDMXLog.start(new TBDMXOptions(logging));
+  }
+
+  @AfterClass
+  public static void teardown() {
+    TBDMXLog.close();
+  }
+
+  @After
+  public void stop() {
+    if (this.system != null) {
+      TestKit.shutdownActorSystem(this.system);
+      this.system = null;
+    }
+  }
+
+  /**
+   * Runs the workload on a binary tree of 31 nodes and checks it.
+   *
+   * @param      extra  Options on top of the ones of every test.
+   *
+   * @return     The workload, once over.
+   */
+  private TBDMXWorkload run(String... extra) {
+    Map<String, String> values = new HashMap<>();
+    values.put("workload", "closed");
+    values.put("clients", "2");
+    values.put("resources", "4");
+    values.put("read-fraction", "0.2");
+    values.put("cs-time", "2");
+    values.put("think", "5");
+    values.put("duration", "3000");
+    values.put("drain", "20000");
+    values.put("churn-rate", "10");
+    values.put("bootstrap", "bfs");
+    values.put("seed", "7");
+    for (int i = 0; i < extra.length; i += 2) {
+      values.put(extra[i], extra[i + 1]);
+    }
+    TBDMXOptions options = new TBDMXOptions(values);
+    this.system = ActorSystem.create("TBDMXChurnTest", TBDMXNode.config(options));
+    TBDMXTopology topology = TBDMXTopology.generate(TBDMXTopology.Shape.KARY, 31, 2, 7);
+    List<ActorRef> nodes = TBDMXController.createNodes(this.system, topology, options);
+    TBDMXWorkload workload = new TBDMXWorkload(options, nodes, this.system);
+    workload.run();
+    assertEquals("overlapping CSs", 0, workload.overlaps());
+    assertEquals("requests never served", 0, workload.unserved());
+    assertTrue("no request served", workload.served() > 0);
+    assertTrue("no node joined", workload.joins() > 0);
+    assertTrue("no node left", workload.leaves() > 0);
+    return workload;
+  }
+
+  private static long moves() throws IOException {
+    TBDMXLog.flush();
+    try (Stream<String> lines = Files.lines(log.toPath())) {
+      return lines.filter(l -> l.contains("\tMOVED\t")).count();
+    }
+  }
+
+  @Test
+  public void joinAndLeave() {
+    run();
+  }
+
+  /**
+   * With the default bootstrap the workload imposes the holder and waits for every node to know it before starting.
+   */
+  @Test(timeout = 60000)
+  public void joinAndLeaveWithFloodBootstrap() {
+    run("bootstrap", "flood");
+  }
+
+  @Test
+  public void joinAndLeaveWithCrashes() {
+    run("crash-rate", "4", "downtime", "200");
+  }
+
+  @Test
+  public void joinAndLeaveWithCrashesAndCheckpoints() {
+    run("crash-rate", "4", "downtime", "200", "checkpoint-dir", new File(dir, "checkpoints").getPath());
+  }
+
+  @Test
+  public void joinLeaveAndMove() throws IOException {
+    long before = moves();
+    run("adaptive", "2", "select", "hot", "hot", "2", "hot-fraction", "0.9");
+    assertTrue("no node moved", moves() > before);
+  }
+
+  @Test
+  public void joinLeaveAndMoveWithCrashes() throws IOException {
+    long before = moves();
+    run("adaptive", "2", "select", "hot", "hot", "2", "hot-fraction", "0.9", "crash-rate", "4", "downtime", "200");
+    assertTrue("no node moved", moves() > before);
+  }
+
+  @Test
+  public void joinAndLeaveWithTokens() {
+    run("tokens", "3", "read-fraction", "0.5", "crash-rate", "4", "downtime", "200");
+  }
+
+  @Test
+  public void joinAndLeaveWithBatches() {
+    run("batch", "4", "batch-time", "200", "crash-rate", "4", "downtime", "200");
+  }
+
+  @Test
+  public void joinAndLeaveWithPriorities() {
+    run("high-fraction", "0.3", "aging", "1", "crash-rate", "4", "downtime", "200");
+  }
+
+  @Test
+  public void joinAndLeaveWithCoalescing() {
+    run("coalesce", "true", "coalesce-window", "200");
+  }
+
+  @Test
+  public void joinAndLeaveWithFailureDetection() {
+    run("heartbeat", "20", "restart-after", "100", "crash-rate", "2");
+  }
+
+  @Test
+  public void joinAndLeaveWithEverything() {
+    run("batch", "4", "batch-time", "200", "high-fraction", "0.3", "aging", "1", "coalesce", "true", "coalesce-window", "200",
+      "heartbeat", "20", "restart-after", "100", "crash-rate", "2");
+  }
+}
@@ -0,0 +1,101 @@
+package it.unitn.TBDMX;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the log keeps every event when its buffer fills up, unless `log-drop` is given, and that `flush` returns while
+ * the nodes keep logging.
+ */
+public class TBDMXLogTest {
+  private static final int THREADS = 4;
+
+  @After
+  public void stop() {
+    TBDMXLog.close();
+  }
+
+  private static File start(String... extra) throws IOException {
+    File log = new File(Files.createTempDirectory("tbdmx-log").toFile(), "tbdmx.log");
+    Map<String, String> values = new HashMap<>();
+    values.put("log-level", "INFO");
+    values.put("log-file", log.getPath());
+    values.put("log-buffer", "1024");
+    for (int i = 0; i < extra.length; i += 2) {
+      values.put(extra[i], extra[i + 1]);
+    }
+    TBDMXLog.start(new TBDMXOptions(values));
+    return log;
+  }
+
+  /**
+   * Runs `THREADS` threads logging `count` events each, or until `stop` is set if `count` is 0.
+   */
+  private static CompletableFuture<?>[] producers(long count, AtomicBoolean stop) {
+    CompletableFuture<?>[] done = new CompletableFuture<?>[THREADS];
+    for (int t = 0; t < THREADS; t++) {
+      int node = t;
+      done[t] = CompletableFuture.runAsync(() -> {
+        for (long i = 0; count == 0 ? !stop.get() : i < count; i++) {
+          TBDMXLog.log(TBDMXLog.Event.CS_ENTER, node, 0, TBDMXLog.NONE, 0);
+        }
+      }, r -> new Thread(r).start());
+    }
+    return done;
+  }
+
+  private static long lines(File log) throws IOException {
+    try (Stream<String> lines = Files.lines(log.toPath())) {
+      return lines.count();
+    }
+  }
+
+  @Test
+  public void keepsEveryEventWhenFull() throws Exception {
+    File log = start();
+    CompletableFuture.allOf(producers(50_000, null)).get(60, TimeUnit.SECONDS);
+    TBDMXLog.close();
+    assertEquals(0, TBDMXLog.dropped());
+    assertEquals(THREADS * 50_000L, lines(log));
+  }
+
+  @Test
+  public void dropsWhenAsked() throws Exception {
+    File log = start("log-drop", "true");
+    CompletableFuture.allOf(producers(50_000, null)).get(60, TimeUnit.SECONDS);
+    TBDMXLog.close();
+    assertEquals(THREADS * 50_000L, lines(log) + TBDMXLog.dropped());
+  }
+
+  @Test
+  public void flushReturnsUnderLoad() throws Exception {
+    File log = start();
+    AtomicBoolean stop = new AtomicBoolean();
+    CompletableFuture<?>[] done = producers(0, stop);
+    Thread.sleep(50);
+    CompletableFuture<Void> flushed = CompletableFuture.runAsync(TBDMXLog::flush, r -> new Thread(r).start());
+    try {
+      flushed.get(10, TimeUnit.SECONDS);
+    }
+    finally {
+      stop.set(true);
+      CompletableFuture.allOf(done).get(60, TimeUnit.SECONDS);
+    }
+    TBDMXLog.close();
+    assertTrue(lines(log) > 0);
+    assertEquals(0, TBDMXLog.dropped());
+  }
+}
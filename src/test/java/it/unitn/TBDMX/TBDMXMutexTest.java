@@ -0,0 +1,158 @@
+package it.unitn.TBDMX;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import it.unitn.TBDMX.TBDMXMutex.LockHandle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives `TBDMXMutex` on a line of nodes whose token starts at node 0, and checks the handshake between the node entering the CS,
+ * the timeout and the caller: an acquisition that gives up is withdrawn or leaves its CS at once, and the next waiter gets the lock.
+ */
+public class TBDMXMutexTest {
+  private static final long WAIT = 10;                  // s, far more than any acquisition below takes
+  private ActorSystem system;
+  private List<ActorRef> nodes;
+  private TBDMXMutex mutex;
+  private ScheduledExecutorService delayed;
+
+  @Before
+  public void start() {
+    Map<String, String> values = new HashMap<>();
+    values.put("bootstrap", "bfs");
+    values.put("holder", "0");
+    TBDMXOptions options = new TBDMXOptions(values);
+    this.system = ActorSystem.create("TBDMXMutexTest", TBDMXNode.config(options));
+    this.nodes = TBDMXController.createNodes(this.system, TBDMXTopology.generate(TBDMXTopology.Shape.LINE, 6, 2, 1), options);
+    this.mutex = new TBDMXMutex(this.system, this.nodes);
+    this.delayed = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @After
+  public void stop() {
+    this.delayed.shutdownNow();
+    TestKit.shutdownActorSystem(this.system);
+  }
+
+  /**
+   * Gets the lock at a node, failing the test if it takes more than `WAIT` seconds.
+   */
+  private LockHandle lock(int node) throws InterruptedException {
+    try {
+      return this.mutex.lock(node, 0, WAIT, TimeUnit.SECONDS);
+    }
+    catch (TimeoutException e) {
+      fail("lock not acquired at node "+node);
+      return null;
+    }
+  }
+
+  private static LockHandle get(CompletableFuture<LockHandle> acquired) throws InterruptedException, ExecutionException, TimeoutException {
+    return acquired.get(WAIT, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void lockTimesOutWhileHeld() throws Exception {
+    LockHandle held = lock(0);
+    long start = System.nanoTime();
+    try {
+      this.mutex.lock(5, 0, 200, TimeUnit.MILLISECONDS);
+      fail("lock acquired while held");
+    }
+    catch (TimeoutException e) {
+      assertTrue("timed out too early", System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+    held.release();
+    lock(5).release();
+  }
+
+  @Test
+  public void cancelledAcquireIsNeverGranted() throws Exception {
+    AtomicInteger granted = new AtomicInteger();
+    Executor counting = r -> {
+      granted.incrementAndGet();
+      ForkJoinPool.commonPool().execute(r);
+    };
+    TBDMXMutex cancelling = new TBDMXMutex(this.system, this.nodes, counting);
+    LockHandle held = lock(0);
+    CompletableFuture<LockHandle> cancelled = cancelling.acquire(3, 0, 0, TimeUnit.MILLISECONDS);
+    CompletableFuture<LockHandle> next = this.mutex.acquire(4, 0, 0, TimeUnit.MILLISECONDS);
+    assertTrue(cancelled.cancel(false));
+    held.release();
+    LockHandle handle = get(next);
+    assertEquals(4, handle.node());
+    handle.release();
+    lock(3).release();                                  // The node of the cancelled request still serves new ones
+    assertEquals("cancelled request granted", 0, granted.get());
+  }
+
+  @Test
+  public void releaseHandsOffToTheNextWaiter() throws Exception {
+    LockHandle held = lock(0);
+    CompletableFuture<LockHandle> next = this.mutex.acquire(2, 0, 0, TimeUnit.MILLISECONDS);
+    Thread.sleep(100);
+    assertFalse("lock granted while held", next.isDone());
+    held.release();
+    assertTrue(held.isReleased());
+    LockHandle handle = get(next);
+    assertEquals(2, handle.node());
+    handle.release();
+    lock(0).release();
+  }
+
+  @Test
+  public void acquireResourceZeroWithoutTimeout() throws Exception {
+    LockHandle held = lock(0);
+    CompletableFuture<LockHandle> withdrawn = this.mutex.acquire(3);
+    assertTrue(withdrawn.cancel(false));
+    CompletableFuture<LockHandle> next = this.mutex.acquire(2);
+    held.release();
+    LockHandle handle = get(next);
+    assertEquals(2, handle.node());
+    assertEquals(0, handle.resource());
+    handle.release();
+    lock(3).release();
+  }
+
+  /**
+   * The node enters the CS before the timeout, but the future is completed after it: the CS is left at once, and the lock
+   * goes to the next waiter without anyone releasing it.
+   */
+  @Test
+  public void timeoutRacingTheGrantLeavesTheCS() throws Exception {
+    Executor late = r -> this.delayed.schedule(r, 300, TimeUnit.MILLISECONDS);
+    TBDMXMutex slow = new TBDMXMutex(this.system, this.nodes, late);
+    CompletableFuture<LockHandle> timedOut = slow.acquire(1, 0, 100, TimeUnit.MILLISECONDS);
+    try {
+      get(timedOut);
+      fail("lock acquired after its timeout");
+    }
+    catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+    lock(5).release();
+  }
+}
@@ -0,0 +1,264 @@
+package it.unitn.TBDMX;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.testkit.javadsl.TestKit;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import it.unitn.TBDMX.TBDMXNode.Advice;
+import it.unitn.TBDMX.TBDMXNode.Attach;
+import it.unitn.TBDMX.TBDMXNode.BroadcastHolder;
+import it.unitn.TBDMX.TBDMXNode.CancelCS;
+import it.unitn.TBDMX.TBDMXNode.Crash;
+import it.unitn.TBDMX.TBDMXNode.Detach;
+import it.unitn.TBDMX.TBDMXNode.Envelope;
+import it.unitn.TBDMX.TBDMXNode.Flush;
+import it.unitn.TBDMX.TBDMXNode.Heartbeat;
+import it.unitn.TBDMX.TBDMXNode.ImposeHolder;
+import it.unitn.TBDMX.TBDMXNode.Join;
+import it.unitn.TBDMX.TBDMXNode.Leave;
+import it.unitn.TBDMX.TBDMXNode.Message;
+import it.unitn.TBDMX.TBDMXNode.MoveAbort;
+import it.unitn.TBDMX.TBDMXNode.MoveNeighbor;
+import it.unitn.TBDMX.TBDMXNode.MovePrepare;
+import it.unitn.TBDMX.TBDMXNode.MoveReady;
+import it.unitn.TBDMX.TBDMXNode.Privilege;
+import it.unitn.TBDMX.TBDMXNode.ReadGrant;
+import it.unitn.TBDMX.TBDMXNode.ReadRelease;
+import it.unitn.TBDMX.TBDMXNode.Ready;
+import it.unitn.TBDMX.TBDMXNode.Reattach;
+import it.unitn.TBDMX.TBDMXNode.Recovery;
+import it.unitn.TBDMX.TBDMXNode.ReleaseCS;
+import it.unitn.TBDMX.TBDMXNode.Request;
+import it.unitn.TBDMX.TBDMXNode.RequestCS;
+import it.unitn.TBDMX.TBDMXNode.Reshape;
+import it.unitn.TBDMX.TBDMXNode.Restart;
+import it.unitn.TBDMX.TBDMXNode.SaveLog;
+import it.unitn.TBDMX.TBDMXNode.SetNeighbors;
+import it.unitn.TBDMX.TBDMXNode.Tick;
+import it.unitn.TBDMX.TBDMXNode.Validate;
+import it.unitn.TBDMX.TBDMXNode.Validation;
+
+/**
+ * Round trips of the messages of the nodes through `TBDMXSerializer`: every field that is not transient must come back equal,
+ * arrays, lists and the messages of an `Envelope` included.
+ */
+public class TBDMXSerializerTest {
+  private static ActorSystem system;
+  private static Serialization serialization;
+  private static ActorRef ref;
+
+  @BeforeClass
+  public static void setup() {
+    system = ActorSystem.create("TBDMXSerializerTest");
+    serialization = system.registerExtension(SerializationExtension.lookup());
+    ref = new TestKit(system).getRef();
+  }
+
+  @AfterClass
+  public static void teardown() {
+    TestKit.shutdownActorSystem(system);
+    system = null;
+  }
+
+  private static Advice advice() {
+    return new Advice(17, 3, true, new int[] {0, 5, -2, 1000, Integer.MAX_VALUE, Integer.MIN_VALUE},
+                      new byte[] {Advice.HOLDER, Advice.ASKED | 2 << Advice.PRIORITY_SHIFT, 0, Advice.IN_REQUEST_QUEUE | Advice.ASKED_READ,
+                                  (byte) (Advice.IN_REQUEST_QUEUE | 3 << Advice.PRIORITY_SHIFT), Advice.IN_READ_QUEUE},
+                      new int[] {0, 0, 0, 2, 0, 1});
+  }
+
+  /**
+   * One or more instances of every message that leaves the JVM.
+   */
+  private static Object[] messages() {
+    return new Object[] {
+      new Request(1234, 0, false), new Request(1234, 7, true, 3, true), new Privilege(1234, 0), new Privilege(1234, 9, true),
+      new ReadGrant(99, 3), new ReadRelease(99, 3, 2), new BroadcastHolder(7), new Restart(7),
+      advice(), new Advice(4, 0, false, new int[0], new byte[0], null),
+      new RequestCS(2, true, 150L), new RequestCS(2, false, 150L, 2), new ReleaseCS(2, 41),
+      new MovePrepare(5, 12, true), new MovePrepare(5, 13, false), new MoveReady(5, 12, advice()), new MoveReady(5, 12, null), new MoveAbort(5),
+      new Reattach(5, 6, ref), new Attach(5, 6, ref, new int[] {1, 2}, new int[0], true), new Attach(5, 6, ref, new int[0], new int[] {-4}, false),
+      new Join(12, ref), new Detach(12, true, new int[] {0, 3}), new Detach(12, false, new int[0]), new MoveNeighbor(4, 7),
+      new SetNeighbors(Arrays.asList(ref, ref), new int[] {1, 2}), new SetNeighbors(Arrays.asList(ref, ref), new int[] {1, 2}, 2),
+      new Validate(7, 300), new Validation(7, -1), new Heartbeat(7),
+      new Envelope(new Message[] {new Privilege(1234, 0, true), new Request(1234, 5, false, 2, false), advice()}),
+      ImposeHolder.INSTANCE, SaveLog.INSTANCE, Crash.INSTANCE, Recovery.INSTANCE, Tick.INSTANCE, Ready.INSTANCE, Flush.INSTANCE,
+      Leave.INSTANCE, Reshape.INSTANCE,
+      new TBDMXDeployment.Run(1L << 40, 8, 3, true, 2, 5_000_000L), new TBDMXDeployment.Done(1L << 40, true)
+    };
+  }
+
+  private static Object roundTrip(Object o) {
+    Serializer s = serialization.findSerializerFor(o);
+    assertTrue(o.getClass().getSimpleName()+" is not bound to TBDMXSerializer", s instanceof TBDMXSerializer);
+    String manifest = ((TBDMXSerializer) s).manifest(o);
+    return serialization.deserialize(s.toBinary(o), s.identifier(), manifest).get();
+  }
+
+  /**
+   * Compares two values field by field, following arrays, lists and the classes of the project.
+   */
+  private static void assertSameFields(String path, Object expected, Object actual) {
+    if (expected == null) {
+      assertNull(path, actual);
+      return;
+    }
+    assertTrue(path+" is null", actual != null);
+    assertSame(path, expected.getClass(), actual.getClass());
+    if (expected.getClass().isArray()) {
+      assertEquals(path+".length", Array.getLength(expected), Array.getLength(actual));
+      for (int i = 0; i < Array.getLength(expected); i++) {
+        assertSameFields(path+"["+i+"]", Array.get(expected, i), Array.get(actual, i));
+      }
+    }
+    else if (expected instanceof List) {
+      List<?> e = (List<?>) expected;
+      List<?> a = (List<?>) actual;
+      assertEquals(path+".size()", e.size(), a.size());
+      for (int i = 0; i < e.size(); i++) {
+        assertSameFields(path+".get("+i+")", e.get(i), a.get(i));
+      }
+    }
+    else if (expected.getClass().getName().startsWith("it.unitn.TBDMX.")) {
+      for (Field f : expected.getClass().getDeclaredFields()) {
+        if ((f.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) != 0) {
+          continue;
+        }
+        f.setAccessible(true);
+        try {
+          assertSameFields(path+"."+f.getName(), f.get(expected), f.get(actual));
+        }
+        catch (IllegalAccessException e) {
+          throw new AssertionError(e);
+        }
+      }
+    }
+    else {
+      assertEquals(path, expected, actual);
+    }
+  }
+
+  @Test
+  public void everyMessageSurvivesARoundTrip() {
+    for (Object o : messages()) {
+      assertSameFields(o.getClass().getSimpleName(), o, roundTrip(o));
+    }
+  }
+
+  @Test
+  public void everyMessageClassIsCovered() {
+    Set<Class<?>> covered = new HashSet<>();
+    for (Object o : messages()) {
+      covered.add(o.getClass());
+    }
+    for (Class<?> c : TBDMXNode.class.getDeclaredClasses()) {
+      if (Message.class.isAssignableFrom(c) && c != Message.class && c != CancelCS.class) {   // A `CancelCS` never leaves its JVM
+        assertTrue(c.getSimpleName()+" is not tested", covered.contains(c));
+      }
+    }
+  }
+
+  @Test
+  public void singletonsStaySingletons() {
+    for (Object o : new Object[] {ImposeHolder.INSTANCE, SaveLog.INSTANCE, Crash.INSTANCE, Recovery.INSTANCE, Tick.INSTANCE, Ready.INSTANCE,
+                                  Flush.INSTANCE, Leave.INSTANCE, Reshape.INSTANCE}) {
+      assertSame(o, roundTrip(o));
+    }
+  }
+
+  @Test
+  public void envelopesNest() {
+    Envelope inner = new Envelope(new Message[] {new ReadRelease(3, -8, 4), new Privilege(3, 11, true)});
+    Envelope outer = new Envelope(new Message[] {new Request(3, 11, false, 1, true), inner, advice(), new Envelope(new Message[0])});
+    Envelope back = (Envelope) roundTrip(outer);
+    assertSameFields("Envelope", outer, back);
+    Envelope nested = (Envelope) back.messages[1];
+    assertTrue(((Privilege) nested.messages[1]).back);
+    assertEquals(-8, ((ReadRelease) nested.messages[0]).resource);
+    assertEquals(0, ((Envelope) back.messages[3]).messages.length);
+  }
+
+  @Test
+  public void negativeAndExtremeKeys() {
+    for (int key : new int[] {-1, -2, -64, -65, Integer.MIN_VALUE, Integer.MAX_VALUE}) {
+      assertEquals(key, ((Request) roundTrip(new Request(1, key, false))).resource);
+      assertEquals(key, ((Privilege) roundTrip(new Privilege(1, key))).resource);
+      assertEquals(key, ((ReadGrant) roundTrip(new ReadGrant(1, key))).resource);
+      assertEquals(key, ((ReadRelease) roundTrip(new ReadRelease(1, key, 1))).resource);
+      assertEquals(key, ((ReleaseCS) roundTrip(new ReleaseCS(key, 1))).resource);
+      assertSameFields("Detach", new Detach(1, false, new int[] {key, 0, key}), roundTrip(new Detach(1, false, new int[] {key, 0, key})));
+    }
+    assertEquals(Integer.MAX_VALUE, ((RequestCS) roundTrip(new RequestCS(Integer.MAX_VALUE, 1L))).resource);
+  }
+
+  @Test
+  public void advicePriorityBits() {
+    int n = TBDMXIntQueue.PRIORITIES * 32;
+    int[] resources = new int[n];
+    byte[] flags = new byte[n];
+    for (int i = 0; i < n; i++) {
+      resources[i] = i - n / 2;
+      flags[i] = (byte) ((i / 32) << Advice.PRIORITY_SHIFT | i % 32);
+    }
+    Advice back = (Advice) roundTrip(new Advice(2, 1, false, resources, flags, null));
+    assertSameFields("Advice", new Advice(2, 1, false, resources, flags, null), back);
+    for (int i = 0; i < n; i++) {
+      assertEquals(i / 32, (back.flags[i] & 0xFF) >>> Advice.PRIORITY_SHIFT);
+      assertEquals(i % 32, back.flags[i] & ((1 << Advice.PRIORITY_SHIFT) - 1));
+    }
+  }
+
+  @Test
+  public void requestFlagsAndPriorities() {
+    for (int priority = 0; priority < TBDMXIntQueue.PRIORITIES; priority++) {
+      for (boolean shared : new boolean[] {false, true}) {
+        for (boolean upgrade : new boolean[] {false, true}) {
+          Request back = (Request) roundTrip(new Request(5, 6, shared, priority, upgrade));
+          assertEquals(priority, back.priority);
+          assertEquals(shared, back.shared);
+          assertEquals(upgrade, back.upgrade);
+        }
+        RequestCS cs = (RequestCS) roundTrip(new RequestCS(6, shared, 42L, priority));
+        assertEquals(priority, cs.priority);
+        assertEquals(shared, cs.shared);
+        assertEquals(42L, cs.time);
+      }
+    }
+    assertFalse(((Privilege) roundTrip(new Privilege(1, 2, false))).back);
+  }
+
+  @Test
+  public void localMessagesAreRefused() {
+    RequestCS local = new RequestCS(0, () -> CompletableFuture.completedFuture(null));
+    try {
+      serialization.findSerializerFor(local).toBinary(local);
+      fail("A RequestCS with some work was serialized");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,174 @@
+package it.unitn.TBDMX;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the same seeded script of requests, crashes and recoveries on `TBDMXSimulation` and on a tree of `TBDMXNode`s, and checks that
+ * the nodes enter the CS in the same order and send as many messages. The initial holder stays in its CS while the script runs, and every
+ * step is taken once the previous one is over (the simulation spaces them, the nodes wait until no message is sent for a while), so the
+ * queues are the same in both; then the holder leaves the CS and the token visits them, which is deterministic with a single token.
+ */
+public class TBDMXSimulationTest {
+  private static final long SPACING = 1_000_000;        // virtual ns between two steps, far more than the messages of a step take
+  private static final CompletionStage<Void> DONE = CompletableFuture.completedFuture(null);
+  private ActorSystem system;
+
+  @After
+  public void stop() {
+    if (this.system != null) {
+      TestKit.shutdownActorSystem(this.system);
+      this.system = null;
+    }
+  }
+
+  /**
+   * A step of the script: a request, a crash or a recovery of a node.
+   */
+  private static final class Step {
+    final char kind;
+    final int node;
+
+    Step(char kind, int node) {
+      this.kind = kind;
+      this.node = node;
+    }
+  }
+
+  /**
+   * Builds a script: a request of the initial holder, then requests at distinct random nodes, and with `crashes` every fifth request
+   * is followed by the crash and the recovery of a random node other than the initial holder.
+   */
+  private static List<Step> script(int n, int requests, boolean crashes, long seed) {
+    SplittableRandom rnd = new SplittableRandom(seed);
+    List<Integer> nodes = new ArrayList<>();
+    for (int i = 1; i < n; i++) {
+      nodes.add(i);
+    }
+    for (int i = nodes.size() - 1; i > 0; i--) {
+      Collections.swap(nodes, i, rnd.nextInt(i + 1));
+    }
+    List<Step> steps = new ArrayList<>();
+    steps.add(new Step('r', 0));
+    for (int j = 0; j < requests; j++) {
+      steps.add(new Step('r', nodes.get(j)));
+      if (crashes && j % 5 == 4) {
+        int victim = 1 + rnd.nextInt(n - 1);
+        steps.add(new Step('c', victim));
+        steps.add(new Step('v', victim));
+      }
+    }
+    return steps;
+  }
+
+  private static long simulate(TBDMXTopology topology, List<Step> steps, long[] messages) {
+    TBDMXSimulation.Params params = new TBDMXSimulation.Params();
+    params.requests = 0;
+    params.csTime = SPACING * (steps.size() + 2);     // The initial holder leaves the CS after the script
+    TBDMXSimulation sim = new TBDMXSimulation(topology, params);
+    for (int j = 0; j < steps.size(); j++) {
+      Step step = steps.get(j);
+      long at = SPACING * (j + 1);
+      switch (step.kind) {
+        case 'r': sim.request(at, step.node); break;
+        case 'c': sim.crash(at, step.node); break;
+        default:  sim.recover(at, step.node); break;
+      }
+    }
+    sim.run();
+    messages[0] = sim.messages();
+    return sim.checksum();
+  }
+
+  /**
+   * Waits until the nodes have sent no message for 50 ms.
+   */
+  private static void settle() throws InterruptedException {
+    long last = -1;
+    for (int quiet = 0; quiet < 5; ) {
+      Thread.sleep(10);
+      long sent = TBDMXNode.messagesSent();
+      quiet = sent == last ? quiet + 1 : 0;
+      last = sent;
+    }
+  }
+
+  private long execute(TBDMXTopology topology, List<Step> steps, long[] messages) throws InterruptedException {
+    Map<String, String> values = new HashMap<>();
+    values.put("bootstrap", "bfs");
+    values.put("holder", "0");
+    values.put("aging", "0");
+    TBDMXOptions options = new TBDMXOptions(values);
+    this.system = ActorSystem.create("TBDMXSimulationTest", TBDMXNode.config(options));
+    List<ActorRef> nodes = TBDMXController.createNodes(this.system, topology, options);
+    List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+    CompletableFuture<Void> held = new CompletableFuture<>();
+    settle();
+    long before = TBDMXNode.messagesSent();
+    for (Step step : steps) {
+      int node = step.node;
+      switch (step.kind) {
+        case 'r':
+          nodes.get(node).tell(new TBDMXNode.RequestCS(0, false, () -> {
+            order.add(node);
+            return order.size() == 1 ? held : DONE;
+          }), ActorRef.noSender());
+          break;
+        case 'c': nodes.get(node).tell(TBDMXNode.Crash.INSTANCE, ActorRef.noSender()); break;
+        default:  nodes.get(node).tell(TBDMXNode.Recovery.INSTANCE, ActorRef.noSender()); break;
+      }
+      settle();
+    }
+    held.complete(null);
+    settle();
+    messages[0] = TBDMXNode.messagesSent() - before;
+    long checksum = 0;
+    synchronized (order) {
+      for (int node : order) {
+        checksum = checksum * 31 + node;
+      }
+    }
+    return checksum;
+  }
+
+  private void compare(TBDMXTopology topology, List<Step> steps) throws InterruptedException {
+    long[] simulated = new long[1];
+    long[] sent = new long[1];
+    long expected = simulate(topology, steps, simulated);
+    long actual = execute(topology, steps, sent);
+    assertTrue("no message sent", simulated[0] > 0);
+    assertEquals("order of the CSs", expected, actual);
+    assertEquals("messages", simulated[0], sent[0]);
+  }
+
+  @Test
+  public void sameGrantsOnARandomTree() throws InterruptedException {
+    compare(TBDMXTopology.generate(TBDMXTopology.Shape.RANDOM, 64, 4, 3), script(64, 30, false, 3));
+  }
+
+  @Test
+  public void sameGrantsOnALine() throws InterruptedException {
+    compare(TBDMXTopology.generate(TBDMXTopology.Shape.LINE, 20, 2, 5), script(20, 15, false, 5));
+  }
+
+  @Test
+  public void sameGrantsWithCrashes() throws InterruptedException {
+    compare(TBDMXTopology.generate(TBDMXTopology.Shape.KARY, 64, 3, 11), script(64, 30, true, 11));
+  }
+}